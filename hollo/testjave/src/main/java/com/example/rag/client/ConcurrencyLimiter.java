@@ -0,0 +1,176 @@
+package com.example.rag.client;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * 作者: liangyajie
+ * 联系方式: 695274107@qq.com
+ * 自适应并发限制（AIMD）：按请求耗时估计Ollama能承受的并发数，超出限制的请求排队等待，队列满或等待超时直接拒绝
+ * 基准耗时取观测到的最小耗时并缓慢上浮；耗时不超过基准的tolerance倍且限制确实被用到时加性增长（每轮约加一），
+ * 超过或请求失败（超时、503/429）时乘性减小，每个耗时周期内最多减小一次，避免同一轮的多个慢请求把限制压到底
+ */
+
+public final class ConcurrencyLimiter {
+
+    // 乘性减小的系数
+    private static final double BACKOFF = 0.9;
+    // 基准耗时每个样本上浮的比例，负载特征变化（如换了更大的模型）后能重新学习
+    private static final double BASELINE_DRIFT = 0.01;
+
+    private final int maxLimit;
+    private final int maxQueue;
+    private final long maxWaitNanos;
+    private final double tolerance;
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition available = lock.newCondition();
+    private final LongAdder rejected = new LongAdder();
+    // 以下字段由lock保护
+    private double limit;
+    private int inFlight;
+    private int waiting;
+    private long baselineNanos = Long.MAX_VALUE;
+    private long lastDecrease;
+
+    public ConcurrencyLimiter(int initialLimit, int maxLimit, int maxQueue, long maxWaitNanos, double tolerance) {
+        this.maxLimit = Math.max(1, maxLimit);
+        this.maxQueue = Math.max(0, maxQueue);
+        this.maxWaitNanos = Math.max(0, maxWaitNanos);
+        this.tolerance = Math.max(1.0, tolerance);
+        this.limit = Math.max(1, Math.min(initialLimit, this.maxLimit));
+        this.lastDecrease = System.nanoTime();
+    }
+
+    // 一次获得的并发名额，请求结束时按耗时和结果释放
+    public final class Permit {
+        // 获得名额时的并发数，判断限制是否真正被用到
+        private final int inFlightAtStart;
+        private final AtomicBoolean released = new AtomicBoolean();
+
+        private Permit(int inFlightAtStart) {
+            this.inFlightAtStart = inFlightAtStart;
+        }
+
+        // 释放名额；dropped表示请求失败或Ollama表示过载。重复释放时忽略
+        public void release(long elapsedNanos, boolean dropped) {
+            if (released.compareAndSet(false, true)) {
+                onRelease(inFlightAtStart, elapsedNanos, dropped);
+            }
+        }
+
+        // 请求被主动取消（如对冲请求中落后的一方）时释放名额，耗时不完整，不作为样本
+        public void abandon() {
+            if (released.compareAndSet(false, true)) {
+                lock.lock();
+                try {
+                    inFlight--;
+                    available.signalAll();
+                } finally {
+                    lock.unlock();
+                }
+            }
+        }
+    }
+
+    // 有空闲名额且没有排队的请求时立即获得名额，否则返回null，不排队
+    public Permit tryAcquire() {
+        lock.lock();
+        try {
+            return inFlight < (int) limit && waiting == 0 ? new Permit(++inFlight) : null;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // 获得一个名额：未达限制且没有排队的请求时立即返回，否则排队等待；队列已满或等待超时时抛出IOException
+    public Permit acquire() throws IOException, InterruptedException {
+        lock.lock();
+        try {
+            if (inFlight < (int) limit && waiting == 0) {
+                return new Permit(++inFlight);
+            }
+            if (waiting >= maxQueue) {
+                rejected.increment();
+                throw new IOException("Too many pending Ollama requests: " + waiting + " queued, limit " + (int) limit);
+            }
+            waiting++;
+            try {
+                long remaining = maxWaitNanos;
+                while (inFlight >= (int) limit) {
+                    if (remaining <= 0) {
+                        rejected.increment();
+                        throw new IOException("Timed out after " + TimeUnit.NANOSECONDS.toMillis(maxWaitNanos)
+                                + " ms waiting for an Ollama concurrency slot");
+                    }
+                    remaining = available.awaitNanos(remaining);
+                }
+            } finally {
+                waiting--;
+            }
+            return new Permit(++inFlight);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private void onRelease(int inFlightAtStart, long elapsedNanos, boolean dropped) {
+        lock.lock();
+        try {
+            inFlight--;
+            long now = System.nanoTime();
+            if (!dropped) {
+                long drifted = baselineNanos == Long.MAX_VALUE ? elapsedNanos
+                        : baselineNanos + (long) (baselineNanos * BASELINE_DRIFT);
+                baselineNanos = Math.max(1, Math.min(elapsedNanos, drifted));
+            }
+            if (dropped || elapsedNanos > tolerance * baselineNanos) {
+                // 同一耗时周期内只减小一次
+                if (now - lastDecrease >= elapsedNanos) {
+                    limit = Math.max(1.0, limit * BACKOFF);
+                    lastDecrease = now;
+                }
+            } else if (inFlightAtStart * 2 >= (int) limit) {
+                limit = Math.min(maxLimit, limit + 1.0 / limit);
+            }
+            available.signalAll();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // 当前的并发限制
+    public int limit() {
+        lock.lock();
+        try {
+            return (int) limit;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public int inFlight() {
+        lock.lock();
+        try {
+            return inFlight;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public int waiting() {
+        lock.lock();
+        try {
+            return waiting;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public long rejected() {
+        return rejected.sum();
+    }
+}
@@ -0,0 +1,104 @@
+package com.example.rag.client;
+
+import java.util.Arrays;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * 作者: liangyajie
+ * 联系方式: 695274107@qq.com
+ * 对冲请求的时机和预算：记录最近一段时间的请求耗时，主请求超过其p95仍未返回时才发出对冲请求
+ * 对冲请求数按预算限制：每个请求积累maxRate个额度，发出一个对冲请求消耗一个，Ollama整体变慢、所有请求都超过p95时
+ * 对冲请求数也不会超过请求数的maxRate倍，避免把负载翻倍
+ */
+
+final class HedgePolicy {
+
+    // 参与计算p95的最近耗时样本数
+    private static final int WINDOW = 256;
+    // 样本不足时p95不可靠，不发对冲请求
+    private static final int MIN_SAMPLES = 20;
+    private static final double PERCENTILE = 0.95;
+    // 额度上限，允许短时间内集中出现的慢请求都能对冲
+    private static final double MAX_BUDGET = 10.0;
+
+    private final double maxRate;
+    private final LongAdder requests = new LongAdder();
+    private final LongAdder hedges = new LongAdder();
+    private final LongAdder hedgeWins = new LongAdder();
+    // 以下字段由this保护
+    private final long[] samples = new long[WINDOW];
+    private int sampleCount;
+    private int nextSample;
+    private double budget;
+    private volatile long delayNanos = -1;
+
+    HedgePolicy(double maxRate) {
+        this.maxRate = Math.max(0, Math.min(1.0, maxRate));
+    }
+
+    boolean enabled() {
+        return maxRate > 0;
+    }
+
+    // 发出一个可对冲的请求：计数并积累对冲额度
+    synchronized void requested() {
+        requests.increment();
+        budget = Math.min(MAX_BUDGET, budget + maxRate);
+    }
+
+    // 发出对冲请求前的等待时间，即最近耗时的p95；样本不足时返回-1，不对冲
+    long delayNanos() {
+        return delayNanos;
+    }
+
+    // 记录一次请求从发出到拿到首个响应的耗时
+    synchronized void record(long elapsedNanos) {
+        samples[nextSample] = elapsedNanos;
+        nextSample = (nextSample + 1) % WINDOW;
+        sampleCount = Math.min(WINDOW, sampleCount + 1);
+        if (sampleCount >= MIN_SAMPLES) {
+            long[] sorted = Arrays.copyOf(samples, sampleCount);
+            Arrays.sort(sorted);
+            delayNanos = sorted[(int) Math.ceil(PERCENTILE * sampleCount) - 1];
+        }
+    }
+
+    // 消耗一个额度发出对冲请求，额度不足时返回false
+    synchronized boolean tryHedge() {
+        if (budget < 1.0) {
+            return false;
+        }
+        budget -= 1.0;
+        hedges.increment();
+        return true;
+    }
+
+    // 对冲请求先于主请求返回
+    void hedgeWon() {
+        hedgeWins.increment();
+    }
+
+    long requests() {
+        return requests.sum();
+    }
+
+    long hedges() {
+        return hedges.sum();
+    }
+
+    long hedgeWins() {
+        return hedgeWins.sum();
+    }
+
+    // 发出对冲请求的比例
+    double hedgeRate() {
+        long total = requests();
+        return total == 0 ? 0.0 : (double) hedges() / total;
+    }
+
+    // 对冲请求中先于主请求返回的比例
+    double winRate() {
+        long sent = hedges();
+        return sent == 0 ? 0.0 : (double) hedgeWins() / sent;
+    }
+}
@@ -2,6 +2,13 @@ package com.example.rag.client;
 
 import com.fasterxml.jackson.databind.JsonNode;
 import com.fasterxml.jackson.databind.ObjectMapper;
+import io.micrometer.core.instrument.FunctionCounter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.TimeGauge;
+import io.micrometer.core.instrument.binder.MeterBinder;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.beans.factory.annotation.Value;
 import org.springframework.stereotype.Component;
@@ -14,29 +21,80 @@ import java.net.http.HttpResponse;
 import java.util.ArrayList;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.CancellationException;
 import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.Function;
+import java.util.function.Supplier;
 
 /**
  * 作者: liangyajie
  * 联系方式: 695274107@qq.com
  * Ollama客户端，用于与本地Ollama模型交互
+ * 可配置多个Ollama副本：每个请求分给未完成请求最少的可用副本，连续失败的副本被摘除，健康检查通过后恢复；
+ * 流式请求从发出到流结束都固定在接受它的副本上；查询时的嵌入请求超过最近耗时的p95仍未返回时向另一个副本发出对冲请求
  */
 
 @Component
-public class OllamaClient {
-    
-    private final String ollamaBaseUrl;
+public class OllamaClient implements MeterBinder, AutoCloseable {
+
+    private static final Logger logger = LoggerFactory.getLogger(OllamaClient.class);
+
+    // 健康检查请求的响应超时时间
+    private static final java.time.Duration HEALTH_CHECK_TIMEOUT = java.time.Duration.ofSeconds(2);
+    // 默认连续失败几次后摘除副本
+    private static final int DEFAULT_FAILURE_THRESHOLD = 3;
+
+    // 各副本分别对嵌入和聊天请求做自适应并发限制，超出的请求在副本上排队
+    private final OllamaEndpointPool pool;
     private final HttpClient httpClient;
     private final ObjectMapper objectMapper;
+    // 查询嵌入的对冲请求，只在有多个副本时生效
+    private final HedgePolicy hedgePolicy;
+    // Ollama版本过旧、没有 /api/embed 接口时置为false，之后批量嵌入改为逐条调用
+    private volatile boolean batchEmbedSupported = true;
 
     // 无参构造函数，默认使用localhost:11434
     public OllamaClient() {
         this("http://localhost:11434");
     }
 
-    // 带参构造函数，支持自定义URL
+    // 带参构造函数，支持自定义URL，使用默认的并发限制
     public OllamaClient(String ollamaBaseUrl) {
-        this.ollamaBaseUrl = ollamaBaseUrl;
+        this(ollamaBaseUrl,
+                new ConcurrencyLimiter(4, 32, 256, TimeUnit.SECONDS.toNanos(30), 2.0),
+                new ConcurrencyLimiter(2, 16, 256, TimeUnit.SECONDS.toNanos(30), 2.0));
+    }
+
+    // 指定嵌入和聊天请求的并发限制
+    public OllamaClient(String ollamaBaseUrl, ConcurrencyLimiter embedLimiter, ConcurrencyLimiter chatLimiter) {
+        this(List.of(new OllamaEndpoint(ollamaBaseUrl, embedLimiter, chatLimiter, DEFAULT_FAILURE_THRESHOLD)), 0);
+    }
+
+    // 多个Ollama副本，每个副本使用各自的并发限制；连续失败failureThreshold次的副本被摘除，
+    // 按healthCheckIntervalNanos间隔探测各副本，探测成功后恢复（为0时不做健康检查）
+    // 查询嵌入的对冲请求数最多为请求数的hedgeMaxRate倍，为0时不对冲
+    public OllamaClient(List<String> baseUrls, Supplier<ConcurrencyLimiter> embedLimiters,
+                        Supplier<ConcurrencyLimiter> chatLimiters, int failureThreshold, long healthCheckIntervalNanos,
+                        double hedgeMaxRate) {
+        this(baseUrls.stream()
+                .map(url -> new OllamaEndpoint(url, embedLimiters.get(), chatLimiters.get(), failureThreshold))
+                .toList(), hedgeMaxRate);
+        if (pool.endpoints().size() > 1) {
+            pool.startHealthChecks(this::probe, healthCheckIntervalNanos);
+        }
+    }
+
+    private OllamaClient(List<OllamaEndpoint> endpoints, double hedgeMaxRate) {
+        this.pool = new OllamaEndpointPool(endpoints);
+        this.hedgePolicy = new HedgePolicy(hedgeMaxRate);
         // 创建使用连接池的HttpClient
         this.httpClient = HttpClient.newBuilder()
                 .connectTimeout(java.time.Duration.ofSeconds(10)) // 连接超时时间
@@ -48,41 +106,371 @@ public class OllamaClient {
         this.objectMapper = new ObjectMapper();
     }
 
-    // 生成嵌入向量
-    public List<Double> generateEmbedding(String model, String text) throws IOException, InterruptedException {
-        String url = ollamaBaseUrl + "/api/embeddings";
+    // 生成嵌入向量，直接解析为float数组，避免装箱
+    public float[] generateEmbedding(String model, String text) throws IOException, InterruptedException {
         Map<String, Object> body = Map.of(
                 "model", model,
                 "prompt", text                  // text 里可以任意字符
         );
         String requestBody = this.objectMapper.writeValueAsString(body);
         
-        // 构建请求并设置响应超时时间
-        HttpRequest request = HttpRequest.newBuilder()
-                .uri(URI.create(url))
-                .header("Content-Type", "application/json")
-                .POST(HttpRequest.BodyPublishers.ofString(requestBody))
-                .timeout(java.time.Duration.ofSeconds(60)) // 嵌入向量请求的响应超时时间
-                .build();
-
-        HttpResponse<String> response = httpClient.send(request, HttpResponse.BodyHandlers.ofString());
+        // 嵌入向量请求的响应超时时间为60秒
+        HttpResponse<String> response = send(OllamaEndpoint::embedLimiter, "/api/embeddings", requestBody,
+                java.time.Duration.ofSeconds(60));
+        // 过载或出错时不能当作空向量，由调用方计为失败
+        if (response.statusCode() != 200) {
+            throw new IOException("Unexpected status code: " + response.statusCode() + " " + response.body());
+        }
         JsonNode root = objectMapper.readTree(response.body());
 
         // 解析嵌入向量
-        List<Double> embedding = new ArrayList<>();
-        JsonNode embeddingNode = root.path("embedding");
-        if (embeddingNode.isArray()) {
-            for (JsonNode element : embeddingNode) {
-                embedding.add(element.asDouble());
+        return toVector(root.path("embedding"));
+    }
+
+    // 批量生成嵌入向量：一次请求 /api/embed 传入多段文本，按输入顺序返回，省去逐条请求的往返和调度开销
+    // Ollama版本过旧不支持该接口时逐条调用 /api/embeddings
+    public List<float[]> generateEmbeddings(String model, List<String> texts) throws IOException, InterruptedException {
+        if (texts.isEmpty()) {
+            return List.of();
+        }
+        if (batchEmbedSupported) {
+            Map<String, Object> body = Map.of(
+                    "model", model,
+                    "input", texts
+            );
+            String requestBody = this.objectMapper.writeValueAsString(body);
+
+            // 一批的耗时随文本数增长，响应超时与单条请求相同时按批次大小放宽
+            HttpResponse<String> response = send(OllamaEndpoint::embedLimiter, "/api/embed", requestBody,
+                    java.time.Duration.ofSeconds(60L + texts.size()));
+            List<float[]> embeddings = parseEmbeddings(response, texts.size());
+            if (embeddings != null) {
+                return embeddings;
+            }
+        }
+        return generateEmbeddingsOneByOne(model, texts);
+    }
+
+    // 查询时的批量嵌入，在检索的关键路径上：有多个副本时，主请求超过最近耗时的p95仍未返回就向另一个副本发出对冲请求，
+    // 先返回200的结果生效，另一个被取消；只有一个副本、未开启对冲或Ollama版本过旧时与 generateEmbeddings 相同
+    public List<float[]> generateQueryEmbeddings(String model, List<String> texts) throws IOException, InterruptedException {
+        if (texts.isEmpty() || !hedgePolicy.enabled() || !batchEmbedSupported || pool.endpoints().size() < 2) {
+            return generateEmbeddings(model, texts);
+        }
+        Map<String, Object> body = Map.of(
+                "model", model,
+                "input", texts
+        );
+        String requestBody = this.objectMapper.writeValueAsString(body);
+        HttpResponse<String> response = sendHedged("/api/embed", requestBody, java.time.Duration.ofSeconds(60L + texts.size()));
+        List<float[]> embeddings = parseEmbeddings(response, texts.size());
+        return embeddings != null ? embeddings : generateEmbeddingsOneByOne(model, texts);
+    }
+
+    // 解析 /api/embed 的响应；旧版本不支持该接口时返回null，之后改为逐条调用
+    private List<float[]> parseEmbeddings(HttpResponse<String> response, int expected) throws IOException {
+        // 旧版本返回纯文本的404；模型不存在时也是404，但带有JSON格式的错误信息
+        if (response.statusCode() == 404 && !response.body().contains("\"error\"")) {
+            batchEmbedSupported = false;
+            return null;
+        }
+        if (response.statusCode() != 200) {
+            throw new IOException("Unexpected status code: " + response.statusCode() + " " + response.body());
+        }
+        JsonNode embeddingsNode = objectMapper.readTree(response.body()).path("embeddings");
+        if (!embeddingsNode.isArray() || embeddingsNode.size() != expected) {
+            throw new IOException("Expected " + expected + " embeddings, got " + embeddingsNode.size());
+        }
+        List<float[]> embeddings = new ArrayList<>(expected);
+        for (JsonNode embeddingNode : embeddingsNode) {
+            embeddings.add(toVector(embeddingNode));
+        }
+        return embeddings;
+    }
+
+    private List<float[]> generateEmbeddingsOneByOne(String model, List<String> texts) throws IOException, InterruptedException {
+        List<float[]> embeddings = new ArrayList<>(texts.size());
+        for (String text : texts) {
+            embeddings.add(generateEmbedding(model, text));
+        }
+        return embeddings;
+    }
+
+    // 选出未完成请求最少的副本，在它的并发限制内发送POST请求，按耗时调整限制；请求失败或Ollama返回过载状态码时视为过载
+    // 连接失败或超时计入副本的连续失败次数；timeout为null时不设响应超时
+    private HttpResponse<String> send(Function<OllamaEndpoint, ConcurrencyLimiter> limiterOf, String path,
+                                      String requestBody, java.time.Duration timeout) throws IOException, InterruptedException {
+        OllamaEndpoint endpoint = pool.acquire(null);
+        try {
+            ConcurrencyLimiter.Permit permit = limiterOf.apply(endpoint).acquire();
+            long start = System.nanoTime();
+            boolean dropped = true;
+            try {
+                HttpResponse<String> response = httpClient.send(post(endpoint, path, requestBody, timeout).build(),
+                        HttpResponse.BodyHandlers.ofString());
+                endpoint.succeeded();
+                dropped = overloaded(response.statusCode());
+                return response;
+            } catch (IOException e) {
+                endpoint.failed();
+                throw e;
+            } finally {
+                permit.release(System.nanoTime() - start, dropped);
+            }
+        } finally {
+            endpoint.end();
+        }
+    }
+
+    // 发出嵌入请求，超过最近耗时的p95仍未返回（或在此之前失败、返回过载状态码）时，在额度允许且另一个副本有空闲名额的情况下发出对冲请求
+    // 两个请求中先返回200的生效，另一个被取消；都没有返回200时返回其中的错误响应或抛出异常；只有返回200的请求计入耗时样本
+    private HttpResponse<String> sendHedged(String path, String requestBody, java.time.Duration timeout)
+            throws IOException, InterruptedException {
+        long start = System.nanoTime();
+        Attempt primary = attempt(pool.acquire(null), path, requestBody, timeout);
+        hedgePolicy.requested();
+        Attempt hedge = null;
+        try {
+            long delayNanos = hedgePolicy.delayNanos();
+            if (delayNanos >= 0) {
+                try {
+                    if (overloaded(primary.response.get(delayNanos, TimeUnit.NANOSECONDS).statusCode())) {
+                        hedge = hedge(primary, path, requestBody, timeout);
+                    }
+                } catch (TimeoutException | ExecutionException e) {
+                    hedge = hedge(primary, path, requestBody, timeout);
+                }
+            }
+            Attempt winner = hedge == null ? primary : await(firstSuccess(primary, hedge));
+            HttpResponse<String> response = await(winner.response);
+            if (response.statusCode() == 200) {
+                if (winner == hedge) {
+                    hedgePolicy.hedgeWon();
+                }
+                hedgePolicy.record(System.nanoTime() - start);
+            }
+            return response;
+        } finally {
+            // 取消落后的一方；已完成的请求不受影响
+            primary.cancel();
+            if (hedge != null) {
+                hedge.cancel();
+            }
+        }
+    }
+
+    // 向主请求以外的可用副本发出对冲请求；没有其他可用副本、该副本没有空闲名额或额度不足时返回null
+    private Attempt hedge(Attempt primary, String path, String requestBody, java.time.Duration timeout) {
+        OllamaEndpoint other = pool.acquireOther(primary.endpoint);
+        if (other == null) {
+            return null;
+        }
+        // 对冲请求不排队
+        ConcurrencyLimiter.Permit permit = other.embedLimiter().tryAcquire();
+        if (permit == null || !hedgePolicy.tryHedge()) {
+            if (permit != null) {
+                permit.abandon();
             }
+            other.end();
+            return null;
+        }
+        return new Attempt(other, permit, post(other, path, requestBody, timeout).build());
+    }
+
+    // 在副本的嵌入并发限制内异步发出请求，没有空闲名额时排队
+    private Attempt attempt(OllamaEndpoint endpoint, String path, String requestBody, java.time.Duration timeout)
+            throws IOException, InterruptedException {
+        ConcurrencyLimiter.Permit permit;
+        try {
+            permit = endpoint.embedLimiter().acquire();
+        } catch (IOException | InterruptedException | RuntimeException e) {
+            endpoint.end();
+            throw e;
+        }
+        return new Attempt(endpoint, permit, post(endpoint, path, requestBody, timeout).build());
+    }
+
+    // 两个请求中先返回200的一方；过载或出错的响应不算胜出，等待另一方
+    // 都没有返回200时，有错误响应的以该响应结束（由调用方按状态码处理），都是异常时以最后一个异常结束
+    private static CompletableFuture<Attempt> firstSuccess(Attempt primary, Attempt hedge) {
+        CompletableFuture<Attempt> first = new CompletableFuture<>();
+        AtomicInteger failures = new AtomicInteger();
+        AtomicReference<Attempt> failedResponse = new AtomicReference<>();
+        for (Attempt attempt : List.of(primary, hedge)) {
+            attempt.response.whenComplete((response, e) -> {
+                if (e == null && response.statusCode() == 200) {
+                    first.complete(attempt);
+                    return;
+                }
+                if (e == null) {
+                    failedResponse.set(attempt);
+                }
+                if (failures.incrementAndGet() == 2) {
+                    Attempt responded = failedResponse.get();
+                    if (responded != null) {
+                        first.complete(responded);
+                    } else {
+                        first.completeExceptionally(e);
+                    }
+                }
+            });
+        }
+        return first;
+    }
+
+    // 等待异步请求完成，抛出请求的原始异常
+    private static <T> T await(CompletableFuture<T> future) throws IOException, InterruptedException {
+        try {
+            return future.get();
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            while (cause instanceof CompletionException && cause.getCause() != null) {
+                cause = cause.getCause();
+            }
+            if (cause instanceof IOException ioException) {
+                throw ioException;
+            }
+            throw new IOException("Ollama request failed: " + cause.getMessage(), cause);
+        }
+    }
+
+    // 发往某个副本的一次异步嵌入请求，结束时释放名额和未完成请求数；被取消时名额释放但不作为耗时样本
+    private final class Attempt {
+        private final OllamaEndpoint endpoint;
+        private final CompletableFuture<HttpResponse<String>> response;
+        private final AtomicBoolean cancelled = new AtomicBoolean();
+
+        private Attempt(OllamaEndpoint endpoint, ConcurrencyLimiter.Permit permit, HttpRequest request) {
+            this.endpoint = endpoint;
+            long start = System.nanoTime();
+            try {
+                this.response = httpClient.sendAsync(request, HttpResponse.BodyHandlers.ofString());
+            } catch (RuntimeException e) {
+                permit.release(System.nanoTime() - start, true);
+                endpoint.end();
+                throw e;
+            }
+            this.response.whenComplete((response, e) -> {
+                if (cancelled.get() || e instanceof CancellationException) {
+                    permit.abandon();
+                } else if (e == null) {
+                    endpoint.succeeded();
+                    permit.release(System.nanoTime() - start, overloaded(response.statusCode()));
+                } else {
+                    endpoint.failed();
+                    permit.release(System.nanoTime() - start, true);
+                }
+                endpoint.end();
+            });
+        }
+
+        // 取消尚未完成的请求，HttpClient随之中止该请求
+        private void cancel() {
+            if (!response.isDone() && cancelled.compareAndSet(false, true)) {
+                response.cancel(true);
+            }
+        }
+    }
+
+    private static HttpRequest.Builder post(OllamaEndpoint endpoint, String path, String requestBody,
+                                            java.time.Duration timeout) {
+        HttpRequest.Builder builder = HttpRequest.newBuilder()
+                .uri(URI.create(endpoint.baseUrl() + path))
+                .header("Content-Type", "application/json")
+                .POST(HttpRequest.BodyPublishers.ofString(requestBody));
+        return timeout != null ? builder.timeout(timeout) : builder;
+    }
+
+    // 健康检查：请求 /api/version，返回200即视为健康
+    private boolean probe(OllamaEndpoint endpoint) {
+        HttpRequest request = HttpRequest.newBuilder()
+                .uri(URI.create(endpoint.baseUrl() + "/api/version"))
+                .timeout(HEALTH_CHECK_TIMEOUT)
+                .GET()
+                .build();
+        try {
+            return httpClient.send(request, HttpResponse.BodyHandlers.discarding()).statusCode() == 200;
+        } catch (IOException e) {
+            return false;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return false;
+        }
+    }
+
+    // Ollama排队已满时返回503，代理限流时返回429
+    private static boolean overloaded(int statusCode) {
+        return statusCode == 503 || statusCode == 429;
+    }
+
+    // 当前的嵌入并发限制（可用副本之和），嵌入调度据此决定同时发出的批次数
+    public int embedConcurrencyLimit() {
+        return pool.embedConcurrencyLimit();
+    }
+
+    // 注册各副本各类请求的并发限制、进行中和排队的请求数、被拒绝的请求数指标，以及副本的未完成请求数、可用状态和摘除次数
+    @Override
+    public void bindTo(MeterRegistry registry) {
+        for (OllamaEndpoint endpoint : pool.endpoints()) {
+            bindLimiter(registry, endpoint.baseUrl(), "embed", endpoint.embedLimiter());
+            bindLimiter(registry, endpoint.baseUrl(), "chat", endpoint.chatLimiter());
+            Gauge.builder("rag.ollama.endpoint.outstanding", endpoint, OllamaEndpoint::outstanding)
+                    .tag("endpoint", endpoint.baseUrl()).description("分配到该副本、尚未结束的请求数").register(registry);
+            Gauge.builder("rag.ollama.endpoint.available", endpoint, e -> e.available() ? 1 : 0)
+                    .tag("endpoint", endpoint.baseUrl()).description("副本是否可用（1可用，0已摘除）").register(registry);
+            FunctionCounter.builder("rag.ollama.endpoint.ejections", endpoint, OllamaEndpoint::ejections)
+                    .tag("endpoint", endpoint.baseUrl()).description("副本被摘除的次数").register(registry);
+        }
+        bindHedging(registry);
+    }
+
+    // 注册查询嵌入的对冲指标：可对冲的请求数、发出的对冲请求数、对冲请求先返回的次数、对冲比例、对冲胜出比例和当前的对冲等待时间
+    private void bindHedging(MeterRegistry registry) {
+        FunctionCounter.builder("rag.ollama.hedge.requests", hedgePolicy, HedgePolicy::requests)
+                .description("可对冲的查询嵌入请求数").register(registry);
+        FunctionCounter.builder("rag.ollama.hedge.sent", hedgePolicy, HedgePolicy::hedges)
+                .description("发出的对冲请求数").register(registry);
+        FunctionCounter.builder("rag.ollama.hedge.wins", hedgePolicy, HedgePolicy::hedgeWins)
+                .description("对冲请求先于主请求返回的次数").register(registry);
+        Gauge.builder("rag.ollama.hedge.rate", hedgePolicy, HedgePolicy::hedgeRate)
+                .description("发出对冲请求的比例").register(registry);
+        Gauge.builder("rag.ollama.hedge.win.rate", hedgePolicy, HedgePolicy::winRate)
+                .description("对冲请求中先于主请求返回的比例").register(registry);
+        TimeGauge.builder("rag.ollama.hedge.delay", hedgePolicy, TimeUnit.NANOSECONDS, p -> Math.max(0, p.delayNanos()))
+                .description("发出对冲请求前的等待时间（最近耗时的p95）").register(registry);
+    }
+
+    private static void bindLimiter(MeterRegistry registry, String endpoint, String operation, ConcurrencyLimiter limiter) {
+        Gauge.builder("rag.ollama.concurrency.limit", limiter, ConcurrencyLimiter::limit)
+                .tags("endpoint", endpoint, "operation", operation).description("Ollama请求的自适应并发限制").register(registry);
+        Gauge.builder("rag.ollama.concurrency.inflight", limiter, ConcurrencyLimiter::inFlight)
+                .tags("endpoint", endpoint, "operation", operation).description("进行中的Ollama请求数").register(registry);
+        Gauge.builder("rag.ollama.concurrency.queued", limiter, ConcurrencyLimiter::waiting)
+                .tags("endpoint", endpoint, "operation", operation).description("排队等待的Ollama请求数").register(registry);
+        FunctionCounter.builder("rag.ollama.concurrency.rejected", limiter, ConcurrencyLimiter::rejected)
+                .tags("endpoint", endpoint, "operation", operation).description("排队已满或等待超时被拒绝的请求数").register(registry);
+    }
+
+    // 停止健康检查
+    @Override
+    public void close() {
+        pool.close();
+    }
+
+    // 把JSON数组直接解析为float数组，避免装箱；不是数组时返回空向量
+    private static float[] toVector(JsonNode embeddingNode) {
+        if (!embeddingNode.isArray()) {
+            return new float[0];
+        }
+        float[] embedding = new float[embeddingNode.size()];
+        for (int i = 0; i < embedding.length; i++) {
+            embedding[i] = (float) embeddingNode.get(i).asDouble();
         }
         return embedding;
     }
 
     // 生成聊天完成（非流式）
     public String generateChatCompletion(String model, List<Map<String, String>> messages) throws IOException, InterruptedException {
-        String url = ollamaBaseUrl + "/api/chat";
-        
         // 构建请求体
         Map<String, Object> requestData = Map.of(
                 "model", model,
@@ -91,14 +479,8 @@ public class OllamaClient {
         );
         String requestBody = objectMapper.writeValueAsString(requestData);
 
-        // 构建请求并设置响应超时时间
-        HttpRequest request = HttpRequest.newBuilder()
-                .uri(URI.create(url))
-                .header("Content-Type", "application/json")
-                .POST(HttpRequest.BodyPublishers.ofString(requestBody))
-                .build();
-
-        HttpResponse<String> response = httpClient.send(request, HttpResponse.BodyHandlers.ofString());
+        // 非流式聊天不设响应超时
+        HttpResponse<String> response = send(OllamaEndpoint::chatLimiter, "/api/chat", requestBody, null);
         JsonNode root = objectMapper.readTree(response.body());
         
         return root.path("message").path("content").asText();
@@ -109,8 +491,6 @@ public class OllamaClient {
             String model, 
             List<Map<String, String>> messages, 
             ResponseCallback callback) throws IOException, InterruptedException {
-        String url = ollamaBaseUrl + "/api/chat";
-        
         // 构建请求体，设置stream=true
         Map<String, Object> requestData = Map.of(
                 "model", model,
@@ -119,17 +499,46 @@ public class OllamaClient {
         );
         String requestBody = objectMapper.writeValueAsString(requestData);
 
+        // 流式请求固定在接受它的副本上：从发出到流结束都计入该副本的未完成请求，并占用它的一个聊天名额
+        OllamaEndpoint endpoint = pool.acquire(null);
         // 构建请求，设置更长的超时时间（5分钟）以避免流式请求超时
-        HttpRequest request = HttpRequest.newBuilder()
-                .uri(URI.create(url))
-                .header("Content-Type", "application/json")
+        HttpRequest request = post(endpoint, "/api/chat", requestBody, java.time.Duration.ofMinutes(5)) // 流式请求设置5分钟超时时间
                 .header("Accept", "text/event-stream") // 明确指定接收流式响应
-                .POST(HttpRequest.BodyPublishers.ofString(requestBody))
-                .timeout(java.time.Duration.ofMinutes(5)) // 流式请求设置5分钟超时时间
                 .build();
 
+        // 收到响应头的耗时（首个分块前的排队和预填充）作为并发限制的耗时样本
+        ConcurrencyLimiter.Permit permit;
+        try {
+            permit = endpoint.chatLimiter().acquire();
+        } catch (IOException | InterruptedException | RuntimeException e) {
+            endpoint.end();
+            throw e;
+        }
+        long start = System.nanoTime();
+        AtomicLong headersNanos = new AtomicLong(-1);
+        CompletableFuture<HttpResponse<java.util.stream.Stream<String>>> sent;
+        try {
+            sent = httpClient.sendAsync(request, HttpResponse.BodyHandlers.ofLines());
+        } catch (RuntimeException e) {
+            permit.release(System.nanoTime() - start, true);
+            endpoint.end();
+            throw e;
+        }
+
         // 发送请求并处理流式响应
-        return httpClient.sendAsync(request, HttpResponse.BodyHandlers.ofLines())
+        return sent
+                .thenApply(response -> {
+                    headersNanos.set(System.nanoTime() - start);
+                    endpoint.succeeded();
+                    return response;
+                })
+                .whenComplete((response, e) -> {
+                    if (e != null) {
+                        // 未收到响应头：连接失败或超时，释放名额并视为过载；收到响应头时名额在下面处理完响应后释放
+                        endpoint.failed();
+                        permit.release(System.nanoTime() - start, true);
+                    }
+                })
                 .thenAccept(response -> {
                     try {
                         // 确保响应状态码正确
@@ -154,7 +563,7 @@ public class OllamaClient {
                                 }
                             } catch (Exception e) {
                                 // 记录错误但继续处理其他行
-                                System.err.println("Error processing line: " + e.getMessage());
+                                logger.warn("解析流式响应行失败: {}", e.getMessage());
                             }
                         });
                         
@@ -162,11 +571,15 @@ public class OllamaClient {
                         callback.onComplete();
                     } catch (Exception e) {
                         callback.onError(e);
+                    } finally {
+                        // 流结束后才释放名额；Ollama返回过载状态码时视为过载
+                        permit.release(headersNanos.get(), overloaded(response.statusCode()));
                     }
                 })
+                .whenComplete((ignored, e) -> endpoint.end())
                 .exceptionally(e -> {
                     // 处理异常情况
-                    System.err.println("Stream request failed: " + e.getMessage());
+                    logger.warn("流式请求失败: {}", e.getMessage());
                     callback.onError(new Exception("流式请求失败: " + e.getMessage(), e));
                     return null;
                 });
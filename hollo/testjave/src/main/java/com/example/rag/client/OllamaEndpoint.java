@@ -0,0 +1,86 @@
+package com.example.rag.client;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * 作者: liangyajie
+ * 联系方式: 695274107@qq.com
+ * 一个Ollama副本：地址、各自的嵌入和聊天并发限制、未完成的请求数和健康状态
+ * 连续失败（连接失败、超时）达到阈值时摘除，不再分配新请求；之后任意一次成功（健康检查或兜底请求）即恢复
+ */
+
+final class OllamaEndpoint {
+
+    private static final Logger logger = LoggerFactory.getLogger(OllamaEndpoint.class);
+
+    private final String baseUrl;
+    private final ConcurrencyLimiter embedLimiter;
+    private final ConcurrencyLimiter chatLimiter;
+    private final int failureThreshold;
+    // 已分配到该副本、尚未结束的请求数，包括在并发限制里排队的和进行中的流式请求
+    private final AtomicInteger outstanding = new AtomicInteger();
+    private final AtomicInteger consecutiveFailures = new AtomicInteger();
+    private final LongAdder ejections = new LongAdder();
+    private volatile boolean ejected;
+
+    OllamaEndpoint(String baseUrl, ConcurrencyLimiter embedLimiter, ConcurrencyLimiter chatLimiter, int failureThreshold) {
+        this.baseUrl = baseUrl.endsWith("/") ? baseUrl.substring(0, baseUrl.length() - 1) : baseUrl;
+        this.embedLimiter = embedLimiter;
+        this.chatLimiter = chatLimiter;
+        this.failureThreshold = Math.max(1, failureThreshold);
+    }
+
+    String baseUrl() {
+        return baseUrl;
+    }
+
+    ConcurrencyLimiter embedLimiter() {
+        return embedLimiter;
+    }
+
+    ConcurrencyLimiter chatLimiter() {
+        return chatLimiter;
+    }
+
+    int outstanding() {
+        return outstanding.get();
+    }
+
+    void begin() {
+        outstanding.incrementAndGet();
+    }
+
+    void end() {
+        outstanding.decrementAndGet();
+    }
+
+    boolean available() {
+        return !ejected;
+    }
+
+    long ejections() {
+        return ejections.sum();
+    }
+
+    // 收到响应（不论状态码）说明副本可达，清零失败计数；已摘除的副本恢复
+    void succeeded() {
+        consecutiveFailures.set(0);
+        if (ejected) {
+            ejected = false;
+            logger.info("Ollama副本 {} 已恢复", baseUrl);
+        }
+    }
+
+    // 连接失败或超时，连续达到阈值时摘除
+    void failed() {
+        if (consecutiveFailures.incrementAndGet() >= failureThreshold && !ejected) {
+            ejected = true;
+            ejections.increment();
+            logger.warn("Ollama副本 {} 连续失败 {} 次，已摘除", baseUrl, consecutiveFailures.get());
+        }
+    }
+}
@@ -0,0 +1,126 @@
+package com.example.rag.client;
+
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Predicate;
+
+/**
+ * 作者: liangyajie
+ * 联系方式: 695274107@qq.com
+ * 多个Ollama副本的路由：新请求分给未完成请求最少的可用副本，相同时轮流分配，避免总是压到第一个副本
+ * 后台按固定间隔探测每个副本，失败累计到阈值时摘除，探测成功后恢复；全部副本都被摘除时仍在所有副本中选择，
+ * 让请求自己去试，而不是直接失败
+ */
+
+final class OllamaEndpointPool implements AutoCloseable {
+
+    private final List<OllamaEndpoint> endpoints;
+    private final AtomicInteger next = new AtomicInteger();
+    private ScheduledExecutorService healthChecker;
+
+    OllamaEndpointPool(List<OllamaEndpoint> endpoints) {
+        if (endpoints.isEmpty()) {
+            throw new IllegalArgumentException("At least one Ollama endpoint is required");
+        }
+        this.endpoints = List.copyOf(endpoints);
+    }
+
+    List<OllamaEndpoint> endpoints() {
+        return endpoints;
+    }
+
+    // 选出未完成请求最少的可用副本并计入一个未完成请求，调用方结束时调用 end()；exclude不为null时跳过该副本（仍有其他副本时）
+    OllamaEndpoint acquire(OllamaEndpoint exclude) {
+        OllamaEndpoint chosen = leastOutstanding(exclude, true);
+        if (chosen == null) {
+            chosen = leastOutstanding(exclude, false);
+        }
+        if (chosen == null) {
+            chosen = leastOutstanding(null, false);
+        }
+        chosen.begin();
+        return chosen;
+    }
+
+    // 选出exclude以外未完成请求最少的可用副本并计入一个未完成请求；没有其他可用副本时返回null
+    OllamaEndpoint acquireOther(OllamaEndpoint exclude) {
+        OllamaEndpoint chosen = leastOutstanding(exclude, true);
+        if (chosen != null) {
+            chosen.begin();
+        }
+        return chosen;
+    }
+
+    private OllamaEndpoint leastOutstanding(OllamaEndpoint exclude, boolean availableOnly) {
+        int size = endpoints.size();
+        int start = Math.floorMod(next.getAndIncrement(), size);
+        OllamaEndpoint best = null;
+        for (int i = 0; i < size; i++) {
+            OllamaEndpoint endpoint = endpoints.get((start + i) % size);
+            if (endpoint == exclude || (availableOnly && !endpoint.available())) {
+                continue;
+            }
+            if (best == null || endpoint.outstanding() < best.outstanding()) {
+                best = endpoint;
+            }
+        }
+        return best;
+    }
+
+    // 可用副本的嵌入并发限制之和；全部被摘除时按所有副本计算
+    int embedConcurrencyLimit() {
+        int total = 0;
+        for (OllamaEndpoint endpoint : endpoints) {
+            if (endpoint.available()) {
+                total += endpoint.embedLimiter().limit();
+            }
+        }
+        if (total == 0) {
+            for (OllamaEndpoint endpoint : endpoints) {
+                total += endpoint.embedLimiter().limit();
+            }
+        }
+        return total;
+    }
+
+    // 按间隔在后台探测所有副本
+    synchronized void startHealthChecks(Predicate<OllamaEndpoint> probe, long intervalNanos) {
+        if (healthChecker != null || intervalNanos <= 0) {
+            return;
+        }
+        healthChecker = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread thread = new Thread(r, "ollama-health-check");
+            thread.setDaemon(true);
+            return thread;
+        });
+        healthChecker.scheduleWithFixedDelay(() -> checkHealth(probe), intervalNanos, intervalNanos, TimeUnit.NANOSECONDS);
+    }
+
+    // 探测一轮：成功的副本恢复，失败的累计失败次数
+    void checkHealth(Predicate<OllamaEndpoint> probe) {
+        for (OllamaEndpoint endpoint : endpoints) {
+            boolean healthy;
+            try {
+                healthy = probe.test(endpoint);
+            } catch (RuntimeException e) {
+                healthy = false;
+            }
+            if (healthy) {
+                endpoint.succeeded();
+            } else {
+                endpoint.failed();
+            }
+        }
+    }
+
+    @Override
+    public synchronized void close() {
+        if (healthChecker != null) {
+            healthChecker.shutdownNow();
+            healthChecker = null;
+        }
+    }
+}
@@ -4,8 +4,11 @@ import org.apache.tika.Tika;
 import org.springframework.context.annotation.Bean;
 import org.springframework.context.annotation.Configuration;
 
+import com.example.rag.client.ConcurrencyLimiter;
 import com.example.rag.client.OllamaClient;
 
+import java.util.concurrent.TimeUnit;
+
 /**
  * 作者: liangyajie
  * 联系方式: 695274107@qq.com
@@ -16,9 +19,20 @@ import com.example.rag.client.OllamaClient;
 public class AiConfig {
 
     @Bean
-    public OllamaClient ollamaClient() {
-        // 创建Ollama客户端，配置为使用本地Ollama服务
-        return new OllamaClient("http://localhost:11434");
+    public OllamaClient ollamaClient(OllamaProperties properties) {
+        // 创建Ollama客户端，每个副本的嵌入和聊天请求分别按配置做自适应并发限制
+        OllamaProperties.Concurrency concurrency = properties.getConcurrency();
+        OllamaProperties.Health health = properties.getHealth();
+        OllamaProperties.Hedge hedge = properties.getHedge();
+        return new OllamaClient(properties.resolveEndpoints(),
+                () -> limiter(concurrency.getEmbed()), () -> limiter(concurrency.getChat()),
+                health.getFailureThreshold(), TimeUnit.MILLISECONDS.toNanos(health.getIntervalMs()),
+                hedge.isEnabled() ? hedge.getMaxRate() : 0);
+    }
+
+    private static ConcurrencyLimiter limiter(OllamaProperties.Limit limit) {
+        return new ConcurrencyLimiter(limit.getInitialLimit(), limit.getMaxLimit(), limit.getMaxQueue(),
+                TimeUnit.MILLISECONDS.toNanos(limit.getMaxWaitMs()), limit.getTolerance());
     }
 
     @Bean
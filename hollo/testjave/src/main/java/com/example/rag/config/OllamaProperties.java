@@ -0,0 +1,179 @@
+package com.example.rag.config;
+
+import org.springframework.boot.context.properties.ConfigurationProperties;
+import org.springframework.stereotype.Component;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * 作者: liangyajie
+ * 联系方式: 695274107@qq.com
+ * Ollama连接配置，对应application.properties中的ollama.*配置项
+ */
+
+@Component
+@ConfigurationProperties(prefix = "ollama")
+public class OllamaProperties {
+
+    // Ollama服务地址
+    private String baseUrl = "http://localhost:11434";
+    // 多个Ollama副本的地址，配置后忽略baseUrl
+    private List<String> endpoints = new ArrayList<>();
+    private final Concurrency concurrency = new Concurrency();
+    private final Health health = new Health();
+    private final Hedge hedge = new Hedge();
+
+    public String getBaseUrl() {
+        return baseUrl;
+    }
+
+    public void setBaseUrl(String baseUrl) {
+        this.baseUrl = baseUrl;
+    }
+
+    public List<String> getEndpoints() {
+        return endpoints;
+    }
+
+    public void setEndpoints(List<String> endpoints) {
+        this.endpoints = endpoints;
+    }
+
+    // 实际使用的副本地址：未配置endpoints时只有baseUrl
+    public List<String> resolveEndpoints() {
+        List<String> resolved = endpoints.stream().map(String::trim).filter(url -> !url.isEmpty()).toList();
+        return resolved.isEmpty() ? List.of(baseUrl) : resolved;
+    }
+
+    public Health getHealth() {
+        return health;
+    }
+
+    public Hedge getHedge() {
+        return hedge;
+    }
+
+    public Concurrency getConcurrency() {
+        return concurrency;
+    }
+
+    // 按操作类型分别限制发往Ollama的并发请求数
+    public static class Concurrency {
+        private final Limit embed = new Limit(4, 32);
+        private final Limit chat = new Limit(2, 16);
+
+        public Limit getEmbed() {
+            return embed;
+        }
+
+        public Limit getChat() {
+            return chat;
+        }
+    }
+
+    // 副本的摘除和恢复
+    public static class Health {
+        // 连续失败（连接失败、超时）多少次后摘除副本
+        private int failureThreshold = 3;
+        // 健康检查间隔（毫秒），为0时不做健康检查；只有一个副本时不检查
+        private long intervalMs = 5000;
+
+        public int getFailureThreshold() {
+            return failureThreshold;
+        }
+
+        public void setFailureThreshold(int failureThreshold) {
+            this.failureThreshold = failureThreshold;
+        }
+
+        public long getIntervalMs() {
+            return intervalMs;
+        }
+
+        public void setIntervalMs(long intervalMs) {
+            this.intervalMs = intervalMs;
+        }
+    }
+
+    // 查询嵌入的对冲请求：主请求超过最近耗时的p95仍未返回时向另一个副本再发一次，只在有多个副本时生效，默认关闭
+    public static class Hedge {
+        private boolean enabled = false;
+        // 对冲请求数最多为查询嵌入请求数的该比例
+        private double maxRate = 0.1;
+
+        public boolean isEnabled() {
+            return enabled;
+        }
+
+        public void setEnabled(boolean enabled) {
+            this.enabled = enabled;
+        }
+
+        public double getMaxRate() {
+            return maxRate;
+        }
+
+        public void setMaxRate(double maxRate) {
+            this.maxRate = maxRate;
+        }
+    }
+
+    public static class Limit {
+        // 初始并发限制，之后按请求耗时自适应
+        private int initialLimit;
+        // 并发限制的上限
+        private int maxLimit;
+        // 超出限制时最多排队的请求数，队列满时直接拒绝
+        private int maxQueue = 256;
+        // 排队的最长等待时间（毫秒），超时拒绝
+        private long maxWaitMs = 30000;
+        // 耗时超过基准耗时的该倍数时视为过载，减小并发限制
+        private double tolerance = 2.0;
+
+        public Limit(int initialLimit, int maxLimit) {
+            this.initialLimit = initialLimit;
+            this.maxLimit = maxLimit;
+        }
+
+        public int getInitialLimit() {
+            return initialLimit;
+        }
+
+        public void setInitialLimit(int initialLimit) {
+            this.initialLimit = initialLimit;
+        }
+
+        public int getMaxLimit() {
+            return maxLimit;
+        }
+
+        public void setMaxLimit(int maxLimit) {
+            this.maxLimit = maxLimit;
+        }
+
+        public int getMaxQueue() {
+            return maxQueue;
+        }
+
+        public void setMaxQueue(int maxQueue) {
+            this.maxQueue = maxQueue;
+        }
+
+        public long getMaxWaitMs() {
+            return maxWaitMs;
+        }
+
+        public void setMaxWaitMs(long maxWaitMs) {
+            this.maxWaitMs = maxWaitMs;
+        }
+
+        public double getTolerance() {
+            return tolerance;
+        }
+
+        public void setTolerance(double tolerance) {
+            this.tolerance = tolerance;
+        }
+    }
+}
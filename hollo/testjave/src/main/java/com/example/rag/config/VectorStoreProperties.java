@@ -0,0 +1,436 @@
+package com.example.rag.config;
+
+import org.springframework.boot.context.properties.ConfigurationProperties;
+import org.springframework.stereotype.Component;
+
+/**
+ * 作者: liangyajie
+ * 联系方式: 695274107@qq.com
+ * 向量存储配置，对应application.properties中的vector-store.*配置项
+ */
+
+@Component
+@ConfigurationProperties(prefix = "vector-store")
+public class VectorStoreProperties {
+
+    // 检索模式
+    public enum SearchMode {
+        // 暴力扫描全部向量，结果精确
+        FLAT,
+        // HNSW图索引近似检索
+        HNSW,
+        // IVF倒排索引近似检索，训练完成前使用暴力扫描
+        IVF
+    }
+
+    private SearchMode searchMode = SearchMode.FLAT;
+    // 数据目录，保存段文件、乘积量化码本等持久化文件
+    private String dataDir = "data/vector-store";
+    // 单个查询扫描时的最大并行度，0表示CPU核心数；并发查询时按查询数均分
+    private int scanParallelism = 0;
+    // 暴力扫描的检索流水线，如 "binary:32,int8:4,exact"；为空时由quantization.mode推导
+    private String searchPipeline = "";
+    private final Simd simd = new Simd();
+    private final Hnsw hnsw = new Hnsw();
+    private final Ivf ivf = new Ivf();
+    private final Quantization quantization = new Quantization();
+    private final Persistence persistence = new Persistence();
+    private final QueryCache queryCache = new QueryCache();
+    private final EmbeddingCache embeddingCache = new EmbeddingCache();
+    private final EmbeddingBatch embeddingBatch = new EmbeddingBatch();
+
+    public SearchMode getSearchMode() {
+        return searchMode;
+    }
+
+    public void setSearchMode(SearchMode searchMode) {
+        this.searchMode = searchMode;
+    }
+
+    public String getDataDir() {
+        return dataDir;
+    }
+
+    public void setDataDir(String dataDir) {
+        this.dataDir = dataDir;
+    }
+
+    public String getSearchPipeline() {
+        return searchPipeline;
+    }
+
+    public void setSearchPipeline(String searchPipeline) {
+        this.searchPipeline = searchPipeline;
+    }
+
+    public int getScanParallelism() {
+        return scanParallelism;
+    }
+
+    public void setScanParallelism(int scanParallelism) {
+        this.scanParallelism = scanParallelism;
+    }
+
+    public Simd getSimd() {
+        return simd;
+    }
+
+    public Hnsw getHnsw() {
+        return hnsw;
+    }
+
+    public Ivf getIvf() {
+        return ivf;
+    }
+
+    public Quantization getQuantization() {
+        return quantization;
+    }
+
+    public Persistence getPersistence() {
+        return persistence;
+    }
+
+    public QueryCache getQueryCache() {
+        return queryCache;
+    }
+
+    public EmbeddingCache getEmbeddingCache() {
+        return embeddingCache;
+    }
+
+    public EmbeddingBatch getEmbeddingBatch() {
+        return embeddingBatch;
+    }
+
+    public static class QueryCache {
+        // 最多缓存的查询数，0表示关闭
+        private int maxEntries = 1000;
+        // 与已缓存查询的余弦距离（1 - 余弦相似度）不超过该值时复用其结果
+        private double maxDistance = 0.05;
+        // 条目的存活时间（秒）
+        private long ttlSeconds = 300;
+        // 是否同时复用已生成的回答，命中时不再调用大模型
+        private boolean cacheAnswers = false;
+        // 查询嵌入缓存的最大占用字节数，0表示关闭
+        private long embeddingMaxBytes = 16L * 1024 * 1024;
+
+        public int getMaxEntries() {
+            return maxEntries;
+        }
+
+        public void setMaxEntries(int maxEntries) {
+            this.maxEntries = maxEntries;
+        }
+
+        public double getMaxDistance() {
+            return maxDistance;
+        }
+
+        public void setMaxDistance(double maxDistance) {
+            this.maxDistance = maxDistance;
+        }
+
+        public long getTtlSeconds() {
+            return ttlSeconds;
+        }
+
+        public void setTtlSeconds(long ttlSeconds) {
+            this.ttlSeconds = ttlSeconds;
+        }
+
+        public boolean isCacheAnswers() {
+            return cacheAnswers;
+        }
+
+        public void setCacheAnswers(boolean cacheAnswers) {
+            this.cacheAnswers = cacheAnswers;
+        }
+
+        public long getEmbeddingMaxBytes() {
+            return embeddingMaxBytes;
+        }
+
+        public void setEmbeddingMaxBytes(long embeddingMaxBytes) {
+            this.embeddingMaxBytes = embeddingMaxBytes;
+        }
+    }
+
+    public static class EmbeddingCache {
+        // 数据目录下持久化的文档块嵌入缓存的最大占用字节数，0表示关闭
+        private long maxBytes = 256L * 1024 * 1024;
+
+        public long getMaxBytes() {
+            return maxBytes;
+        }
+
+        public void setMaxBytes(long maxBytes) {
+            this.maxBytes = maxBytes;
+        }
+    }
+
+    public static class EmbeddingBatch {
+        // 一次 /api/embed 请求的最大文本数，1表示逐条请求
+        private int maxSize = 64;
+        // 开始时的批次大小，之后按观测到的耗时调整
+        private int initialSize = 8;
+        // 单批的目标耗时（毫秒），批次大小向该耗时内能完成的条数调整
+        private long targetLatencyMs = 2000;
+        // 合批窗口（微秒）：不足一批时最多等待该时长，让并发到达的查询和写入请求合成一批；0表示不等待
+        private long windowMicros = 3000;
+
+        public int getMaxSize() {
+            return maxSize;
+        }
+
+        public void setMaxSize(int maxSize) {
+            this.maxSize = maxSize;
+        }
+
+        public int getInitialSize() {
+            return initialSize;
+        }
+
+        public void setInitialSize(int initialSize) {
+            this.initialSize = initialSize;
+        }
+
+        public long getTargetLatencyMs() {
+            return targetLatencyMs;
+        }
+
+        public void setTargetLatencyMs(long targetLatencyMs) {
+            this.targetLatencyMs = targetLatencyMs;
+        }
+
+        public long getWindowMicros() {
+            return windowMicros;
+        }
+
+        public void setWindowMicros(long windowMicros) {
+            this.windowMicros = windowMicros;
+        }
+    }
+
+    public static class Persistence {
+        // 是否把向量和文档块写入数据目录下的段文件，重启后直接挂载而不重新生成嵌入
+        private boolean enabled = true;
+        // 只记录在预写日志中的行数达到该值时写检查点（生成新段并删除旧日志）
+        private int checkpointRows = 10000;
+
+        public boolean isEnabled() {
+            return enabled;
+        }
+
+        public void setEnabled(boolean enabled) {
+            this.enabled = enabled;
+        }
+
+        public int getCheckpointRows() {
+            return checkpointRows;
+        }
+
+        public void setCheckpointRows(int checkpointRows) {
+            this.checkpointRows = checkpointRows;
+        }
+    }
+
+    public static class Simd {
+        // 是否使用SIMD计算相似度
+        private boolean enabled = true;
+
+        public boolean isEnabled() {
+            return enabled;
+        }
+
+        public void setEnabled(boolean enabled) {
+            this.enabled = enabled;
+        }
+    }
+
+    public static class Hnsw {
+        // 每个节点在上层的最大邻居数，第0层为2*m
+        private int m = 16;
+        // 构建时的候选集大小
+        private int efConstruction = 200;
+        // 检索时的候选集大小
+        private int efSearch = 64;
+
+        public int getM() {
+            return m;
+        }
+
+        public void setM(int m) {
+            this.m = m;
+        }
+
+        public int getEfConstruction() {
+            return efConstruction;
+        }
+
+        public void setEfConstruction(int efConstruction) {
+            this.efConstruction = efConstruction;
+        }
+
+        public int getEfSearch() {
+            return efSearch;
+        }
+
+        public void setEfSearch(int efSearch) {
+            this.efSearch = efSearch;
+        }
+    }
+
+    public static class Ivf {
+        // 倒排列表数量，0表示按向量数的平方根自动确定
+        private int lists = 0;
+        // 检索时扫描的倒排列表数量
+        private int nprobe = 8;
+        // 向量数达到该值后开始后台训练
+        private int trainThreshold = 10000;
+        // k-means迭代次数
+        private int kmeansIterations = 10;
+        // 向量数相比上次训练增长到该倍数时重新训练
+        private double retrainGrowth = 2.0;
+
+        public int getLists() {
+            return lists;
+        }
+
+        public void setLists(int lists) {
+            this.lists = lists;
+        }
+
+        public int getNprobe() {
+            return nprobe;
+        }
+
+        public void setNprobe(int nprobe) {
+            this.nprobe = nprobe;
+        }
+
+        public int getTrainThreshold() {
+            return trainThreshold;
+        }
+
+        public void setTrainThreshold(int trainThreshold) {
+            this.trainThreshold = trainThreshold;
+        }
+
+        public int getKmeansIterations() {
+            return kmeansIterations;
+        }
+
+        public void setKmeansIterations(int kmeansIterations) {
+            this.kmeansIterations = kmeansIterations;
+        }
+
+        public double getRetrainGrowth() {
+            return retrainGrowth;
+        }
+
+        public void setRetrainGrowth(double retrainGrowth) {
+            this.retrainGrowth = retrainGrowth;
+        }
+    }
+
+    public static class Quantization {
+        // 量化方式
+        public enum Mode {
+            // 不量化，直接扫描原始向量
+            NONE,
+            // 每个向量一个缩放因子的int8标量量化
+            INT8,
+            // 乘积量化，每个子空间编码为一个字节，码本训练完成前使用暴力扫描
+            PQ
+        }
+
+        private Mode mode = Mode.NONE;
+        // 由mode推导检索流水线时粗筛阶段的倍数，粗筛候选数 = 精排候选数 * 倍数
+        private int oversampling = 4;
+        // 召回率不足时第一级粗筛倍数可放大到的上限
+        private int maxOversampling = 32;
+        // 召回率目标，抽样校验低于该值时提高过采样倍数
+        private double recallTarget = 0.95;
+        // 抽样校验的查询比例
+        private double recallSampleRate = 0.02;
+        private final Pq pq = new Pq();
+
+        public Mode getMode() {
+            return mode;
+        }
+
+        public void setMode(Mode mode) {
+            this.mode = mode;
+        }
+
+        public int getOversampling() {
+            return oversampling;
+        }
+
+        public void setOversampling(int oversampling) {
+            this.oversampling = oversampling;
+        }
+
+        public int getMaxOversampling() {
+            return maxOversampling;
+        }
+
+        public void setMaxOversampling(int maxOversampling) {
+            this.maxOversampling = maxOversampling;
+        }
+
+        public double getRecallTarget() {
+            return recallTarget;
+        }
+
+        public void setRecallTarget(double recallTarget) {
+            this.recallTarget = recallTarget;
+        }
+
+        public double getRecallSampleRate() {
+            return recallSampleRate;
+        }
+
+        public void setRecallSampleRate(double recallSampleRate) {
+            this.recallSampleRate = recallSampleRate;
+        }
+
+        public Pq getPq() {
+            return pq;
+        }
+
+        public static class Pq {
+            // 子空间数量（每个向量的编码字节数），0表示每8维一个子空间
+            private int subspaces = 0;
+            // 向量数达到该值后开始后台训练码本
+            private int trainThreshold = 10000;
+            // 每个子空间k-means的迭代次数
+            private int kmeansIterations = 10;
+
+            public int getSubspaces() {
+                return subspaces;
+            }
+
+            public void setSubspaces(int subspaces) {
+                this.subspaces = subspaces;
+            }
+
+            public int getTrainThreshold() {
+                return trainThreshold;
+            }
+
+            public void setTrainThreshold(int trainThreshold) {
+                this.trainThreshold = trainThreshold;
+            }
+
+            public int getKmeansIterations() {
+                return kmeansIterations;
+            }
+
+            public void setKmeansIterations(int kmeansIterations) {
+                this.kmeansIterations = kmeansIterations;
+            }
+        }
+    }
+}
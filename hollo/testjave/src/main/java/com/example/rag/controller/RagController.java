@@ -9,11 +9,13 @@ import org.springframework.web.bind.annotation.*;
 import org.springframework.web.multipart.MultipartFile;
 
 import com.example.rag.service.RagService;
+import com.example.rag.service.SearchFilter;
 
 import java.io.File;
 import java.io.IOException;
 import java.nio.file.Files;
 import java.nio.file.Path;
+import java.time.LocalDate;
 import java.util.List;
 import java.util.Map;
 
@@ -26,6 +28,15 @@ import java.util.Map;
 // 查询请求的DTO类
 class QueryRequest {
     private String query;
+    // 可选：只在这些文件ID中检索
+    private List<String> fileIds;
+    // 可选：只在文件名以该前缀开头的文件中检索
+    private String fileNamePrefix;
+    // 可选：只在这些类型（扩展名）的文件中检索
+    private List<String> fileTypes;
+    // 可选：只在该日期范围内上传的文件中检索，格式yyyy-MM-dd，两端包含
+    private LocalDate uploadedFrom;
+    private LocalDate uploadedTo;
     
     public String getQuery() {
         return query;
@@ -34,6 +45,51 @@ class QueryRequest {
     public void setQuery(String query) {
         this.query = query;
     }
+    
+    public List<String> getFileIds() {
+        return fileIds;
+    }
+    
+    public void setFileIds(List<String> fileIds) {
+        this.fileIds = fileIds;
+    }
+    
+    public String getFileNamePrefix() {
+        return fileNamePrefix;
+    }
+    
+    public void setFileNamePrefix(String fileNamePrefix) {
+        this.fileNamePrefix = fileNamePrefix;
+    }
+    
+    public List<String> getFileTypes() {
+        return fileTypes;
+    }
+    
+    public void setFileTypes(List<String> fileTypes) {
+        this.fileTypes = fileTypes;
+    }
+    
+    public LocalDate getUploadedFrom() {
+        return uploadedFrom;
+    }
+    
+    public void setUploadedFrom(LocalDate uploadedFrom) {
+        this.uploadedFrom = uploadedFrom;
+    }
+    
+    public LocalDate getUploadedTo() {
+        return uploadedTo;
+    }
+    
+    public void setUploadedTo(LocalDate uploadedTo) {
+        this.uploadedTo = uploadedTo;
+    }
+    
+    // 由请求中的过滤字段组成检索过滤条件
+    public SearchFilter toFilter() {
+        return SearchFilter.of(fileIds, fileNamePrefix, fileTypes, uploadedFrom, uploadedTo);
+    }
 }
 
 @RestController
@@ -86,7 +142,7 @@ public class RagController {
     @PostMapping("/query")
     public ResponseEntity<String> query(@RequestBody QueryRequest request) {
         try {
-            String answer = ragService.ragQuery(request.getQuery());
+            String answer = ragService.ragQuery(request.getQuery(), request.toFilter());
             return ResponseEntity.ok(answer);
         } catch (Exception e) {
             return ResponseEntity.status(HttpStatus.INTERNAL_SERVER_ERROR)
@@ -102,7 +158,7 @@ public class RagController {
             org.springframework.web.servlet.mvc.method.annotation.ResponseBodyEmitter emitter = new org.springframework.web.servlet.mvc.method.annotation.ResponseBodyEmitter(300000L);
             
             // 设置回调处理流式响应
-            ragService.ragQueryStream(request.getQuery(), new com.example.rag.client.OllamaClient.ResponseCallback() {
+            ragService.ragQueryStream(request.getQuery(), request.toFilter(), new com.example.rag.client.OllamaClient.ResponseCallback() {
                 @Override
                 public void onResponse(String content) {
                     try {
@@ -1,7 +1,9 @@
 package com.example.rag.model;
 
+import java.util.AbstractList;
 import java.util.List;
 import java.util.Map;
+import java.util.RandomAccess;
 
 /**
  * 作者: liangyajie
@@ -12,7 +14,8 @@ import java.util.Map;
 public class Document {
     private String content;
     private Map<String, Object> metadata;
-    private List<Double> embedding;
+    // 使用原始float数组存储嵌入向量，避免List<Double>的装箱开销
+    private float[] embedding;
 
     public Document(String content, Map<String, Object> metadata) {
         this.content = content;
@@ -35,11 +38,55 @@ public class Document {
         this.metadata = metadata;
     }
 
-    public List<Double> getEmbedding() {
+    public float[] getEmbeddingVector() {
         return embedding;
     }
 
-    public void setEmbedding(List<Double> embedding) {
+    public void setEmbeddingVector(float[] embedding) {
         this.embedding = embedding;
     }
-}
\ No newline at end of file
+
+    // 是否已有有效的嵌入向量
+    public boolean hasEmbedding() {
+        return embedding != null && embedding.length > 0;
+    }
+
+    // 兼容旧调用方：返回基于float数组的只读List视图，不复制数据
+    @Deprecated
+    public List<Double> getEmbedding() {
+        return embedding == null ? null : new FloatListView(embedding);
+    }
+
+    // 兼容旧调用方：将List<Double>转换为float数组存储
+    @Deprecated
+    public void setEmbedding(List<Double> embedding) {
+        if (embedding == null) {
+            this.embedding = null;
+            return;
+        }
+        float[] vector = new float[embedding.size()];
+        for (int i = 0; i < vector.length; i++) {
+            vector[i] = embedding.get(i).floatValue();
+        }
+        this.embedding = vector;
+    }
+
+    // float数组的只读List<Double>视图
+    private static final class FloatListView extends AbstractList<Double> implements RandomAccess {
+        private final float[] values;
+
+        FloatListView(float[] values) {
+            this.values = values;
+        }
+
+        @Override
+        public Double get(int index) {
+            return (double) values[index];
+        }
+
+        @Override
+        public int size() {
+            return values.length;
+        }
+    }
+}
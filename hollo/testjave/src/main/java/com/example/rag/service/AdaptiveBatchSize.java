@@ -0,0 +1,47 @@
+package com.example.rag.service;
+
+/**
+ * 作者: liangyajie
+ * 联系方式: 695274107@qq.com
+ * 批量嵌入的自适应批次大小：按观测到的每条文本平均耗时（指数平滑）估算目标耗时内能完成的条数
+ * 批次越大单条的固定开销越小，批次大小逐步增长到单批耗时接近目标为止；增长每次最多翻倍，请求失败时减半
+ */
+
+final class AdaptiveBatchSize {
+
+    // 新观测值在平滑中的权重
+    private static final double SMOOTHING = 0.3;
+
+    private final int maxSize;
+    private final long targetNanos;
+    private volatile int size;
+    // 由this同步，尚无观测时为负
+    private double nanosPerItem = -1;
+
+    AdaptiveBatchSize(int initialSize, int maxSize, long targetNanos) {
+        this.maxSize = Math.max(1, maxSize);
+        this.targetNanos = targetNanos;
+        this.size = Math.max(1, Math.min(initialSize, this.maxSize));
+    }
+
+    // 下一批的大小
+    int size() {
+        return size;
+    }
+
+    // 一批成功完成后按耗时调整
+    synchronized void record(int items, long elapsedNanos) {
+        if (items <= 0) {
+            return;
+        }
+        double perItem = Math.max(1.0, (double) elapsedNanos / items);
+        nanosPerItem = nanosPerItem < 0 ? perItem : (1 - SMOOTHING) * nanosPerItem + SMOOTHING * perItem;
+        long ideal = (long) (targetNanos / nanosPerItem);
+        size = (int) Math.max(1, Math.min(Math.min(ideal, maxSize), 2L * size));
+    }
+
+    // 请求失败（如超时）时减半，避免大批次反复失败
+    synchronized void failed() {
+        size = Math.max(1, size / 2);
+    }
+}
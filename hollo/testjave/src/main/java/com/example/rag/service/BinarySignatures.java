@@ -0,0 +1,87 @@
+package com.example.rag.service;
+
+import java.lang.foreign.MemorySegment;
+import java.lang.foreign.ValueLayout;
+
+/**
+ * 作者: liangyajie
+ * 联系方式: 695274107@qq.com
+ * 二值签名：每一维只保存符号位（每64维一个long），用异或加Long.bitCount计算汉明距离
+ * 打分为 维度 - 2 * 汉明距离，即符号一致的维数减去不一致的维数，只用于极低成本的第一级粗筛
+ */
+
+final class BinarySignatures extends OffHeapRows implements QuantizedVectors {
+
+    private final int dimension;
+    private final int words;
+
+    BinarySignatures(int dimension) {
+        super((long) wordCount(dimension) * Long.BYTES, DEFAULT_ROWS_PER_BLOCK);
+        this.dimension = dimension;
+        this.words = wordCount(dimension);
+    }
+
+    private static int wordCount(int dimension) {
+        if (dimension <= 0) {
+            throw new IllegalArgumentException("向量维度必须大于0: " + dimension);
+        }
+        return (dimension + Long.SIZE - 1) / Long.SIZE;
+    }
+
+    @Override
+    public void add(int row, float[] vector) {
+        long[] signature = signature(vector);
+        MemorySegment block = reserveRow();
+        MemorySegment.copy(signature, 0, block, ValueLayout.JAVA_LONG, offsetInBlock(size()), words);
+        commitRow();
+    }
+
+    @Override
+    public boolean ready() {
+        return true;
+    }
+
+    @Override
+    public RowScorer prepare(float[] query) {
+        long[] signature = signature(query);
+        return row -> {
+            MemorySegment block = blockOf(row);
+            long offset = offsetInBlock(row);
+            int distance = 0;
+            for (int w = 0; w < words; w++) {
+                distance += Long.bitCount(signature[w] ^ block.get(ValueLayout.JAVA_LONG, offset + (long) w * Long.BYTES));
+            }
+            return dimension - 2 * distance;
+        };
+    }
+
+    @Override
+    public BinarySignatures compact(EmbeddingMatrix newMatrix, int[] oldToNew, int newSize) {
+        BinarySignatures compacted = new BinarySignatures(dimension);
+        for (int row = 0; row < oldToNew.length; row++) {
+            if (oldToNew[row] >= 0) {
+                compacted.copyRowFrom(this, row);
+            }
+        }
+        return compacted;
+    }
+
+    // 检索线程可能仍持有旧副本，不释放内存块，由GC回收
+    @Override
+    public void close() {
+    }
+
+    // 每一维的符号位，正数为1；末尾不足64维的位保持为0，查询与行两侧一致，不影响距离
+    long[] signature(float[] vector) {
+        if (vector.length != dimension) {
+            throw new IllegalArgumentException("向量维度不匹配，期望 " + dimension + "，实际 " + vector.length);
+        }
+        long[] signature = new long[words];
+        for (int i = 0; i < dimension; i++) {
+            if (vector[i] > 0f) {
+                signature[i >>> 6] |= 1L << (i & 63);
+            }
+        }
+        return signature;
+    }
+}
@@ -0,0 +1,40 @@
+package com.example.rag.service;
+
+import java.util.Arrays;
+
+/**
+ * 作者: liangyajie
+ * 联系方式: 695274107@qq.com
+ * 索引内部的删除标记：单线程写入，检索线程无锁读取
+ * 位数组只在扩容时整体替换，读者拿到旧数组时只会漏看最近的删除，由存储快照中的删除标记兜底过滤
+ */
+
+final class DeletionMarks {
+
+    private volatile long[] words = new long[0];
+
+    // 标记删除（调用方需保证写入串行）
+    void set(int row) {
+        long[] current = words;
+        int word = row >>> 6;
+        if (word >= current.length) {
+            current = Arrays.copyOf(current, Math.max(word + 1, current.length + (current.length >> 1) + 16));
+            words = current;
+        }
+        current[word] |= 1L << row;
+    }
+
+    boolean get(int row) {
+        long[] current = words;
+        int word = row >>> 6;
+        return word < current.length && (current[word] & (1L << row)) != 0;
+    }
+
+    int cardinality() {
+        int count = 0;
+        for (long word : words) {
+            count += Long.bitCount(word);
+        }
+        return count;
+    }
+}
@@ -0,0 +1,166 @@
+package com.example.rag.service;
+
+import com.example.rag.model.Document;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * 作者: liangyajie
+ * 联系方式: 695274107@qq.com
+ * 行号到文档块的映射：已落盘的行由段文件按需解码，尚未落盘的行保存在内存中
+ * 行号与EmbeddingMatrix一致，前面是各段依次拼接的行，后面是内存中的新行
+ * 段数组整体替换，内存中的行按块追加且不移动，snapshot()得到的只读副本与写入互不影响，可供检索线程无锁读取
+ */
+
+final class DocumentTable {
+
+    private static final int CHUNK_SHIFT = 10;
+    private static final int CHUNK_SIZE = 1 << CHUNK_SHIFT;
+
+    private SegmentFile[] segments = new SegmentFile[0];
+    // 各段的起始行号
+    private int[] firstRows = new int[0];
+    private int sealedRows;
+    // 未落盘的行，每块CHUNK_SIZE个，已写入的位置不再修改
+    private Document[][] chunks = new Document[0][];
+    private int pendingCount;
+    private final boolean frozen;
+
+    DocumentTable() {
+        this.frozen = false;
+    }
+
+    private DocumentTable(DocumentTable source) {
+        this.segments = source.segments;
+        this.firstRows = source.firstRows;
+        this.sealedRows = source.sealedRows;
+        this.chunks = source.chunks;
+        this.pendingCount = source.pendingCount;
+        this.frozen = true;
+    }
+
+    int size() {
+        return sealedRows + pendingCount;
+    }
+
+    // 当前内容的只读副本，之后的写入对副本不可见（调用方持有写锁）
+    DocumentTable snapshot() {
+        return frozen ? this : new DocumentTable(this);
+    }
+
+    // 已落盘的行数，之后的行只在内存中
+    int sealedRows() {
+        return sealedRows;
+    }
+
+    List<SegmentFile> segments() {
+        return List.of(segments);
+    }
+
+    void add(Document document) {
+        checkWritable();
+        int chunk = pendingCount >>> CHUNK_SHIFT;
+        if (chunk == chunks.length) {
+            chunks = Arrays.copyOf(chunks, chunk + 1);
+        }
+        if (chunks[chunk] == null) {
+            chunks[chunk] = new Document[CHUNK_SIZE];
+        }
+        chunks[chunk][pendingCount & (CHUNK_SIZE - 1)] = document;
+        pendingCount++;
+    }
+
+    // 挂载已有段文件，要求内存中没有未落盘的行
+    void attach(SegmentFile segment) {
+        checkWritable();
+        if (pendingCount > 0) {
+            throw new IllegalStateException("存在未落盘的行，不能挂载段文件");
+        }
+        appendSegment(segment);
+    }
+
+    // 内存中的行已全部写入segment，改为从段文件读取；快照仍引用原来的块，这里只换新数组
+    void seal(SegmentFile segment) {
+        checkWritable();
+        if (segment.rowCount() != pendingCount) {
+            throw new IllegalStateException("段文件行数 " + segment.rowCount() + " 与未落盘行数 " + pendingCount + " 不一致");
+        }
+        chunks = new Document[0][];
+        pendingCount = 0;
+        appendSegment(segment);
+    }
+
+    Document get(int row) {
+        if (row >= sealedRows) {
+            return pending(row);
+        }
+        int segment = segmentOf(row);
+        return segments[segment].document(row - firstRows[segment]);
+    }
+
+    // 只读取元数据，段文件中的行不解码正文
+    Map<String, Object> metadata(int row) {
+        if (row >= sealedRows) {
+            return pending(row).getMetadata();
+        }
+        int segment = segmentOf(row);
+        return segments[segment].metadata(row - firstRows[segment]);
+    }
+
+    String fileIdOf(int row) {
+        if (row >= sealedRows) {
+            Map<String, Object> metadata = pending(row).getMetadata();
+            return metadata != null && metadata.get("fileId") instanceof String fileId ? fileId : null;
+        }
+        int segment = segmentOf(row);
+        return segments[segment].fileIdOf(row - firstRows[segment]);
+    }
+
+    // 行的编码记录，用于写入段文件
+    ByteBuffer record(int row) {
+        if (row >= sealedRows) {
+            return SegmentFile.encode(pending(row));
+        }
+        int segment = segmentOf(row);
+        return segments[segment].record(row - firstRows[segment]);
+    }
+
+    private Document pending(int row) {
+        int index = row - sealedRows;
+        if (index >= pendingCount) {
+            throw new IndexOutOfBoundsException("行号 " + row + " 超出范围 " + size());
+        }
+        return chunks[index >>> CHUNK_SHIFT][index & (CHUNK_SIZE - 1)];
+    }
+
+    private void appendSegment(SegmentFile segment) {
+        SegmentFile[] extended = Arrays.copyOf(segments, segments.length + 1);
+        extended[segments.length] = segment;
+        int[] extendedFirstRows = Arrays.copyOf(firstRows, extended.length);
+        extendedFirstRows[segments.length] = sealedRows;
+        segments = extended;
+        firstRows = extendedFirstRows;
+        sealedRows += segment.rowCount();
+    }
+
+    private void checkWritable() {
+        if (frozen) {
+            throw new IllegalStateException("只读副本不能写入");
+        }
+    }
+
+    private int segmentOf(int row) {
+        int index = Arrays.binarySearch(firstRows, row);
+        // 空段与下一段的起始行号相同，取最后一个起始行号不大于row的段
+        if (index < 0) {
+            return -index - 2;
+        }
+        while (index + 1 < firstRows.length && firstRows[index + 1] == row) {
+            index++;
+        }
+        return index;
+    }
+}
@@ -0,0 +1,289 @@
+package com.example.rag.service;
+
+import io.micrometer.core.instrument.FunctionCounter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.zip.CRC32;
+
+/**
+ * 作者: liangyajie
+ * 联系方式: 695274107@qq.com
+ * 持久化的内容寻址嵌入缓存：以 (模型, 文档块文本) 的SHA-256为键保存嵌入向量，重新上传或上传相近版本的文件时只为没见过的块调用Ollama
+ * 按代追加写入，当前代超过上限的一半时切换新一代并删除更早的一代；旧一代中命中的向量复制到当前代，常用的向量一直保留
+ * 只是缓存，不参与预写日志，写入不等待刷盘；崩溃留下的残缺记录在打开时截断
+ *
+ * 文件 embeddings-<代号>.bin：[magic][version][字节序] + 记录*
+ * 记录：[int 长度][int CRC32][long 键高位][long 键低位][int 维度][float*维度]，长度与校验覆盖键和向量
+ */
+
+final class EmbeddingCache implements AutoCloseable {
+
+    private static final Logger logger = LoggerFactory.getLogger(EmbeddingCache.class);
+
+    private static final int MAGIC = 0x454D4231;
+    private static final int VERSION = 1;
+    private static final int FILE_HEADER_BYTES = 12;
+    private static final int RECORD_HEADER_BYTES = 8;
+    private static final int KEY_BYTES = 2 * Long.BYTES;
+    private static final String PREFIX = "embeddings-";
+    private static final String SUFFIX = ".bin";
+
+    // 内容键：SHA-256的前128位
+    record Key(long high, long low) {
+
+        static Key of(String model, String text) {
+            MessageDigest digest;
+            try {
+                digest = MessageDigest.getInstance("SHA-256");
+            } catch (NoSuchAlgorithmException e) {
+                throw new IllegalStateException(e);
+            }
+            digest.update(model.getBytes(StandardCharsets.UTF_8));
+            digest.update((byte) 0);
+            ByteBuffer hash = ByteBuffer.wrap(digest.digest(text.getBytes(StandardCharsets.UTF_8)));
+            return new Key(hash.getLong(), hash.getLong());
+        }
+    }
+
+    // 一代缓存文件：键 -> 维度字段在文件中的位置
+    private static final class Generation {
+        private final long number;
+        private final Path file;
+        private final FileChannel channel;
+        private final Map<Key, Long> offsets = new HashMap<>();
+        private long size;
+
+        private Generation(long number, Path file, FileChannel channel) {
+            this.number = number;
+            this.file = file;
+            this.channel = channel;
+        }
+    }
+
+    private final Path directory;
+    // 两代合计的大致字节上限
+    private final long maxBytes;
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+    // 以下字段由this同步
+    private Generation current;
+    private Generation previous;
+
+    private EmbeddingCache(Path directory, long maxBytes) {
+        this.directory = directory;
+        this.maxBytes = maxBytes;
+    }
+
+    // 打开缓存目录，载入最新的两代并删除更早的代
+    static EmbeddingCache open(Path directory, long maxBytes) throws IOException {
+        Files.createDirectories(directory);
+        EmbeddingCache cache = new EmbeddingCache(directory, maxBytes);
+        TreeMap<Long, Path> files = cacheFiles(directory);
+        while (files.size() > 2) {
+            Files.deleteIfExists(files.pollFirstEntry().getValue());
+        }
+        if (files.size() == 2) {
+            Map.Entry<Long, Path> oldest = files.pollFirstEntry();
+            cache.previous = load(oldest.getKey(), oldest.getValue());
+        }
+        cache.current = files.isEmpty()
+                ? create(directory, cache.previous != null ? cache.previous.number + 1 : 1)
+                : load(files.firstKey(), files.firstEntry().getValue());
+        return cache;
+    }
+
+    // 查找向量；只在旧一代中找到时复制到当前代。没有时返回null
+    synchronized float[] get(Key key) throws IOException {
+        Long offset = current.offsets.get(key);
+        if (offset != null) {
+            hits.increment();
+            return read(current, offset);
+        }
+        offset = previous != null ? previous.offsets.get(key) : null;
+        if (offset == null) {
+            misses.increment();
+            return null;
+        }
+        hits.increment();
+        float[] vector = read(previous, offset);
+        append(key, vector);
+        return vector;
+    }
+
+    // 写入新生成的向量，当前代已有该键时忽略
+    synchronized void put(Key key, float[] vector) throws IOException {
+        if (!current.offsets.containsKey(key)) {
+            append(key, vector);
+        }
+    }
+
+    // 两代中的条目数（同一键可能在两代中各出现一次）
+    synchronized int size() {
+        return current.offsets.size() + (previous != null ? previous.offsets.size() : 0);
+    }
+
+    // 注册命中/未命中次数和条目数指标
+    void bindTo(MeterRegistry registry) {
+        FunctionCounter.builder("rag.embedding.cache.requests", hits, LongAdder::sum)
+                .tag("result", "hit").description("文档块嵌入缓存命中次数").register(registry);
+        FunctionCounter.builder("rag.embedding.cache.requests", misses, LongAdder::sum)
+                .tag("result", "miss").description("文档块嵌入缓存未命中次数").register(registry);
+        Gauge.builder("rag.embedding.cache.size", this, EmbeddingCache::size)
+                .description("文档块嵌入缓存条目数").register(registry);
+    }
+
+    @Override
+    public synchronized void close() throws IOException {
+        current.channel.close();
+        if (previous != null) {
+            previous.channel.close();
+        }
+    }
+
+    private void append(Key key, float[] vector) throws IOException {
+        int length = KEY_BYTES + Integer.BYTES + vector.length * Float.BYTES;
+        ByteBuffer record = ByteBuffer.allocate(RECORD_HEADER_BYTES + length).order(ByteOrder.nativeOrder());
+        record.putInt(length).putInt(0).putLong(key.high()).putLong(key.low()).putInt(vector.length);
+        for (float value : vector) {
+            record.putFloat(value);
+        }
+        CRC32 crc = new CRC32();
+        crc.update(record.array(), RECORD_HEADER_BYTES, length);
+        record.putInt(Integer.BYTES, (int) crc.getValue()).flip();
+        long position = current.size;
+        while (record.hasRemaining()) {
+            current.channel.write(record, position + record.position());
+        }
+        current.offsets.put(key, position + RECORD_HEADER_BYTES + KEY_BYTES);
+        current.size = position + record.limit();
+        if (current.size >= maxBytes / 2) {
+            rotate();
+        }
+    }
+
+    // 切换到新一代，删除更早的一代
+    private void rotate() throws IOException {
+        Generation next = create(directory, current.number + 1);
+        if (previous != null) {
+            previous.channel.close();
+            Files.deleteIfExists(previous.file);
+        }
+        previous = current;
+        current = next;
+    }
+
+    private static float[] read(Generation generation, long offset) throws IOException {
+        ByteBuffer dimension = ByteBuffer.allocate(Integer.BYTES).order(ByteOrder.nativeOrder());
+        readFully(generation.channel, dimension, offset);
+        ByteBuffer values = ByteBuffer.allocate(dimension.getInt(0) * Float.BYTES).order(ByteOrder.nativeOrder());
+        readFully(generation.channel, values, offset + Integer.BYTES);
+        float[] vector = new float[dimension.getInt(0)];
+        values.flip().asFloatBuffer().get(vector);
+        return vector;
+    }
+
+    private static void readFully(FileChannel channel, ByteBuffer buffer, long position) throws IOException {
+        while (buffer.hasRemaining()) {
+            if (channel.read(buffer, position + buffer.position()) < 0) {
+                throw new IOException("嵌入缓存记录不完整");
+            }
+        }
+    }
+
+    private static Generation create(Path directory, long number) throws IOException {
+        Path file = directory.resolve(fileName(number));
+        FileChannel channel = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING,
+                StandardOpenOption.READ, StandardOpenOption.WRITE);
+        ByteBuffer header = ByteBuffer.allocate(FILE_HEADER_BYTES).order(ByteOrder.nativeOrder());
+        header.putInt(MAGIC).putInt(VERSION).putInt(orderMarker()).flip();
+        while (header.hasRemaining()) {
+            channel.write(header, header.position());
+        }
+        Generation generation = new Generation(number, file, channel);
+        generation.size = FILE_HEADER_BYTES;
+        return generation;
+    }
+
+    // 扫描一代文件建立键的位置表；文件头无效时整体丢弃，末尾的残缺记录被截断
+    private static Generation load(long number, Path file) throws IOException {
+        FileChannel channel = FileChannel.open(file, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        long size = channel.size();
+        ByteBuffer header = ByteBuffer.allocate(FILE_HEADER_BYTES).order(ByteOrder.nativeOrder());
+        if (size < FILE_HEADER_BYTES || channel.read(header, 0) < FILE_HEADER_BYTES
+                || header.getInt(0) != MAGIC || header.getInt(4) != VERSION || header.getInt(8) != orderMarker()) {
+            logger.warn("嵌入缓存文件 {} 无效，已丢弃", file);
+            channel.close();
+            return create(file.getParent(), number);
+        }
+        Generation generation = new Generation(number, file, channel);
+        long position = FILE_HEADER_BYTES;
+        ByteBuffer recordHeader = ByteBuffer.allocate(RECORD_HEADER_BYTES).order(ByteOrder.nativeOrder());
+        while (position + RECORD_HEADER_BYTES + KEY_BYTES + Integer.BYTES <= size) {
+            recordHeader.clear();
+            readFully(channel, recordHeader, position);
+            int length = recordHeader.getInt(0);
+            if (length < KEY_BYTES + Integer.BYTES || position + RECORD_HEADER_BYTES + length > size) {
+                break;
+            }
+            ByteBuffer body = ByteBuffer.allocate(length).order(ByteOrder.nativeOrder());
+            readFully(channel, body, position + RECORD_HEADER_BYTES);
+            CRC32 crc = new CRC32();
+            crc.update(body.array());
+            if ((int) crc.getValue() != recordHeader.getInt(Integer.BYTES)
+                    || length != KEY_BYTES + Integer.BYTES + body.getInt(KEY_BYTES) * Float.BYTES) {
+                break;
+            }
+            generation.offsets.put(new Key(body.getLong(0), body.getLong(Long.BYTES)),
+                    position + RECORD_HEADER_BYTES + KEY_BYTES);
+            position += RECORD_HEADER_BYTES + length;
+        }
+        if (position < size) {
+            logger.warn("嵌入缓存文件 {} 末尾有 {} 字节残缺记录，已截断", file, size - position);
+            channel.truncate(position);
+        }
+        generation.size = position;
+        return generation;
+    }
+
+    // 目录下的缓存文件，按代号排序
+    private static TreeMap<Long, Path> cacheFiles(Path directory) throws IOException {
+        TreeMap<Long, Path> files = new TreeMap<>();
+        try (DirectoryStream<Path> stream = Files.newDirectoryStream(directory, PREFIX + "*" + SUFFIX)) {
+            for (Path file : stream) {
+                String name = file.getFileName().toString();
+                try {
+                    files.put(Long.parseLong(name.substring(PREFIX.length(), name.length() - SUFFIX.length())), file);
+                } catch (NumberFormatException e) {
+                    logger.warn("忽略无法识别的嵌入缓存文件: {}", file);
+                }
+            }
+        }
+        return files;
+    }
+
+    private static String fileName(long number) {
+        return String.format("%s%08d%s", PREFIX, number, SUFFIX);
+    }
+
+    private static int orderMarker() {
+        return ByteOrder.nativeOrder() == ByteOrder.LITTLE_ENDIAN ? 1 : 2;
+    }
+}
@@ -0,0 +1,261 @@
+package com.example.rag.service;
+
+import com.example.rag.client.OllamaClient;
+import io.micrometer.core.instrument.FunctionCounter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.IntSupplier;
+
+/**
+ * 作者: liangyajie
+ * 联系方式: 695274107@qq.com
+ * 嵌入请求调度：并发的查询和写入各自提交单条文本，调度线程把一个短时间窗口内到达的请求合成一批调用 /api/embed，再把向量分别交给各调用方
+ * 查询优先：有查询等待时下一批只取查询，写入的批次最多占用 maxInFlight - 1 个并发名额，始终给查询留一个
+ * 同时发出的批次数取Ollama嵌入请求当前的自适应并发限制，不在客户端的限流队列里排队
+ * 写入批次的大小按耗时自适应；查询批次通常很小，只受 maxBatch 限制
+ */
+
+final class EmbeddingDispatcher implements AutoCloseable {
+
+    private static final Logger logger = LoggerFactory.getLogger(EmbeddingDispatcher.class);
+
+    // 请求来源：查询在检索的关键路径上，优先于写入文档
+    enum Priority {
+        QUERY,
+        INGEST
+    }
+
+    private record Request(String text, long enqueuedAt, CompletableFuture<float[]> result) {
+    }
+
+    private final OllamaClient ollamaClient;
+    private final String model;
+    private final Executor executor;
+    // 同时发出的最大批次数，随并发限制变化
+    private final IntSupplier maxInFlight;
+    private final int maxBatch;
+    private final long windowNanos;
+    private final AdaptiveBatchSize ingestBatchSize;
+    private final Thread dispatcher;
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition changed = lock.newCondition();
+    // 以下字段由lock保护
+    private final ArrayDeque<Request> queries = new ArrayDeque<>();
+    private final ArrayDeque<Request> ingests = new ArrayDeque<>();
+    private int inFlight;
+    private boolean closed;
+    private final LongAdder batches = new LongAdder();
+    private final LongAdder batchedTexts = new LongAdder();
+
+    EmbeddingDispatcher(OllamaClient ollamaClient, String model, Executor executor, IntSupplier maxInFlight, int maxBatch,
+                        long windowNanos, AdaptiveBatchSize ingestBatchSize) {
+        this.ollamaClient = ollamaClient;
+        this.model = model;
+        this.executor = executor;
+        this.maxInFlight = maxInFlight;
+        this.maxBatch = Math.max(1, maxBatch);
+        this.windowNanos = Math.max(0, windowNanos);
+        this.ingestBatchSize = ingestBatchSize;
+        this.dispatcher = new Thread(this::run, "embedding-dispatcher");
+        this.dispatcher.setDaemon(true);
+        this.dispatcher.start();
+    }
+
+    // 提交一段文本，返回它的嵌入向量
+    CompletableFuture<float[]> submit(String text, Priority priority) {
+        CompletableFuture<float[]> result = new CompletableFuture<>();
+        lock.lock();
+        try {
+            if (closed) {
+                result.completeExceptionally(new IllegalStateException("嵌入调度已关闭"));
+                return result;
+            }
+            (priority == Priority.QUERY ? queries : ingests).add(new Request(text, System.nanoTime(), result));
+            changed.signalAll();
+        } finally {
+            lock.unlock();
+        }
+        return result;
+    }
+
+    // 注册批次数、平均批次大小、等待中的请求数和写入批次大小指标
+    void bindTo(MeterRegistry registry) {
+        FunctionCounter.builder("rag.embedding.dispatch.batches", batches, LongAdder::sum)
+                .description("发往Ollama的嵌入批次数").register(registry);
+        FunctionCounter.builder("rag.embedding.dispatch.texts", batchedTexts, LongAdder::sum)
+                .description("经批次发往Ollama的文本数").register(registry);
+        Gauge.builder("rag.embedding.dispatch.pending", this, d -> d.pending(Priority.QUERY))
+                .tag("priority", "query").description("等待中的查询嵌入请求数").register(registry);
+        Gauge.builder("rag.embedding.dispatch.pending", this, d -> d.pending(Priority.INGEST))
+                .tag("priority", "ingest").description("等待中的写入嵌入请求数").register(registry);
+        Gauge.builder("rag.embedding.batch.size", ingestBatchSize, AdaptiveBatchSize::size)
+                .description("写入文档时批量嵌入的当前批次大小").register(registry);
+    }
+
+    int pending(Priority priority) {
+        lock.lock();
+        try {
+            return (priority == Priority.QUERY ? queries : ingests).size();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // 已发出、尚未返回的批次数
+    int inFlight() {
+        lock.lock();
+        try {
+            return inFlight;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // 停止调度，尚未发出的请求以异常结束
+    @Override
+    public void close() {
+        List<Request> abandoned = new ArrayList<>();
+        lock.lock();
+        try {
+            closed = true;
+            abandoned.addAll(queries);
+            abandoned.addAll(ingests);
+            queries.clear();
+            ingests.clear();
+            changed.signalAll();
+        } finally {
+            lock.unlock();
+        }
+        dispatcher.interrupt();
+        for (Request request : abandoned) {
+            request.result().completeExceptionally(new IllegalStateException("嵌入调度已关闭"));
+        }
+    }
+
+    private void run() {
+        try {
+            while (true) {
+                List<Request> batch = new ArrayList<>();
+                Priority priority = nextBatch(batch);
+                if (priority == null) {
+                    return;
+                }
+                try {
+                    executor.execute(() -> send(batch, priority));
+                } catch (RuntimeException e) {
+                    // 执行线程池已关闭
+                    finished();
+                    fail(batch, e);
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    // 等到有可发出的请求和空闲的并发名额，在窗口内凑满一批后取出；关闭时返回null
+    private Priority nextBatch(List<Request> batch) throws InterruptedException {
+        lock.lock();
+        try {
+            while (true) {
+                if (closed) {
+                    return null;
+                }
+                int slots = Math.max(1, maxInFlight.getAsInt());
+                boolean queryReady = !queries.isEmpty() && inFlight < slots;
+                boolean ingestReady = !ingests.isEmpty() && inFlight < Math.max(1, slots - 1);
+                if (!queryReady && !ingestReady) {
+                    changed.await();
+                    continue;
+                }
+                Priority priority = queryReady ? Priority.QUERY : Priority.INGEST;
+                ArrayDeque<Request> queue = queryReady ? queries : ingests;
+                int limit = queryReady ? maxBatch : Math.min(maxBatch, ingestBatchSize.size());
+                // 不足一批时最多等到最早的请求到达后一个窗口；被唤醒后重新判断，期间到达的查询优先成批
+                long waitNanos = queue.peekFirst().enqueuedAt() + windowNanos - System.nanoTime();
+                if (queue.size() < limit && waitNanos > 0) {
+                    changed.awaitNanos(waitNanos);
+                    continue;
+                }
+                while (batch.size() < limit && !queue.isEmpty()) {
+                    batch.add(queue.pollFirst());
+                }
+                inFlight++;
+                return priority;
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private void send(List<Request> batch, Priority priority) {
+        List<String> texts = new ArrayList<>(batch.size());
+        for (Request request : batch) {
+            texts.add(request.text());
+        }
+        long start = System.nanoTime();
+        List<float[]> vectors = null;
+        Exception failure = null;
+        try {
+            // 查询批次在检索的关键路径上，有多个副本时允许对冲请求
+            vectors = priority == Priority.QUERY
+                    ? ollamaClient.generateQueryEmbeddings(model, texts)
+                    : ollamaClient.generateEmbeddings(model, texts);
+            if (vectors.size() != texts.size()) {
+                throw new IOException("返回的嵌入数量 " + vectors.size() + " 与文本数量 " + texts.size() + " 不一致");
+            }
+            if (priority == Priority.INGEST) {
+                ingestBatchSize.record(texts.size(), System.nanoTime() - start);
+            }
+            batches.increment();
+            batchedTexts.add(texts.size());
+        } catch (Exception e) {
+            if (e instanceof InterruptedException) {
+                Thread.currentThread().interrupt();
+            }
+            if (priority == Priority.INGEST) {
+                ingestBatchSize.failed();
+            }
+            logger.warn("生成 {} 段文本的嵌入失败: {}", texts.size(), e.getMessage());
+            failure = e;
+        } finally {
+            // 先归还并发名额，再通知调用方
+            finished();
+        }
+        if (failure != null) {
+            fail(batch, failure);
+            return;
+        }
+        for (int i = 0; i < batch.size(); i++) {
+            batch.get(i).result().complete(vectors.get(i));
+        }
+    }
+
+    private void finished() {
+        lock.lock();
+        try {
+            inFlight--;
+            changed.signalAll();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private static void fail(List<Request> batch, Exception e) {
+        for (Request request : batch) {
+            request.result().completeExceptionally(e);
+        }
+    }
+}
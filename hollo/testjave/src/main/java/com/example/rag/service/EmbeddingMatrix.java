@@ -0,0 +1,61 @@
+package com.example.rag.service;
+
+import java.lang.foreign.MemorySegment;
+import java.lang.foreign.ValueLayout;
+
+/**
+ * 作者: liangyajie
+ * 联系方式: 695274107@qq.com
+ * 堆外嵌入向量矩阵，按行主序连续存储所有向量，行号即文档块编号
+ */
+
+class EmbeddingMatrix extends OffHeapRows {
+
+    private final int dimension;
+
+    EmbeddingMatrix(int dimension) {
+        this(dimension, DEFAULT_ROWS_PER_BLOCK);
+    }
+
+    EmbeddingMatrix(int dimension, int rowsPerBlock) {
+        super(checkedRowBytes(dimension), rowsPerBlock);
+        this.dimension = dimension;
+    }
+
+    // 追加一行向量，返回行号（调用方需保证写入串行）
+    int append(float[] vector) {
+        checkDimension(vector.length);
+        MemorySegment block = reserveRow();
+        MemorySegment.copy(vector, 0, block, ValueLayout.JAVA_FLOAT, offsetInBlock(size()), dimension);
+        return commitRow();
+    }
+
+    // 从另一个矩阵复制一行（用于删除后的整理）
+    int appendFrom(EmbeddingMatrix source, int sourceRow) {
+        checkDimension(source.dimension);
+        return copyRowFrom(source, sourceRow);
+    }
+
+    // 读取一行到目标数组
+    float[] readRow(int row, float[] target) {
+        MemorySegment.copy(blockOf(row), ValueLayout.JAVA_FLOAT, offsetInBlock(row), target, 0, dimension);
+        return target;
+    }
+
+    int dimension() {
+        return dimension;
+    }
+
+    private void checkDimension(int actual) {
+        if (actual != dimension) {
+            throw new IllegalArgumentException("向量维度不匹配，期望 " + dimension + "，实际 " + actual);
+        }
+    }
+
+    private static long checkedRowBytes(int dimension) {
+        if (dimension <= 0) {
+            throw new IllegalArgumentException("向量维度必须大于0: " + dimension);
+        }
+        return (long) dimension * Float.BYTES;
+    }
+}
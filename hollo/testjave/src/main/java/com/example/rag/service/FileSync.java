@@ -0,0 +1,33 @@
+package com.example.rag.service;
+
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Locale;
+
+/**
+ * 作者: liangyajie
+ * 联系方式: 695274107@qq.com
+ * 目录刷盘：改名、新建文件后目录项的变化在目录刷盘前可能只在页缓存中，掉电后改名可能回退、新文件可能消失
+ * 依赖这些变化的删除（旧日志、旧段）必须在目录刷盘之后进行
+ */
+
+final class FileSync {
+
+    // Windows不能以通道方式打开目录，NTFS的目录项随元数据日志落盘
+    private static final boolean WINDOWS = System.getProperty("os.name", "").toLowerCase(Locale.ROOT).startsWith("windows");
+
+    private FileSync() {
+    }
+
+    // 把目录项的变化（改名、新建、删除）刷到磁盘
+    static void syncDirectory(Path directory) throws IOException {
+        if (WINDOWS) {
+            return;
+        }
+        try (FileChannel channel = FileChannel.open(directory, StandardOpenOption.READ)) {
+            channel.force(true);
+        }
+    }
+}
@@ -0,0 +1,446 @@
+package com.example.rag.service;
+
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * 作者: liangyajie
+ * 联系方式: 695274107@qq.com
+ * HNSW（分层可导航小世界图）近似最近邻索引，节点编号即矩阵行号
+ * 向量已归一化，相似度越大越近；删除采用标记方式，被删节点仍参与导航但不会出现在结果中
+ * 单线程插入，检索无锁并发：邻居列表和节点数组整体替换，以release写发布、acquire读取，检索线程看到的数组总是已构建完整；
+ * 检索只走行号小于快照行数的节点
+ * 带过滤的检索照常沿图导航，只有允许的节点进入结果，与删除标记的处理方式相同
+ */
+
+final class HnswIndex implements VectorIndex {
+
+    // links[node]和links[node][level]的发布与读取
+    private static final VarHandle NODE_LINKS = MethodHandles.arrayElementVarHandle(int[][][].class);
+    private static final VarHandle LEVEL_LINKS = MethodHandles.arrayElementVarHandle(int[][].class);
+
+    private final EmbeddingMatrix matrix;
+    private final SimilarityKernel kernel;
+    private final int maxConnections;
+    private final int maxConnectionsLevel0;
+    private final int efConstruction;
+    private final int efSearch;
+    private final double levelMultiplier;
+    private final Random random = new Random(42);
+
+    // links[node][level] 为该节点在某一层的邻居列表，整体替换而不原地修改
+    private volatile int[][][] links = new int[0][][];
+    private final DeletionMarks deleted = new DeletionMarks();
+    private int nodeCount;
+    // 入口节点及其层数；更换入口时保留上一个入口，检索看不到新入口节点时沿链回退
+    private volatile Entry entry;
+    // 每个线程复用的访问标记，避免每次检索分配
+    private final ThreadLocal<VisitedMarks> visitedMarks = ThreadLocal.withInitial(VisitedMarks::new);
+
+    HnswIndex(EmbeddingMatrix matrix, SimilarityKernel kernel, int m, int efConstruction, int efSearch) {
+        if (m < 2) {
+            throw new IllegalArgumentException("HNSW参数m必须不小于2: " + m);
+        }
+        this.matrix = matrix;
+        this.kernel = kernel;
+        this.maxConnections = m;
+        this.maxConnectionsLevel0 = 2 * m;
+        this.efConstruction = Math.max(efConstruction, m);
+        this.efSearch = efSearch;
+        this.levelMultiplier = 1.0 / Math.log(m);
+    }
+
+    // 入口节点，previous为更换前的入口
+    private record Entry(int node, int level, Entry previous) {
+    }
+
+    // 插入矩阵中的一行（调用方需保证写入串行）
+    @Override
+    public void add(int row) {
+        float[] vector = matrix.readRow(row, new float[matrix.dimension()]);
+        int level = randomLevel();
+        ensureCapacity(row + 1);
+        int[][] nodeLinks = new int[level + 1][];
+        for (int l = 0; l <= level; l++) {
+            nodeLinks[l] = new int[0];
+        }
+        int[][][] nodes = links;
+        NODE_LINKS.setRelease(nodes, row, nodeLinks);
+        nodeCount++;
+
+        Entry top = entry;
+        if (top == null) {
+            entry = new Entry(row, level, null);
+            return;
+        }
+
+        int current = top.node();
+        float currentScore = score(vector, current);
+        // 从顶层贪心下降到新节点所在层之上
+        for (int l = top.level(); l > level; l--) {
+            current = greedyClosest(nodes, vector, current, currentScore, l, Integer.MAX_VALUE);
+            currentScore = score(vector, current);
+        }
+        // 在新节点所在的每一层搜索候选并建立双向连接
+        for (int l = Math.min(level, top.level()); l >= 0; l--) {
+            NodeHeap nearest = searchLayer(nodes, vector, current, currentScore, efConstruction, l, false, null, Integer.MAX_VALUE);
+            int[] neighbors = selectNeighbors(nearest, maxConnections);
+            LEVEL_LINKS.setRelease(nodeLinks, l, neighbors);
+            for (int neighbor : neighbors) {
+                connect(nodes, neighbor, row, l);
+            }
+            if (nearest.size() > 0) {
+                current = nearest.bestNode();
+                currentScore = nearest.bestScore();
+            }
+        }
+        if (level > top.level()) {
+            entry = new Entry(row, level, top);
+        }
+    }
+
+    // 标记删除，节点保留在图中用于导航
+    @Override
+    public void remove(int row) {
+        int[][][] nodes = links;
+        if (row < nodes.length && nodes[row] != null) {
+            deleted.set(row);
+        }
+    }
+
+    @Override
+    public boolean ready() {
+        return true;
+    }
+
+    @Override
+    public List<ScoredRow> search(float[] query, int k, int rowCount, BitSet allowed) {
+        return search(query, k, efSearch, rowCount, allowed);
+    }
+
+    List<ScoredRow> search(float[] query, int k, int ef, int rowCount) {
+        return search(query, k, ef, rowCount, null);
+    }
+
+    // 检索行号小于rowCount的节点中最相似的k个未删除且允许的节点，按相似度降序返回
+    List<ScoredRow> search(float[] query, int k, int ef, int rowCount, BitSet allowed) {
+        Entry top = entry;
+        while (top != null && top.node() >= rowCount) {
+            top = top.previous();
+        }
+        if (top == null || k <= 0) {
+            return new ArrayList<>();
+        }
+        int[][][] nodes = links;
+        int current = top.node();
+        float currentScore = score(query, current);
+        for (int l = top.level(); l > 0; l--) {
+            current = greedyClosest(nodes, query, current, currentScore, l, rowCount);
+            currentScore = score(query, current);
+        }
+        NodeHeap nearest = searchLayer(nodes, query, current, currentScore, Math.max(ef, k), 0, true, allowed, rowCount);
+        while (nearest.size() > k) {
+            nearest.pop();
+        }
+        return nearest.drainDescending();
+    }
+
+    // 按新行号重建索引：丢弃已删除节点并重映射邻居
+    // 丢失了邻居的节点就地修复：以剩余邻居和被删邻居的邻居为候选，用插入时的启发式重新选择；
+    // 候选全部被删的节点在整理后的图中重新搜索邻居并建立双向连接
+    @Override
+    public HnswIndex compact(EmbeddingMatrix newMatrix, int[] oldToNew, int newSize) {
+        HnswIndex compacted = new HnswIndex(newMatrix, kernel, maxConnections, efConstruction, efSearch);
+        compacted.ensureCapacity(newSize);
+        int[][][] nodes = links;
+        int bestLevel = -1;
+        int bestNode = -1;
+        List<int[]> isolated = new ArrayList<>();
+        for (int old = 0; old < nodes.length; old++) {
+            int target = old < oldToNew.length ? oldToNew[old] : -1;
+            int[][] nodeLinks = (int[][]) NODE_LINKS.getAcquire(nodes, old);
+            if (nodeLinks == null || target < 0) {
+                continue;
+            }
+            int[][] remapped = new int[nodeLinks.length][];
+            for (int l = 0; l < remapped.length; l++) {
+                int[] neighbors = (int[]) LEVEL_LINKS.getAcquire(nodeLinks, l);
+                int[] kept = new int[neighbors.length];
+                int count = 0;
+                boolean lost = false;
+                for (int neighbor : neighbors) {
+                    int mapped = mapped(oldToNew, neighbor);
+                    if (mapped >= 0) {
+                        kept[count++] = mapped;
+                    } else {
+                        lost = true;
+                    }
+                }
+                remapped[l] = lost
+                        ? compacted.repairNeighbors(target, l, neighbors, nodes, oldToNew)
+                        : Arrays.copyOf(kept, count);
+                if (remapped[l].length == 0 && lost) {
+                    isolated.add(new int[]{target, l});
+                }
+            }
+            // 新索引在发布检索快照前对检索线程不可见，直接写入
+            compacted.links[target] = remapped;
+            compacted.nodeCount++;
+            if (remapped.length - 1 > bestLevel) {
+                bestLevel = remapped.length - 1;
+                bestNode = target;
+            }
+        }
+        compacted.entry = bestNode < 0 ? null : new Entry(bestNode, bestLevel, null);
+        for (int[] node : isolated) {
+            compacted.reconnect(node[0], node[1]);
+        }
+        return compacted;
+    }
+
+    private static int mapped(int[] oldToNew, int old) {
+        return old < oldToNew.length ? oldToNew[old] : -1;
+    }
+
+    // 整理时为丢失了邻居的节点重新选择邻居（新行号）：候选为原邻居中保留的节点，以及被删邻居在同一层的保留邻居
+    private int[] repairNeighbors(int node, int level, int[] oldNeighbors, int[][][] oldNodes, int[] oldToNew) {
+        float[] vector = matrix.readRow(node, new float[matrix.dimension()]);
+        NodeHeap ordered = new NodeHeap(oldNeighbors.length * 2, false);
+        VisitedMarks seen = visitedMarks.get();
+        seen.reset(matrix.size());
+        seen.visit(node);
+        for (int neighbor : oldNeighbors) {
+            int mapped = mapped(oldToNew, neighbor);
+            if (mapped >= 0) {
+                if (seen.visit(mapped)) {
+                    ordered.push(mapped, score(vector, mapped));
+                }
+                continue;
+            }
+            for (int second : neighborsOf(oldNodes, neighbor, level)) {
+                int secondMapped = mapped(oldToNew, second);
+                if (secondMapped >= 0 && seen.visit(secondMapped)) {
+                    ordered.push(secondMapped, score(vector, secondMapped));
+                }
+            }
+        }
+        return selectNeighbors(ordered, level == 0 ? maxConnectionsLevel0 : maxConnections);
+    }
+
+    // 整理后没有任何候选邻居的节点：从入口下降到该层搜索最近的节点，按插入时的方式建立双向连接
+    private void reconnect(int node, int level) {
+        Entry top = entry;
+        if (top == null || top.node() == node && top.level() == level) {
+            return;
+        }
+        float[] vector = matrix.readRow(node, new float[matrix.dimension()]);
+        int current = top.node();
+        float currentScore = score(vector, current);
+        for (int l = top.level(); l > level; l--) {
+            current = greedyClosest(links, vector, current, currentScore, l, Integer.MAX_VALUE);
+            currentScore = score(vector, current);
+        }
+        NodeHeap nearest = searchLayer(links, vector, current, currentScore, efConstruction + 1, level, false, null, Integer.MAX_VALUE);
+        NodeHeap others = new NodeHeap(nearest.size(), false);
+        while (nearest.size() > 0) {
+            if (nearest.topNode() != node) {
+                others.push(nearest.topNode(), nearest.topScore());
+            }
+            nearest.pop();
+        }
+        int[] neighbors = selectNeighbors(others, maxConnections);
+        links[node][level] = neighbors;
+        for (int neighbor : neighbors) {
+            connect(links, neighbor, node, level);
+        }
+    }
+
+    int size() {
+        return nodeCount - deleted.cardinality();
+    }
+
+    private float score(float[] query, int node) {
+        return kernel.dot(query, matrix.blockOf(node), matrix.offsetInBlock(node));
+    }
+
+    // 节点在某一层的邻居列表；检索时节点可能尚未发布，视为没有邻居
+    private static int[] neighborsOf(int[][][] nodes, int node, int level) {
+        int[][] nodeLinks = node < nodes.length ? (int[][]) NODE_LINKS.getAcquire(nodes, node) : null;
+        if (nodeLinks == null || level >= nodeLinks.length) {
+            return new int[0];
+        }
+        int[] neighbors = (int[]) LEVEL_LINKS.getAcquire(nodeLinks, level);
+        return neighbors == null ? new int[0] : neighbors;
+    }
+
+    // 在某一层上贪心移动到更近的邻居，直到无法改进
+    private int greedyClosest(int[][][] nodes, float[] query, int start, float startScore, int level, int rowCount) {
+        int current = start;
+        float currentScore = startScore;
+        boolean improved = true;
+        while (improved) {
+            improved = false;
+            for (int neighbor : neighborsOf(nodes, current, level)) {
+                if (neighbor >= rowCount) {
+                    continue;
+                }
+                float s = score(query, neighbor);
+                if (s > currentScore) {
+                    currentScore = s;
+                    current = neighbor;
+                    improved = true;
+                }
+            }
+        }
+        return current;
+    }
+
+    // 在某一层做束搜索，返回至多ef个节点（最小堆，堆顶为其中最不相似的）
+    // 检索时跳过已删除节点；构建时保留，否则入口节点已删除时新节点会连不上图
+    // allowed不为空时只有其中的节点进入结果，其余节点仍用于导航
+    private NodeHeap searchLayer(int[][][] nodes, float[] query, int entry, float entryScore, int ef, int level,
+                                 boolean skipDeleted, BitSet allowed, int rowCount) {
+        VisitedMarks visited = visitedMarks.get();
+        visited.reset(nodes.length);
+        visited.visit(entry);
+        NodeHeap candidates = new NodeHeap(ef * 2, true);
+        NodeHeap results = new NodeHeap(ef + 1, false);
+        candidates.push(entry, entryScore);
+        if (admits(entry, skipDeleted, allowed)) {
+            results.push(entry, entryScore);
+        }
+        while (candidates.size() > 0) {
+            float candidateScore = candidates.topScore();
+            int candidate = candidates.topNode();
+            candidates.pop();
+            if (results.size() >= ef && candidateScore < results.topScore()) {
+                break;
+            }
+            for (int neighbor : neighborsOf(nodes, candidate, level)) {
+                if (neighbor >= rowCount || neighbor >= nodes.length || !visited.visit(neighbor)) {
+                    continue;
+                }
+                float s = score(query, neighbor);
+                if (results.size() < ef || s > results.topScore()) {
+                    candidates.push(neighbor, s);
+                    if (admits(neighbor, skipDeleted, allowed)) {
+                        results.push(neighbor, s);
+                        if (results.size() > ef) {
+                            results.pop();
+                        }
+                    }
+                }
+            }
+        }
+        return results;
+    }
+
+    private boolean admits(int node, boolean skipDeleted, BitSet allowed) {
+        return (!skipDeleted || !deleted.get(node)) && (allowed == null || allowed.get(node));
+    }
+
+    // 启发式选择邻居：候选只有在比已选邻居更接近目标时才被保留，使连接覆盖不同方向
+    private int[] selectNeighbors(NodeHeap candidates, int count) {
+        int size = candidates.size();
+        int[] nodes = new int[size];
+        float[] scores = new float[size];
+        for (int i = size - 1; i >= 0; i--) {
+            nodes[i] = candidates.topNode();
+            scores[i] = candidates.topScore();
+            candidates.pop();
+        }
+        // 弹出后重新放回，调用方仍需使用候选集中最相似的节点
+        for (int i = 0; i < size; i++) {
+            candidates.push(nodes[i], scores[i]);
+        }
+        return selectNeighbors(nodes, scores, size, count);
+    }
+
+    // nodes/scores按相似度降序排列
+    private int[] selectNeighbors(int[] nodes, float[] scores, int size, int count) {
+        int[] selected = new int[Math.min(count, size)];
+        int selectedCount = 0;
+        float[] candidateVector = new float[matrix.dimension()];
+        for (int i = 0; i < size && selectedCount < selected.length; i++) {
+            matrix.readRow(nodes[i], candidateVector);
+            boolean diverse = true;
+            for (int j = 0; j < selectedCount; j++) {
+                if (score(candidateVector, selected[j]) > scores[i]) {
+                    diverse = false;
+                    break;
+                }
+            }
+            if (diverse) {
+                selected[selectedCount++] = nodes[i];
+            }
+        }
+        return Arrays.copyOf(selected, selectedCount);
+    }
+
+    // 为已有节点增加一条连接，超出上限时用启发式重新裁剪
+    private void connect(int[][][] nodes, int node, int newNeighbor, int level) {
+        int[] current = nodes[node][level];
+        int limit = level == 0 ? maxConnectionsLevel0 : maxConnections;
+        int[] extended = Arrays.copyOf(current, current.length + 1);
+        extended[current.length] = newNeighbor;
+        if (extended.length <= limit) {
+            LEVEL_LINKS.setRelease(nodes[node], level, extended);
+            return;
+        }
+        float[] vector = matrix.readRow(node, new float[matrix.dimension()]);
+        NodeHeap ordered = new NodeHeap(extended.length, true);
+        for (int neighbor : extended) {
+            ordered.push(neighbor, score(vector, neighbor));
+        }
+        int[] sorted = new int[extended.length];
+        float[] scores = new float[extended.length];
+        for (int i = 0; i < extended.length; i++) {
+            sorted[i] = ordered.topNode();
+            scores[i] = ordered.topScore();
+            ordered.pop();
+        }
+        LEVEL_LINKS.setRelease(nodes[node], level, selectNeighbors(sorted, scores, sorted.length, limit));
+    }
+
+    private int randomLevel() {
+        return (int) (-Math.log(1.0 - random.nextDouble()) * levelMultiplier);
+    }
+
+    private void ensureCapacity(int capacity) {
+        if (capacity > links.length) {
+            links = Arrays.copyOf(links, Math.max(capacity, links.length + (links.length >> 1) + 16));
+        }
+    }
+
+    // 带代数标记的访问集合，重置时只递增代数
+    private static final class VisitedMarks {
+        private int[] marks = new int[0];
+        private int generation;
+
+        void reset(int capacity) {
+            if (marks.length < capacity) {
+                marks = new int[Math.max(capacity, marks.length * 2)];
+                generation = 0;
+            }
+            generation++;
+            if (generation == Integer.MAX_VALUE) {
+                Arrays.fill(marks, 0);
+                generation = 1;
+            }
+        }
+
+        // 首次访问返回true
+        boolean visit(int node) {
+            if (marks[node] == generation) {
+                return false;
+            }
+            marks[node] = generation;
+            return true;
+        }
+    }
+}
@@ -0,0 +1,73 @@
+package com.example.rag.service;
+
+import java.lang.foreign.MemorySegment;
+import java.lang.foreign.ValueLayout;
+
+/**
+ * 作者: liangyajie
+ * 联系方式: 695274107@qq.com
+ * int8量化向量矩阵，与EmbeddingMatrix行号一一对应，用于低带宽的粗筛扫描
+ * 每行布局为 [float缩放因子][dimension个int8编码，补齐到4字节]，原值约等于 编码 * 缩放因子
+ */
+
+class Int8Matrix extends OffHeapRows {
+
+    // 缩放因子占用的字节数，编码紧随其后
+    static final long CODES_OFFSET = Float.BYTES;
+
+    private final int dimension;
+
+    Int8Matrix(int dimension) {
+        this(dimension, DEFAULT_ROWS_PER_BLOCK);
+    }
+
+    Int8Matrix(int dimension, int rowsPerBlock) {
+        super(CODES_OFFSET + ((dimension + 3L) & ~3L), rowsPerBlock);
+        this.dimension = dimension;
+    }
+
+    // 量化并追加一行（调用方需保证写入串行），返回行号
+    int append(float[] vector) {
+        if (vector.length != dimension) {
+            throw new IllegalArgumentException("向量维度不匹配，期望 " + dimension + "，实际 " + vector.length);
+        }
+        byte[] codes = new byte[dimension];
+        float scale = quantize(vector, codes);
+        MemorySegment block = reserveRow();
+        long offset = offsetInBlock(size());
+        block.set(ValueLayout.JAVA_FLOAT_UNALIGNED, offset, scale);
+        MemorySegment.copy(codes, 0, block, ValueLayout.JAVA_BYTE, offset + CODES_OFFSET, dimension);
+        return commitRow();
+    }
+
+    // 从另一个矩阵复制一行（用于删除后的整理）
+    int appendFrom(Int8Matrix source, int sourceRow) {
+        return copyRowFrom(source, sourceRow);
+    }
+
+    // 行的缩放因子
+    float scale(int row) {
+        return blockOf(row).get(ValueLayout.JAVA_FLOAT_UNALIGNED, offsetInBlock(row));
+    }
+
+    int dimension() {
+        return dimension;
+    }
+
+    // 按向量自身的最大绝对值对称量化到[-127, 127]，返回缩放因子；零向量的缩放因子为0
+    static float quantize(float[] vector, byte[] codes) {
+        float maxAbs = 0f;
+        for (float v : vector) {
+            maxAbs = Math.max(maxAbs, Math.abs(v));
+        }
+        if (maxAbs == 0f) {
+            java.util.Arrays.fill(codes, (byte) 0);
+            return 0f;
+        }
+        float inverse = 127f / maxAbs;
+        for (int i = 0; i < vector.length; i++) {
+            codes[i] = (byte) Math.round(vector[i] * inverse);
+        }
+        return maxAbs / 127f;
+    }
+}
@@ -0,0 +1,53 @@
+package com.example.rag.service;
+
+/**
+ * 作者: liangyajie
+ * 联系方式: 695274107@qq.com
+ * int8标量量化：每个向量一个缩放因子，编码与打分见Int8Matrix和SimilarityKernel
+ */
+
+final class Int8Quantizer implements QuantizedVectors {
+
+    private final Int8Matrix codes;
+    private final SimilarityKernel kernel;
+
+    Int8Quantizer(int dimension, SimilarityKernel kernel) {
+        this.codes = new Int8Matrix(dimension);
+        this.kernel = kernel;
+    }
+
+    @Override
+    public void add(int row, float[] vector) {
+        codes.append(vector);
+    }
+
+    @Override
+    public boolean ready() {
+        return true;
+    }
+
+    // 查询的缩放因子对所有行相同，不影响排序，打分时省略
+    @Override
+    public RowScorer prepare(float[] query) {
+        byte[] queryCodes = new byte[query.length];
+        Int8Matrix.quantize(query, queryCodes);
+        return row -> kernel.dot(queryCodes, codes.blockOf(row), codes.offsetInBlock(row) + Int8Matrix.CODES_OFFSET)
+                * codes.scale(row);
+    }
+
+    @Override
+    public Int8Quantizer compact(EmbeddingMatrix newMatrix, int[] oldToNew, int newSize) {
+        Int8Quantizer compacted = new Int8Quantizer(codes.dimension(), kernel);
+        for (int row = 0; row < oldToNew.length; row++) {
+            if (oldToNew[row] >= 0) {
+                compacted.codes.appendFrom(codes, row);
+            }
+        }
+        return compacted;
+    }
+
+    // 没有后台任务，编码随对象一起由GC回收
+    @Override
+    public void close() {
+    }
+}
@@ -0,0 +1,326 @@
+package com.example.rag.service;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.Executor;
+
+/**
+ * 作者: liangyajie
+ * 联系方式: 695274107@qq.com
+ * IVF倒排索引：用k-means把向量划分到若干倒排列表，检索时只扫描与查询最接近的nprobe个列表
+ * 向量数达到阈值后在后台训练，训练完成前ready()返回false，由调用方使用暴力扫描
+ */
+
+final class IvfIndex implements VectorIndex {
+
+    private static final Logger logger = LoggerFactory.getLogger(IvfIndex.class);
+    private static final int MIN_LISTS = 16;
+    private static final int MAX_LISTS = 4096;
+    // k-means训练时每个聚类中心采样的行数
+    private static final int SAMPLES_PER_LIST = 64;
+    // 倒排列表数组lists[list]与长度listSizes[list]的发布与读取
+    private static final VarHandle LIST_ROWS = MethodHandles.arrayElementVarHandle(int[][].class);
+    private static final VarHandle LIST_SIZES = MethodHandles.arrayElementVarHandle(int[].class);
+
+    private final EmbeddingMatrix matrix;
+    private final SimilarityKernel kernel;
+    private final Executor trainingExecutor;
+    private final int configuredLists;
+    private final int nprobe;
+    private final int trainThreshold;
+    private final int iterations;
+    private final double retrainGrowth;
+    private final DeletionMarks deleted = new DeletionMarks();
+    private final Random random = new Random(42);
+
+    // 已训练的划分，训练完成后整体替换
+    private volatile Partition partition;
+    // 以下字段由this同步
+    private boolean training;
+    private boolean closed;
+    private int trainedSize;
+
+    IvfIndex(EmbeddingMatrix matrix, SimilarityKernel kernel, Executor trainingExecutor,
+             int lists, int nprobe, int trainThreshold, int iterations, double retrainGrowth) {
+        this.matrix = matrix;
+        this.kernel = kernel;
+        this.trainingExecutor = trainingExecutor;
+        this.configuredLists = lists;
+        this.nprobe = Math.max(1, nprobe);
+        this.trainThreshold = Math.max(MIN_LISTS, trainThreshold);
+        this.iterations = Math.max(1, iterations);
+        this.retrainGrowth = Math.max(1.1, retrainGrowth);
+    }
+
+    @Override
+    public void add(int row) {
+        synchronized (this) {
+            Partition current = partition;
+            if (current != null && row >= current.nextRow) {
+                current.assign(row);
+            }
+        }
+        maybeTrain();
+    }
+
+    @Override
+    public void remove(int row) {
+        deleted.set(row);
+    }
+
+    @Override
+    public boolean ready() {
+        return partition != null;
+    }
+
+    @Override
+    public List<ScoredRow> search(float[] query, int k, int rowCount, BitSet allowed) {
+        Partition current = partition;
+        if (current == null || k <= 0) {
+            return List.of();
+        }
+        // 选出与查询最接近的nprobe个倒排列表
+        float[][] centroids = current.centroids;
+        NodeHeap probes = new NodeHeap(nprobe + 1, false);
+        for (int c = 0; c < centroids.length; c++) {
+            probes.push(c, kernel.dot(query, centroids[c]));
+            if (probes.size() > nprobe) {
+                probes.pop();
+            }
+        }
+        NodeHeap results = new NodeHeap(k + 1, false);
+        while (probes.size() > 0) {
+            int list = probes.topNode();
+            probes.pop();
+            // 写入可能同时在追加该列表：先取长度再取数组，读到的数组至少包含该长度内已写好的行；列表按行号递增，遇到快照之后的行即可结束
+            int size = (int) LIST_SIZES.getAcquire(current.listSizes, list);
+            int[] rows = (int[]) LIST_ROWS.getAcquire(current.lists, list);
+            for (int i = 0; i < size; i++) {
+                int row = rows[i];
+                if (row >= rowCount) {
+                    break;
+                }
+                if (deleted.get(row) || (allowed != null && !allowed.get(row))) {
+                    continue;
+                }
+                float score = kernel.dot(query, matrix.blockOf(row), matrix.offsetInBlock(row));
+                if (results.size() < k || score > results.topScore()) {
+                    results.push(row, score);
+                    if (results.size() > k) {
+                        results.pop();
+                    }
+                }
+            }
+        }
+        return results.drainDescending();
+    }
+
+    // 沿用已训练的聚类中心，只重映射倒排列表中的行号
+    @Override
+    public IvfIndex compact(EmbeddingMatrix newMatrix, int[] oldToNew, int newSize) {
+        IvfIndex compacted = new IvfIndex(newMatrix, kernel, trainingExecutor, configuredLists,
+                nprobe, trainThreshold, iterations, retrainGrowth);
+        Partition current;
+        synchronized (this) {
+            closed = true;
+            current = partition;
+            compacted.trainedSize = trainedSize;
+        }
+        if (current != null) {
+            Partition remapped = compacted.new Partition(current.centroids);
+            for (int list = 0; list < current.lists.length; list++) {
+                for (int i = 0; i < current.listSizes[list]; i++) {
+                    int row = current.lists[list][i];
+                    int mapped = row < oldToNew.length ? oldToNew[row] : -1;
+                    if (mapped >= 0) {
+                        remapped.append(list, mapped);
+                    }
+                }
+            }
+            remapped.nextRow = newSize;
+            compacted.partition = remapped;
+        }
+        compacted.maybeTrain();
+        return compacted;
+    }
+
+    @Override
+    public synchronized void close() {
+        closed = true;
+    }
+
+    // 向量数首次达到阈值，或相比上次训练增长到一定倍数时，提交后台训练
+    private void maybeTrain() {
+        final int size;
+        synchronized (this) {
+            size = matrix.size();
+            boolean due = partition == null ? size >= trainThreshold : size >= trainedSize * retrainGrowth;
+            if (training || closed || !due) {
+                return;
+            }
+            training = true;
+        }
+        trainingExecutor.execute(() -> train(size));
+    }
+
+    private void train(int size) {
+        long start = System.currentTimeMillis();
+        try {
+            Partition trained = buildPartition(size);
+            if (trained == null) {
+                return;
+            }
+            synchronized (this) {
+                if (closed) {
+                    return;
+                }
+                // 补齐训练期间新写入的行后再发布
+                for (int row = trained.nextRow; row < matrix.size(); row++) {
+                    trained.assign(row);
+                }
+                partition = trained;
+                trainedSize = size;
+            }
+            logger.info("IVF索引训练完成: {} 个向量, {} 个倒排列表, 耗时 {} ms",
+                    size, trained.centroids.length, System.currentTimeMillis() - start);
+        } catch (RuntimeException e) {
+            // 矩阵在训练期间被整理或关闭时会失败，丢弃本次结果
+            logger.warn("IVF索引训练失败: {}", e.getMessage());
+        } finally {
+            synchronized (this) {
+                training = false;
+            }
+        }
+        // 大批量上传时训练期间可能又写入了大量向量，按新规模再检查一次
+        maybeTrain();
+    }
+
+    // 在采样行上运行球面k-means，然后把前size行分配到倒排列表
+    private Partition buildPartition(int size) {
+        int listCount = listCount(size);
+        int[] sample = sampleRows(size, Math.min(size, listCount * SAMPLES_PER_LIST));
+        int dimension = matrix.dimension();
+        float[] vector = new float[dimension];
+
+        float[][] centroids = new float[listCount][];
+        int[] seeds = Arrays.copyOf(sample, sample.length);
+        shuffle(seeds);
+        for (int c = 0; c < listCount; c++) {
+            centroids[c] = matrix.readRow(seeds[c], new float[dimension]);
+        }
+
+        for (int iteration = 0; iteration < iterations; iteration++) {
+            float[][] sums = new float[listCount][dimension];
+            int[] counts = new int[listCount];
+            for (int row : sample) {
+                int nearest = nearestCentroid(centroids, row);
+                matrix.readRow(row, vector);
+                float[] sum = sums[nearest];
+                for (int d = 0; d < dimension; d++) {
+                    sum[d] += vector[d];
+                }
+                counts[nearest]++;
+            }
+            for (int c = 0; c < listCount; c++) {
+                // 空聚类用随机采样行重新初始化
+                centroids[c] = counts[c] == 0
+                        ? matrix.readRow(sample[random.nextInt(sample.length)], new float[dimension])
+                        : SimilarityKernels.normalize(sums[c]);
+            }
+            synchronized (this) {
+                if (closed) {
+                    return null;
+                }
+            }
+        }
+
+        Partition trained = new Partition(centroids);
+        for (int row = 0; row < size; row++) {
+            trained.assign(row);
+        }
+        return trained;
+    }
+
+    private int listCount(int size) {
+        int lists = configuredLists > 0
+                ? configuredLists
+                : Math.max(MIN_LISTS, Math.min(MAX_LISTS, (int) Math.sqrt(size)));
+        return Math.max(1, Math.min(lists, size));
+    }
+
+    private int nearestCentroid(float[][] centroids, int row) {
+        int best = 0;
+        float bestScore = Float.NEGATIVE_INFINITY;
+        for (int c = 0; c < centroids.length; c++) {
+            float score = kernel.dot(centroids[c], matrix.blockOf(row), matrix.offsetInBlock(row));
+            if (score > bestScore) {
+                bestScore = score;
+                best = c;
+            }
+        }
+        return best;
+    }
+
+    // 顺序抽样（Knuth算法S），返回按行号升序的count个行
+    private int[] sampleRows(int size, int count) {
+        int[] sample = new int[count];
+        int selected = 0;
+        for (int row = 0; row < size && selected < count; row++) {
+            if (random.nextInt(size - row) < count - selected) {
+                sample[selected++] = row;
+            }
+        }
+        return sample;
+    }
+
+    private void shuffle(int[] values) {
+        for (int i = values.length - 1; i > 0; i--) {
+            int j = random.nextInt(i + 1);
+            int tmp = values[i];
+            values[i] = values[j];
+            values[j] = tmp;
+        }
+    }
+
+    // 一次训练结果：聚类中心和对应的倒排列表
+    private final class Partition {
+        final float[][] centroids;
+        final int[][] lists;
+        final int[] listSizes;
+        // 小于该行号的行都已分配
+        int nextRow;
+
+        Partition(float[][] centroids) {
+            this.centroids = centroids;
+            this.lists = new int[centroids.length][];
+            this.listSizes = new int[centroids.length];
+            for (int c = 0; c < lists.length; c++) {
+                lists[c] = new int[8];
+            }
+        }
+
+        void assign(int row) {
+            append(nearestCentroid(centroids, row), row);
+            nextRow = row + 1;
+        }
+
+        // 只有持有this的写入方调用；先写行号、再发布数组、最后发布长度，无锁检索读到新长度时一定能看到对应的行
+        void append(int list, int row) {
+            int size = listSizes[list];
+            int[] rows = lists[list];
+            if (size == rows.length) {
+                rows = Arrays.copyOf(rows, size * 2);
+            }
+            rows[size] = row;
+            LIST_ROWS.setRelease(lists, list, rows);
+            LIST_SIZES.setRelease(listSizes, list, size + 1);
+        }
+    }
+}
@@ -0,0 +1,198 @@
+package com.example.rag.service;
+
+import java.time.Instant;
+import java.time.LocalDate;
+import java.time.ZoneId;
+import java.util.*;
+import java.util.function.Supplier;
+
+/**
+ * 作者: liangyajie
+ * 联系方式: 695274107@qq.com
+ * 文档块元数据的位图索引：按文件ID、文件类型和上传日期分别维护行号倒排位图，过滤条件按位图做与/或运算求出允许的行
+ * 文件级的属性（文件名、类型、上传日期）只在文件的第一行读取一次，之后的行直接沿用
+ * 不可变，修改通过Editor复制后进行，可以直接放进检索快照；只记录存活的行，删除文件时同时从各位图中移除
+ */
+
+final class MetadataIndex {
+
+    static final MetadataIndex EMPTY = new MetadataIndex(Map.of(), Map.of(), new TreeMap<>());
+
+    // 文件ID -> 文件级属性和行号位图
+    private final Map<String, FileEntry> files;
+    // 文件类型（小写扩展名） -> 行号位图
+    private final Map<String, RowBitmap> byFileType;
+    // 上传日期 -> 行号位图，按日期排序以便按范围查询
+    private final NavigableMap<LocalDate, RowBitmap> byUploadDay;
+
+    private MetadataIndex(Map<String, FileEntry> files, Map<String, RowBitmap> byFileType,
+                          NavigableMap<LocalDate, RowBitmap> byUploadDay) {
+        this.files = files;
+        this.byFileType = byFileType;
+        this.byUploadDay = byUploadDay;
+    }
+
+    // 文件级属性，fileType和uploadDay在元数据中没有时为空
+    record FileEntry(String fileName, String fileType, LocalDate uploadDay, Long uploadedAt, RowBitmap rows) {
+    }
+
+    FileEntry file(String fileId) {
+        return files.get(fileId);
+    }
+
+    Map<String, FileEntry> files() {
+        return Collections.unmodifiableMap(files);
+    }
+
+    // 按过滤条件求出允许的行：同一条件的多个取值为或，不同条件之间为与；没有过滤条件时返回null
+    RowBitmap select(SearchFilter filter) {
+        if (filter == null || filter.isEmpty()) {
+            return null;
+        }
+        RowBitmap result = null;
+        if (filter.getFileIds() != null) {
+            RowBitmap matched = RowBitmap.EMPTY;
+            for (String fileId : filter.getFileIds()) {
+                FileEntry entry = files.get(fileId);
+                if (entry != null) {
+                    matched = matched.or(entry.rows());
+                }
+            }
+            result = matched;
+        }
+        if (filter.getFileNamePrefix() != null) {
+            RowBitmap matched = RowBitmap.EMPTY;
+            for (FileEntry entry : files.values()) {
+                if (entry.fileName() != null && entry.fileName().startsWith(filter.getFileNamePrefix())) {
+                    matched = matched.or(entry.rows());
+                }
+            }
+            result = result == null ? matched : result.and(matched);
+        }
+        if (filter.getFileTypes() != null) {
+            RowBitmap matched = RowBitmap.EMPTY;
+            for (String fileType : filter.getFileTypes()) {
+                matched = matched.or(byFileType.getOrDefault(normalizeType(fileType), RowBitmap.EMPTY));
+            }
+            result = result == null ? matched : result.and(matched);
+        }
+        if (filter.getUploadedFrom() != null || filter.getUploadedTo() != null) {
+            LocalDate from = filter.getUploadedFrom() != null ? filter.getUploadedFrom() : LocalDate.MIN;
+            LocalDate to = filter.getUploadedTo() != null ? filter.getUploadedTo() : LocalDate.MAX;
+            RowBitmap matched = RowBitmap.EMPTY;
+            if (!from.isAfter(to)) {
+                for (RowBitmap rows : byUploadDay.subMap(from, true, to, true).values()) {
+                    matched = matched.or(rows);
+                }
+            }
+            result = result == null ? matched : result.and(matched);
+        }
+        return result;
+    }
+
+    Editor edit() {
+        return new Editor(this);
+    }
+
+    // 整理后按新行号重建全部位图，oldToNew中被丢弃的行为-1
+    MetadataIndex remap(int[] oldToNew) {
+        Map<String, FileEntry> remappedFiles = new HashMap<>();
+        for (Map.Entry<String, FileEntry> entry : files.entrySet()) {
+            FileEntry file = entry.getValue();
+            RowBitmap rows = file.rows().remap(oldToNew);
+            if (!rows.isEmpty()) {
+                remappedFiles.put(entry.getKey(), new FileEntry(file.fileName(), file.fileType(), file.uploadDay(),
+                        file.uploadedAt(), rows));
+            }
+        }
+        Map<String, RowBitmap> remappedTypes = new HashMap<>();
+        for (Map.Entry<String, RowBitmap> entry : byFileType.entrySet()) {
+            putIfNotEmpty(remappedTypes, entry.getKey(), entry.getValue().remap(oldToNew));
+        }
+        NavigableMap<LocalDate, RowBitmap> remappedDays = new TreeMap<>();
+        for (Map.Entry<LocalDate, RowBitmap> entry : byUploadDay.entrySet()) {
+            putIfNotEmpty(remappedDays, entry.getKey(), entry.getValue().remap(oldToNew));
+        }
+        return new MetadataIndex(remappedFiles, remappedTypes, remappedDays);
+    }
+
+    // 文件类型统一为不带点的小写扩展名
+    static String normalizeType(String fileType) {
+        String type = fileType.trim().toLowerCase(Locale.ROOT);
+        return type.startsWith(".") ? type.substring(1) : type;
+    }
+
+    private static <K> void putIfNotEmpty(Map<K, RowBitmap> map, K key, RowBitmap rows) {
+        if (rows.isEmpty()) {
+            map.remove(key);
+        } else {
+            map.put(key, rows);
+        }
+    }
+
+    // 从文件的元数据中读取文件级属性；没有fileType时按文件名的扩展名推断
+    private static FileEntry newEntry(Map<String, Object> metadata, int row) {
+        Object fileName = metadata != null ? metadata.get("fileName") : null;
+        Object fileType = metadata != null ? metadata.get("fileType") : null;
+        Object uploadedAt = metadata != null ? metadata.get("uploadedAt") : null;
+        String type = null;
+        if (fileType instanceof String value && !value.isBlank()) {
+            type = normalizeType(value);
+        } else if (fileName instanceof String name && name.lastIndexOf('.') > 0) {
+            type = normalizeType(name.substring(name.lastIndexOf('.') + 1));
+        }
+        Long millis = uploadedAt instanceof Number number ? number.longValue() : null;
+        LocalDate day = millis != null ? LocalDate.ofInstant(Instant.ofEpochMilli(millis), ZoneId.systemDefault()) : null;
+        return new FileEntry(fileName instanceof String name ? name : null, type, day, millis, RowBitmap.of(row));
+    }
+
+    // 在索引副本上批量修改，完成后build得到新索引；原索引不受影响（调用方持有写锁）
+    static final class Editor {
+        private final Map<String, FileEntry> files;
+        private final Map<String, RowBitmap> byFileType;
+        private final NavigableMap<LocalDate, RowBitmap> byUploadDay;
+
+        private Editor(MetadataIndex base) {
+            files = new HashMap<>(base.files);
+            byFileType = new HashMap<>(base.byFileType);
+            byUploadDay = new TreeMap<>(base.byUploadDay);
+        }
+
+        // 记入一行，行号需递增；metadata只在该文件第一次出现时读取
+        void add(int row, String fileId, Supplier<Map<String, Object>> metadata) {
+            FileEntry entry = files.get(fileId);
+            if (entry == null) {
+                entry = newEntry(metadata.get(), row);
+            } else {
+                entry = new FileEntry(entry.fileName(), entry.fileType(), entry.uploadDay(), entry.uploadedAt(),
+                        entry.rows().append(row));
+            }
+            files.put(fileId, entry);
+            if (entry.fileType() != null) {
+                byFileType.merge(entry.fileType(), RowBitmap.of(row), (rows, added) -> rows.append(row));
+            }
+            if (entry.uploadDay() != null) {
+                byUploadDay.merge(entry.uploadDay(), RowBitmap.of(row), (rows, added) -> rows.append(row));
+            }
+        }
+
+        // 移除文件并把它的行从各位图中去掉，返回被移除的行；文件不存在时返回null
+        RowBitmap removeFile(String fileId) {
+            FileEntry entry = files.remove(fileId);
+            if (entry == null) {
+                return null;
+            }
+            if (entry.fileType() != null && byFileType.containsKey(entry.fileType())) {
+                putIfNotEmpty(byFileType, entry.fileType(), byFileType.get(entry.fileType()).andNot(entry.rows()));
+            }
+            if (entry.uploadDay() != null && byUploadDay.containsKey(entry.uploadDay())) {
+                putIfNotEmpty(byUploadDay, entry.uploadDay(), byUploadDay.get(entry.uploadDay()).andNot(entry.rows()));
+            }
+            return entry.rows();
+        }
+
+        MetadataIndex build() {
+            return new MetadataIndex(files, byFileType, byUploadDay);
+        }
+    }
+}
@@ -0,0 +1,126 @@
+package com.example.rag.service;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * 作者: liangyajie
+ * 联系方式: 695274107@qq.com
+ * 按相似度排序的节点堆，使用原始数组存储，供各类索引检索时复用
+ * maxHeap为true时堆顶是相似度最大的节点，否则堆顶是相似度最小的节点
+ */
+
+final class NodeHeap {
+    private int[] nodes;
+    private float[] scores;
+    private int size;
+    private final boolean maxHeap;
+
+    NodeHeap(int capacity, boolean maxHeap) {
+        this.nodes = new int[Math.max(capacity, 4)];
+        this.scores = new float[nodes.length];
+        this.maxHeap = maxHeap;
+    }
+
+    void push(int node, float score) {
+        if (size == nodes.length) {
+            nodes = Arrays.copyOf(nodes, size * 2);
+            scores = Arrays.copyOf(scores, size * 2);
+        }
+        int i = size++;
+        while (i > 0) {
+            int parent = (i - 1) >>> 1;
+            if (!before(score, scores[parent])) {
+                break;
+            }
+            nodes[i] = nodes[parent];
+            scores[i] = scores[parent];
+            i = parent;
+        }
+        nodes[i] = node;
+        scores[i] = score;
+    }
+
+    void pop() {
+        int lastNode = nodes[--size];
+        float lastScore = scores[size];
+        siftDown(lastNode, lastScore);
+    }
+
+    // 用新节点替换堆顶，比先pop再push少一次调整
+    void replaceTop(int node, float score) {
+        siftDown(node, score);
+    }
+
+    private void siftDown(int node, float score) {
+        int i = 0;
+        int half = size >>> 1;
+        while (i < half) {
+            int child = 2 * i + 1;
+            if (child + 1 < size && before(scores[child + 1], scores[child])) {
+                child++;
+            }
+            if (!before(scores[child], score)) {
+                break;
+            }
+            nodes[i] = nodes[child];
+            scores[i] = scores[child];
+            i = child;
+        }
+        nodes[i] = node;
+        scores[i] = score;
+    }
+
+    // 弹出全部节点，按相似度降序返回
+    List<VectorIndex.ScoredRow> drainDescending() {
+        List<VectorIndex.ScoredRow> result = new ArrayList<>(size);
+        while (size > 0) {
+            result.add(new VectorIndex.ScoredRow(topNode(), topScore()));
+            pop();
+        }
+        if (!maxHeap) {
+            Collections.reverse(result);
+        }
+        return result;
+    }
+
+    int topNode() {
+        return nodes[0];
+    }
+
+    float topScore() {
+        return scores[0];
+    }
+
+    int size() {
+        return size;
+    }
+
+    // 堆中相似度最大的节点（最小堆时需要遍历）
+    int bestNode() {
+        return nodes[bestIndex()];
+    }
+
+    float bestScore() {
+        return scores[bestIndex()];
+    }
+
+    private int bestIndex() {
+        if (maxHeap) {
+            return 0;
+        }
+        int best = 0;
+        for (int i = 1; i < size; i++) {
+            if (scores[i] > scores[best]) {
+                best = i;
+            }
+        }
+        return best;
+    }
+
+    private boolean before(float a, float b) {
+        return maxHeap ? a > b : a < b;
+    }
+}
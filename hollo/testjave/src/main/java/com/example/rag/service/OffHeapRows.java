@@ -0,0 +1,175 @@
+package com.example.rag.service;
+
+import java.lang.foreign.Arena;
+import java.lang.foreign.MemorySegment;
+import java.util.Arrays;
+
+/**
+ * 作者: liangyajie
+ * 联系方式: 695274107@qq.com
+ * 定长行的堆外存储基类：行按顺序存放在若干内存块中，块只追加不移动，读者可以无锁读取size以内的行
+ * 新写入的行放在按固定行数分配的块中；已落盘的行可以整体替换为文件映射的只读块（见attach/replaceTail）
+ * 内存块由GC管理（Arena.ofAuto），不再被引用后自动释放，读者持有的旧块不会被提前回收
+ */
+
+abstract class OffHeapRows implements AutoCloseable {
+
+    // 新分配的内存块容纳的行数
+    static final int DEFAULT_ROWS_PER_BLOCK = 1024;
+    private static final long BLOCK_ALIGNMENT = 64;
+
+    protected final long rowBytes;
+    private final int rowsPerBlock;
+    private volatile Layout layout = Layout.EMPTY;
+    private volatile int size;
+
+    protected OffHeapRows(long rowBytes, int rowsPerBlock) {
+        if (rowBytes <= 0) {
+            throw new IllegalArgumentException("行字节数必须大于0: " + rowBytes);
+        }
+        if (rowsPerBlock <= 0) {
+            throw new IllegalArgumentException("每块行数必须大于0: " + rowsPerBlock);
+        }
+        this.rowBytes = rowBytes;
+        this.rowsPerBlock = rowsPerBlock;
+    }
+
+    // 为下一行分配空间，返回其所在的内存块；写入完成后需调用commitRow（调用方需保证写入串行）
+    protected MemorySegment reserveRow() {
+        Layout current = layout;
+        int last = current.blocks.length - 1;
+        if (last >= 0 && size - current.firstRows[last] < current.capacities[last]) {
+            return current.blocks[last];
+        }
+        MemorySegment block = Arena.ofAuto().allocate(rowsPerBlock * rowBytes, BLOCK_ALIGNMENT);
+        layout = current.append(block, size, rowsPerBlock);
+        return block;
+    }
+
+    // 发布新写入的行，返回行号
+    protected int commitRow() {
+        int row = size;
+        size = row + 1;
+        return row;
+    }
+
+    // 从同类存储中复制一行（用于删除后的整理）
+    protected int copyRowFrom(OffHeapRows source, int sourceRow) {
+        checkRowBytes(source.rowBytes);
+        MemorySegment block = reserveRow();
+        MemorySegment.copy(source.blockOf(sourceRow), source.offsetInBlock(sourceRow),
+                block, offsetInBlock(size), rowBytes);
+        return commitRow();
+    }
+
+    // 在末尾追加count行已有数据（如文件映射），该块不再接受新行，之后的写入从新块开始
+    void attach(MemorySegment rows, int count) {
+        checkBlockBytes(rows, count);
+        if (count == 0) {
+            return;
+        }
+        Layout current = layout;
+        current = current.sealLast(size);
+        layout = current.append(rows, size, count);
+        size += count;
+    }
+
+    // 把[fromRow, size)行替换为同样内容的rows（如落盘后的文件映射），fromRow必须是某个内存块的起始行
+    void replaceTail(int fromRow, MemorySegment rows) {
+        int count = size - fromRow;
+        checkBlockBytes(rows, count);
+        Layout current = layout;
+        int first = Arrays.binarySearch(current.firstRows, fromRow);
+        if (first < 0) {
+            throw new IllegalStateException("行 " + fromRow + " 不是内存块的起始行");
+        }
+        layout = current.truncate(first).append(rows, fromRow, count);
+    }
+
+    // 行所在的内存块
+    MemorySegment blockOf(int row) {
+        Layout current = layout;
+        return current.blocks[current.indexOf(row)];
+    }
+
+    // 行在内存块内的字节偏移
+    long offsetInBlock(int row) {
+        Layout current = layout;
+        return (row - current.firstRows[current.indexOf(row)]) * rowBytes;
+    }
+
+    int size() {
+        return size;
+    }
+
+    // 释放对内存块的引用，内存由GC回收
+    @Override
+    public void close() {
+        layout = Layout.EMPTY;
+        size = 0;
+    }
+
+    private void checkRowBytes(long actual) {
+        if (actual != rowBytes) {
+            throw new IllegalArgumentException("行字节数不匹配，期望 " + rowBytes + "，实际 " + actual);
+        }
+    }
+
+    private void checkBlockBytes(MemorySegment rows, int count) {
+        if (count < 0 || rows.byteSize() < count * rowBytes) {
+            throw new IllegalArgumentException("内存块大小不足以容纳 " + count + " 行");
+        }
+    }
+
+    // 内存块布局，整体替换发布；firstRows升序，capacities为各块可容纳的行数
+    private record Layout(MemorySegment[] blocks, int[] firstRows, int[] capacities, boolean uniform, int shift) {
+
+        static final Layout EMPTY = new Layout(new MemorySegment[0], new int[0], new int[0], true, 0);
+
+        Layout append(MemorySegment block, int firstRow, int capacity) {
+            int n = blocks.length;
+            MemorySegment[] grownBlocks = Arrays.copyOf(blocks, n + 1);
+            int[] grownFirstRows = Arrays.copyOf(firstRows, n + 1);
+            int[] grownCapacities = Arrays.copyOf(capacities, n + 1);
+            grownBlocks[n] = block;
+            grownFirstRows[n] = firstRow;
+            grownCapacities[n] = capacity;
+            return of(grownBlocks, grownFirstRows, grownCapacities);
+        }
+
+        // 最后一块不再接受新行（容量截断为已用行数）
+        Layout sealLast(int size) {
+            int last = blocks.length - 1;
+            if (last < 0 || size - firstRows[last] == capacities[last]) {
+                return this;
+            }
+            int[] sealed = capacities.clone();
+            sealed[last] = size - firstRows[last];
+            return of(blocks, firstRows, sealed);
+        }
+
+        Layout truncate(int blockCount) {
+            return of(Arrays.copyOf(blocks, blockCount), Arrays.copyOf(firstRows, blockCount),
+                    Arrays.copyOf(capacities, blockCount));
+        }
+
+        // 所有块容量相同且为2的幂时，用移位直接定位，否则二分查找
+        static Layout of(MemorySegment[] blocks, int[] firstRows, int[] capacities) {
+            boolean uniform = true;
+            int capacity = capacities.length > 0 ? capacities[0] : 1;
+            for (int i = 0; i < capacities.length && uniform; i++) {
+                uniform = capacities[i] == capacity && firstRows[i] == i * capacity;
+            }
+            uniform &= Integer.bitCount(capacity) == 1;
+            return new Layout(blocks, firstRows, capacities, uniform, Integer.numberOfTrailingZeros(capacity));
+        }
+
+        int indexOf(int row) {
+            if (uniform) {
+                return row >>> shift;
+            }
+            int index = Arrays.binarySearch(firstRows, row);
+            return index >= 0 ? index : -index - 2;
+        }
+    }
+}
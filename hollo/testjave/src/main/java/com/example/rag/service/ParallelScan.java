@@ -0,0 +1,87 @@
+package com.example.rag.service;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * 作者: liangyajie
+ * 联系方式: 695274107@qq.com
+ * 分区并行扫描：把行号范围切成若干连续分片，每个分片用各自的Top-K收集器扫描，最后合并
+ * 分片数随当前并发查询数自适应：并行度 = 总并行度 / 正在扫描的查询数，高负载时退化为单线程扫描，避免线程超额订阅
+ */
+
+final class ParallelScan {
+
+    // 每个分片的最少行数，过小的分片调度开销大于收益
+    static final int MIN_SLICE_ROWS = 4096;
+
+    private final ExecutorService executor;
+    private final int parallelism;
+    private final int minSliceRows;
+    private final AtomicInteger activeScans = new AtomicInteger();
+
+    // executor用于执行除第一个分片外的其余分片，第一个分片在调用线程上执行
+    ParallelScan(ExecutorService executor, int parallelism) {
+        this(executor, parallelism, MIN_SLICE_ROWS);
+    }
+
+    ParallelScan(ExecutorService executor, int parallelism, int minSliceRows) {
+        this.executor = executor;
+        this.parallelism = Math.max(1, parallelism);
+        this.minSliceRows = Math.max(1, minSliceRows);
+    }
+
+    // 扫描[0, rowCount)行，返回合并后的收集器
+    TopKCollector scan(int rowCount, int limit, float minScore, RangeScanner scanner)
+            throws InterruptedException, ExecutionException {
+        int active = activeScans.incrementAndGet();
+        try {
+            int slices = sliceCount(rowCount, active);
+            List<Future<TopKCollector>> futures = new ArrayList<>(slices - 1);
+            for (int slice = 1; slice < slices; slice++) {
+                final int start = sliceStart(rowCount, slices, slice);
+                final int end = sliceStart(rowCount, slices, slice + 1);
+                futures.add(executor.submit(() -> scanRange(scanner, start, end, limit, minScore)));
+            }
+            TopKCollector merged = scanRange(scanner, 0, sliceStart(rowCount, slices, 1), limit, minScore);
+            try {
+                for (Future<TopKCollector> future : futures) {
+                    merged.addAll(future.get());
+                }
+            } finally {
+                for (Future<TopKCollector> future : futures) {
+                    future.cancel(true);
+                }
+            }
+            return merged;
+        } finally {
+            activeScans.decrementAndGet();
+        }
+    }
+
+    // 分片数：不超过当前查询可分得的并行度，每片不少于minSliceRows行
+    int sliceCount(int rowCount, int activeQueries) {
+        int share = Math.max(1, parallelism / Math.max(1, activeQueries));
+        int bySize = Math.max(1, (rowCount + minSliceRows - 1) / minSliceRows);
+        return Math.min(share, bySize);
+    }
+
+    private static int sliceStart(int rowCount, int slices, int slice) {
+        return (int) ((long) rowCount * slice / slices);
+    }
+
+    private static TopKCollector scanRange(RangeScanner scanner, int start, int end, int limit, float minScore) {
+        TopKCollector collector = new TopKCollector(limit, minScore);
+        scanner.scan(start, end, collector);
+        return collector;
+    }
+
+    // 扫描[start, end)行并把结果放入收集器
+    interface RangeScanner {
+        void scan(int start, int end, TopKCollector collector);
+    }
+}
@@ -0,0 +1,205 @@
+package com.example.rag.service;
+
+import java.io.*;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.Random;
+
+/**
+ * 作者: liangyajie
+ * 联系方式: 695274107@qq.com
+ * 乘积量化码本：把向量切分为若干子空间，每个子空间用k-means训练至多256个码字，向量编码为每个子空间一个字节
+ * 检索时按查询预先计算每个子空间与各码字的点积查找表（非对称距离计算），打分只需查表求和
+ */
+
+final class PqCodebook {
+
+    // 每个子空间的码字数上限，编码为一个无符号字节
+    static final int MAX_CENTROIDS = 256;
+    // 训练时每个码字采样的向量数
+    static final int SAMPLES_PER_CENTROID = 32;
+    private static final int FILE_MAGIC = 0x50514342;
+    private static final int FILE_VERSION = 1;
+
+    private final int dimension;
+    private final int centroids;
+    // 子空间s覆盖的维度为 [bounds[s], bounds[s+1])
+    private final int[] bounds;
+    // codewords[s][c * 子空间维度 + d]
+    private final float[][] codewords;
+
+    private PqCodebook(int dimension, int subspaces, int centroids, float[][] codewords) {
+        this.dimension = dimension;
+        this.centroids = centroids;
+        this.bounds = new int[subspaces + 1];
+        for (int s = 0; s <= subspaces; s++) {
+            bounds[s] = (int) ((long) s * dimension / subspaces);
+        }
+        this.codewords = codewords;
+    }
+
+    // 在采样行上为每个子空间分别运行k-means（欧氏距离）
+    static PqCodebook train(EmbeddingMatrix matrix, int[] sample, int subspaces, int iterations, Random random) {
+        int dimension = matrix.dimension();
+        if (subspaces <= 0 || subspaces > dimension) {
+            throw new IllegalArgumentException("子空间数量必须在1到向量维度之间: " + subspaces);
+        }
+        int centroids = Math.min(MAX_CENTROIDS, sample.length);
+        float[][] vectors = new float[sample.length][];
+        for (int i = 0; i < sample.length; i++) {
+            vectors[i] = matrix.readRow(sample[i], new float[dimension]);
+        }
+        PqCodebook codebook = new PqCodebook(dimension, subspaces, centroids, new float[subspaces][]);
+        for (int s = 0; s < subspaces; s++) {
+            codebook.codewords[s] = codebook.trainSubspace(vectors, s, iterations, random);
+        }
+        return codebook;
+    }
+
+    private float[] trainSubspace(float[][] vectors, int subspace, int iterations, Random random) {
+        int from = bounds[subspace];
+        int width = bounds[subspace + 1] - from;
+        float[] words = new float[centroids * width];
+        // 用不同的采样向量初始化码字
+        int[] order = new int[vectors.length];
+        for (int i = 0; i < order.length; i++) {
+            order[i] = i;
+        }
+        for (int i = 0; i < centroids; i++) {
+            int j = i + random.nextInt(order.length - i);
+            int tmp = order[i];
+            order[i] = order[j];
+            order[j] = tmp;
+            System.arraycopy(vectors[order[i]], from, words, i * width, width);
+        }
+        int[] assignment = new int[vectors.length];
+        for (int iteration = 0; iteration < iterations; iteration++) {
+            float[] sums = new float[words.length];
+            int[] counts = new int[centroids];
+            for (int i = 0; i < vectors.length; i++) {
+                int nearest = nearest(words, width, vectors[i], from);
+                assignment[i] = nearest;
+                counts[nearest]++;
+                for (int d = 0; d < width; d++) {
+                    sums[nearest * width + d] += vectors[i][from + d];
+                }
+            }
+            for (int c = 0; c < centroids; c++) {
+                if (counts[c] == 0) {
+                    // 空聚类用随机采样向量重新初始化
+                    System.arraycopy(vectors[random.nextInt(vectors.length)], from, words, c * width, width);
+                    continue;
+                }
+                for (int d = 0; d < width; d++) {
+                    words[c * width + d] = sums[c * width + d] / counts[c];
+                }
+            }
+        }
+        return words;
+    }
+
+    // 子空间内欧氏距离最近的码字
+    private int nearest(float[] words, int width, float[] vector, int from) {
+        int best = 0;
+        float bestDistance = Float.MAX_VALUE;
+        for (int c = 0; c < centroids; c++) {
+            float distance = 0f;
+            int base = c * width;
+            for (int d = 0; d < width; d++) {
+                float diff = vector[from + d] - words[base + d];
+                distance += diff * diff;
+            }
+            if (distance < bestDistance) {
+                bestDistance = distance;
+                best = c;
+            }
+        }
+        return best;
+    }
+
+    // 把向量编码为每个子空间一个字节
+    void encode(float[] vector, byte[] codes) {
+        for (int s = 0; s < codewords.length; s++) {
+            codes[s] = (byte) nearest(codewords[s], bounds[s + 1] - bounds[s], vector, bounds[s]);
+        }
+    }
+
+    // 查询与每个子空间各码字的点积，table[s * centroids() + c]
+    float[] lookupTable(float[] query) {
+        float[] table = new float[codewords.length * centroids];
+        for (int s = 0; s < codewords.length; s++) {
+            int from = bounds[s];
+            int width = bounds[s + 1] - from;
+            float[] words = codewords[s];
+            for (int c = 0; c < centroids; c++) {
+                float dot = 0f;
+                for (int d = 0; d < width; d++) {
+                    dot += query[from + d] * words[c * width + d];
+                }
+                table[s * centroids + c] = dot;
+            }
+        }
+        return table;
+    }
+
+    int dimension() {
+        return dimension;
+    }
+
+    int subspaces() {
+        return codewords.length;
+    }
+
+    int centroids() {
+        return centroids;
+    }
+
+    // 写入临时文件并刷盘后原子替换、刷新目录，避免中途失败或掉电留下不完整的码本
+    void save(Path file) throws IOException {
+        Path directory = file.toAbsolutePath().getParent();
+        Files.createDirectories(directory);
+        Path temp = file.resolveSibling(file.getFileName() + ".tmp");
+        try (FileOutputStream stream = new FileOutputStream(temp.toFile());
+             DataOutputStream out = new DataOutputStream(new BufferedOutputStream(stream))) {
+            out.writeInt(FILE_MAGIC);
+            out.writeInt(FILE_VERSION);
+            out.writeInt(dimension);
+            out.writeInt(codewords.length);
+            out.writeInt(centroids);
+            for (float[] words : codewords) {
+                for (float value : words) {
+                    out.writeFloat(value);
+                }
+            }
+            out.flush();
+            stream.getFD().sync();
+        }
+        Files.move(temp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        FileSync.syncDirectory(directory);
+    }
+
+    static PqCodebook load(Path file) throws IOException {
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(file)))) {
+            if (in.readInt() != FILE_MAGIC || in.readInt() != FILE_VERSION) {
+                throw new IOException("不是有效的乘积量化码本文件: " + file);
+            }
+            int dimension = in.readInt();
+            int subspaces = in.readInt();
+            int centroids = in.readInt();
+            if (dimension <= 0 || subspaces <= 0 || subspaces > dimension
+                    || centroids <= 0 || centroids > MAX_CENTROIDS) {
+                throw new IOException("乘积量化码本文件参数无效: " + file);
+            }
+            PqCodebook codebook = new PqCodebook(dimension, subspaces, centroids, new float[subspaces][]);
+            for (int s = 0; s < subspaces; s++) {
+                float[] words = new float[centroids * (codebook.bounds[s + 1] - codebook.bounds[s])];
+                for (int i = 0; i < words.length; i++) {
+                    words[i] = in.readFloat();
+                }
+                codebook.codewords[s] = words;
+            }
+            return codebook;
+        }
+    }
+}
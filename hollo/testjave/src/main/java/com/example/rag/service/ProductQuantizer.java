@@ -0,0 +1,242 @@
+package com.example.rag.service;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.lang.foreign.MemorySegment;
+import java.lang.foreign.ValueLayout;
+import java.nio.file.Path;
+import java.util.Random;
+import java.util.concurrent.Executor;
+
+/**
+ * 作者: liangyajie
+ * 联系方式: 695274107@qq.com
+ * 乘积量化：每个向量只保存子空间数量个字节的编码，检索时用查找表打分
+ * 向量数达到阈值后在后台训练码本并编码已有向量，训练完成前ready()返回false，由调用方使用暴力扫描
+ * 码本保存到数据目录，重启后直接加载，不再重新训练
+ */
+
+final class ProductQuantizer implements QuantizedVectors {
+
+    private static final Logger logger = LoggerFactory.getLogger(ProductQuantizer.class);
+
+    private final EmbeddingMatrix matrix;
+    private final Executor trainingExecutor;
+    private final int subspaces;
+    private final int trainThreshold;
+    private final int iterations;
+    private final Path codebookFile;
+    private final Random random = new Random(42);
+
+    // 码本和编码在训练完成后一起发布
+    private volatile PqCodebook codebook;
+    private volatile PqCodes codes;
+    // 以下字段由this同步
+    private boolean training;
+    private boolean closed;
+
+    ProductQuantizer(EmbeddingMatrix matrix, Executor trainingExecutor, int subspaces,
+                     int trainThreshold, int iterations, Path codebookFile) {
+        this.matrix = matrix;
+        this.trainingExecutor = trainingExecutor;
+        this.subspaces = subspaces > 0 ? Math.min(subspaces, matrix.dimension()) : defaultSubspaces(matrix.dimension());
+        this.trainThreshold = Math.max(PqCodebook.MAX_CENTROIDS, trainThreshold);
+        this.iterations = Math.max(1, iterations);
+        this.codebookFile = codebookFile;
+        PqCodebook persisted = loadCodebook();
+        if (persisted != null) {
+            this.codebook = persisted;
+            this.codes = new PqCodes(persisted.subspaces());
+        }
+    }
+
+    // 默认每8维一个子空间，1024维向量编码为128字节（原始向量的1/32）
+    static int defaultSubspaces(int dimension) {
+        return Math.max(1, dimension / 8);
+    }
+
+    @Override
+    public void add(int row, float[] vector) {
+        synchronized (this) {
+            PqCodebook current = codebook;
+            if (current != null && row == codes.size()) {
+                codes.append(current, vector);
+                return;
+            }
+        }
+        maybeTrain();
+    }
+
+    @Override
+    public boolean ready() {
+        return codebook != null;
+    }
+
+    @Override
+    public RowScorer prepare(float[] query) {
+        PqCodebook current = codebook;
+        PqCodes currentCodes = codes;
+        float[] table = current.lookupTable(query);
+        int centroids = current.centroids();
+        int count = current.subspaces();
+        return row -> {
+            MemorySegment block = currentCodes.blockOf(row);
+            long offset = currentCodes.offsetInBlock(row);
+            float score = 0f;
+            for (int s = 0; s < count; s++) {
+                score += table[s * centroids + (block.get(ValueLayout.JAVA_BYTE, offset + s) & 0xFF)];
+            }
+            return score;
+        };
+    }
+
+    // 沿用已训练的码本，只复制保留行的编码
+    @Override
+    public ProductQuantizer compact(EmbeddingMatrix newMatrix, int[] oldToNew, int newSize) {
+        PqCodebook current;
+        PqCodes currentCodes;
+        synchronized (this) {
+            closed = true;
+            current = codebook;
+            currentCodes = codes;
+        }
+        ProductQuantizer compacted = new ProductQuantizer(newMatrix, trainingExecutor, subspaces,
+                trainThreshold, iterations, null);
+        if (current != null) {
+            PqCodes remapped = new PqCodes(current.subspaces());
+            for (int row = 0; row < oldToNew.length && row < currentCodes.size(); row++) {
+                if (oldToNew[row] >= 0) {
+                    remapped.appendFrom(currentCodes, row);
+                }
+            }
+            compacted.codebook = current;
+            compacted.codes = remapped;
+        }
+        compacted.maybeTrain();
+        return compacted;
+    }
+
+    @Override
+    public synchronized void close() {
+        closed = true;
+    }
+
+    // 向量数首次达到阈值时提交后台训练
+    private void maybeTrain() {
+        final int size;
+        synchronized (this) {
+            size = matrix.size();
+            if (codebook != null || training || closed || size < trainThreshold) {
+                return;
+            }
+            training = true;
+        }
+        trainingExecutor.execute(() -> train(size));
+    }
+
+    private void train(int size) {
+        long start = System.currentTimeMillis();
+        PqCodes trainedCodes = null;
+        try {
+            int[] sample = sampleRows(size, Math.min(size, PqCodebook.MAX_CENTROIDS * PqCodebook.SAMPLES_PER_CENTROID));
+            PqCodebook trained = PqCodebook.train(matrix, sample, subspaces, iterations, random);
+            trainedCodes = new PqCodes(subspaces);
+            float[] vector = new float[matrix.dimension()];
+            for (int row = 0; row < size; row++) {
+                trainedCodes.append(trained, matrix.readRow(row, vector));
+            }
+            synchronized (this) {
+                if (closed) {
+                    trainedCodes.close();
+                    return;
+                }
+                // 补齐训练期间新写入的行后再发布
+                for (int row = size; row < matrix.size(); row++) {
+                    trainedCodes.append(trained, matrix.readRow(row, vector));
+                }
+                codes = trainedCodes;
+                codebook = trained;
+            }
+            logger.info("乘积量化码本训练完成: {} 个向量, {} 个子空间, 耗时 {} ms",
+                    size, subspaces, System.currentTimeMillis() - start);
+            saveCodebook(trained);
+        } catch (RuntimeException e) {
+            // 矩阵在训练期间被整理或关闭时会失败，丢弃本次结果
+            logger.warn("乘积量化码本训练失败: {}", e.getMessage());
+            if (trainedCodes != null && codes != trainedCodes) {
+                trainedCodes.close();
+            }
+        } finally {
+            synchronized (this) {
+                training = false;
+            }
+        }
+    }
+
+    private PqCodebook loadCodebook() {
+        if (codebookFile == null || !codebookFile.toFile().isFile()) {
+            return null;
+        }
+        try {
+            PqCodebook loaded = PqCodebook.load(codebookFile);
+            if (loaded.dimension() != matrix.dimension() || loaded.subspaces() != subspaces) {
+                logger.warn("乘积量化码本 {} 与当前配置不一致（维度 {}，子空间 {}），将重新训练",
+                        codebookFile, loaded.dimension(), loaded.subspaces());
+                return null;
+            }
+            logger.info("已加载乘积量化码本: {}", codebookFile);
+            return loaded;
+        } catch (IOException e) {
+            logger.warn("加载乘积量化码本失败，将重新训练: {}", e.getMessage());
+            return null;
+        }
+    }
+
+    private void saveCodebook(PqCodebook trained) {
+        if (codebookFile == null) {
+            return;
+        }
+        try {
+            trained.save(codebookFile);
+        } catch (IOException e) {
+            logger.warn("保存乘积量化码本失败: {}", e.getMessage());
+        }
+    }
+
+    // 顺序抽样（Knuth算法S），返回按行号升序的count个行
+    private int[] sampleRows(int size, int count) {
+        int[] sample = new int[count];
+        int selected = 0;
+        for (int row = 0; row < size && selected < count; row++) {
+            if (random.nextInt(size - row) < count - selected) {
+                sample[selected++] = row;
+            }
+        }
+        return sample;
+    }
+
+    // 乘积量化编码矩阵，每行为子空间数量个字节
+    static final class PqCodes extends OffHeapRows {
+
+        private final byte[] buffer;
+
+        PqCodes(int subspaces) {
+            super(subspaces, DEFAULT_ROWS_PER_BLOCK);
+            this.buffer = new byte[subspaces];
+        }
+
+        // 编码并追加一行（调用方需保证写入串行）
+        int append(PqCodebook codebook, float[] vector) {
+            codebook.encode(vector, buffer);
+            MemorySegment block = reserveRow();
+            MemorySegment.copy(buffer, 0, block, ValueLayout.JAVA_BYTE, offsetInBlock(size()), buffer.length);
+            return commitRow();
+        }
+
+        int appendFrom(PqCodes source, int sourceRow) {
+            return copyRowFrom(source, sourceRow);
+        }
+    }
+}
@@ -0,0 +1,31 @@
+package com.example.rag.service;
+
+/**
+ * 作者: liangyajie
+ * 联系方式: 695274107@qq.com
+ * 量化向量接口：以紧凑编码保存每个向量的副本，行号与EmbeddingMatrix一致，用于粗筛扫描后再用原始向量精排
+ * 由SimpleVectorStore在写锁内维护，检索不加锁，只扫描快照中已加入副本的行
+ */
+
+interface QuantizedVectors {
+
+    // 新行已写入矩阵后加入量化副本，vector为归一化后的原始向量
+    void add(int row, float[] vector);
+
+    // 是否可以用于检索（例如乘积量化在码本训练完成前不可用，由调用方回退到暴力扫描）
+    boolean ready();
+
+    // 为一次查询做准备（如量化查询向量、计算查找表），返回的打分器可被多个扫描线程共享
+    RowScorer prepare(float[] query);
+
+    // 矩阵整理后按新行号重建，oldToNew中已删除的行为-1
+    QuantizedVectors compact(EmbeddingMatrix newMatrix, int[] oldToNew, int newSize);
+
+    // 停止后台任务；检索线程可能仍持有旧副本，已有编码保持可读，堆外内存在不再被引用后由GC回收
+    void close();
+
+    // 计算查询与某一行的近似相似度，只用于排序
+    interface RowScorer {
+        float score(int row);
+    }
+}
@@ -62,6 +62,9 @@ public class RagService {
         
         // 生成文件ID
         String fileId = "file-" + UUID.randomUUID().toString();
+        // 文件类型和上传时间写入元数据，供按类型、上传日期过滤检索
+        String fileType = fileTypeOf(file.getName());
+        long uploadedAt = System.currentTimeMillis();
         
         // 创建Document对象并添加到向量存储，在metadata中存储文件ID
         List<Document> documents = chunks.stream()
@@ -70,6 +73,10 @@ public class RagService {
                     metadata.put("fileId", fileId);
                     metadata.put("fileName", file.getName());
                     metadata.put("fileSize", file.length());
+                    if (fileType != null) {
+                        metadata.put("fileType", fileType);
+                    }
+                    metadata.put("uploadedAt", uploadedAt);
                     return new Document(chunk, metadata);
                 })
                 .collect(Collectors.toList());
@@ -80,24 +87,45 @@ public class RagService {
         saveFileMapping(fileId, file.getName());
     }
 
+    // 文件类型取小写扩展名，没有扩展名时为空
+    private static String fileTypeOf(String fileName) {
+        int lastDotIndex = fileName.lastIndexOf('.');
+        return lastDotIndex > 0 && lastDotIndex < fileName.length() - 1
+                ? fileName.substring(lastDotIndex + 1).toLowerCase(Locale.ROOT) : null;
+    }
+
     // 从向量存储中检索相关文档
     public List<Document> search(String query, int topK) {
-        return vectorStore.similaritySearch(query, topK);
+        return search(query, topK, SearchFilter.NONE);
+    }
+
+    // 只在满足过滤条件的文件中检索相关文档
+    public List<Document> search(String query, int topK, SearchFilter filter) {
+        return vectorStore.similaritySearch(query, topK, filter);
     }
 
     // 执行RAG查询，生成回答（非流式）
     public String ragQuery(String query) {
+        return ragQuery(query, SearchFilter.NONE);
+    }
+
+    // 执行RAG查询，只使用满足过滤条件的文件作为上下文（非流式）
+    public String ragQuery(String query, SearchFilter filter) {
         try {
             // 1. 从向量存储中检索相关文档，增加获取的文档数量以确保覆盖多文件内容
-            List<Document> relevantDocs = vectorStore.similaritySearch(query, 10);
+            SimpleVectorStore.Retrieval retrieval = vectorStore.retrieve(query, 10, filter);
+            // 语义缓存中有相近问题的回答时直接返回，不再调用大模型
+            if (retrieval.getCachedAnswer() != null) {
+                return retrieval.getCachedAnswer();
+            }
+            List<Document> relevantDocs = retrieval.getDocuments();
             
             // 2. 构建提示，在每个文档块中嵌入来源信息，并收集实际相关的文档来源
             // 使用更严格的过滤和排序，确保只使用最相关的文档
             List<Document> filteredDocs = relevantDocs.stream()
                     .filter(doc -> {
-                        // 检查文档嵌入向量是否存在且有效
-                        return doc.getEmbedding() != null && !doc.getEmbedding().isEmpty() && 
-                               doc.getContent() != null && !doc.getContent().trim().isEmpty();
+                        // 向量存储只返回已嵌入的文档，这里只需检查内容是否有效
+                        return doc.getContent() != null && !doc.getContent().trim().isEmpty();
                     })
                     .limit(5)  // 只使用最相关的前5个文档
                     .collect(Collectors.toList());
@@ -130,29 +158,41 @@ public class RagService {
             
             // 生成回答
             String answer = ollamaClient.generateChatCompletion(model, messages);
+            retrieval.cacheAnswer(answer);
             
             // 不再添加参考来源信息
             
             return answer;
         } catch (Exception e) {
-            System.err.println("Error during RAG query: " + e.getMessage());
+            logger.error("RAG查询失败", e);
             return "处理查询时出错: " + e.getMessage();
         }
     }
     
     // 执行RAG查询，生成流式回答
     public CompletableFuture<Void> ragQueryStream(String query, OllamaClient.ResponseCallback callback) {
+        return ragQueryStream(query, SearchFilter.NONE, callback);
+    }
+
+    // 执行RAG查询，只使用满足过滤条件的文件作为上下文，生成流式回答
+    public CompletableFuture<Void> ragQueryStream(String query, SearchFilter filter, OllamaClient.ResponseCallback callback) {
         try {
             // 1. 从向量存储中检索相关文档，增加获取的文档数量以确保覆盖多文件内容
-            List<Document> relevantDocs = vectorStore.similaritySearch(query, 10);
+            SimpleVectorStore.Retrieval retrieval = vectorStore.retrieve(query, 10, filter);
+            // 语义缓存中有相近问题的回答时一次性返回
+            if (retrieval.getCachedAnswer() != null) {
+                callback.onResponse(retrieval.getCachedAnswer());
+                callback.onComplete();
+                return CompletableFuture.completedFuture(null);
+            }
+            List<Document> relevantDocs = retrieval.getDocuments();
             
             // 2. 构建提示，在每个文档块中嵌入来源信息，并收集实际相关的文档来源
             // 使用更严格的过滤和排序，确保只使用最相关的文档
             List<Document> filteredDocs = relevantDocs.stream()
                     .filter(doc -> {
-                        // 检查文档嵌入向量是否存在且有效
-                        return doc.getEmbedding() != null && !doc.getEmbedding().isEmpty() && 
-                               doc.getContent() != null && !doc.getContent().trim().isEmpty();
+                        // 向量存储只返回已嵌入的文档，这里只需检查内容是否有效
+                        return doc.getContent() != null && !doc.getContent().trim().isEmpty();
                     })
                     .limit(5)  // 只使用最相关的前5个文档
                     .collect(Collectors.toList());
@@ -183,16 +223,19 @@ public class RagService {
             messages.add(Map.of("role", "system", "content", "你是一个有用的助手，必须根据提供的上下文回答问题。"));
             messages.add(Map.of("role", "user", "content", prompt));
             
-            // 创建包装后的回调函数，在回答完成后添加来源信息
+            // 创建包装后的回调函数，累积完整回答，完成后写入语义缓存
+            StringBuilder answer = new StringBuilder();
             OllamaClient.ResponseCallback wrappedCallback = new OllamaClient.ResponseCallback() {
                 @Override
                 public void onResponse(String content) {
+                    answer.append(content);
                     callback.onResponse(content);
                 }
                 
                 @Override
                 public void onComplete() {
                     // 不再添加参考来源信息
+                    retrieval.cacheAnswer(answer.toString());
                     callback.onComplete();
                 }
                 
@@ -205,7 +248,7 @@ public class RagService {
             // 使用包装后的回调
             return ollamaClient.generateChatCompletionStream(model, messages, wrappedCallback);
         } catch (Exception e) {
-            System.err.println("Error during RAG query stream: " + e.getMessage());
+            logger.error("RAG流式查询失败", e);
             callback.onError(e);
             return CompletableFuture.completedFuture(null);
         }
@@ -262,9 +305,11 @@ public class RagService {
                 fileInfo.put("size", fileDetails.get("fileSize").toString());
             }
             
-            // 添加文件类型（从文件名推断）
+            // 添加文件类型（优先使用元数据索引中的类型，否则从文件名推断）
             String fileName = fileInfo.getOrDefault("name", "");
-            if (!fileName.isEmpty()) {
+            if (fileDetails.containsKey("fileType")) {
+                fileInfo.put("type", fileDetails.get("fileType").toString().toUpperCase());
+            } else if (!fileName.isEmpty()) {
                 int lastDotIndex = fileName.lastIndexOf('.');
                 if (lastDotIndex > 0) {
                     fileInfo.put("type", fileName.substring(lastDotIndex + 1).toUpperCase());
@@ -0,0 +1,70 @@
+package com.example.rag.service;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * 作者: liangyajie
+ * 联系方式: 695274107@qq.com
+ * 量化检索的召回率监控：抽样对比精确扫描结果，按窗口平均召回率调整粗筛候选数的放大倍数
+ */
+
+final class RecallMonitor {
+
+    private static final Logger logger = LoggerFactory.getLogger(RecallMonitor.class);
+    // 每累计多少个样本评估一次
+    private static final int WINDOW = 20;
+
+    private final double target;
+    private final double sampleRate;
+    private final int maxOversampling;
+    private volatile int oversampling;
+    private volatile double lastRecall = Double.NaN;
+    // 以下字段由this同步
+    private double windowSum;
+    private int windowCount;
+
+    RecallMonitor(double target, double sampleRate, int initialOversampling, int maxOversampling) {
+        this.target = target;
+        this.sampleRate = sampleRate;
+        this.maxOversampling = Math.max(1, maxOversampling);
+        this.oversampling = Math.max(1, Math.min(initialOversampling, this.maxOversampling));
+    }
+
+    // 放大倍数，作用于检索流水线各级配置的倍数之上
+    int oversampling() {
+        return oversampling;
+    }
+
+    // 最近一个窗口的平均召回率，尚无样本时为NaN
+    double lastRecall() {
+        return lastRecall;
+    }
+
+    // 当前查询是否需要抽样校验
+    boolean shouldSample() {
+        return sampleRate > 0 && ThreadLocalRandom.current().nextDouble() < sampleRate;
+    }
+
+    // 记录一次抽样的召回率；窗口均值低于目标时倍数翻倍，明显高于目标时逐步回落
+    synchronized void record(double recall) {
+        windowSum += recall;
+        if (++windowCount < WINDOW) {
+            return;
+        }
+        double mean = windowSum / windowCount;
+        windowSum = 0;
+        windowCount = 0;
+        lastRecall = mean;
+        int current = oversampling;
+        if (mean < target && current < maxOversampling) {
+            oversampling = Math.min(maxOversampling, current * 2);
+            logger.info("量化检索召回率 {} 低于目标 {}，过采样倍数调整为 {}", mean, target, oversampling);
+        } else if (mean >= target + (1.0 - target) / 2 && current > 1) {
+            oversampling = current - 1;
+            logger.debug("量化检索召回率 {} 高于目标 {}，过采样倍数调整为 {}", mean, target, oversampling);
+        }
+    }
+}
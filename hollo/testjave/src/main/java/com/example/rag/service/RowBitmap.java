@@ -0,0 +1,238 @@
+package com.example.rag.service;
+
+import java.util.Arrays;
+import java.util.BitSet;
+
+/**
+ * 作者: liangyajie
+ * 联系方式: 695274107@qq.com
+ * 按连续区间压缩的行号位图：同一文件的文档块连续写入，同一类型、同一天上传的文件也大多相邻，
+ * 一个倒排位图通常只有少数几个区间，与非压缩位图相比内存和集合运算的开销都只与区间数有关
+ * 不可变，修改时返回新对象，可以直接放进检索快照
+ */
+
+final class RowBitmap {
+
+    static final RowBitmap EMPTY = new RowBitmap(new int[0]);
+
+    // 升序且互不相邻的左闭右开区间，依次为from0, to0, from1, to1...
+    private final int[] runs;
+
+    private RowBitmap(int[] runs) {
+        this.runs = runs;
+    }
+
+    static RowBitmap of(int row) {
+        return new RowBitmap(new int[]{row, row + 1});
+    }
+
+    // [from, to)
+    static RowBitmap range(int from, int to) {
+        return from >= to ? EMPTY : new RowBitmap(new int[]{from, to});
+    }
+
+    boolean isEmpty() {
+        return runs.length == 0;
+    }
+
+    // 第一行，为空时返回-1
+    int first() {
+        return runs.length == 0 ? -1 : runs[0];
+    }
+
+    int cardinality() {
+        int count = 0;
+        for (int i = 0; i < runs.length; i += 2) {
+            count += runs[i + 1] - runs[i];
+        }
+        return count;
+    }
+
+    // 区间个数，即压缩后的大小
+    int runCount() {
+        return runs.length / 2;
+    }
+
+    boolean contains(int row) {
+        // 在区间起点中二分查找不大于row的最后一个
+        int low = 0;
+        int high = runs.length / 2 - 1;
+        while (low <= high) {
+            int mid = (low + high) >>> 1;
+            if (runs[2 * mid] <= row) {
+                low = mid + 1;
+            } else {
+                high = mid - 1;
+            }
+        }
+        return high >= 0 && row < runs[2 * high + 1];
+    }
+
+    // 追加一行，行号需不小于已有的最后一行；紧接最后一个区间时直接延长
+    RowBitmap append(int row) {
+        int last = runs.length - 1;
+        if (last > 0 && row < runs[last]) {
+            if (row < runs[last - 1]) {
+                throw new IllegalArgumentException("行号必须递增: " + row + " < " + runs[last]);
+            }
+            return this;
+        }
+        if (last > 0 && row == runs[last]) {
+            int[] extended = runs.clone();
+            extended[last] = row + 1;
+            return new RowBitmap(extended);
+        }
+        int[] added = Arrays.copyOf(runs, runs.length + 2);
+        added[runs.length] = row;
+        added[runs.length + 1] = row + 1;
+        return new RowBitmap(added);
+    }
+
+    RowBitmap or(RowBitmap other) {
+        if (other.isEmpty()) {
+            return this;
+        }
+        if (isEmpty()) {
+            return other;
+        }
+        Runs merged = new Runs(runs.length + other.runs.length);
+        int i = 0;
+        int j = 0;
+        while (i < runs.length || j < other.runs.length) {
+            // 每次取起点较小的区间，与结果的最后一个区间重叠或相邻时合并
+            if (j >= other.runs.length || (i < runs.length && runs[i] <= other.runs[j])) {
+                merged.add(runs[i], runs[i + 1]);
+                i += 2;
+            } else {
+                merged.add(other.runs[j], other.runs[j + 1]);
+                j += 2;
+            }
+        }
+        return merged.build();
+    }
+
+    RowBitmap and(RowBitmap other) {
+        Runs intersected = new Runs(Math.min(runs.length, other.runs.length) + 2);
+        int i = 0;
+        int j = 0;
+        while (i < runs.length && j < other.runs.length) {
+            int from = Math.max(runs[i], other.runs[j]);
+            int to = Math.min(runs[i + 1], other.runs[j + 1]);
+            if (from < to) {
+                intersected.add(from, to);
+            }
+            // 先结束的区间不会再与后面的区间相交
+            if (runs[i + 1] < other.runs[j + 1]) {
+                i += 2;
+            } else {
+                j += 2;
+            }
+        }
+        return intersected.build();
+    }
+
+    RowBitmap andNot(RowBitmap other) {
+        if (isEmpty() || other.isEmpty()) {
+            return this;
+        }
+        Runs remaining = new Runs(runs.length + other.runs.length);
+        int j = 0;
+        for (int i = 0; i < runs.length; i += 2) {
+            int from = runs[i];
+            int to = runs[i + 1];
+            while (j < other.runs.length && other.runs[j + 1] <= from) {
+                j += 2;
+            }
+            int k = j;
+            while (k < other.runs.length && other.runs[k] < to) {
+                if (other.runs[k] > from) {
+                    remaining.add(from, other.runs[k]);
+                }
+                from = Math.max(from, other.runs[k + 1]);
+                k += 2;
+            }
+            if (from < to) {
+                remaining.add(from, to);
+            }
+        }
+        return remaining.build();
+    }
+
+    // 在rows中标记行号小于rowCount的行
+    void addTo(BitSet rows, int rowCount) {
+        for (int i = 0; i < runs.length && runs[i] < rowCount; i += 2) {
+            rows.set(runs[i], Math.min(runs[i + 1], rowCount));
+        }
+    }
+
+    // 全部行号，升序
+    int[] rows() {
+        int[] rows = new int[cardinality()];
+        int count = 0;
+        for (int i = 0; i < runs.length; i += 2) {
+            for (int row = runs[i]; row < runs[i + 1]; row++) {
+                rows[count++] = row;
+            }
+        }
+        return rows;
+    }
+
+    // 整理后按新行号重建；oldToNew单调，被丢弃的行为-1，超出oldToNew的行视为丢弃
+    RowBitmap remap(int[] oldToNew) {
+        Runs remapped = new Runs(runs.length);
+        for (int i = 0; i < runs.length; i += 2) {
+            for (int row = runs[i]; row < runs[i + 1] && row < oldToNew.length; row++) {
+                int target = oldToNew[row];
+                if (target >= 0) {
+                    remapped.add(target, target + 1);
+                }
+            }
+        }
+        return remapped.build();
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        return o instanceof RowBitmap other && Arrays.equals(runs, other.runs);
+    }
+
+    @Override
+    public int hashCode() {
+        return Arrays.hashCode(runs);
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder builder = new StringBuilder();
+        for (int i = 0; i < runs.length; i += 2) {
+            builder.append(i == 0 ? "" : " ").append('[').append(runs[i]).append(", ").append(runs[i + 1]).append(')');
+        }
+        return builder.toString();
+    }
+
+    // 按起点升序追加区间，重叠或相邻的区间自动合并
+    private static final class Runs {
+        private int[] values;
+        private int size;
+
+        Runs(int capacity) {
+            values = new int[Math.max(2, capacity)];
+        }
+
+        void add(int from, int to) {
+            if (size > 0 && from <= values[size - 1]) {
+                values[size - 1] = Math.max(values[size - 1], to);
+                return;
+            }
+            if (size == values.length) {
+                values = Arrays.copyOf(values, values.length * 2);
+            }
+            values[size++] = from;
+            values[size++] = to;
+        }
+
+        RowBitmap build() {
+            return size == 0 ? EMPTY : new RowBitmap(Arrays.copyOf(values, size));
+        }
+    }
+}
@@ -0,0 +1,47 @@
+package com.example.rag.service;
+
+import java.lang.foreign.MemorySegment;
+import java.lang.foreign.ValueLayout;
+
+/**
+ * 作者: liangyajie
+ * 联系方式: 695274107@qq.com
+ * 标量相似度内核，在Vector API不可用时作为回退实现
+ */
+
+final class ScalarSimilarityKernel implements SimilarityKernel {
+
+    @Override
+    public float dot(float[] a, float[] b) {
+        final int length = Math.min(a.length, b.length);
+        float sum = 0f;
+        for (int i = 0; i < length; i++) {
+            sum += a[i] * b[i];
+        }
+        return sum;
+    }
+
+    @Override
+    public float dot(float[] query, MemorySegment block, long offset) {
+        final long base = offset / Float.BYTES;
+        float sum = 0f;
+        for (int i = 0; i < query.length; i++) {
+            sum += query[i] * block.getAtIndex(ValueLayout.JAVA_FLOAT, base + i);
+        }
+        return sum;
+    }
+
+    @Override
+    public int dot(byte[] query, MemorySegment block, long offset) {
+        int sum = 0;
+        for (int i = 0; i < query.length; i++) {
+            sum += query[i] * block.get(ValueLayout.JAVA_BYTE, offset + i);
+        }
+        return sum;
+    }
+
+    @Override
+    public String name() {
+        return "scalar";
+    }
+}
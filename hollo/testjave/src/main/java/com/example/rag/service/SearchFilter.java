@@ -0,0 +1,121 @@
+package com.example.rag.service;
+
+import java.time.LocalDate;
+import java.util.Collection;
+import java.util.LinkedHashSet;
+import java.util.Objects;
+import java.util.Set;
+
+/**
+ * 作者: liangyajie
+ * 联系方式: 695274107@qq.com
+ * 检索的元数据过滤条件：文件ID属于给定集合、文件名以给定前缀开头、文件类型属于给定集合、上传日期在给定范围内
+ * 同一条件的多个取值之间为或，不同条件之间为与；检索时先用元数据位图索引求出允许的行，扫描和索引只访问这些行，而不是检索后再过滤
+ */
+
+public final class SearchFilter {
+
+    // 不限制文件
+    public static final SearchFilter NONE = new SearchFilter(null, null, null, null, null);
+
+    // 为空表示不限制文件ID
+    private final Set<String> fileIds;
+    // 为空表示不限制文件名
+    private final String fileNamePrefix;
+    // 为空表示不限制文件类型（扩展名，不区分大小写）
+    private final Set<String> fileTypes;
+    // 上传日期范围，两端包含，为空表示该端不限制
+    private final LocalDate uploadedFrom;
+    private final LocalDate uploadedTo;
+
+    private SearchFilter(Set<String> fileIds, String fileNamePrefix, Set<String> fileTypes,
+                         LocalDate uploadedFrom, LocalDate uploadedTo) {
+        this.fileIds = fileIds;
+        this.fileNamePrefix = fileNamePrefix;
+        this.fileTypes = fileTypes;
+        this.uploadedFrom = uploadedFrom;
+        this.uploadedTo = uploadedTo;
+    }
+
+    // 按请求参数创建过滤条件，空集合和空白前缀视为不限制
+    public static SearchFilter of(Collection<String> fileIds, String fileNamePrefix) {
+        return of(fileIds, fileNamePrefix, null, null, null);
+    }
+
+    public static SearchFilter of(Collection<String> fileIds, String fileNamePrefix, Collection<String> fileTypes,
+                                  LocalDate uploadedFrom, LocalDate uploadedTo) {
+        Set<String> ids = values(fileIds);
+        Set<String> types = values(fileTypes);
+        String prefix = fileNamePrefix == null || fileNamePrefix.isBlank() ? null : fileNamePrefix;
+        if (ids == null && prefix == null && types == null && uploadedFrom == null && uploadedTo == null) {
+            return NONE;
+        }
+        return new SearchFilter(ids, prefix, types, uploadedFrom, uploadedTo);
+    }
+
+    // 去掉空白取值；给出的取值都为空白时不匹配任何文件，而不是放开限制
+    private static Set<String> values(Collection<String> values) {
+        if (values == null || values.isEmpty()) {
+            return null;
+        }
+        Set<String> kept = new LinkedHashSet<>();
+        for (String value : values) {
+            if (value != null && !value.isBlank()) {
+                kept.add(value.trim());
+            }
+        }
+        return Set.copyOf(kept);
+    }
+
+    // 是否不限制任何文件
+    public boolean isEmpty() {
+        return fileIds == null && fileNamePrefix == null && fileTypes == null && uploadedFrom == null && uploadedTo == null;
+    }
+
+    // 允许的文件ID集合，不限制时为空
+    public Set<String> getFileIds() {
+        return fileIds;
+    }
+
+    public String getFileNamePrefix() {
+        return fileNamePrefix;
+    }
+
+    // 允许的文件类型集合，不限制时为空
+    public Set<String> getFileTypes() {
+        return fileTypes;
+    }
+
+    public LocalDate getUploadedFrom() {
+        return uploadedFrom;
+    }
+
+    public LocalDate getUploadedTo() {
+        return uploadedTo;
+    }
+
+    // 语义缓存按过滤条件区分条目
+    @Override
+    public boolean equals(Object o) {
+        if (this == o) {
+            return true;
+        }
+        if (!(o instanceof SearchFilter other)) {
+            return false;
+        }
+        return Objects.equals(fileIds, other.fileIds) && Objects.equals(fileNamePrefix, other.fileNamePrefix)
+                && Objects.equals(fileTypes, other.fileTypes) && Objects.equals(uploadedFrom, other.uploadedFrom)
+                && Objects.equals(uploadedTo, other.uploadedTo);
+    }
+
+    @Override
+    public int hashCode() {
+        return Objects.hash(fileIds, fileNamePrefix, fileTypes, uploadedFrom, uploadedTo);
+    }
+
+    @Override
+    public String toString() {
+        return "SearchFilter{fileIds=" + fileIds + ", fileNamePrefix=" + fileNamePrefix + ", fileTypes=" + fileTypes
+                + ", uploadedFrom=" + uploadedFrom + ", uploadedTo=" + uploadedTo + "}";
+    }
+}
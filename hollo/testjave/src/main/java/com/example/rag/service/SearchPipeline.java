@@ -0,0 +1,109 @@
+package com.example.rag.service;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Locale;
+
+/**
+ * 作者: liangyajie
+ * 联系方式: 695274107@qq.com
+ * 暴力扫描的检索流水线：若干级量化粗筛（binary/int8/pq）加最终的原始向量精排（exact）
+ * 配置格式如 "binary:32,int8:4,exact"，冒号后的数字为该级保留的候选数相对最终候选数的倍数，须逐级不增
+ */
+
+final class SearchPipeline {
+
+    // 流水线的一级
+    enum StageType {
+        // 符号位二值签名，汉明距离打分
+        BINARY(32),
+        // int8标量量化
+        INT8(4),
+        // 乘积量化
+        PQ(8),
+        // 原始向量精确打分
+        EXACT(1);
+
+        private final int defaultFactor;
+
+        StageType(int defaultFactor) {
+            this.defaultFactor = defaultFactor;
+        }
+    }
+
+    record Stage(StageType type, int factor) {
+    }
+
+    private final List<Stage> prefilters;
+
+    private SearchPipeline(List<Stage> prefilters) {
+        this.prefilters = Collections.unmodifiableList(prefilters);
+    }
+
+    // 解析流水线配置；末尾的exact可以省略，只有exact表示不使用粗筛
+    static SearchPipeline parse(String spec) {
+        List<Stage> prefilters = new ArrayList<>();
+        String[] parts = spec == null || spec.isBlank() ? new String[0] : spec.split(",");
+        for (int i = 0; i < parts.length; i++) {
+            String part = parts[i].trim();
+            String[] nameAndFactor = part.split(":", 2);
+            StageType type;
+            try {
+                type = StageType.valueOf(nameAndFactor[0].trim().toUpperCase(Locale.ROOT));
+            } catch (IllegalArgumentException e) {
+                throw new IllegalArgumentException("未知的检索流水线阶段: " + part);
+            }
+            if (type == StageType.EXACT) {
+                if (i != parts.length - 1 || nameAndFactor.length > 1) {
+                    throw new IllegalArgumentException("exact只能作为检索流水线的最后一级且不带倍数: " + spec);
+                }
+                continue;
+            }
+            int factor = type.defaultFactor;
+            if (nameAndFactor.length > 1) {
+                try {
+                    factor = Integer.parseInt(nameAndFactor[1].trim());
+                } catch (NumberFormatException e) {
+                    throw new IllegalArgumentException("检索流水线阶段的倍数无效: " + part);
+                }
+            }
+            if (factor < 1) {
+                throw new IllegalArgumentException("检索流水线阶段的倍数必须不小于1: " + part);
+            }
+            for (Stage previous : prefilters) {
+                if (previous.type() == type) {
+                    throw new IllegalArgumentException("检索流水线阶段重复: " + type);
+                }
+                if (previous.factor() < factor) {
+                    throw new IllegalArgumentException("检索流水线各级倍数须逐级不增: " + spec);
+                }
+            }
+            prefilters.add(new Stage(type, factor));
+        }
+        return new SearchPipeline(prefilters);
+    }
+
+    // 粗筛阶段（不含最终精排），按执行顺序排列
+    List<Stage> prefilters() {
+        return prefilters;
+    }
+
+    boolean uses(StageType type) {
+        for (Stage stage : prefilters) {
+            if (stage.type() == type) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder builder = new StringBuilder();
+        for (Stage stage : prefilters) {
+            builder.append(stage.type().name().toLowerCase(Locale.ROOT)).append(':').append(stage.factor()).append(',');
+        }
+        return builder.append("exact").toString();
+    }
+}
@@ -0,0 +1,410 @@
+package com.example.rag.service;
+
+import com.example.rag.model.Document;
+
+import java.io.IOException;
+import java.lang.foreign.Arena;
+import java.lang.foreign.MemorySegment;
+import java.lang.foreign.ValueLayout;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * 作者: liangyajie
+ * 联系方式: 695274107@qq.com
+ * 只读段文件：一批行的归一化向量、文件ID和文档块（正文+元数据）写在同一个文件中，打开时整体内存映射
+ * 向量区按本机字节序64字节对齐存放，可直接作为EmbeddingMatrix的内存块参与扫描；文档只在读取时按行解码
+ *
+ * 文件布局：
+ *   [头部 64字节] magic, version, dimension, rowCount, 字节序, 各区偏移
+ *   [向量区]     rowCount * dimension 个float
+ *   [文件ID区]   每行一个int，指向文件ID表的下标，-1表示没有fileId
+ *   [文件ID表]   int数量 + 若干字符串
+ *   [文档区]     每行一条记录：int元数据项数 + (字符串键, 类型标记, 值)* + 字符串正文
+ *   [文档偏移表] rowCount + 1 个long，第i行记录位于[offset[i], offset[i+1])
+ */
+
+final class SegmentFile {
+
+    static final String SUFFIX = ".seg";
+
+    private static final int MAGIC = 0x53454731;
+    private static final int VERSION = 1;
+    private static final int HEADER_BYTES = 64;
+    private static final long VECTOR_ALIGNMENT = 64;
+    private static final int NO_FILE = -1;
+
+    // 元数据值的类型标记，保留原始类型（如fileSize为Long）
+    private static final byte TAG_NULL = 'N';
+    private static final byte TAG_STRING = 'S';
+    private static final byte TAG_LONG = 'L';
+    private static final byte TAG_INT = 'I';
+    private static final byte TAG_DOUBLE = 'D';
+    private static final byte TAG_BOOLEAN = 'Z';
+
+    private static final ValueLayout.OfInt INT = ValueLayout.JAVA_INT_UNALIGNED;
+    private static final ValueLayout.OfLong LONG = ValueLayout.JAVA_LONG_UNALIGNED;
+    private static final ValueLayout.OfDouble DOUBLE = ValueLayout.JAVA_DOUBLE_UNALIGNED;
+
+    private final Path path;
+    private final MemorySegment mapped;
+    private final int dimension;
+    private final int rowCount;
+    private final long vectorsOffset;
+    private final long fileIdsOffset;
+    private final long docsOffset;
+    private final long docOffsetsOffset;
+    private final String[] fileTable;
+
+    private SegmentFile(Path path, MemorySegment mapped) throws IOException {
+        this.path = path;
+        this.mapped = mapped;
+        if (mapped.byteSize() < HEADER_BYTES || mapped.get(INT, 0) != MAGIC) {
+            throw new IOException("不是有效的段文件: " + path);
+        }
+        if (mapped.get(INT, 4) != VERSION) {
+            throw new IOException("不支持的段文件版本 " + mapped.get(INT, 4) + ": " + path);
+        }
+        if (mapped.get(INT, 16) != orderMarker()) {
+            throw new IOException("段文件字节序与本机不一致: " + path);
+        }
+        this.dimension = mapped.get(INT, 8);
+        this.rowCount = mapped.get(INT, 12);
+        this.vectorsOffset = mapped.get(LONG, 24);
+        this.fileIdsOffset = mapped.get(LONG, 32);
+        long fileTableOffset = mapped.get(LONG, 40);
+        this.docsOffset = mapped.get(LONG, 48);
+        this.docOffsetsOffset = mapped.get(LONG, 56);
+        long end = docOffsetsOffset + (rowCount + 1L) * Long.BYTES;
+        if (dimension <= 0 || rowCount < 0 || vectorsOffset % VECTOR_ALIGNMENT != 0
+                || vectorsOffset + (long) rowCount * dimension * Float.BYTES > fileIdsOffset
+                || end != mapped.byteSize() || mapped.get(LONG, docOffsetsOffset + (long) rowCount * Long.BYTES) != docOffsetsOffset) {
+            throw new IOException("段文件已损坏: " + path);
+        }
+        // 文件ID表很小，打开时解码；其余部分按需读取
+        long position = fileTableOffset;
+        int files = mapped.get(INT, position);
+        position += Integer.BYTES;
+        this.fileTable = new String[files];
+        for (int i = 0; i < files; i++) {
+            int length = mapped.get(INT, position);
+            fileTable[i] = readString(mapped, position);
+            position += Integer.BYTES + length;
+        }
+    }
+
+    // 以只读方式映射段文件，映射由GC回收
+    static SegmentFile open(Path path) throws IOException {
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+            return new SegmentFile(path, channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size(), Arena.ofAuto()));
+        }
+    }
+
+    // 把rows中的行写成段文件：先写临时文件并刷盘，再原子改名并刷新目录，最后以只读方式映射
+    static SegmentFile write(Path path, EmbeddingMatrix vectors, DocumentTable documents, int[] rows) throws IOException {
+        Path tmp = path.resolveSibling(path.getFileName() + ".tmp");
+        int dimension = vectors.dimension();
+        Map<String, Integer> fileIndex = new LinkedHashMap<>();
+        int[] fileIds = new int[rows.length];
+        for (int i = 0; i < rows.length; i++) {
+            String fileId = documents.fileIdOf(rows[i]);
+            fileIds[i] = fileId == null ? NO_FILE : fileIndex.computeIfAbsent(fileId, k -> fileIndex.size());
+        }
+        long[] docOffsets = new long[rows.length + 1];
+        long vectorsOffset = HEADER_BYTES;
+        long fileIdsOffset = vectorsOffset + (long) rows.length * dimension * Float.BYTES;
+        long fileTableOffset = fileIdsOffset + (long) rows.length * Integer.BYTES;
+        long docsOffset;
+        try (FileChannel channel = FileChannel.open(tmp, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                StandardOpenOption.TRUNCATE_EXISTING)) {
+            ChannelWriter out = new ChannelWriter(channel, vectorsOffset);
+            float[] vector = new float[dimension];
+            for (int row : rows) {
+                vectors.readRow(row, vector);
+                for (float value : vector) {
+                    out.putFloat(value);
+                }
+            }
+            for (int fileId : fileIds) {
+                out.putInt(fileId);
+            }
+            out.putInt(fileIndex.size());
+            for (String fileId : fileIndex.keySet()) {
+                out.putString(fileId);
+            }
+            docsOffset = out.position();
+            for (int i = 0; i < rows.length; i++) {
+                docOffsets[i] = out.position();
+                out.put(documents.record(rows[i]));
+            }
+            docOffsets[rows.length] = out.position();
+            long docOffsetsOffset = out.position();
+            for (long offset : docOffsets) {
+                out.putLong(offset);
+            }
+            out.flush();
+
+            ByteBuffer header = ByteBuffer.allocate(HEADER_BYTES).order(ByteOrder.nativeOrder());
+            header.putInt(MAGIC).putInt(VERSION).putInt(dimension).putInt(rows.length)
+                    .putInt(orderMarker()).putInt(0)
+                    .putLong(vectorsOffset).putLong(fileIdsOffset).putLong(fileTableOffset)
+                    .putLong(docsOffset).putLong(docOffsetsOffset)
+                    .flip();
+            while (header.hasRemaining()) {
+                channel.write(header, header.position());
+            }
+            channel.force(true);
+        }
+        Files.move(tmp, path, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+        FileSync.syncDirectory(path.toAbsolutePath().getParent());
+        return open(path);
+    }
+
+    // 编码单个文档块，格式与文档区的记录一致
+    static ByteBuffer encode(Document document) {
+        Map<String, Object> metadata = document.getMetadata() == null ? Map.of() : document.getMetadata();
+        byte[] content = bytes(document.getContent());
+        int size = Integer.BYTES + Integer.BYTES + content.length;
+        Map<byte[], Object> entries = new LinkedHashMap<>();
+        for (Map.Entry<String, Object> entry : metadata.entrySet()) {
+            byte[] key = bytes(entry.getKey());
+            Object value = normalizedValue(entry.getValue());
+            entries.put(key, value);
+            size += Integer.BYTES + key.length + 1 + valueBytes(value);
+        }
+        ByteBuffer buffer = ByteBuffer.allocate(size).order(ByteOrder.nativeOrder());
+        buffer.putInt(entries.size());
+        for (Map.Entry<byte[], Object> entry : entries.entrySet()) {
+            buffer.putInt(entry.getKey().length).put(entry.getKey());
+            Object value = entry.getValue();
+            if (value == null) {
+                buffer.put(TAG_NULL);
+            } else if (value instanceof Long l) {
+                buffer.put(TAG_LONG).putLong(l);
+            } else if (value instanceof Integer i) {
+                buffer.put(TAG_INT).putInt(i);
+            } else if (value instanceof Double d) {
+                buffer.put(TAG_DOUBLE).putDouble(d);
+            } else if (value instanceof Boolean b) {
+                buffer.put(TAG_BOOLEAN).put((byte) (b ? 1 : 0));
+            } else {
+                byte[] text = bytes((String) value);
+                buffer.put(TAG_STRING).putInt(text.length).put(text);
+            }
+        }
+        buffer.putInt(content.length).put(content);
+        return buffer.flip();
+    }
+
+    Path path() {
+        return path;
+    }
+
+    int dimension() {
+        return dimension;
+    }
+
+    int rowCount() {
+        return rowCount;
+    }
+
+    // 向量区，可直接挂到EmbeddingMatrix上
+    MemorySegment vectors() {
+        return mapped.asSlice(vectorsOffset, (long) rowCount * dimension * Float.BYTES);
+    }
+
+    // 行所属的文件ID，不解码文档
+    String fileIdOf(int row) {
+        int index = mapped.get(INT, fileIdsOffset + (long) row * Integer.BYTES);
+        return index == NO_FILE ? null : fileTable[index];
+    }
+
+    // 行的原始记录，整理时原样复制到新段
+    ByteBuffer record(int row) {
+        long start = recordOffset(row);
+        return mapped.asSlice(start, recordOffset(row + 1) - start).asByteBuffer();
+    }
+
+    // 解码完整的文档块
+    Document document(int row) {
+        return decode(mapped, recordOffset(row));
+    }
+
+    // 只解码元数据，跳过正文
+    Map<String, Object> metadata(int row) {
+        Map<String, Object> metadata = new HashMap<>();
+        readMetadata(mapped, recordOffset(row), metadata);
+        return metadata;
+    }
+
+    // 解码position处由encode编码的文档块
+    static Document decode(MemorySegment source, long position) {
+        Map<String, Object> metadata = new HashMap<>();
+        position = readMetadata(source, position, metadata);
+        return new Document(readString(source, position), metadata);
+    }
+
+    // 编码记录的字节数
+    static long recordBytes(MemorySegment source, long position) {
+        long start = position;
+        int entries = source.get(INT, position);
+        position += Integer.BYTES;
+        for (int i = 0; i < entries; i++) {
+            position += Integer.BYTES + source.get(INT, position);
+            byte tag = source.get(ValueLayout.JAVA_BYTE, position++);
+            position += switch (tag) {
+                case TAG_NULL -> 0;
+                case TAG_LONG, TAG_DOUBLE -> Long.BYTES;
+                case TAG_INT -> Integer.BYTES;
+                case TAG_BOOLEAN -> 1;
+                case TAG_STRING -> Integer.BYTES + source.get(INT, position);
+                default -> throw new IllegalStateException("未知的元数据类型: " + (char) tag);
+            };
+        }
+        position += Integer.BYTES + source.get(INT, position);
+        return position - start;
+    }
+
+    private long recordOffset(int row) {
+        return mapped.get(LONG, docOffsetsOffset + (long) row * Long.BYTES);
+    }
+
+    private static long readMetadata(MemorySegment mapped, long position, Map<String, Object> metadata) {
+        int entries = mapped.get(INT, position);
+        position += Integer.BYTES;
+        for (int i = 0; i < entries; i++) {
+            String key = readString(mapped, position);
+            position += Integer.BYTES + mapped.get(INT, position);
+            byte tag = mapped.get(ValueLayout.JAVA_BYTE, position++);
+            switch (tag) {
+                case TAG_NULL -> metadata.put(key, null);
+                case TAG_LONG -> {
+                    metadata.put(key, mapped.get(LONG, position));
+                    position += Long.BYTES;
+                }
+                case TAG_INT -> {
+                    metadata.put(key, mapped.get(INT, position));
+                    position += Integer.BYTES;
+                }
+                case TAG_DOUBLE -> {
+                    metadata.put(key, mapped.get(DOUBLE, position));
+                    position += Double.BYTES;
+                }
+                case TAG_BOOLEAN -> metadata.put(key, mapped.get(ValueLayout.JAVA_BYTE, position++) != 0);
+                case TAG_STRING -> {
+                    metadata.put(key, readString(mapped, position));
+                    position += Integer.BYTES + mapped.get(INT, position);
+                }
+                default -> throw new IllegalStateException("未知的元数据类型: " + (char) tag);
+            }
+        }
+        return position;
+    }
+
+    private static String readString(MemorySegment segment, long position) {
+        int length = segment.get(INT, position);
+        return new String(segment.asSlice(position + Integer.BYTES, length).toArray(ValueLayout.JAVA_BYTE),
+                StandardCharsets.UTF_8);
+    }
+
+    // 其他类型的元数据值按字符串保存
+    private static Object normalizedValue(Object value) {
+        if (value == null || value instanceof String || value instanceof Long || value instanceof Integer
+                || value instanceof Double || value instanceof Boolean) {
+            return value;
+        }
+        return value.toString();
+    }
+
+    private static int valueBytes(Object value) {
+        if (value == null) {
+            return 0;
+        } else if (value instanceof Long || value instanceof Double) {
+            return Long.BYTES;
+        } else if (value instanceof Integer) {
+            return Integer.BYTES;
+        } else if (value instanceof Boolean) {
+            return 1;
+        }
+        return Integer.BYTES + bytes((String) value).length;
+    }
+
+    private static byte[] bytes(String value) {
+        return value == null ? new byte[0] : value.getBytes(StandardCharsets.UTF_8);
+    }
+
+    private static int orderMarker() {
+        return ByteOrder.nativeOrder() == ByteOrder.LITTLE_ENDIAN ? 1 : 2;
+    }
+
+    // 带缓冲的顺序写入，位置从头部之后开始
+    private static final class ChannelWriter {
+        private final FileChannel channel;
+        private final ByteBuffer buffer = ByteBuffer.allocateDirect(1 << 20).order(ByteOrder.nativeOrder());
+        private long position;
+
+        ChannelWriter(FileChannel channel, long start) {
+            this.channel = channel;
+            this.position = start;
+        }
+
+        long position() {
+            return position + buffer.position();
+        }
+
+        void putInt(int value) throws IOException {
+            ensure(Integer.BYTES);
+            buffer.putInt(value);
+        }
+
+        void putLong(long value) throws IOException {
+            ensure(Long.BYTES);
+            buffer.putLong(value);
+        }
+
+        void putFloat(float value) throws IOException {
+            ensure(Float.BYTES);
+            buffer.putFloat(value);
+        }
+
+        void putString(String value) throws IOException {
+            byte[] bytes = bytes(value);
+            putInt(bytes.length);
+            put(ByteBuffer.wrap(bytes));
+        }
+
+        void put(ByteBuffer source) throws IOException {
+            if (source.remaining() > buffer.remaining()) {
+                flush();
+                while (source.hasRemaining()) {
+                    position += channel.write(source, position);
+                }
+                return;
+            }
+            buffer.put(source);
+        }
+
+        void flush() throws IOException {
+            buffer.flip();
+            while (buffer.hasRemaining()) {
+                position += channel.write(buffer, position);
+            }
+            buffer.clear();
+        }
+
+        private void ensure(int bytes) throws IOException {
+            if (buffer.remaining() < bytes) {
+                flush();
+            }
+        }
+    }
+}
@@ -0,0 +1,112 @@
+package com.example.rag.service;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.List;
+
+/**
+ * 作者: liangyajie
+ * 联系方式: 695274107@qq.com
+ * 段清单：按行号顺序记录当前有效的段文件及各段的删除标记，整体重写并原子替换
+ * 不在清单中的段文件视为未完成或已废弃，启动时删除；walGeneration之前的预写日志已全部包含在这些段中
+ */
+
+final class SegmentManifest {
+
+    private static final int MAGIC = 0x4D414E31;
+    private static final int VERSION = 2;
+
+    // 清单中的一个段：删除标记按段内行号记录
+    record Entry(long id, int rowCount, BitSet deleted) {
+    }
+
+    private final long nextId;
+    private final long walGeneration;
+    private final List<Entry> entries;
+
+    SegmentManifest(long nextId, long walGeneration, List<Entry> entries) {
+        this.nextId = nextId;
+        this.walGeneration = walGeneration;
+        this.entries = List.copyOf(entries);
+    }
+
+    long nextId() {
+        return nextId;
+    }
+
+    // 重放预写日志的起始代号
+    long walGeneration() {
+        return walGeneration;
+    }
+
+    List<Entry> entries() {
+        return entries;
+    }
+
+    // 段文件名由段ID生成
+    static String fileName(long id) {
+        return String.format("segment-%08d%s", id, SegmentFile.SUFFIX);
+    }
+
+    // 先写临时文件并刷盘，再原子替换旧清单并刷新目录，返回后调用方才能删除新清单不再引用的日志和段
+    void save(Path file) throws IOException {
+        Path tmp = file.resolveSibling(file.getFileName() + ".tmp");
+        try (FileOutputStream stream = new FileOutputStream(tmp.toFile());
+             DataOutputStream out = new DataOutputStream(new BufferedOutputStream(stream))) {
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            out.writeLong(nextId);
+            out.writeLong(walGeneration);
+            out.writeInt(entries.size());
+            for (Entry entry : entries) {
+                out.writeLong(entry.id());
+                out.writeInt(entry.rowCount());
+                long[] words = entry.deleted().toLongArray();
+                out.writeInt(words.length);
+                for (long word : words) {
+                    out.writeLong(word);
+                }
+            }
+            out.flush();
+            stream.getFD().sync();
+        }
+        Files.move(tmp, file, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+        FileSync.syncDirectory(file.toAbsolutePath().getParent());
+    }
+
+    static SegmentManifest load(Path file) throws IOException {
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(file)))) {
+            if (in.readInt() != MAGIC) {
+                throw new IOException("不是有效的段清单: " + file);
+            }
+            int version = in.readInt();
+            if (version < 1 || version > VERSION) {
+                throw new IOException("不支持的段清单版本 " + version + ": " + file);
+            }
+            long nextId = in.readLong();
+            // 版本1没有预写日志
+            long walGeneration = version >= 2 ? in.readLong() : 0;
+            int count = in.readInt();
+            List<Entry> entries = new ArrayList<>(count);
+            for (int i = 0; i < count; i++) {
+                long id = in.readLong();
+                int rowCount = in.readInt();
+                long[] words = new long[in.readInt()];
+                for (int w = 0; w < words.length; w++) {
+                    words[w] = in.readLong();
+                }
+                entries.add(new Entry(id, rowCount, BitSet.valueOf(words)));
+            }
+            return new SegmentManifest(nextId, walGeneration, entries);
+        }
+    }
+}
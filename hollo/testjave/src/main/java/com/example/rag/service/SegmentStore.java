@@ -0,0 +1,208 @@
+package com.example.rag.service;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * 作者: liangyajie
+ * 联系方式: 695274107@qq.com
+ * 段目录管理：写入新段、持久化删除标记、后台整理时用合并后的新段替换一组相邻的旧段
+ * 每次更新清单都记录walGeneration，启动时从该代开始重放预写日志
+ * 目录在第一次写入时才创建；除writeSegment外的方法由调用方在写锁内串行调用
+ */
+
+final class SegmentStore {
+
+    private static final Logger logger = LoggerFactory.getLogger(SegmentStore.class);
+    private static final String MANIFEST_FILE = "MANIFEST";
+
+    private final Path directory;
+    private long nextId = 1;
+    private long walGeneration;
+    // 当前有效的段，顺序即行号顺序
+    private final List<SegmentManifest.Entry> entries = new ArrayList<>();
+
+    SegmentStore(Path directory) {
+        this.directory = directory;
+    }
+
+    // 打开清单中的段并恢复删除标记（行号按段顺序拼接），同时删除不在清单中的残留文件
+    // 任一段无法打开或行数与清单不一致时抛出异常：跳过该段的话，之后的检查点会写出不含它的清单，下次启动时段文件被当作残留删除
+    List<SegmentFile> open(BitSet deletedRows) throws IOException {
+        Path manifestFile = directory.resolve(MANIFEST_FILE);
+        if (!Files.exists(manifestFile)) {
+            return List.of();
+        }
+        SegmentManifest manifest = SegmentManifest.load(manifestFile);
+        nextId = manifest.nextId();
+        walGeneration = manifest.walGeneration();
+        List<SegmentFile> segments = new ArrayList<>();
+        int firstRow = 0;
+        for (SegmentManifest.Entry entry : manifest.entries()) {
+            Path file = directory.resolve(SegmentManifest.fileName(entry.id()));
+            SegmentFile segment;
+            try {
+                segment = SegmentFile.open(file);
+            } catch (IOException e) {
+                throw new IOException("段文件无法打开: " + file + ": " + e.getMessage(), e);
+            }
+            if (segment.rowCount() != entry.rowCount()) {
+                throw new IOException("段文件 " + file + " 行数 " + segment.rowCount() + " 与清单记录 " + entry.rowCount() + " 不一致");
+            }
+            segments.add(segment);
+            entries.add(entry);
+            for (int row = entry.deleted().nextSetBit(0); row >= 0 && row < entry.rowCount();
+                 row = entry.deleted().nextSetBit(row + 1)) {
+                deletedRows.set(firstRow + row);
+            }
+            firstRow += entry.rowCount();
+        }
+        removeOrphans(manifest);
+        return segments;
+    }
+
+    // 重放预写日志的起始代号
+    long walGeneration() {
+        return walGeneration;
+    }
+
+    // 清单中各段的总行数
+    int rowCount() {
+        int rows = 0;
+        for (SegmentManifest.Entry entry : entries) {
+            rows += entry.rowCount();
+        }
+        return rows;
+    }
+
+    // 把[fromRow, toRow)行写成新段加入清单，同时保存删除标记；清单写入失败时撤销该段
+    SegmentFile append(EmbeddingMatrix vectors, DocumentTable documents, int fromRow, int toRow,
+                       BitSet deletedRows, long walGeneration) throws IOException {
+        Files.createDirectories(directory);
+        long id = nextId;
+        SegmentFile segment = SegmentFile.write(directory.resolve(SegmentManifest.fileName(id)), vectors, documents,
+                rangeOf(fromRow, toRow));
+        nextId = id + 1;
+        SegmentManifest.Entry entry = new SegmentManifest.Entry(id, segment.rowCount(), new BitSet());
+        entries.add(entry);
+        try {
+            saveManifest(deletedRows, walGeneration);
+        } catch (IOException e) {
+            entries.remove(entry);
+            deleteSegmentFiles(List.of(entry));
+            throw e;
+        }
+        return segment;
+    }
+
+    // 只更新删除标记和预写日志代号
+    void checkpoint(BitSet deletedRows, long walGeneration) throws IOException {
+        Files.createDirectories(directory);
+        saveManifest(deletedRows, walGeneration);
+    }
+
+    // 为后台整理预留段ID，段文件写完后由replace登记，放弃时由discard删除
+    long reserveId() {
+        return nextId++;
+    }
+
+    // 把rows写成段文件但不登记到清单，不访问可变状态，可以在锁外调用
+    SegmentFile writeSegment(long id, EmbeddingMatrix vectors, DocumentTable documents, int[] rows) throws IOException {
+        Files.createDirectories(directory);
+        return SegmentFile.write(directory.resolve(SegmentManifest.fileName(id)), vectors, documents, rows);
+    }
+
+    // 用合并后的段替换清单中从firstSegment开始的count个段，旧段文件在清单更新后删除；清单写入失败时恢复原清单
+    void replace(int firstSegment, int count, SegmentFile merged, long id, BitSet deletedRows) throws IOException {
+        List<SegmentManifest.Entry> range = entries.subList(firstSegment, firstSegment + count);
+        List<SegmentManifest.Entry> replaced = new ArrayList<>(range);
+        range.clear();
+        entries.add(firstSegment, new SegmentManifest.Entry(id, merged.rowCount(), new BitSet()));
+        try {
+            saveManifest(deletedRows, walGeneration);
+        } catch (IOException e) {
+            entries.remove(firstSegment);
+            entries.addAll(firstSegment, replaced);
+            throw e;
+        }
+        deleteSegmentFiles(replaced);
+    }
+
+    // 删除未登记的整理结果
+    void discard(long id) {
+        deleteSegmentFiles(List.of(new SegmentManifest.Entry(id, 0, new BitSet())));
+    }
+
+    // 清空全部段
+    void clear(long walGeneration) throws IOException {
+        List<SegmentManifest.Entry> replaced = new ArrayList<>(entries);
+        entries.clear();
+        Files.createDirectories(directory);
+        try {
+            saveManifest(new BitSet(), walGeneration);
+        } catch (IOException e) {
+            entries.addAll(replaced);
+            throw e;
+        }
+        deleteSegmentFiles(replaced);
+    }
+
+    private void saveManifest(BitSet deletedRows, long walGeneration) throws IOException {
+        List<SegmentManifest.Entry> withTombstones = new ArrayList<>(entries.size());
+        int firstRow = 0;
+        for (SegmentManifest.Entry entry : entries) {
+            withTombstones.add(new SegmentManifest.Entry(entry.id(), entry.rowCount(),
+                    deletedRows.get(firstRow, firstRow + entry.rowCount())));
+            firstRow += entry.rowCount();
+        }
+        new SegmentManifest(nextId, walGeneration, withTombstones).save(directory.resolve(MANIFEST_FILE));
+        this.walGeneration = walGeneration;
+    }
+
+    // 已映射的旧段在Linux上删除后仍可读取，映射随GC释放
+    private void deleteSegmentFiles(List<SegmentManifest.Entry> replaced) {
+        for (SegmentManifest.Entry entry : replaced) {
+            try {
+                Files.deleteIfExists(directory.resolve(SegmentManifest.fileName(entry.id())));
+            } catch (IOException e) {
+                logger.warn("删除旧段文件失败: {}", e.getMessage());
+            }
+        }
+    }
+
+    // 只在清单中的段全部打开后调用
+    private void removeOrphans(SegmentManifest manifest) throws IOException {
+        Set<String> live = new HashSet<>();
+        for (SegmentManifest.Entry entry : manifest.entries()) {
+            live.add(SegmentManifest.fileName(entry.id()));
+        }
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(directory)) {
+            for (Path file : files) {
+                String name = file.getFileName().toString();
+                boolean segmentFile = name.endsWith(SegmentFile.SUFFIX) || name.endsWith(".tmp");
+                if (segmentFile && !live.contains(name)) {
+                    logger.info("删除未登记的段文件: {}", file);
+                    Files.deleteIfExists(file);
+                }
+            }
+        }
+    }
+
+    private static int[] rangeOf(int fromRow, int toRow) {
+        int[] rows = new int[toRow - fromRow];
+        for (int i = 0; i < rows.length; i++) {
+            rows[i] = fromRow + i;
+        }
+        return rows;
+    }
+}
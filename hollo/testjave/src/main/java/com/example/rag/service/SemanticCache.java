@@ -0,0 +1,240 @@
+package com.example.rag.service;
+
+import com.example.rag.model.Document;
+import io.micrometer.core.instrument.FunctionCounter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Objects;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.LongSupplier;
+import java.util.function.UnaryOperator;
+
+/**
+ * 作者: liangyajie
+ * 联系方式: 695274107@qq.com
+ * 语义查询缓存：以查询向量为键，新查询与某个已缓存查询的余弦距离不超过阈值时直接复用其检索结果（以及可选的回答）
+ * 改写措辞的重复问题也能命中，不必再扫描向量和调用大模型
+ * 条目数组写时复制，查找不加锁；新增文档时就地并入各条目的结果，删除文件时只移除引用了该文件的条目
+ * 数据变化之前开始的检索基于旧数据，结果不会再写入
+ */
+
+final class SemanticCache {
+
+    private final SimilarityKernel kernel;
+    private final int maxEntries;
+    // 命中所需的最小余弦相似度，即1 - 最大余弦距离
+    private final float minSimilarity;
+    private final long ttlNanos;
+    private final LongSupplier clock;
+    private volatile Entry[] entries = new Entry[0];
+    // 每次数据变化加一，检索开始时记下，写入时不一致则丢弃
+    private final AtomicLong generation = new AtomicLong();
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+    private final LongAdder answerHits = new LongAdder();
+
+    SemanticCache(SimilarityKernel kernel, int maxEntries, double maxDistance, long ttlNanos, LongSupplier clock) {
+        this.kernel = kernel;
+        this.maxEntries = maxEntries;
+        this.minSimilarity = (float) (1.0 - maxDistance);
+        this.ttlNanos = ttlNanos;
+        this.clock = clock;
+    }
+
+    // 一条缓存：查询向量（已归一化）、过滤条件、topK、按分数降序的候选池和从中选出的结果；回答在生成后补上
+    // 候选池用于新增文档时就地合并，不必重新检索
+    static final class Entry {
+        private final float[] vector;
+        private final SearchFilter filter;
+        private final int topK;
+        private final List<SimpleVectorStore.DocumentWithScore> candidates;
+        private final List<Document> documents;
+        private final long createdAt;
+        private volatile long lastUsed;
+        private volatile String answer;
+        // 已被替换、淘汰或作废，不再接受回答
+        private volatile boolean retired;
+
+        private Entry(float[] vector, SearchFilter filter, int topK, List<SimpleVectorStore.DocumentWithScore> candidates,
+                      List<Document> documents, long createdAt) {
+            this.vector = vector;
+            this.filter = filter;
+            this.topK = topK;
+            this.candidates = List.copyOf(candidates);
+            this.documents = List.copyOf(documents);
+            this.createdAt = createdAt;
+            this.lastUsed = createdAt;
+        }
+
+        // 结果更新后的新条目，保留创建和访问时间；旧回答基于旧结果，不再沿用
+        Entry withResults(List<SimpleVectorStore.DocumentWithScore> candidates, List<Document> documents) {
+            Entry updated = new Entry(vector, filter, topK, candidates, documents, createdAt);
+            updated.lastUsed = lastUsed;
+            return updated;
+        }
+
+        float[] vector() {
+            return vector;
+        }
+
+        SearchFilter filter() {
+            return filter;
+        }
+
+        int topK() {
+            return topK;
+        }
+
+        List<SimpleVectorStore.DocumentWithScore> candidates() {
+            return candidates;
+        }
+
+        List<Document> documents() {
+            return documents;
+        }
+
+        String answer() {
+            return answer;
+        }
+    }
+
+    boolean enabled() {
+        return maxEntries > 0;
+    }
+
+    // 检索开始前取得当前代号，写入时传回
+    long generation() {
+        return generation.get();
+    }
+
+    // 查找与查询最相近且满足阈值的条目：过滤条件相同、缓存的topK不小于请求的topK、未过期
+    Entry lookup(float[] vector, SearchFilter filter, int topK) {
+        if (!enabled()) {
+            return null;
+        }
+        long now = clock.getAsLong();
+        Entry best = null;
+        float bestScore = minSimilarity;
+        for (Entry entry : entries) {
+            if (entry.topK < topK || !Objects.equals(entry.filter, filter) || now - entry.createdAt > ttlNanos) {
+                continue;
+            }
+            float score = kernel.dot(vector, entry.vector);
+            if (score >= bestScore) {
+                best = entry;
+                bestScore = score;
+            }
+        }
+        if (best == null) {
+            misses.increment();
+            return null;
+        }
+        best.lastUsed = now;
+        hits.increment();
+        if (best.answer != null) {
+            answerHits.increment();
+        }
+        return best;
+    }
+
+    // 写入检索结果；期间数据发生变化时丢弃，返回写入的条目或null
+    synchronized Entry put(float[] vector, SearchFilter filter, int topK,
+                           List<SimpleVectorStore.DocumentWithScore> candidates, List<Document> documents,
+                           long startedGeneration) {
+        if (!enabled() || startedGeneration != generation.get()) {
+            return null;
+        }
+        long now = clock.getAsLong();
+        List<Entry> kept = new ArrayList<>(entries.length + 1);
+        for (Entry entry : entries) {
+            // 顺带清理过期条目，以及被新结果覆盖的同一查询
+            if (now - entry.createdAt <= ttlNanos
+                    && !(entry.topK == topK && Objects.equals(entry.filter, filter) && Arrays.equals(entry.vector, vector))) {
+                kept.add(entry);
+            } else {
+                entry.retired = true;
+            }
+        }
+        while (kept.size() >= maxEntries) {
+            // 淘汰最久未使用的条目
+            int oldest = 0;
+            for (int i = 1; i < kept.size(); i++) {
+                if (kept.get(i).lastUsed < kept.get(oldest).lastUsed) {
+                    oldest = i;
+                }
+            }
+            kept.remove(oldest).retired = true;
+        }
+        Entry entry = new Entry(vector, filter, topK, candidates, documents, now);
+        kept.add(entry);
+        entries = kept.toArray(new Entry[0]);
+        return entry;
+    }
+
+    // 为条目补上回答；条目的结果已更新或被作废时忽略
+    void putAnswer(Entry entry, String answer) {
+        if (entry != null && answer != null && !entry.retired) {
+            entry.answer = answer;
+        }
+    }
+
+    // 数据变化后逐条更新：updater返回原条目表示不受影响，返回null表示移除，否则返回更新后的条目
+    // 未受影响的条目和它的回答原样保留，过期条目顺带清理
+    synchronized void update(UnaryOperator<Entry> updater) {
+        generation.incrementAndGet();
+        long now = clock.getAsLong();
+        List<Entry> kept = new ArrayList<>(entries.length);
+        for (Entry entry : entries) {
+            Entry updated = now - entry.createdAt > ttlNanos ? null : updater.apply(entry);
+            if (updated != entry) {
+                entry.retired = true;
+            }
+            if (updated != null) {
+                kept.add(updated);
+            }
+        }
+        entries = kept.toArray(new Entry[0]);
+    }
+
+    // 清空全部数据后作废全部条目
+    synchronized void invalidateAll() {
+        generation.incrementAndGet();
+        for (Entry entry : entries) {
+            entry.retired = true;
+        }
+        entries = new Entry[0];
+    }
+
+    int size() {
+        return entries.length;
+    }
+
+    long hits() {
+        return hits.sum();
+    }
+
+    long misses() {
+        return misses.sum();
+    }
+
+    // 注册命中/未命中次数、回答命中次数、条目数和命中率指标
+    void bindTo(MeterRegistry registry) {
+        FunctionCounter.builder("rag.semantic.cache.requests", hits, LongAdder::sum)
+                .tag("result", "hit").description("语义缓存命中次数").register(registry);
+        FunctionCounter.builder("rag.semantic.cache.requests", misses, LongAdder::sum)
+                .tag("result", "miss").description("语义缓存未命中次数").register(registry);
+        FunctionCounter.builder("rag.semantic.cache.answer.hits", answerHits, LongAdder::sum)
+                .description("命中且复用了已生成回答的次数").register(registry);
+        Gauge.builder("rag.semantic.cache.size", this, SemanticCache::size)
+                .description("语义缓存条目数").register(registry);
+        Gauge.builder("rag.semantic.cache.hit.ratio", this, cache -> {
+            long total = cache.hits() + cache.misses();
+            return total == 0 ? 0.0 : (double) cache.hits() / total;
+        }).description("语义缓存累计命中率").register(registry);
+    }
+}
@@ -0,0 +1,112 @@
+package com.example.rag.service;
+
+import jdk.incubator.vector.ByteVector;
+import jdk.incubator.vector.FloatVector;
+import jdk.incubator.vector.IntVector;
+import jdk.incubator.vector.VectorOperators;
+import jdk.incubator.vector.VectorShape;
+import jdk.incubator.vector.VectorSpecies;
+
+import java.lang.foreign.MemorySegment;
+import java.lang.foreign.ValueLayout;
+import java.nio.ByteOrder;
+
+/**
+ * 作者: liangyajie
+ * 联系方式: 695274107@qq.com
+ * 基于JDK Vector API（jdk.incubator.vector）的SIMD相似度内核
+ */
+
+final class SimdSimilarityKernel implements SimilarityKernel {
+
+    private static final VectorSpecies<Float> SPECIES = FloatVector.SPECIES_PREFERRED;
+    // byte向量最窄为64位，128位CPU上退而使用256位的int向量（由JIT拆分执行）
+    private static final VectorSpecies<Integer> INT_SPECIES =
+            IntVector.SPECIES_PREFERRED.length() >= 8 ? IntVector.SPECIES_PREFERRED : IntVector.SPECIES_256;
+    // 与int通道数相同的byte向量，扩展为int后正好填满一个int向量
+    private static final VectorSpecies<Byte> BYTE_SPECIES =
+            VectorSpecies.of(byte.class, VectorShape.forBitSize(INT_SPECIES.length() * Byte.SIZE));
+    private static final ByteOrder ORDER = ByteOrder.nativeOrder();
+
+    // 当前CPU的向量宽度（float通道数），过窄时不值得使用SIMD
+    static int laneCount() {
+        return SPECIES.length();
+    }
+
+    @Override
+    public float dot(float[] a, float[] b) {
+        final int length = Math.min(a.length, b.length);
+        final int step = SPECIES.length();
+        final int bound = SPECIES.loopBound(length);
+        // 两个累加器交替使用，减少FMA之间的依赖
+        FloatVector acc1 = FloatVector.zero(SPECIES);
+        FloatVector acc2 = FloatVector.zero(SPECIES);
+        int i = 0;
+        for (; i + step < bound; i += 2 * step) {
+            acc1 = FloatVector.fromArray(SPECIES, a, i).fma(FloatVector.fromArray(SPECIES, b, i), acc1);
+            acc2 = FloatVector.fromArray(SPECIES, a, i + step).fma(FloatVector.fromArray(SPECIES, b, i + step), acc2);
+        }
+        for (; i < bound; i += step) {
+            acc1 = FloatVector.fromArray(SPECIES, a, i).fma(FloatVector.fromArray(SPECIES, b, i), acc1);
+        }
+        float sum = acc1.add(acc2).reduceLanes(VectorOperators.ADD);
+        for (; i < length; i++) {
+            sum += a[i] * b[i];
+        }
+        return sum;
+    }
+
+    @Override
+    public float dot(float[] query, MemorySegment block, long offset) {
+        final int length = query.length;
+        final int step = SPECIES.length();
+        final long stepBytes = (long) step * Float.BYTES;
+        final int bound = SPECIES.loopBound(length);
+        FloatVector acc1 = FloatVector.zero(SPECIES);
+        FloatVector acc2 = FloatVector.zero(SPECIES);
+        int i = 0;
+        long position = offset;
+        for (; i + step < bound; i += 2 * step, position += 2 * stepBytes) {
+            acc1 = FloatVector.fromArray(SPECIES, query, i)
+                    .fma(FloatVector.fromMemorySegment(SPECIES, block, position, ORDER), acc1);
+            acc2 = FloatVector.fromArray(SPECIES, query, i + step)
+                    .fma(FloatVector.fromMemorySegment(SPECIES, block, position + stepBytes, ORDER), acc2);
+        }
+        for (; i < bound; i += step, position += stepBytes) {
+            acc1 = FloatVector.fromArray(SPECIES, query, i)
+                    .fma(FloatVector.fromMemorySegment(SPECIES, block, position, ORDER), acc1);
+        }
+        float sum = acc1.add(acc2).reduceLanes(VectorOperators.ADD);
+        final long base = offset / Float.BYTES;
+        for (; i < length; i++) {
+            sum += query[i] * block.getAtIndex(ValueLayout.JAVA_FLOAT, base + i);
+        }
+        return sum;
+    }
+
+    @Override
+    public int dot(byte[] query, MemorySegment block, long offset) {
+        final int length = query.length;
+        final int step = BYTE_SPECIES.length();
+        final int bound = BYTE_SPECIES.loopBound(length);
+        IntVector acc = IntVector.zero(INT_SPECIES);
+        int i = 0;
+        for (; i < bound; i += step) {
+            IntVector q = (IntVector) ByteVector.fromArray(BYTE_SPECIES, query, i)
+                    .convertShape(VectorOperators.B2I, INT_SPECIES, 0);
+            IntVector r = (IntVector) ByteVector.fromMemorySegment(BYTE_SPECIES, block, offset + i, ORDER)
+                    .convertShape(VectorOperators.B2I, INT_SPECIES, 0);
+            acc = q.mul(r).add(acc);
+        }
+        int sum = acc.reduceLanes(VectorOperators.ADD);
+        for (; i < length; i++) {
+            sum += query[i] * block.get(ValueLayout.JAVA_BYTE, offset + i);
+        }
+        return sum;
+    }
+
+    @Override
+    public String name() {
+        return "simd-" + SPECIES.vectorBitSize() + "bit";
+    }
+}
@@ -0,0 +1,24 @@
+package com.example.rag.service;
+
+import java.lang.foreign.MemorySegment;
+
+/**
+ * 作者: liangyajie
+ * 联系方式: 695274107@qq.com
+ * 相似度计算内核接口，向量在写入时已归一化，检索只需计算点积
+ */
+
+interface SimilarityKernel {
+
+    // 两个堆内向量的点积
+    float dot(float[] a, float[] b);
+
+    // 查询向量与矩阵中一行的点积，offset为行在内存块内的字节偏移
+    float dot(float[] query, MemorySegment block, long offset);
+
+    // int8编码的点积，offset为编码在内存块内的字节偏移，结果需乘以两侧缩放因子
+    int dot(byte[] query, MemorySegment block, long offset);
+
+    // 内核名称，用于日志
+    String name();
+}
@@ -0,0 +1,59 @@
+package com.example.rag.service;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * 作者: liangyajie
+ * 联系方式: 695274107@qq.com
+ * 相似度内核工具类：启动时选择SIMD或标量实现，并提供向量归一化
+ */
+
+final class SimilarityKernels {
+
+    private static final Logger logger = LoggerFactory.getLogger(SimilarityKernels.class);
+    private static final String VECTOR_MODULE = "jdk.incubator.vector";
+    // SIMD宽度低于4个float通道时收益不明显，使用标量实现
+    private static final int MIN_SIMD_LANES = 4;
+
+    private SimilarityKernels() {
+    }
+
+    // 选择相似度内核：Vector API模块可用且启用时使用SIMD，否则回退到标量实现
+    static SimilarityKernel select(boolean simdEnabled) {
+        if (simdEnabled) {
+            if (ModuleLayer.boot().findModule(VECTOR_MODULE).isEmpty()) {
+                logger.info("未加载{}模块（需要 --add-modules {}），使用标量相似度内核", VECTOR_MODULE, VECTOR_MODULE);
+            } else {
+                try {
+                    if (SimdSimilarityKernel.laneCount() >= MIN_SIMD_LANES) {
+                        SimilarityKernel kernel = new SimdSimilarityKernel();
+                        logger.info("使用SIMD相似度内核: {}", kernel.name());
+                        return kernel;
+                    }
+                    logger.info("CPU向量宽度不足，使用标量相似度内核");
+                } catch (LinkageError e) {
+                    logger.warn("SIMD相似度内核初始化失败，回退到标量实现: {}", e.getMessage());
+                }
+            }
+        }
+        return new ScalarSimilarityKernel();
+    }
+
+    // 返回L2归一化后的副本，零向量保持为零
+    static float[] normalize(float[] vector) {
+        double norm = 0.0;
+        for (float value : vector) {
+            norm += (double) value * value;
+        }
+        float[] normalized = new float[vector.length];
+        if (norm == 0.0) {
+            return normalized;
+        }
+        final float scale = (float) (1.0 / Math.sqrt(norm));
+        for (int i = 0; i < vector.length; i++) {
+            normalized[i] = vector[i] * scale;
+        }
+        return normalized;
+    }
+}
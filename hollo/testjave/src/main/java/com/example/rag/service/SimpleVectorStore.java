@@ -4,18 +4,30 @@ import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.beans.factory.annotation.Value;
 import org.springframework.stereotype.Component;
 import jakarta.annotation.PreDestroy;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.binder.MeterBinder;
+import io.micrometer.core.instrument.binder.cache.GuavaCacheMetrics;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 
 import com.example.rag.client.OllamaClient;
+import com.example.rag.config.VectorStoreProperties;
 import com.example.rag.model.Document;
 
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedByInterruptException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
 import java.util.*;
 import java.util.concurrent.*;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.function.Supplier;
 import java.util.stream.Collectors;
 
 // Guava缓存相关导入
+import com.google.common.cache.Cache;
 import com.google.common.cache.CacheBuilder;
-import com.google.common.cache.CacheLoader;
-import com.google.common.cache.LoadingCache;
 
 /**
  * 作者: liangyajie
@@ -24,43 +36,143 @@ import com.google.common.cache.LoadingCache;
  */
 
 @Component
-public class SimpleVectorStore {
+public class SimpleVectorStore implements MeterBinder {
+
+    private static final Logger logger = LoggerFactory.getLogger(SimpleVectorStore.class);
 
     private final OllamaClient ollamaClient;
     private final String embeddingModel;
-    private final List<Document> documents = Collections.synchronizedList(new ArrayList<>());
-    // 查询缓存，使用LRU缓存策略
-    private final LoadingCache<String, List<Document>> queryCache;
-    // 线程池用于并行处理
+    // 堆外向量矩阵，所有嵌入向量按行连续存放；首次写入时按向量维度创建
+    private EmbeddingMatrix matrix;
+    // 行号到文档块的映射，文档本身不再持有向量；已落盘的行从段文件按需解码
+    private DocumentTable rowDocuments = new DocumentTable();
+    // 检索流水线各粗筛阶段使用的量化副本，与matrix行号一一对应
+    private Map<SearchPipeline.StageType, QuantizedVectors> quantizers = new EnumMap<>(SearchPipeline.StageType.class);
+    // 已删除的行，检索时跳过；比例过高时整理矩阵
+    private BitSet deletedRows = new BitSet();
+    // 近似检索索引（HNSW或IVF），search-mode=flat时为空
+    private VectorIndex vectorIndex;
+    // 已加入索引和量化副本的行数；启动时挂载的段由后台分批补建，补齐前其余行用暴力扫描
+    private int indexedRows;
+    // 是否已有后台补建任务在运行
+    private boolean catchUpScheduled;
+    // 是否已有后台整理任务在运行
+    private boolean compactionScheduled;
+    // 段文件存储和预写日志，未开启持久化或打开失败时为空
+    private SegmentStore segmentStore;
+    private WriteAheadLog writeAheadLog;
+    // 读写锁：写入、删除和整理独占，内存模式下整理复制存活行时共享；检索和文件列表不加锁，只读取快照
+    private final ReentrantReadWriteLock storeLock = new ReentrantReadWriteLock();
+    // 检索使用的不可变快照，每次修改在写锁内完成后整体发布
+    private volatile StoreSnapshot snapshot = StoreSnapshot.EMPTY;
+    // 语义查询缓存：按查询向量的相似度复用检索结果和回答
+    private final SemanticCache queryCache;
+    // 是否复用已生成的回答
+    private final boolean cacheAnswers;
+    // 查询文本到归一化嵌入向量的缓存，按占用字节数限制大小；与文档数据无关，写入和删除文档时不作废
+    private final Cache<String, float[]> queryEmbeddings;
+    // 持久化的文档块嵌入缓存，按 (模型, 文本) 的哈希查找；关闭或打开失败时为空
+    private EmbeddingCache embeddingCache;
+    // 发送嵌入请求的线程池，同时进行的请求数由嵌入调度按Ollama的并发限制控制
     private final ExecutorService executorService;
-    // 文档按文件ID分组，提高多文件查询效率
-    private final Map<String, List<Document>> documentsByFileId = new ConcurrentHashMap<>();
+    // 嵌入请求调度：查询和写入的请求在短窗口内合批发往Ollama，查询优先
+    private final EmbeddingDispatcher embeddingDispatcher;
+    // 检索扫描线程池，与生成嵌入的线程池分开，避免检索排在阻塞的Ollama请求之后
+    private final ExecutorService scanExecutor;
+    // 分区并行扫描，并行度随并发查询数自适应
+    private final ParallelScan parallelScan;
+    // 索引后台维护线程（如IVF训练），不占用检索线程池
+    private final ExecutorService indexMaintenanceExecutor;
+    // 元数据位图索引（文件ID、文件类型、上传日期），删除文件和文件列表直接查询；不可变，随快照发布供检索过滤
+    private MetadataIndex metadataIndex = MetadataIndex.EMPTY;
+    // 相似度内核（SIMD或标量），启动时选定
+    private final SimilarityKernel similarityKernel;
+    // 暴力扫描的检索流水线（量化粗筛 -> 精排），启动时由配置解析
+    private final SearchPipeline searchPipeline;
+    // 量化检索的召回率监控，流水线没有粗筛阶段时为空
+    private final RecallMonitor recallMonitor;
+    private final VectorStoreProperties properties;
+    
+    // 段内已删除行占比超过该值时在后台合并整理，回收空间
+    private static final double COMPACT_DELETED_RATIO = 0.3;
+    // 候选池大小为topK的倍数，为后续的多文件筛选留出余量
+    private static final int CANDIDATE_MULTIPLIER = 4;
+    // 过滤后的行数不超过总行数的该比例时直接精确扫描这些行，不再走索引或量化粗筛
+    private static final double FILTERED_SCAN_RATIO = 0.1;
+    // 乘积量化码本在数据目录下的文件名
+    private static final String PQ_CODEBOOK_FILE = "pq-codebook.bin";
+    // 段文件在数据目录下的子目录
+    private static final String SEGMENTS_DIR = "segments";
+    // 文档块嵌入缓存在数据目录下的子目录
+    private static final String EMBEDDING_CACHE_DIR = "embedding-cache";
+    // 后台补建索引时每次持有写锁处理的行数
+    private static final int CATCH_UP_BATCH = 256;
+    // 仅在预写日志中的行数达到该值时写检查点
+    private final int checkpointRows;
 
     @Autowired
     public SimpleVectorStore(OllamaClient ollamaClient, 
-                           @Value("${ollama.embedding-model:mxbai-embed-large}") String embeddingModel) {
+                           @Value("${ollama.embedding-model:mxbai-embed-large}") String embeddingModel,
+                           VectorStoreProperties properties) {
         this.ollamaClient = ollamaClient;
         this.embeddingModel = embeddingModel;
+        this.properties = properties;
+        this.similarityKernel = SimilarityKernels.select(properties.getSimd().isEnabled());
+        this.searchPipeline = SearchPipeline.parse(pipelineSpec(properties));
+        VectorStoreProperties.Quantization quantization = properties.getQuantization();
+        if (searchPipeline.prefilters().isEmpty()) {
+            this.recallMonitor = null;
+        } else {
+            // 召回率不足时整体放大各级候选数，第一级的倍数不超过max-oversampling
+            int firstFactor = searchPipeline.prefilters().get(0).factor();
+            this.recallMonitor = new RecallMonitor(quantization.getRecallTarget(), quantization.getRecallSampleRate(),
+                    1, Math.max(1, quantization.getMaxOversampling() / firstFactor));
+        }
         
-        // 初始化查询缓存，最多缓存100个查询结果，过期时间5分钟
-        this.queryCache = CacheBuilder.newBuilder()
-                .maximumSize(100)
-                .expireAfterWrite(5, TimeUnit.MINUTES)
-                .build(new CacheLoader<String, List<Document>>() {
-                    @Override
-                    public List<Document> load(String query) throws Exception {
-                        return performSimilaritySearch(query, 10);
-                    }
-                });
+        // 初始化语义查询缓存，查询向量与已缓存查询足够接近时直接复用结果
+        VectorStoreProperties.QueryCache cache = properties.getQueryCache();
+        this.queryCache = new SemanticCache(similarityKernel, cache.getMaxEntries(), cache.getMaxDistance(),
+                TimeUnit.SECONDS.toNanos(cache.getTtlSeconds()), System::nanoTime);
+        this.cacheAnswers = cache.isCacheAnswers();
+        // 重复的查询不再调用Ollama生成嵌入，同一文本的并发请求只生成一次
+        this.queryEmbeddings = CacheBuilder.newBuilder()
+                .maximumWeight(Math.max(0, cache.getEmbeddingMaxBytes()))
+                .weigher((String text, float[] vector) -> embeddingBytes(text, vector))
+                .recordStats()
+                .build();
         
-        // 初始化线程池，线程数根据CPU核心数调整
-        int corePoolSize = Math.max(2, Runtime.getRuntime().availableProcessors());
-        this.executorService = Executors.newFixedThreadPool(corePoolSize);
+        // 每个并发批次占用一个线程，并发数取Ollama嵌入请求的自适应并发限制，不再按CPU核心数固定；写入的批次大小按每批耗时自适应
+        this.executorService = Executors.newCachedThreadPool();
+        VectorStoreProperties.EmbeddingBatch batch = properties.getEmbeddingBatch();
+        this.embeddingDispatcher = new EmbeddingDispatcher(ollamaClient, embeddingModel, executorService,
+                ollamaClient::embedConcurrencyLimit,
+                batch.getMaxSize(), TimeUnit.MICROSECONDS.toNanos(batch.getWindowMicros()),
+                new AdaptiveBatchSize(batch.getInitialSize(), batch.getMaxSize(),
+                        TimeUnit.MILLISECONDS.toNanos(batch.getTargetLatencyMs())));
+        // 扫描并行度默认为CPU核心数，调用线程执行一个分片，其余分片交给扫描线程池
+        int scanParallelism = properties.getScanParallelism() > 0
+                ? properties.getScanParallelism()
+                : Runtime.getRuntime().availableProcessors();
+        this.scanExecutor = Executors.newFixedThreadPool(Math.max(1, scanParallelism - 1), r -> {
+            Thread thread = new Thread(r, "vector-scan");
+            thread.setDaemon(true);
+            return thread;
+        });
+        this.parallelScan = new ParallelScan(scanExecutor, scanParallelism);
+        this.indexMaintenanceExecutor = Executors.newSingleThreadExecutor(r -> {
+            Thread thread = new Thread(r, "vector-index-maintenance");
+            thread.setDaemon(true);
+            return thread;
+        });
+        this.checkpointRows = Math.max(1, properties.getPersistence().getCheckpointRows());
+        openSegments();
+        openEmbeddingCache();
     }
     
     // 使用@PreDestroy注解确保在Spring容器关闭时清理资源
     @PreDestroy
     public void cleanup() {
+        embeddingDispatcher.close();
         if (executorService != null && !executorService.isShutdown()) {
             executorService.shutdown();
             try {
@@ -72,226 +184,1187 @@ public class SimpleVectorStore {
                 executorService.shutdownNow();
             }
         }
+        scanExecutor.shutdownNow();
+        indexMaintenanceExecutor.shutdownNow();
+        storeLock.writeLock().lock();
+        try {
+            snapshot = StoreSnapshot.EMPTY;
+            // 正常关闭时写检查点，下次启动无需重放日志
+            if (writeAheadLog != null) {
+                checkpoint();
+                try {
+                    writeAheadLog.close();
+                } catch (IOException e) {
+                    logger.warn("关闭预写日志失败: {}", e.getMessage());
+                }
+                writeAheadLog = null;
+                segmentStore = null;
+            }
+            if (vectorIndex != null) {
+                vectorIndex.close();
+                vectorIndex = null;
+            }
+            if (matrix != null) {
+                matrix.close();
+                matrix = null;
+            }
+            quantizers.values().forEach(QuantizedVectors::close);
+            quantizers = new EnumMap<>(SearchPipeline.StageType.class);
+        } finally {
+            storeLock.writeLock().unlock();
+        }
+        if (embeddingCache != null) {
+            try {
+                embeddingCache.close();
+            } catch (IOException e) {
+                logger.warn("关闭嵌入缓存失败: {}", e.getMessage());
+            }
+        }
     }
 
     // 添加文档到向量存储
     public void add(List<Document> newDocuments) {
         try {
-            // 并行生成嵌入向量
-            List<Future<Document>> futures = newDocuments.stream()
-                .map(doc -> executorService.submit(() -> {
-                    try {
-                        List<Double> embedding = ollamaClient.generateEmbedding(embeddingModel, doc.getContent());
-                        doc.setEmbedding(embedding);
-                        return doc;
-                    } catch (Exception e) {
-                        System.err.println("Error generating embedding: " + e.getMessage());
-                        return null;
-                    }
-                }))
-                .collect(Collectors.toList());
+            // 先查嵌入缓存，只为没见过的块生成嵌入；同一批中内容相同的块只生成一次
+            Map<String, List<Document>> pending = new LinkedHashMap<>();
+            for (Document doc : newDocuments) {
+                float[] cached = cachedEmbedding(doc.getContent());
+                if (cached != null) {
+                    doc.setEmbeddingVector(cached);
+                } else {
+                    pending.computeIfAbsent(doc.getContent(), text -> new ArrayList<>()).add(doc);
+                }
+            }
+            
+            // 交给嵌入调度分批生成，与其他上传和查询的请求合批
+            List<CompletableFuture<float[]>> futures = new ArrayList<>(pending.size());
+            for (String text : pending.keySet()) {
+                futures.add(embeddingDispatcher.submit(text, EmbeddingDispatcher.Priority.INGEST));
+            }
             
-            // 收集结果并更新存储
-            for (Future<Document> future : futures) {
+            // 先等待所有嵌入完成，再在写锁内一次性写入矩阵，缩短持锁时间；失败的批次只跳过其中的文档
+            int failed = 0;
+            String lastError = null;
+            Iterator<Map.Entry<String, List<Document>>> groups = pending.entrySet().iterator();
+            for (CompletableFuture<float[]> future : futures) {
+                Map.Entry<String, List<Document>> group = groups.next();
                 try {
-                    Document doc = future.get();
-                    if (doc != null && doc.getEmbedding() != null) {
-                        documents.add(doc);
-                        
-                        // 按文件ID分组存储
-                        if (doc.getMetadata() != null && doc.getMetadata().containsKey("fileId")) {
-                            String fileId = (String) doc.getMetadata().get("fileId");
-                            documentsByFileId.computeIfAbsent(fileId, k -> new ArrayList<>()).add(doc);
-                        }
+                    float[] embedding = future.get();
+                    if (embedding != null && embedding.length > 0) {
+                        group.getValue().forEach(doc -> doc.setEmbeddingVector(embedding));
+                        cacheEmbedding(group.getKey(), embedding);
                     }
-                } catch (Exception e) {
-                    System.err.println("Error processing document: " + e.getMessage());
+                } catch (ExecutionException e) {
+                    failed++;
+                    lastError = e.getCause().getMessage();
+                }
+            }
+            if (failed > 0) {
+                logger.warn("{} 个文档块中有 {} 个生成嵌入失败: {}", futures.size(), failed, lastError);
+            }
+            List<Document> embedded = new ArrayList<>();
+            for (Document doc : newDocuments) {
+                if (doc.hasEmbedding()) {
+                    embedded.add(doc);
                 }
             }
             
-            // 清除查询缓存，因为数据已更新
-            queryCache.invalidateAll();
+            long logPosition;
+            storeLock.writeLock().lock();
+            try {
+                List<Document> accepted = acceptDocuments(embedded);
+                // 先写日志再修改内存，日志顺序与修改顺序一致
+                logPosition = accepted.isEmpty() ? 0 : logRecord(WriteAheadLog.ADD, () -> WriteAheadLog.addRecord(accepted));
+                // 写入矩阵后文档上不再持有向量，先留下供语义缓存打分
+                int firstRow = matrix != null ? matrix.size() : 0;
+                float[][] vectors = accepted.stream().map(Document::getEmbeddingVector).toArray(float[][]::new);
+                applyAdd(accepted);
+                if (segmentStore != null && rowDocuments.size() - rowDocuments.sealedRows() >= checkpointRows) {
+                    checkpoint();
+                }
+                publish();
+                // 在写锁内更新缓存，与删除和整理的顺序一致
+                mergeIntoCache(accepted, vectors, firstRow);
+            } finally {
+                storeLock.writeLock().unlock();
+            }
+            // 在锁外等待刷盘，并发的上传共用一次fsync
+            syncLog(logPosition);
         } catch (Exception e) {
-            System.err.println("Error in batch document processing: " + e.getMessage());
+            logger.error("批量写入文档失败", e);
+        }
+    }
+
+    // 注册语义缓存、查询嵌入缓存、文档块嵌入缓存和嵌入调度的指标
+    @Override
+    public void bindTo(MeterRegistry registry) {
+        queryCache.bindTo(registry);
+        GuavaCacheMetrics.monitor(registry, queryEmbeddings, "rag.query.embedding.cache");
+        if (embeddingCache != null) {
+            embeddingCache.bindTo(registry);
+        }
+        embeddingDispatcher.bindTo(registry);
+    }
+    
+    // 从文档块嵌入缓存读取向量，没有或读取失败时返回null
+    private float[] cachedEmbedding(String text) {
+        if (embeddingCache == null || text == null) {
+            return null;
+        }
+        try {
+            return embeddingCache.get(EmbeddingCache.Key.of(embeddingModel, text));
+        } catch (IOException e) {
+            logger.warn("读取嵌入缓存失败: {}", e.getMessage());
+            return null;
+        }
+    }
+    
+    // 把新生成的向量写入文档块嵌入缓存，失败时只记录日志
+    private void cacheEmbedding(String text, float[] embedding) {
+        if (embeddingCache == null || text == null || embedding == null || embedding.length == 0) {
+            return;
+        }
+        try {
+            embeddingCache.put(EmbeddingCache.Key.of(embeddingModel, text), embedding);
+        } catch (IOException e) {
+            logger.warn("写入嵌入缓存失败: {}", e.getMessage());
         }
     }
 
     // 根据相似度搜索文档，使用缓存和并行处理优化性能
     public List<Document> similaritySearch(String query, int topK) {
+        return similaritySearch(query, topK, SearchFilter.NONE);
+    }
+
+    // 按元数据过滤条件检索，只在满足条件的文件的行中查找
+    public List<Document> similaritySearch(String query, int topK, SearchFilter filter) {
+        return retrieve(query, topK, filter).getDocuments();
+    }
+
+    // 检索相关文档：查询只生成一次嵌入，先按向量在语义缓存中查找相近的查询，未命中时再扫描并写入缓存
+    // 开启回答缓存时，命中的条目可能带有之前为相近问题生成的回答
+    public Retrieval retrieve(String query, int topK, SearchFilter filter) {
+        SearchFilter searchFilter = filter != null ? filter : SearchFilter.NONE;
         try {
-            // 生成缓存键，包含查询内容和topK值
-            String cacheKey = query + "_" + topK;
-            
-            // 尝试从缓存获取结果
-            try {
-                return queryCache.get(cacheKey).stream()
-                        .limit(topK)
-                        .collect(Collectors.toList());
-            } catch (ExecutionException e) {
-                // 缓存加载失败，执行实际搜索
-                return performSimilaritySearch(query, topK);
+            float[] queryEmbedding = embedQuery(query);
+            SemanticCache.Entry cached = queryCache.lookup(queryEmbedding, searchFilter, topK);
+            if (cached != null) {
+                List<Document> documents = cached.documents().stream().limit(topK).collect(Collectors.toList());
+                return new Retrieval(documents, cacheAnswers ? cached.answer() : null, cached);
             }
+            // 先记下缓存代号，检索期间数据发生变化时结果不写入缓存
+            long generation = queryCache.generation();
+            List<DocumentWithScore> candidates = performSimilaritySearch(queryEmbedding, topK, searchFilter);
+            List<Document> documents = selectResults(candidates, topK);
+            return new Retrieval(documents, null,
+                    queryCache.put(queryEmbedding, searchFilter, topK, candidates, documents, generation));
         } catch (Exception e) {
-            System.err.println("Error during similarity search: " + e.getMessage());
-            return Collections.emptyList();
+            logger.error("相似度检索失败", e);
+            return new Retrieval(Collections.emptyList(), null, null);
         }
     }
     
-    // 执行实际的相似度搜索（供缓存加载器使用）
-    private List<Document> performSimilaritySearch(String query, int topK) {
+    // 查询的归一化嵌入向量，优先从查询嵌入缓存读取，未命中时使用Ollama生成；返回的数组不可修改
+    private float[] embedQuery(String query) throws Exception {
         try {
-            // 使用Ollama为查询生成嵌入向量
-            List<Double> queryEmbedding = ollamaClient.generateEmbedding(embeddingModel, query);
-            
-            // 并行计算文档相似度
-            List<Future<DocumentWithScore>> futureScores = documents.stream()
-                .filter(doc -> doc.getEmbedding() != null && !doc.getEmbedding().isEmpty())
-                .map(doc -> executorService.submit(() -> {
-                    double score = cosineSimilarity(queryEmbedding, doc.getEmbedding());
-                    return new DocumentWithScore(doc, score);
-                }))
-                .collect(Collectors.toList());
-            
-            // 收集相似度计算结果
-            List<DocumentWithScore> scoredDocuments = new ArrayList<>();
-            for (Future<DocumentWithScore> future : futureScores) {
-                try {
-                    DocumentWithScore scoredDoc = future.get();
-                    // 只保留相似度大于阈值的文档，减少后续处理量
-                    if (scoredDoc.getScore() > 0.5) {
-                        scoredDocuments.add(scoredDoc);
-                    }
-                } catch (Exception e) {
-                    System.err.println("Error collecting similarity score: " + e.getMessage());
-                }
+            return queryEmbeddings.get(query, () -> SimilarityKernels.normalize(
+                    embeddingDispatcher.submit(query, EmbeddingDispatcher.Priority.QUERY).get()));
+        } catch (ExecutionException | com.google.common.util.concurrent.UncheckedExecutionException e) {
+            // 缓存加载和调度各包装了一层，抛出Ollama请求的原始异常
+            Throwable cause = e.getCause();
+            while (cause instanceof ExecutionException && cause.getCause() != null) {
+                cause = cause.getCause();
+            }
+            throw cause instanceof Exception exception ? exception : e;
+        }
+    }
+    
+    // 缓存条目的大致占用：向量数组、查询字符串和对象头
+    private static int embeddingBytes(String text, float[] vector) {
+        return 64 + 2 * text.length() + 4 * vector.length;
+    }
+    
+    // 执行实际的相似度搜索，queryEmbedding已归一化，返回按分数降序的候选池；扫描出错时抛出异常，结果不写入缓存
+    private List<DocumentWithScore> performSimilaritySearch(float[] queryEmbedding, int topK, SearchFilter filter)
+            throws Exception {
+        // 候选池大小固定为topK的倍数，与语料规模无关，为后续的多文件筛选留出余量
+        final int poolSize = topK * CANDIDATE_MULTIPLIER;
+        List<DocumentWithScore> scoredDocuments = new ArrayList<>(poolSize);
+        // 检索不加锁：取当前快照，期间的写入、删除和整理都不影响本次检索
+        StoreSnapshot current = snapshot;
+        if (current.matrix() == null || queryEmbedding.length != current.matrix().dimension()) {
+            return Collections.emptyList();
+        }
+        final List<SearchPipeline.Stage> stages = readyStages(current);
+        int indexed = current.indexedRows();
+        // 过滤条件先用元数据位图索引求出允许的行，各检索路径只访问这些行；没有过滤条件时为空
+        BitSet allowed = allowedRows(current, filter);
+        if (allowed != null && allowed.isEmpty()) {
+            return Collections.emptyList();
+        }
+        
+        List<VectorIndex.ScoredRow> candidates;
+        if (allowed != null && allowed.cardinality() <= current.rowCount() * FILTERED_SCAN_RATIO) {
+            // 过滤后的行很少时精确扫描这些行，比在索引中绕开大量不允许的节点更快也更准
+            candidates = flatSearch(current, 0, queryEmbedding, poolSize, allowed);
+            indexed = current.rowCount();
+        } else if (current.index() != null && current.index().ready()) {
+            // 索引模式：只在索引给出的候选中打分，不再遍历全部文档
+            candidates = visible(current, current.index().search(queryEmbedding, poolSize, current.rowCount(), allowed));
+        } else if (!stages.isEmpty()) {
+            // 流水线模式：先扫描量化编码逐级粗筛，再用原始向量精排候选
+            candidates = pipelineSearch(current, stages, queryEmbedding, poolSize, allowed);
+        } else {
+            candidates = flatSearch(current, 0, queryEmbedding, poolSize, allowed);
+            indexed = current.rowCount();
+        }
+        if (indexed < current.rowCount()) {
+            // 启动后索引仍在后台补建时，尚未加入索引的行直接暴力扫描，再与索引结果合并
+            candidates = merge(candidates, flatSearch(current, indexed, queryEmbedding, poolSize, allowed), indexed, poolSize);
+        }
+        // 各路径的候选均已按相似度降序排列，无需再排序
+        for (VectorIndex.ScoredRow scored : candidates) {
+            if (scored.score() > 0.5) {
+                scoredDocuments.add(new DocumentWithScore(current.documents().get(scored.row()), scored.score()));
             }
+        }
+        return scoredDocuments;
+    }
+    
+    // 从按分数降序的候选池中选出至多topK个文档，兼顾相关性和文件覆盖
+    private static List<Document> selectResults(List<DocumentWithScore> scoredDocuments, int topK) {
+        // 优化：确保从多个文件中获取文档，同时保持高相关性
+        List<Document> resultDocs = new ArrayList<>();
+        Set<String> includedFileIds = new HashSet<>();
+        
+        // 第一阶段：优先选择高相关性文档，同时确保覆盖多个文件
+        for (DocumentWithScore scoredDoc : scoredDocuments) {
+            if (resultDocs.size() >= topK) break;
             
-            // 快速排序相似度分数
-            scoredDocuments.sort(Comparator.comparing(DocumentWithScore::getScore).reversed());
+            Document doc = scoredDoc.getDocument();
+            String fileId = null;
             
-            // 优化：确保从多个文件中获取文档，同时保持高相关性
-            List<Document> resultDocs = new ArrayList<>();
-            Set<String> includedFileIds = new HashSet<>();
+            // 获取文档的文件ID（如果有）
+            if (doc.getMetadata() != null && doc.getMetadata().containsKey("fileId")) {
+                fileId = (String) doc.getMetadata().get("fileId");
+            }
             
-            // 第一阶段：优先选择高相关性文档，同时确保覆盖多个文件
+            // 如果文档相关性足够高，或者来自新文件，添加到结果中
+            if (scoredDoc.getScore() > 0.7 || fileId == null || !includedFileIds.contains(fileId)) {
+                resultDocs.add(doc);
+                if (fileId != null) {
+                    includedFileIds.add(fileId);
+                }
+            }
+        }
+        
+        // 第二阶段：如果结果不足topK，添加剩余高相关性文档
+        if (resultDocs.size() < topK) {
             for (DocumentWithScore scoredDoc : scoredDocuments) {
                 if (resultDocs.size() >= topK) break;
                 
                 Document doc = scoredDoc.getDocument();
-                String fileId = null;
-                
-                // 获取文档的文件ID（如果有）
-                if (doc.getMetadata() != null && doc.getMetadata().containsKey("fileId")) {
-                    fileId = (String) doc.getMetadata().get("fileId");
-                }
-                
-                // 如果文档相关性足够高，或者来自新文件，添加到结果中
-                if (scoredDoc.getScore() > 0.7 || fileId == null || !includedFileIds.contains(fileId)) {
+                if (!resultDocs.contains(doc)) {
                     resultDocs.add(doc);
-                    if (fileId != null) {
-                        includedFileIds.add(fileId);
-                    }
                 }
             }
-            
-            // 第二阶段：如果结果不足topK，添加剩余高相关性文档
-            if (resultDocs.size() < topK) {
-                for (DocumentWithScore scoredDoc : scoredDocuments) {
-                    if (resultDocs.size() >= topK) break;
-                    
-                    Document doc = scoredDoc.getDocument();
-                    if (!resultDocs.contains(doc)) {
-                        resultDocs.add(doc);
+        }
+        
+        return resultDocs;
+    }
+
+    // 暴力扫描：按连续分片并行扫描快照中fromRow之后的行，只保留相似度大于阈值且最高的至多limit行
+    // allowed不为空时只扫描其中的行，分片按允许的行数切分
+    private List<VectorIndex.ScoredRow> flatSearch(StoreSnapshot current, int fromRow, float[] query, int limit,
+                                                   BitSet allowed) throws Exception {
+        EmbeddingMatrix rows = current.matrix();
+        BitSet deleted = current.deleted();
+        if (allowed != null) {
+            int[] targets = allowed.stream().filter(row -> row >= fromRow).toArray();
+            return parallelScan.scan(targets.length, limit, 0.5f, (start, end, collector) -> {
+                for (int i = start; i < end; i++) {
+                    int row = targets[i];
+                    if (!deleted.get(row)) {
+                        collector.offer(row, similarityKernel.dot(query, rows.blockOf(row), rows.offsetInBlock(row)));
                     }
                 }
+            }).drainDescending();
+        }
+        return parallelScan.scan(current.rowCount() - fromRow, limit, 0.5f, (start, end, collector) -> {
+            for (int row = fromRow + start; row < fromRow + end; row++) {
+                if (!deleted.get(row)) {
+                    collector.offer(row, similarityKernel.dot(query, rows.blockOf(row), rows.offsetInBlock(row)));
+                }
             }
-            
-            return resultDocs;
-        } catch (Exception e) {
-            System.err.println("Error during similarity search execution: " + e.getMessage());
-            return Collections.emptyList();
+        }).drainDescending();
+    }
+
+    // 用快照中的元数据位图索引求出满足过滤条件的行，没有过滤条件时返回null
+    private static BitSet allowedRows(StoreSnapshot current, SearchFilter filter) {
+        RowBitmap selected = current.metadata().select(filter);
+        if (selected == null) {
+            return null;
+        }
+        BitSet allowed = new BitSet(current.rowCount());
+        selected.addTo(allowed, current.rowCount());
+        return allowed;
+    }
+
+    // 合并索引候选与splitRow之后的扫描结果，按分数降序返回至多limit个；索引中splitRow之后的行以扫描结果为准，避免重复
+    private static List<VectorIndex.ScoredRow> merge(List<VectorIndex.ScoredRow> indexed,
+                                                     List<VectorIndex.ScoredRow> scanned, int splitRow, int limit) {
+        TopKCollector merged = new TopKCollector(limit);
+        for (VectorIndex.ScoredRow scored : indexed) {
+            if (scored.row() < splitRow) {
+                merged.offer(scored.row(), scored.score());
+            }
+        }
+        for (VectorIndex.ScoredRow scored : scanned) {
+            merged.offer(scored.row(), scored.score());
+        }
+        return merged.drainDescending();
+    }
+
+    // 索引与写入并发，可能还没看到快照之后的删除，按快照的删除标记再过滤一次
+    private static List<VectorIndex.ScoredRow> visible(StoreSnapshot current, List<VectorIndex.ScoredRow> candidates) {
+        List<VectorIndex.ScoredRow> visible = new ArrayList<>(candidates.size());
+        for (VectorIndex.ScoredRow scored : candidates) {
+            if (!current.deleted().get(scored.row())) {
+                visible.add(scored);
+            }
+        }
+        return visible;
+    }
+
+    // 快照中已可用的粗筛阶段（如乘积量化码本训练完成前跳过该级）
+    private List<SearchPipeline.Stage> readyStages(StoreSnapshot current) {
+        List<SearchPipeline.Stage> ready = new ArrayList<>();
+        for (SearchPipeline.Stage stage : searchPipeline.prefilters()) {
+            QuantizedVectors quantized = current.quantizers().get(stage.type());
+            if (quantized != null && quantized.ready()) {
+                ready.add(stage);
+            }
+        }
+        return ready;
+    }
+
+    // 流水线检索：第一级按连续分片并行扫描快照中已加入量化副本的行，后续各级只对上一级的候选重新打分，最后用原始向量精排出前candidates个
+    // allowed不为空时第一级只扫描其中的行
+    private List<VectorIndex.ScoredRow> pipelineSearch(StoreSnapshot current, List<SearchPipeline.Stage> stages,
+                                                        float[] query, int candidates, BitSet allowed) throws Exception {
+        EmbeddingMatrix rows = current.matrix();
+        BitSet deleted = current.deleted();
+        int widening = recallMonitor.oversampling();
+        SearchPipeline.Stage first = stages.get(0);
+        QuantizedVectors.RowScorer firstScorer = current.quantizers().get(first.type()).prepare(query);
+        int firstLimit = candidates * first.factor() * widening;
+        List<VectorIndex.ScoredRow> survivors;
+        if (allowed != null) {
+            int[] targets = allowed.get(0, current.indexedRows()).stream().toArray();
+            survivors = parallelScan.scan(targets.length, firstLimit, Float.NEGATIVE_INFINITY, (start, end, collector) -> {
+                for (int i = start; i < end; i++) {
+                    int row = targets[i];
+                    if (!deleted.get(row)) {
+                        collector.offer(row, firstScorer.score(row));
+                    }
+                }
+            }).drainDescending();
+        } else {
+            survivors = parallelScan.scan(current.indexedRows(), firstLimit, Float.NEGATIVE_INFINITY,
+                    (start, end, collector) -> {
+                        for (int row = start; row < end; row++) {
+                            if (!deleted.get(row)) {
+                                collector.offer(row, firstScorer.score(row));
+                            }
+                        }
+                    }).drainDescending();
+        }
+        for (SearchPipeline.Stage stage : stages.subList(1, stages.size())) {
+            QuantizedVectors.RowScorer scorer = current.quantizers().get(stage.type()).prepare(query);
+            survivors = rescore(survivors, scorer, candidates * stage.factor() * widening);
         }
+        List<VectorIndex.ScoredRow> result = rescore(survivors,
+                row -> similarityKernel.dot(query, rows.blockOf(row), rows.offsetInBlock(row)), candidates);
+        // 补建期间只扫描了部分行、带过滤的检索只扫描了部分文件，均不参与召回率校验
+        if (allowed == null && current.indexedRows() == current.rowCount() && recallMonitor.shouldSample()) {
+            scheduleRecallCheck(current, query, candidates, result);
+        }
+        return result;
+    }
+
+    // 用下一级打分器对候选重新打分，按分数降序返回至多limit个
+    private static List<VectorIndex.ScoredRow> rescore(List<VectorIndex.ScoredRow> survivors,
+                                                       QuantizedVectors.RowScorer scorer, int limit) {
+        TopKCollector next = new TopKCollector(limit);
+        for (VectorIndex.ScoredRow survivor : survivors) {
+            next.offer(survivor.row(), scorer.score(survivor.row()));
+        }
+        return next.drainDescending();
+    }
+
+    // 抽样校验：在后台线程中对同一快照做精确扫描，计算本次量化检索的召回率
+    private void scheduleRecallCheck(StoreSnapshot current, float[] query, int candidates,
+                                     List<VectorIndex.ScoredRow> approximate) {
+        indexMaintenanceExecutor.execute(() -> {
+            EmbeddingMatrix rows = current.matrix();
+            TopKCollector exact = new TopKCollector(candidates);
+            for (int row = 0; row < current.rowCount(); row++) {
+                if (!current.deleted().get(row)) {
+                    exact.offer(row, similarityKernel.dot(query, rows.blockOf(row), rows.offsetInBlock(row)));
+                }
+            }
+            List<VectorIndex.ScoredRow> expected = exact.drainDescending();
+            if (expected.isEmpty()) {
+                return;
+            }
+            Set<Integer> found = new HashSet<>();
+            for (VectorIndex.ScoredRow scored : approximate) {
+                found.add(scored.row());
+            }
+            int hits = 0;
+            for (VectorIndex.ScoredRow scored : expected) {
+                if (found.contains(scored.row())) {
+                    hits++;
+                }
+            }
+            recallMonitor.record((double) hits / expected.size());
+        });
     }
 
     // 清除所有文档
     public void deleteAll() {
-        documents.clear();
-        documentsByFileId.clear();
-        queryCache.invalidateAll();
+        long logPosition;
+        storeLock.writeLock().lock();
+        try {
+            logPosition = logRecord(WriteAheadLog.DELETE_ALL, () -> ByteBuffer.allocate(0));
+            applyDeleteAll();
+            // 立即写检查点，释放旧段和日志占用的磁盘
+            checkpoint();
+            publish();
+            // 与发布新快照在同一把锁内作废缓存的结果和回答，之后的检索不会再命中已删除的文档
+            queryCache.invalidateAll();
+        } finally {
+            storeLock.writeLock().unlock();
+        }
+        syncLog(logPosition);
     }
     
     // 根据文件ID删除文档，优化为使用映射表快速删除
     public boolean deleteByFileId(String fileId) {
-        // 先从分组映射中删除
-        List<Document> fileDocs = documentsByFileId.remove(fileId);
-        if (fileDocs != null) {
-            // 从主文档列表中删除
-            documents.removeAll(fileDocs);
-            // 清除缓存
-            queryCache.invalidateAll();
-            return true;
+        long logPosition;
+        storeLock.writeLock().lock();
+        try {
+            // 文件不存在时直接返回，不写日志
+            if (metadataIndex.file(fileId) == null) {
+                return false;
+            }
+            // 先写日志再修改内存，写日志失败时内存保持不变
+            logPosition = logRecord(WriteAheadLog.DELETE_FILE, () -> WriteAheadLog.deleteFileRecord(fileId));
+            applyDelete(fileId);
+            publish();
+            evictFromCache(fileId);
+            scheduleCompaction();
+        } finally {
+            storeLock.writeLock().unlock();
         }
+        syncLog(logPosition);
+        return true;
+    }
+    
+    // 新增的行就地并入语义缓存：只给新行与每条缓存的查询向量打分，能进入候选池的并入后重新选出结果
+    // 新行须满足条目的过滤条件；没有新行进入候选池的条目及其回答原样保留（调用方持有写锁）
+    private void mergeIntoCache(List<Document> added, float[][] vectors, int firstRow) {
+        if (added.isEmpty()) {
+            return;
+        }
+        MetadataIndex metadata = metadataIndex;
+        Map<SearchFilter, Optional<RowBitmap>> allowedByFilter = new HashMap<>();
+        queryCache.update(entry -> {
+            RowBitmap allowed = allowedByFilter
+                    .computeIfAbsent(entry.filter(), filter -> Optional.ofNullable(metadata.select(filter)))
+                    .orElse(null);
+            int poolSize = entry.topK() * CANDIDATE_MULTIPLIER;
+            List<DocumentWithScore> pool = entry.candidates();
+            // 候选池已满时，新行的分数须超过池中最低分才会影响结果
+            double floor = pool.size() >= poolSize ? pool.get(pool.size() - 1).getScore() : 0.5;
+            List<DocumentWithScore> merged = null;
+            for (int i = 0; i < added.size(); i++) {
+                if (allowed != null && !allowed.contains(firstRow + i)) {
+                    continue;
+                }
+                float score = similarityKernel.dot(entry.vector(), vectors[i]);
+                if (score > 0.5 && score > floor) {
+                    if (merged == null) {
+                        merged = new ArrayList<>(pool);
+                    }
+                    merged.add(new DocumentWithScore(added.get(i), score));
+                }
+            }
+            if (merged == null) {
+                return entry;
+            }
+            merged.sort(Comparator.comparingDouble(DocumentWithScore::getScore).reversed());
+            List<DocumentWithScore> candidates = merged.size() > poolSize ? merged.subList(0, poolSize) : merged;
+            return entry.withResults(candidates, selectResults(candidates, entry.topK()));
+        });
+    }
+    
+    // 删除文件后只移除候选池中引用了该文件的缓存条目，其余条目的结果不受影响（调用方持有写锁）
+    private void evictFromCache(String fileId) {
+        queryCache.update(entry -> {
+            for (DocumentWithScore candidate : entry.candidates()) {
+                Map<String, Object> metadata = candidate.getDocument().getMetadata();
+                if (metadata != null && fileId.equals(metadata.get("fileId"))) {
+                    return null;
+                }
+            }
+            return entry;
+        });
+    }
+    
+    // 校验维度并归一化，矩阵尚未创建时按第一个向量的维度创建（调用方持有写锁）
+    private List<Document> acceptDocuments(List<Document> documents) {
+        List<Document> accepted = new ArrayList<>(documents.size());
+        for (Document doc : documents) {
+            float[] vector = doc.getEmbeddingVector();
+            if (matrix == null) {
+                createMatrix(vector.length);
+            }
+            if (vector.length != matrix.dimension()) {
+                logger.warn("跳过嵌入维度为 {} 的文档块，当前维度为 {}", vector.length, matrix.dimension());
+                continue;
+            }
+            // 写入前归一化，检索时点积即为余弦相似度
+            doc.setEmbeddingVector(SimilarityKernels.normalize(vector));
+            accepted.add(doc);
+        }
+        return accepted;
+    }
+    
+    // 把已归一化的文档写入矩阵（调用方持有写锁）
+    private void applyAdd(List<Document> documents) {
+        // 元数据索引可能已被检索快照引用，复制后修改
+        MetadataIndex.Editor metadata = documents.isEmpty() ? null : metadataIndex.edit();
+        for (Document doc : documents) {
+            int row = matrix.append(doc.getEmbeddingVector());
+            // 向量已复制到堆外矩阵，释放文档上的堆内副本
+            doc.setEmbeddingVector(null);
+            rowDocuments.add(doc);
+            
+            // 按文件ID、类型和上传日期记入位图索引
+            if (doc.getMetadata() != null && doc.getMetadata().containsKey("fileId")) {
+                String fileId = (String) doc.getMetadata().get("fileId");
+                metadata.add(row, fileId, doc::getMetadata);
+            }
+        }
+        if (metadata != null) {
+            metadataIndex = metadata.build();
+        }
+        // 后台补建进行中时新行由补建任务一并处理，否则直接加入索引
+        if (!catchUpScheduled) {
+            feedIndex(Integer.MAX_VALUE);
+        }
+    }
+    
+    // 标记删除文件的所有行，没有找到时返回false（调用方持有写锁）
+    private boolean applyDelete(String fileId) {
+        // 位图索引覆盖全部存活的行，索引中没有即不存在，无需再按元数据扫描
+        MetadataIndex.Editor metadata = metadataIndex.edit();
+        RowBitmap removed = metadata.removeFile(fileId);
+        if (removed == null) {
+            return false;
+        }
+        metadataIndex = metadata.build();
+        int[] rows = removed.rows();
         
-        // 备用方法：如果映射表中没有找到，执行原始的删除逻辑
-        int initialSize = documents.size();
-        documents.removeIf(doc -> doc.getMetadata() != null && 
-                               fileId.equals(doc.getMetadata().get("fileId")));
+        // 标记删除，行号保持不变，HNSW图中的节点仍可用于导航；删除标记复制后修改，已发布的快照不受影响
+        BitSet deleted = (BitSet) deletedRows.clone();
+        for (int row : rows) {
+            deleted.set(row);
+            if (vectorIndex != null) {
+                vectorIndex.remove(row);
+            }
+        }
+        deletedRows = deleted;
+        return true;
+    }
+    
+    // 清空内存中的全部数据（调用方持有写锁）；旧矩阵可能仍被检索快照引用，不主动释放，由GC回收
+    private void applyDeleteAll() {
+        matrix = null;
+        if (vectorIndex != null) {
+            vectorIndex.close();
+            vectorIndex = null;
+        }
+        quantizers.values().forEach(QuantizedVectors::close);
+        quantizers = new EnumMap<>(SearchPipeline.StageType.class);
+        rowDocuments = new DocumentTable();
+        deletedRows = new BitSet();
+        metadataIndex = MetadataIndex.EMPTY;
+        indexedRows = 0;
+    }
+    
+    // 启动时重放一条日志记录（调用方持有写锁）
+    private void replay(WriteAheadLog.Entry entry) {
+        switch (entry.type()) {
+            case WriteAheadLog.ADD -> applyAdd(acceptDocuments(entry.documents()));
+            case WriteAheadLog.DELETE_FILE -> applyDelete(entry.fileId());
+            case WriteAheadLog.DELETE_ALL -> applyDeleteAll();
+            default -> throw new IllegalStateException("未知的预写日志记录类型: " + entry.type());
+        }
+    }
+    
+    // 追加日志记录，返回需等待刷盘的位置；未开启持久化时返回0（调用方持有写锁）
+    // 追加失败时内存中的修改照常进行，只是重启后不可恢复
+    private long logRecord(byte type, Supplier<ByteBuffer> payload) {
+        if (writeAheadLog == null) {
+            return 0;
+        }
+        try {
+            return writeAheadLog.append(type, payload.get());
+        } catch (IOException e) {
+            logger.error("写预写日志失败", e);
+            return 0;
+        }
+    }
+    
+    // 等待日志刷盘（不持有锁）
+    private void syncLog(long position) {
+        WriteAheadLog log = writeAheadLog;
+        if (log == null || position == 0) {
+            return;
+        }
+        try {
+            log.sync(position);
+        } catch (IOException e) {
+            logger.error("预写日志刷盘失败", e);
+        }
+    }
+    
+    // 已删除行占比超过阈值时登记后台整理，删除本身只设置删除标记（调用方持有写锁）
+    private void scheduleCompaction() {
+        // 补建索引期间行号仍在增长，等补建完成后再整理
+        if (compactionScheduled || catchUpScheduled || matrix == null) {
+            return;
+        }
+        CompactionPlan plan = planCompaction();
+        if (plan == null) {
+            return;
+        }
+        compactionScheduled = true;
+        try {
+            indexMaintenanceExecutor.execute(() -> compactInBackground(plan));
+        } catch (RejectedExecutionException e) {
+            compactionScheduled = false;
+            if (plan.segmentId() >= 0) {
+                segmentStore.discard(plan.segmentId());
+            }
+        }
+    }
+    
+    // 后台整理的范围：[fromRow, toRow)中的存活行合并为一段；开启持久化时对应清单中从firstSegment开始的相邻段
+    private record CompactionPlan(DocumentTable documents, int fromRow, int toRow, int firstSegment,
+                                  List<SegmentFile> segments, BitSet deleted, long segmentId) {
+    }
+    
+    // 开启持久化时选取第一组删除占比超过阈值的相邻段，未开启时整理全部行（调用方持有写锁）
+    private CompactionPlan planCompaction() {
+        if (segmentStore == null) {
+            int size = rowDocuments.size();
+            if (deletedRows.cardinality() <= size * COMPACT_DELETED_RATIO) {
+                return null;
+            }
+            return new CompactionPlan(rowDocuments, 0, size, -1, List.of(), (BitSet) deletedRows.clone(), -1);
+        }
+        List<SegmentFile> segments = rowDocuments.segments();
+        int firstSegment = -1;
+        int fromRow = 0;
+        int toRow = 0;
+        int row = 0;
+        for (int i = 0; i < segments.size(); i++) {
+            int rows = segments.get(i).rowCount();
+            boolean dirty = rows > 0 && deletedRows.get(row, row + rows).cardinality() > rows * COMPACT_DELETED_RATIO;
+            if (dirty && firstSegment < 0) {
+                firstSegment = i;
+                fromRow = row;
+            } else if (!dirty && firstSegment >= 0) {
+                break;
+            }
+            row += rows;
+            if (dirty) {
+                toRow = row;
+            }
+        }
+        if (firstSegment < 0) {
+            return null;
+        }
+        List<SegmentFile> merged = new ArrayList<>();
+        for (int i = firstSegment, rows = fromRow; rows < toRow; i++) {
+            merged.add(segments.get(i));
+            rows += segments.get(i).rowCount();
+        }
+        return new CompactionPlan(rowDocuments, fromRow, toRow, firstSegment, merged,
+                deletedRows.get(0, toRow), segmentStore.reserveId());
+    }
+    
+    // 后台整理：先在锁外把存活行写成新段（未开启持久化时在读锁内复制到内存），检索和写入不受影响；
+    // 再在写锁内替换段、重映射行号和索引，期间新写入的行追加在后，新删除的行保留删除标记
+    private void compactInBackground(CompactionPlan plan) {
+        EmbeddingMatrix copied = null;
+        DocumentTable copiedDocuments = null;
+        SegmentFile segment = null;
+        try {
+            if (plan.segmentId() >= 0) {
+                // 段文件不可变，直接按待合并的段组装只读视图
+                EmbeddingMatrix view = new EmbeddingMatrix(plan.segments().get(0).dimension());
+                DocumentTable viewDocuments = new DocumentTable();
+                for (SegmentFile source : plan.segments()) {
+                    view.attach(source.vectors(), source.rowCount());
+                    viewDocuments.attach(source);
+                }
+                segment = segmentStore.writeSegment(plan.segmentId(), view, viewDocuments,
+                        liveRows(plan.deleted(), plan.fromRow(), plan.toRow()));
+            } else {
+                storeLock.readLock().lock();
+                try {
+                    if (rowDocuments != plan.documents() || matrix == null) {
+                        return;
+                    }
+                    copied = new EmbeddingMatrix(matrix.dimension());
+                    copiedDocuments = new DocumentTable();
+                    for (int row : liveRows(plan.deleted(), plan.fromRow(), plan.toRow())) {
+                        copied.appendFrom(matrix, plan.fromRow() + row);
+                        copiedDocuments.add(rowDocuments.get(plan.fromRow() + row));
+                    }
+                } finally {
+                    storeLock.readLock().unlock();
+                }
+            }
+        } catch (ClosedByInterruptException e) {
+            // 关闭时中断了后台线程，不是故障；未完成的新段随即丢弃，清单不变
+            logger.info("关闭向量存储，中止后台整理");
+        } catch (IOException | RuntimeException e) {
+            logger.error("整理向量存储段失败", e);
+        } finally {
+            if (segment == null && copied == null) {
+                storeLock.writeLock().lock();
+                try {
+                    compactionScheduled = false;
+                    if (plan.segmentId() >= 0 && segmentStore != null) {
+                        segmentStore.discard(plan.segmentId());
+                    }
+                } finally {
+                    storeLock.writeLock().unlock();
+                }
+            }
+        }
+        if (segment == null && copied == null) {
+            return;
+        }
         
-        boolean removed = documents.size() < initialSize;
-        if (removed) {
-            queryCache.invalidateAll();
+        storeLock.writeLock().lock();
+        try {
+            compactionScheduled = false;
+            applyCompaction(plan, segment, copied, copiedDocuments);
+            // 还有其他段超过阈值时继续整理
+            scheduleCompaction();
+        } finally {
+            storeLock.writeLock().unlock();
+        }
+    }
+    
+    // [fromRow, toRow)中截至计划时仍存活的行，行号相对fromRow
+    private static int[] liveRows(BitSet deleted, int fromRow, int toRow) {
+        int[] rows = new int[toRow - fromRow - deleted.get(fromRow, toRow).cardinality()];
+        int count = 0;
+        for (int row = fromRow; row < toRow; row++) {
+            if (!deleted.get(row)) {
+                rows[count++] = row - fromRow;
+            }
+        }
+        return rows;
+    }
+    
+    // 用整理结果替换[fromRow, toRow)并重映射其后的行号（调用方持有写锁）
+    // 计划之后被清空、关闭或开始补建时放弃本次整理
+    private void applyCompaction(CompactionPlan plan, SegmentFile segment, EmbeddingMatrix copied,
+                                 DocumentTable copiedDocuments) {
+        boolean persisted = segment != null;
+        if (rowDocuments != plan.documents() || matrix == null || catchUpScheduled || (persisted && segmentStore == null)) {
+            if (persisted && segmentStore != null) {
+                segmentStore.discard(plan.segmentId());
+            }
+            return;
+        }
+        int size = rowDocuments.size();
+        int[] oldToNew = new int[size];
+        int next = 0;
+        for (int row = 0; row < size; row++) {
+            boolean dropped = row >= plan.fromRow() && row < plan.toRow() && plan.deleted().get(row);
+            oldToNew[row] = dropped ? -1 : next++;
+        }
+        int newSize = next;
+        
+        EmbeddingMatrix compacted;
+        DocumentTable keptDocuments;
+        if (persisted) {
+            // 其余段直接沿用原有映射，只有未落盘的行需要复制
+            compacted = new EmbeddingMatrix(matrix.dimension());
+            keptDocuments = new DocumentTable();
+            List<SegmentFile> segments = new ArrayList<>(rowDocuments.segments());
+            int lastSegment = plan.firstSegment() + plan.segments().size();
+            segments.subList(plan.firstSegment(), lastSegment).clear();
+            segments.add(plan.firstSegment(), segment);
+            for (SegmentFile source : segments) {
+                compacted.attach(source.vectors(), source.rowCount());
+                keptDocuments.attach(source);
+            }
+        } else {
+            compacted = copied;
+            keptDocuments = copiedDocuments;
+        }
+        for (int row = persisted ? rowDocuments.sealedRows() : plan.toRow(); row < size; row++) {
+            compacted.appendFrom(matrix, row);
+            keptDocuments.add(rowDocuments.get(row));
+        }
+        BitSet keptDeleted = new BitSet();
+        for (int row = deletedRows.nextSetBit(0); row >= 0; row = deletedRows.nextSetBit(row + 1)) {
+            if (oldToNew[row] >= 0) {
+                keptDeleted.set(oldToNew[row]);
+            }
+        }
+        if (persisted) {
+            try {
+                segmentStore.replace(plan.firstSegment(), plan.segments().size(), segment, plan.segmentId(), keptDeleted);
+            } catch (IOException e) {
+                logger.error("替换整理后的向量存储段失败", e);
+                segmentStore.discard(plan.segmentId());
+                return;
+            }
+        }
+        
+        if (vectorIndex != null) {
+            vectorIndex = vectorIndex.compact(compacted, oldToNew, newSize);
+            // 范围外的已删除行仍在矩阵中，重建后重新标记
+            for (int row = keptDeleted.nextSetBit(0); row >= 0; row = keptDeleted.nextSetBit(row + 1)) {
+                vectorIndex.remove(row);
+            }
+        }
+        // 旧矩阵和量化副本可能仍被检索快照引用，由GC回收
+        matrix = compacted;
+        Map<SearchPipeline.StageType, QuantizedVectors> compactedQuantizers = new EnumMap<>(SearchPipeline.StageType.class);
+        for (Map.Entry<SearchPipeline.StageType, QuantizedVectors> entry : quantizers.entrySet()) {
+            compactedQuantizers.put(entry.getKey(), entry.getValue().compact(compacted, oldToNew, newSize));
+            entry.getValue().close();
+        }
+        quantizers = compactedQuantizers;
+        rowDocuments = keptDocuments;
+        metadataIndex = metadataIndex.remap(oldToNew);
+        deletedRows = keptDeleted;
+        indexedRows = newSize;
+        // 整理只改变行号，不改变任何检索结果，语义缓存中的文档和分数仍然有效
+        publish();
+    }
+    
+    // 首次写入或启动挂载段时按向量维度创建矩阵、索引和量化副本（调用方持有写锁）
+    private void createMatrix(int dimension) {
+        matrix = new EmbeddingMatrix(dimension);
+        vectorIndex = createIndex(matrix);
+        for (SearchPipeline.Stage stage : searchPipeline.prefilters()) {
+            quantizers.put(stage.type(), createQuantizer(stage.type(), matrix));
+        }
+    }
+    
+    // 把尚未加入索引和量化副本的行补进去，至多limit行，返回是否已全部补齐（调用方持有写锁）
+    private boolean feedIndex(int limit) {
+        if (matrix == null) {
+            return true;
+        }
+        if (vectorIndex == null && quantizers.isEmpty()) {
+            indexedRows = matrix.size();
+            return true;
+        }
+        int end = (int) Math.min(matrix.size(), (long) indexedRows + limit);
+        float[] vector = new float[matrix.dimension()];
+        for (int row = indexedRows; row < end; row++) {
+            matrix.readRow(row, vector);
+            for (QuantizedVectors quantized : quantizers.values()) {
+                quantized.add(row, vector);
+            }
+            if (vectorIndex != null) {
+                vectorIndex.add(row);
+                if (deletedRows.get(row)) {
+                    vectorIndex.remove(row);
+                }
+            }
+        }
+        indexedRows = end;
+        return end == matrix.size();
+    }
+    
+    // 在后台分批补建索引，每批单独持有写锁，批次之间检索可以继续进行（调用方持有写锁）
+    private void scheduleCatchUp() {
+        if (catchUpScheduled || feedIndex(0)) {
+            return;
+        }
+        catchUpScheduled = true;
+        try {
+            indexMaintenanceExecutor.execute(this::catchUpBatch);
+        } catch (RejectedExecutionException e) {
+            catchUpScheduled = false;
+        }
+    }
+    
+    private void catchUpBatch() {
+        storeLock.writeLock().lock();
+        try {
+            catchUpScheduled = false;
+            boolean done = feedIndex(CATCH_UP_BATCH);
+            publish();
+            if (!done) {
+                scheduleCatchUp();
+            } else {
+                scheduleCompaction();
+            }
+        } finally {
+            storeLock.writeLock().unlock();
+        }
+    }
+    
+    // 检查点：把只在日志中的行写成新段，连同删除标记和新的日志代号写入清单，然后删除已被覆盖的旧日志（调用方持有写锁）
+    // 之后这些行的向量和文档改为从内存映射的段文件读取；失败时行继续保留在内存和日志中，下次检查点重试
+    private void checkpoint() {
+        if (segmentStore == null) {
+            return;
+        }
+        try {
+            long generation = writeAheadLog.rotate();
+            int fromRow = rowDocuments.sealedRows();
+            int toRow = rowDocuments.size();
+            if (fromRow == 0 && segmentStore.rowCount() > 0) {
+                // 上次清空时写清单失败，清单中仍有旧段
+                segmentStore.clear(generation);
+            }
+            if (fromRow < toRow) {
+                SegmentFile segment = segmentStore.append(matrix, rowDocuments, fromRow, toRow, deletedRows, generation);
+                matrix.replaceTail(fromRow, segment.vectors());
+                rowDocuments.seal(segment);
+            } else {
+                segmentStore.checkpoint(deletedRows, generation);
+            }
+            writeAheadLog.deleteBefore(generation);
+            // 新段中可能已有删除的行
+            scheduleCompaction();
+        } catch (IOException e) {
+            logger.error("写向量存储检查点失败", e);
+        }
+    }
+    
+    // 启动时挂载数据目录下已落盘的段：向量区直接内存映射，文档在检索命中时才解码，不重新生成嵌入
+    // 然后重放检查点之后的日志并立即写检查点；索引和量化副本在后台分批补建
+    // 段或日志无法读取时本次运行不再写盘，避免覆盖已有数据
+    private void openSegments() {
+        if (!properties.getPersistence().isEnabled()) {
+            return;
+        }
+        Path directory = Paths.get(properties.getDataDir(), SEGMENTS_DIR);
+        storeLock.writeLock().lock();
+        try {
+            segmentStore = new SegmentStore(directory);
+            BitSet deleted = new BitSet();
+            for (SegmentFile segment : segmentStore.open(deleted)) {
+                if (matrix == null) {
+                    createMatrix(segment.dimension());
+                }
+                if (segment.dimension() != matrix.dimension()) {
+                    throw new IOException("段文件向量维度 " + segment.dimension() + " 与 " + matrix.dimension() + " 不一致: " + segment.path());
+                }
+                matrix.attach(segment.vectors(), segment.rowCount());
+                rowDocuments.attach(segment);
+            }
+            deletedRows = deleted;
+            // 重建元数据索引，每个文件只在第一行解码元数据
+            MetadataIndex.Editor metadata = metadataIndex.edit();
+            for (int row = 0; row < rowDocuments.size(); row++) {
+                String fileId = rowDocuments.fileIdOf(row);
+                if (fileId != null && !deletedRows.get(row)) {
+                    int first = row;
+                    metadata.add(row, fileId, () -> rowDocuments.metadata(first));
+                }
+            }
+            metadataIndex = metadata.build();
+            // 先登记后台补建，重放的行不在启动线程上建索引
+            scheduleCatchUp();
+            writeAheadLog = WriteAheadLog.open(directory, segmentStore.walGeneration());
+            if (WriteAheadLog.replay(directory, segmentStore.walGeneration(), this::replay) > 0) {
+                checkpoint();
+            }
+        } catch (IOException | RuntimeException e) {
+            logger.error("打开向量存储段失败，本次运行不写盘", e);
+            applyDeleteAll();
+            segmentStore = null;
+            writeAheadLog = null;
+        } finally {
+            publish();
+            storeLock.writeLock().unlock();
+        }
+    }
+    
+    // 检索快照：发布时已提交的行数、文档、删除标记、索引和量化副本，之后的写入对其不可见
+    // 矩阵和量化副本只追加，快照按行数截取；文档表和删除标记写时复制；索引检索时只访问快照行数以内的行
+    private record StoreSnapshot(EmbeddingMatrix matrix, int rowCount, DocumentTable documents, BitSet deleted,
+                                 VectorIndex index, Map<SearchPipeline.StageType, QuantizedVectors> quantizers,
+                                 int indexedRows, MetadataIndex metadata) {
+        static final StoreSnapshot EMPTY = new StoreSnapshot(null, 0, new DocumentTable().snapshot(), new BitSet(),
+                null, Map.of(), 0, MetadataIndex.EMPTY);
+    }
+    
+    // 发布当前状态供检索使用（调用方持有写锁）
+    private void publish() {
+        if (matrix == null) {
+            snapshot = StoreSnapshot.EMPTY;
+            return;
         }
-        return removed;
+        snapshot = new StoreSnapshot(matrix, matrix.size(), rowDocuments.snapshot(), deletedRows, vectorIndex,
+                quantizers.isEmpty() ? Map.of() : new EnumMap<>(quantizers), indexedRows, metadataIndex);
     }
     
-    // 获取所有文件映射（用于启动时恢复文件列表）
+    // 打开数据目录下的文档块嵌入缓存，打开失败时本次运行不使用缓存
+    private void openEmbeddingCache() {
+        long maxBytes = properties.getEmbeddingCache().getMaxBytes();
+        if (maxBytes <= 0) {
+            return;
+        }
+        try {
+            embeddingCache = EmbeddingCache.open(Paths.get(properties.getDataDir(), EMBEDDING_CACHE_DIR), maxBytes);
+        } catch (IOException | RuntimeException e) {
+            logger.warn("打开嵌入缓存失败，本次运行不使用缓存: {}", e.getMessage());
+            embeddingCache = null;
+        }
+    }
+    
+    // 按检索模式创建索引
+    private VectorIndex createIndex(EmbeddingMatrix rows) {
+        switch (properties.getSearchMode()) {
+            case HNSW:
+                VectorStoreProperties.Hnsw hnsw = properties.getHnsw();
+                return new HnswIndex(rows, similarityKernel, hnsw.getM(), hnsw.getEfConstruction(), hnsw.getEfSearch());
+            case IVF:
+                VectorStoreProperties.Ivf ivf = properties.getIvf();
+                return new IvfIndex(rows, similarityKernel, indexMaintenanceExecutor, ivf.getLists(), ivf.getNprobe(),
+                        ivf.getTrainThreshold(), ivf.getKmeansIterations(), ivf.getRetrainGrowth());
+            default:
+                return null;
+        }
+    }
+    
+    // 按流水线阶段创建量化副本
+    private QuantizedVectors createQuantizer(SearchPipeline.StageType type, EmbeddingMatrix rows) {
+        VectorStoreProperties.Quantization quantization = properties.getQuantization();
+        switch (type) {
+            case BINARY:
+                return new BinarySignatures(rows.dimension());
+            case INT8:
+                return new Int8Quantizer(rows.dimension(), similarityKernel);
+            case PQ:
+                VectorStoreProperties.Quantization.Pq pq = quantization.getPq();
+                return new ProductQuantizer(rows, indexMaintenanceExecutor, pq.getSubspaces(),
+                        pq.getTrainThreshold(), pq.getKmeansIterations(),
+                        Paths.get(properties.getDataDir(), PQ_CODEBOOK_FILE));
+            default:
+                throw new IllegalArgumentException("检索流水线阶段不需要量化副本: " + type);
+        }
+    }
+    
+    // 未显式配置检索流水线时，由quantization.mode推导：量化一级粗筛后精排
+    private static String pipelineSpec(VectorStoreProperties properties) {
+        if (properties.getSearchPipeline() != null && !properties.getSearchPipeline().isBlank()) {
+            return properties.getSearchPipeline();
+        }
+        VectorStoreProperties.Quantization quantization = properties.getQuantization();
+        switch (quantization.getMode()) {
+            case INT8:
+                return "int8:" + quantization.getOversampling() + ",exact";
+            case PQ:
+                return "pq:" + quantization.getOversampling() + ",exact";
+            default:
+                return "exact";
+        }
+    }
+    
+    // 获取所有文件映射（用于启动时恢复文件列表），文件名取自元数据索引，不解码元数据
     public Map<String, String> getAllFileMappings() {
         Map<String, String> mappings = new HashMap<>();
-        for (Document doc : documents) {
-            if (doc.getMetadata() != null && 
-                doc.getMetadata().containsKey("fileId") && 
-                doc.getMetadata().containsKey("fileName")) {
-                String fileId = (String) doc.getMetadata().get("fileId");
-                String fileName = (String) doc.getMetadata().get("fileName");
-                mappings.putIfAbsent(fileId, fileName);
+        for (Map.Entry<String, MetadataIndex.FileEntry> entry : snapshot.metadata().files().entrySet()) {
+            if (entry.getValue().fileName() != null) {
+                mappings.put(entry.getKey(), entry.getValue().fileName());
             }
         }
         return mappings;
     }
     
-    // 获取所有文件的详细信息，包括文件大小等
+    // 获取所有文件的详细信息，包括文件大小等；文件名、类型和上传时间取自元数据索引，只有文件大小需解码第一行
     public Map<String, Map<String, Object>> getAllFilesDetails() {
         Map<String, Map<String, Object>> fileDetailsMap = new HashMap<>();
         
-        for (Document doc : documents) {
-            if (doc.getMetadata() != null && doc.getMetadata().containsKey("fileId")) {
-                String fileId = (String) doc.getMetadata().get("fileId");
-                
-                // 如果还没有为这个文件创建详细信息映射，则创建一个
-                if (!fileDetailsMap.containsKey(fileId)) {
-                    Map<String, Object> fileDetails = new HashMap<>();
-                    fileDetails.put("fileId", fileId);
-                    
-                    // 从metadata中获取所有可用信息
-                    if (doc.getMetadata().containsKey("fileName")) {
-                        fileDetails.put("fileName", doc.getMetadata().get("fileName"));
-                    }
-                    if (doc.getMetadata().containsKey("fileSize")) {
-                        fileDetails.put("fileSize", doc.getMetadata().get("fileSize"));
-                    }
-                    // 添加上传时间（使用文档添加时间或当前时间）
-                    fileDetails.put("uploadedAt", new java.text.SimpleDateFormat("yyyy-MM-dd'T'HH:mm:ss.SSSXXX").format(new Date()));
-                    
-                    fileDetailsMap.put(fileId, fileDetails);
-                }
+        // 从快照读取，文件列表与检索看到的状态一致，不占用写锁
+        StoreSnapshot current = snapshot;
+        for (Map.Entry<String, MetadataIndex.FileEntry> entry : current.metadata().files().entrySet()) {
+            String fileId = entry.getKey();
+            MetadataIndex.FileEntry file = entry.getValue();
+            Map<String, Object> fileDetails = new HashMap<>();
+            fileDetails.put("fileId", fileId);
+            
+            if (file.fileName() != null) {
+                fileDetails.put("fileName", file.fileName());
+            }
+            if (file.fileType() != null) {
+                fileDetails.put("fileType", file.fileType());
             }
+            Map<String, Object> metadata = current.documents().metadata(file.rows().first());
+            if (metadata.containsKey("fileSize")) {
+                fileDetails.put("fileSize", metadata.get("fileSize"));
+            }
+            // 添加上传时间（旧数据没有记录上传时间时使用当前时间）
+            Date uploadedAt = file.uploadedAt() != null ? new Date(file.uploadedAt()) : new Date();
+            fileDetails.put("uploadedAt", new java.text.SimpleDateFormat("yyyy-MM-dd'T'HH:mm:ss.SSSXXX").format(uploadedAt));
+            
+            fileDetailsMap.put(fileId, fileDetails);
         }
         
         return fileDetailsMap;
     }
 
-    // 辅助类：带相似度分数的文档
-    private static class DocumentWithScore {
+    // 检索结果：相关文档，以及语义缓存中相近问题的已生成回答（没有时为空）
+    public final class Retrieval {
+        private final List<Document> documents;
+        private final String cachedAnswer;
+        private final SemanticCache.Entry entry;
+
+        private Retrieval(List<Document> documents, String cachedAnswer, SemanticCache.Entry entry) {
+            this.documents = documents;
+            this.cachedAnswer = cachedAnswer;
+            this.entry = entry;
+        }
+
+        public List<Document> getDocuments() {
+            return documents;
+        }
+
+        public String getCachedAnswer() {
+            return cachedAnswer;
+        }
+
+        // 记录为这次检索生成的回答，供之后相近的问题复用；未开启回答缓存或条目已作废时忽略
+        public void cacheAnswer(String answer) {
+            if (cacheAnswers) {
+                queryCache.putAnswer(entry, answer);
+            }
+        }
+    }
+
+    // 辅助类：带相似度分数的文档，语义缓存的候选池也使用它
+    static class DocumentWithScore {
         private final Document document;
         private final double score;
 
@@ -308,44 +1381,4 @@ public class SimpleVectorStore {
             return score;
         }
     }
-
-    // 优化的余弦相似度计算方法
-    private double cosineSimilarity(List<Double> vec1, List<Double> vec2) {
-        // 快速路径：检查输入有效性
-        if (vec1 == null || vec2 == null || vec1.isEmpty() || vec2.isEmpty()) {
-            return 0.0;
-        }
-        
-        // 获取向量长度，只处理到较短向量的长度
-        final int vec1Size = vec1.size();
-        final int vec2Size = vec2.size();
-        final int length = Math.min(vec1Size, vec2Size);
-        
-        // 预计算循环边界，减少循环内的开销
-        double dotProduct = 0.0;
-        double norm1 = 0.0;
-        double norm2 = 0.0;
-        
-        // 优化的循环计算，避免循环内的函数调用和边界检查
-        for (int i = 0; i < length; i++) {
-            final double val1 = vec1.get(i);
-            final double val2 = vec2.get(i);
-            
-            // 累加计算点积和向量范数
-            dotProduct += val1 * val2;
-            norm1 += val1 * val1;
-            norm2 += val2 * val2;
-        }
-        
-        // 避免除以零和不必要的计算
-        if (norm1 == 0.0 || norm2 == 0.0) {
-            return 0.0;
-        }
-        
-        // 一次性计算平方根，减少Math.sqrt调用次数
-        final double denominator = Math.sqrt(norm1) * Math.sqrt(norm2);
-        
-        // 计算最终相似度
-        return dotProduct / denominator;
-    }
 }
\ No newline at end of file
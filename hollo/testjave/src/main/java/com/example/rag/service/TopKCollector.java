@@ -0,0 +1,58 @@
+package com.example.rag.service;
+
+import java.util.List;
+
+/**
+ * 作者: liangyajie
+ * 联系方式: 695274107@qq.com
+ * 有界的Top-K收集器：用原始类型最小堆只保留分数最高的k行，内存和排序开销与语料规模无关
+ * 每个扫描线程使用各自的收集器，结束后合并，不需要同步
+ */
+
+final class TopKCollector {
+
+    private final int k;
+    private final float minScore;
+    private final NodeHeap heap;
+
+    // 收集分数最高的k行，分数不大于minScore的行直接丢弃
+    TopKCollector(int k, float minScore) {
+        this.k = Math.max(1, k);
+        this.minScore = minScore;
+        this.heap = new NodeHeap(this.k + 1, false);
+    }
+
+    // 不设分数下限
+    TopKCollector(int k) {
+        this(k, Float.NEGATIVE_INFINITY);
+    }
+
+    void offer(int row, float score) {
+        if (score <= minScore) {
+            return;
+        }
+        if (heap.size() < k) {
+            heap.push(row, score);
+        } else if (score > heap.topScore()) {
+            heap.replaceTop(row, score);
+        }
+    }
+
+    // 合并另一个收集器的结果，合并后other被清空
+    void addAll(TopKCollector other) {
+        NodeHeap source = other.heap;
+        while (source.size() > 0) {
+            offer(source.topNode(), source.topScore());
+            source.pop();
+        }
+    }
+
+    int size() {
+        return heap.size();
+    }
+
+    // 弹出全部结果，按分数降序返回
+    List<VectorIndex.ScoredRow> drainDescending() {
+        return heap.drainDescending();
+    }
+}
@@ -0,0 +1,46 @@
+package com.example.rag.service;
+
+import java.util.BitSet;
+import java.util.List;
+
+/**
+ * 作者: liangyajie
+ * 联系方式: 695274107@qq.com
+ * 近似检索索引接口，索引以矩阵行号标识向量，由SimpleVectorStore在写锁内维护
+ * 检索不加锁，与写入并发进行；检索只访问快照中已发布的行，实现需容忍读到写入中途的状态
+ */
+
+interface VectorIndex {
+
+    // 新行已写入矩阵后加入索引
+    void add(int row);
+
+    // 标记删除某一行
+    void remove(int row);
+
+    // 索引是否可以提供检索（例如IVF在训练完成前不可用，由调用方回退到暴力扫描）
+    boolean ready();
+
+    // 检索行号小于rowCount的行中最相似的k个未删除行，按相似度降序返回；不会访问rowCount及之后的行
+    // allowed不为空时只返回其中的行（元数据过滤），在检索过程中判断，而不是取出k个后再过滤
+    List<ScoredRow> search(float[] query, int k, int rowCount, BitSet allowed);
+
+    default List<ScoredRow> search(float[] query, int k, int rowCount) {
+        return search(query, k, rowCount, null);
+    }
+
+    default List<ScoredRow> search(float[] query, int k) {
+        return search(query, k, Integer.MAX_VALUE);
+    }
+
+    // 矩阵整理后按新行号重建索引，oldToNew中已删除的行为-1
+    VectorIndex compact(EmbeddingMatrix newMatrix, int[] oldToNew, int newSize);
+
+    // 停止后台任务；检索线程可能仍持有索引，已有数据保持可读
+    default void close() {
+    }
+
+    // 检索结果：行号和相似度
+    record ScoredRow(int row, float score) {
+    }
+}
@@ -0,0 +1,330 @@
+package com.example.rag.service;
+
+import com.example.rag.model.Document;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.lang.foreign.Arena;
+import java.lang.foreign.MemorySegment;
+import java.lang.foreign.ValueLayout;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.TreeMap;
+import java.util.function.Consumer;
+import java.util.zip.CRC32;
+
+/**
+ * 作者: liangyajie
+ * 联系方式: 695274107@qq.com
+ * 预写日志：add、deleteByFileId、deleteAll在修改内存状态的同时追加一条记录，返回前等待记录刷盘
+ * 组提交：同时等待的多个写入共用一次fsync；日志按代切换，检查点把此前各代的内容写入段文件后删除旧日志
+ *
+ * 文件 wal-<代号>.log：[magic][version][字节序] + 记录*
+ * 记录：[int 长度][int CRC32][byte 类型][内容]，长度与校验覆盖类型和内容；崩溃留下的残缺记录在重放时截断
+ */
+
+final class WriteAheadLog implements AutoCloseable {
+
+    private static final Logger logger = LoggerFactory.getLogger(WriteAheadLog.class);
+
+    static final byte ADD = 1;
+    static final byte DELETE_FILE = 2;
+    static final byte DELETE_ALL = 3;
+
+    private static final int MAGIC = 0x57414C31;
+    private static final int VERSION = 1;
+    private static final int FILE_HEADER_BYTES = 12;
+    private static final int RECORD_HEADER_BYTES = 8;
+    private static final String PREFIX = "wal-";
+    private static final String SUFFIX = ".log";
+
+    private static final ValueLayout.OfInt INT = ValueLayout.JAVA_INT_UNALIGNED;
+    private static final ValueLayout.OfFloat FLOAT = ValueLayout.JAVA_FLOAT_UNALIGNED;
+
+    // 重放出的一条记录：ADD带文档（向量已归一化），DELETE_FILE带文件ID
+    record Entry(byte type, List<Document> documents, String fileId) {
+    }
+
+    private final Path directory;
+    // 以下字段由this同步
+    private long generation;
+    private FileChannel channel;
+    // 已追加和已刷盘的字节序号，跨代单调递增
+    private long appendedBytes;
+    private long syncedBytes;
+    private boolean syncing;
+
+    private WriteAheadLog(Path directory, long generation) {
+        this.directory = directory;
+        this.generation = generation;
+    }
+
+    // 打开日志目录，新记录追加到不早于fromGeneration的最新一代；文件在第一次追加时创建
+    static WriteAheadLog open(Path directory, long fromGeneration) throws IOException {
+        TreeMap<Long, Path> files = logFiles(directory);
+        long last = files.isEmpty() ? fromGeneration : Math.max(fromGeneration, files.lastKey());
+        return new WriteAheadLog(directory, last);
+    }
+
+    // 编码一批已归一化的文档
+    static ByteBuffer addRecord(List<Document> documents) {
+        List<ByteBuffer> records = new ArrayList<>(documents.size());
+        int dimension = documents.isEmpty() ? 0 : documents.get(0).getEmbeddingVector().length;
+        long size = 2L * Integer.BYTES;
+        for (Document document : documents) {
+            ByteBuffer record = SegmentFile.encode(document);
+            records.add(record);
+            size += (long) dimension * Float.BYTES + record.remaining();
+        }
+        ByteBuffer buffer = ByteBuffer.allocate(Math.toIntExact(size)).order(ByteOrder.nativeOrder());
+        buffer.putInt(documents.size()).putInt(dimension);
+        for (int i = 0; i < documents.size(); i++) {
+            for (float value : documents.get(i).getEmbeddingVector()) {
+                buffer.putFloat(value);
+            }
+            buffer.put(records.get(i));
+        }
+        return buffer.flip();
+    }
+
+    static ByteBuffer deleteFileRecord(String fileId) {
+        byte[] bytes = fileId.getBytes(StandardCharsets.UTF_8);
+        return ByteBuffer.allocate(Integer.BYTES + bytes.length).order(ByteOrder.nativeOrder())
+                .putInt(bytes.length).put(bytes).flip();
+    }
+
+    // 追加一条记录（调用方持有存储写锁，保证日志顺序与内存修改顺序一致），返回需等待刷盘的位置
+    synchronized long append(byte type, ByteBuffer payload) throws IOException {
+        if (channel == null) {
+            open();
+        }
+        int length = 1 + payload.remaining();
+        CRC32 crc = new CRC32();
+        crc.update(type);
+        crc.update(payload.duplicate());
+        ByteBuffer header = ByteBuffer.allocate(RECORD_HEADER_BYTES + 1).order(ByteOrder.nativeOrder());
+        header.putInt(length).putInt((int) crc.getValue()).put(type).flip();
+        ByteBuffer[] buffers = {header, payload};
+        long remaining = header.remaining() + payload.remaining();
+        while (remaining > 0) {
+            remaining -= channel.write(buffers);
+        }
+        appendedBytes += RECORD_HEADER_BYTES + length;
+        return appendedBytes;
+    }
+
+    // 等待position之前的记录刷盘：没有进行中的刷盘时由当前线程执行并覆盖此前所有追加，否则等待其完成后再判断
+    void sync(long position) throws IOException {
+        FileChannel target;
+        long covered;
+        synchronized (this) {
+            while (syncedBytes < position && syncing) {
+                waitQuietly();
+            }
+            if (syncedBytes >= position) {
+                return;
+            }
+            syncing = true;
+            target = channel;
+            covered = appendedBytes;
+        }
+        IOException failure = null;
+        try {
+            target.force(false);
+        } catch (IOException e) {
+            failure = e;
+        }
+        synchronized (this) {
+            syncing = false;
+            if (failure == null) {
+                syncedBytes = Math.max(syncedBytes, covered);
+            }
+            notifyAll();
+        }
+        if (failure != null) {
+            throw failure;
+        }
+    }
+
+    // 切换到新一代日志并返回新代号，此前的记录都在更早的代中且已刷盘
+    synchronized long rotate() throws IOException {
+        while (syncing) {
+            waitQuietly();
+        }
+        if (channel != null) {
+            channel.force(false);
+            channel.close();
+            channel = null;
+            syncedBytes = appendedBytes;
+        }
+        generation++;
+        return generation;
+    }
+
+    // 删除早于generation的日志文件（其内容已写入段文件）
+    void deleteBefore(long generation) throws IOException {
+        for (Path file : logFiles(directory).headMap(generation).values()) {
+            Files.deleteIfExists(file);
+        }
+    }
+
+    // 按代号顺序重放不早于fromGeneration的日志，返回重放的记录数；末尾的残缺记录被截断
+    static int replay(Path directory, long fromGeneration, Consumer<Entry> consumer) throws IOException {
+        int replayed = 0;
+        for (Path file : logFiles(directory).tailMap(fromGeneration).values()) {
+            replayed += replayFile(file, consumer);
+        }
+        return replayed;
+    }
+
+    // 当前代号，不早于所有已有日志文件
+    synchronized long generation() {
+        return generation;
+    }
+
+    @Override
+    public synchronized void close() throws IOException {
+        if (channel != null) {
+            channel.force(false);
+            channel.close();
+            channel = null;
+        }
+    }
+
+    private void open() throws IOException {
+        if (!Files.isDirectory(directory)) {
+            Files.createDirectories(directory);
+            FileSync.syncDirectory(directory.toAbsolutePath().getParent());
+        }
+        Path file = directory.resolve(fileName(generation));
+        channel = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.APPEND);
+        if (channel.size() == 0) {
+            ByteBuffer header = ByteBuffer.allocate(FILE_HEADER_BYTES).order(ByteOrder.nativeOrder());
+            header.putInt(MAGIC).putInt(VERSION).putInt(orderMarker()).flip();
+            while (header.hasRemaining()) {
+                channel.write(header);
+            }
+            // 新建的日志文件刷新目录后，之后刷盘的记录才能在掉电后找到
+            channel.force(true);
+            FileSync.syncDirectory(directory);
+        }
+    }
+
+    private static int replayFile(Path file, Consumer<Entry> consumer) throws IOException {
+        int replayed = 0;
+        long size = Files.size(file);
+        // 创建文件时崩溃可能只留下不完整的文件头，整体截断
+        long validBytes = 0;
+        if (size >= FILE_HEADER_BYTES) {
+            try (Arena arena = Arena.ofConfined();
+                 FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+                MemorySegment log = channel.map(FileChannel.MapMode.READ_ONLY, 0, size, arena);
+                if (log.get(INT, 0) != MAGIC || log.get(INT, 4) != VERSION || log.get(INT, 8) != orderMarker()) {
+                    throw new IOException("不是有效的预写日志: " + file);
+                }
+                long position = FILE_HEADER_BYTES;
+                while (position + RECORD_HEADER_BYTES + 1 <= size) {
+                    int length = log.get(INT, position);
+                    if (length <= 0 || position + RECORD_HEADER_BYTES + length > size) {
+                        break;
+                    }
+                    MemorySegment body = log.asSlice(position + RECORD_HEADER_BYTES, length);
+                    CRC32 crc = new CRC32();
+                    crc.update(body.asByteBuffer());
+                    if ((int) crc.getValue() != log.get(INT, position + Integer.BYTES)) {
+                        break;
+                    }
+                    consumer.accept(decode(body));
+                    replayed++;
+                    position += RECORD_HEADER_BYTES + length;
+                }
+                validBytes = position;
+            }
+        }
+        if (validBytes < size) {
+            logger.warn("预写日志 {} 末尾有 {} 字节残缺记录，已截断", file, size - validBytes);
+            try (FileChannel channel = FileChannel.open(file, StandardOpenOption.WRITE)) {
+                channel.truncate(validBytes);
+                channel.force(true);
+            }
+        }
+        return replayed;
+    }
+
+    private static Entry decode(MemorySegment body) {
+        byte type = body.get(ValueLayout.JAVA_BYTE, 0);
+        long position = 1;
+        switch (type) {
+            case ADD -> {
+                int count = body.get(INT, position);
+                int dimension = body.get(INT, position + Integer.BYTES);
+                position += 2L * Integer.BYTES;
+                List<Document> documents = new ArrayList<>(count);
+                for (int i = 0; i < count; i++) {
+                    float[] vector = new float[dimension];
+                    MemorySegment.copy(body, FLOAT, position, vector, 0, dimension);
+                    position += (long) dimension * Float.BYTES;
+                    Document document = SegmentFile.decode(body, position);
+                    position += SegmentFile.recordBytes(body, position);
+                    document.setEmbeddingVector(vector);
+                    documents.add(document);
+                }
+                return new Entry(type, documents, null);
+            }
+            case DELETE_FILE -> {
+                int length = body.get(INT, position);
+                byte[] bytes = body.asSlice(position + Integer.BYTES, length).toArray(ValueLayout.JAVA_BYTE);
+                return new Entry(type, List.of(), new String(bytes, StandardCharsets.UTF_8));
+            }
+            case DELETE_ALL -> {
+                return new Entry(type, List.of(), null);
+            }
+            default -> throw new IllegalStateException("未知的预写日志记录类型: " + type);
+        }
+    }
+
+    // 目录下的日志文件，按代号排序
+    private static TreeMap<Long, Path> logFiles(Path directory) throws IOException {
+        TreeMap<Long, Path> files = new TreeMap<>();
+        if (!Files.isDirectory(directory)) {
+            return files;
+        }
+        try (DirectoryStream<Path> stream = Files.newDirectoryStream(directory, PREFIX + "*" + SUFFIX)) {
+            for (Path file : stream) {
+                String name = file.getFileName().toString();
+                try {
+                    files.put(Long.parseLong(name.substring(PREFIX.length(), name.length() - SUFFIX.length())), file);
+                } catch (NumberFormatException e) {
+                    logger.warn("忽略无法识别的日志文件: {}", file);
+                }
+            }
+        }
+        return files;
+    }
+
+    private static String fileName(long generation) {
+        return String.format("%s%08d%s", PREFIX, generation, SUFFIX);
+    }
+
+    private static int orderMarker() {
+        return ByteOrder.nativeOrder() == ByteOrder.LITTLE_ENDIAN ? 1 : 2;
+    }
+
+    private void waitQuietly() {
+        try {
+            wait();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("等待预写日志刷盘时被中断", e);
+        }
+    }
+}
@@ -0,0 +1,80 @@
+package com.example.rag.client;
+
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.*;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * 作者: liangyajie
+ * 联系方式: 695274107@qq.com
+ * 自适应并发限制测试：耗时正常且限制被用满时加性增长，变慢或失败时乘性减小；超出限制的请求排队，队列满或等待超时被拒绝
+ */
+
+class ConcurrencyLimiterTests {
+
+    private static final long MILLIS = TimeUnit.MILLISECONDS.toNanos(1);
+
+    @Test
+    void growsWhileLatencyHoldsAndBacksOffWhenSlow() throws Exception {
+        ConcurrencyLimiter limiter = new ConcurrencyLimiter(4, 8, 16, 0, 2.0);
+        // 每轮用满限制、耗时不变：每轮约加一，直到上限
+        for (int round = 0; round < 10; round++) {
+            List<ConcurrencyLimiter.Permit> permits = new ArrayList<>();
+            for (int i = 0; i < limiter.limit(); i++) {
+                permits.add(limiter.acquire());
+            }
+            permits.forEach(permit -> permit.release(10 * MILLIS, false));
+        }
+        assertEquals(8, limiter.limit());
+
+        // 只用到一个名额时不再增长
+        limiter.acquire().release(10 * MILLIS, false);
+        assertEquals(8, limiter.limit());
+
+        // 耗时超过基准两倍或请求失败时减小；距上次减小不足一个耗时周期的样本不再重复减小
+        Thread.sleep(5);
+        limiter.acquire().release(MILLIS, true);
+        assertEquals(7, limiter.limit());
+        limiter.acquire().release(100 * MILLIS, false);
+        assertEquals(7, limiter.limit());
+        Thread.sleep(40);
+        limiter.acquire().release(30 * MILLIS, false);
+        assertEquals(6, limiter.limit());
+        assertEquals(0, limiter.inFlight());
+    }
+
+    @Test
+    void queuesExcessRequestsWithBoundedWait() throws Exception {
+        ConcurrencyLimiter limiter = new ConcurrencyLimiter(1, 1, 1, 2000 * MILLIS, 2.0);
+        ConcurrencyLimiter.Permit held = limiter.acquire();
+        ExecutorService executor = Executors.newSingleThreadExecutor();
+        try {
+            Future<ConcurrencyLimiter.Permit> queued = executor.submit(limiter::acquire);
+            while (limiter.waiting() == 0) {
+                Thread.sleep(1);
+            }
+            // 队列已满，立即拒绝
+            assertThrows(IOException.class, limiter::acquire);
+            held.release(MILLIS, false);
+            held.release(MILLIS, false);
+            ConcurrencyLimiter.Permit next = queued.get(5, TimeUnit.SECONDS);
+            assertEquals(1, limiter.inFlight());
+            next.release(MILLIS, false);
+            assertEquals(1, limiter.rejected());
+        } finally {
+            executor.shutdownNow();
+        }
+
+        ConcurrencyLimiter impatient = new ConcurrencyLimiter(1, 1, 4, 20 * MILLIS, 2.0);
+        impatient.acquire();
+        long start = System.nanoTime();
+        assertThrows(IOException.class, impatient::acquire);
+        assertTrue(System.nanoTime() - start >= 20 * MILLIS);
+        assertEquals(0, impatient.waiting());
+    }
+}
@@ -0,0 +1,59 @@
+package com.example.rag.client;
+
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * 作者: liangyajie
+ * 联系方式: 695274107@qq.com
+ * 对冲策略测试：样本足够后按最近耗时的p95决定对冲等待时间；对冲请求数受额度限制
+ */
+
+class HedgePolicyTests {
+
+    @Test
+    void delayTracksRecentP95() {
+        HedgePolicy policy = new HedgePolicy(0.1);
+        for (int i = 1; i < 20; i++) {
+            policy.record(i * 1000L);
+        }
+        // 样本不足时不对冲
+        assertEquals(-1, policy.delayNanos());
+        policy.record(20_000L);
+        assertEquals(19_000L, policy.delayNanos());
+
+        // 只保留最近的样本，耗时整体变慢后等待时间随之变长
+        for (int i = 1; i <= 256; i++) {
+            policy.record(i * 10_000L);
+        }
+        assertEquals(2_440_000L, policy.delayNanos());
+        assertFalse(new HedgePolicy(0).enabled());
+    }
+
+    @Test
+    void hedgesAreLimitedByBudget() {
+        HedgePolicy policy = new HedgePolicy(0.25);
+        assertFalse(policy.tryHedge());
+        for (int i = 0; i < 4; i++) {
+            policy.requested();
+        }
+        assertTrue(policy.tryHedge());
+        assertFalse(policy.tryHedge());
+
+        // 额度有上限，长时间没有慢请求后也只能连续对冲有限次
+        for (int i = 0; i < 400; i++) {
+            policy.requested();
+        }
+        int hedged = 0;
+        while (policy.tryHedge()) {
+            hedged++;
+        }
+        assertEquals(10, hedged);
+        policy.hedgeWon();
+        assertEquals(404, policy.requests());
+        assertEquals(11, policy.hedges());
+        assertEquals(11.0 / 404, policy.hedgeRate(), 1e-9);
+        assertEquals(1.0 / 11, policy.winRate(), 1e-9);
+    }
+}
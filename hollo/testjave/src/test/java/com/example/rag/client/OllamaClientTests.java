@@ -0,0 +1,307 @@
+package com.example.rag.client;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * 作者: liangyajie
+ * 联系方式: 695274107@qq.com
+ * Ollama客户端测试（本地HTTP服务模拟Ollama）：批量嵌入及旧版本的逐条回退；过载或出错的响应计为失败；
+ * 查询嵌入的对冲请求在主请求变慢时胜出，过载副本的快速错误响应不会胜出；流式聊天结束或失败后聊天名额只在一处归还；
+ * 不可达的副本连续失败后被摘除，请求和流式聊天都分给可用的副本
+ */
+
+class OllamaClientTests {
+
+    private final List<HttpServer> servers = new ArrayList<>();
+
+    @AfterEach
+    void stopServers() {
+        servers.forEach(server -> server.stop(0));
+    }
+
+    private HttpServer startServer() throws IOException {
+        HttpServer server = HttpServer.create(new InetSocketAddress("localhost", 0), 0);
+        server.setExecutor(Executors.newCachedThreadPool());
+        server.start();
+        servers.add(server);
+        return server;
+    }
+
+    private static String url(HttpServer server) {
+        return "http://localhost:" + server.getAddress().getPort();
+    }
+
+    private final List<ConcurrencyLimiter> embedLimiters = new CopyOnWriteArrayList<>();
+
+    // 两个副本、允许对冲的客户端，记录各副本的嵌入并发限制
+    private OllamaClient hedgingClient(HttpServer a, HttpServer b) {
+        return new OllamaClient(List.of(url(a), url(b)),
+                () -> {
+                    ConcurrencyLimiter limiter = new ConcurrencyLimiter(2, 4, 4, TimeUnit.SECONDS.toNanos(1), 2.0);
+                    embedLimiters.add(limiter);
+                    return limiter;
+                },
+                () -> new ConcurrencyLimiter(2, 4, 4, TimeUnit.SECONDS.toNanos(1), 2.0), 2, 0, 0.5);
+    }
+
+    // 预热：积累足够的耗时样本后才会对冲
+    private static void warmUp(OllamaClient client) throws Exception {
+        for (int i = 0; i < 30; i++) {
+            client.generateQueryEmbeddings("m", List.of("q"));
+        }
+    }
+
+    private static void sleep(long millis) {
+        try {
+            Thread.sleep(millis);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private static void respond(HttpExchange exchange, int status, String body) throws IOException {
+        exchange.getRequestBody().readAllBytes();
+        byte[] bytes = body.getBytes(StandardCharsets.UTF_8);
+        exchange.sendResponseHeaders(status, bytes.length);
+        try (OutputStream out = exchange.getResponseBody()) {
+            out.write(bytes);
+        }
+    }
+
+    @Test
+    void fallsBackToSingleEmbeddingsWhenBatchEndpointIsMissing() throws Exception {
+        HttpServer server = startServer();
+        AtomicInteger batchCalls = new AtomicInteger();
+        AtomicInteger singleCalls = new AtomicInteger();
+        boolean[] oldVersion = {false};
+        server.createContext("/api/embed", exchange -> {
+            batchCalls.incrementAndGet();
+            if (oldVersion[0]) {
+                respond(exchange, 404, "404 page not found");
+            } else {
+                respond(exchange, 200, "{\"embeddings\":[[1,2],[3,4]]}");
+            }
+        });
+        server.createContext("/api/embeddings", exchange -> {
+            singleCalls.incrementAndGet();
+            respond(exchange, 200, "{\"embedding\":[5,6]}");
+        });
+        OllamaClient client = new OllamaClient(url(server));
+
+        List<float[]> vectors = client.generateEmbeddings("m", List.of("a", "b"));
+        assertArrayEquals(new float[]{3, 4}, vectors.get(1));
+        assertEquals(0, singleCalls.get());
+
+        // 旧版本没有 /api/embed：本次改为逐条调用，之后不再尝试批量接口
+        oldVersion[0] = true;
+        vectors = client.generateEmbeddings("m", List.of("a", "b"));
+        assertArrayEquals(new float[]{5, 6}, vectors.get(1));
+        assertEquals(2, singleCalls.get());
+        client.generateEmbeddings("m", List.of("c"));
+        assertEquals(2, batchCalls.get());
+        assertEquals(3, singleCalls.get());
+    }
+
+    @Test
+    void overloadedEmbeddingResponsesAreFailures() throws Exception {
+        HttpServer server = startServer();
+        server.createContext("/api/embed", exchange -> respond(exchange, 404, "404 page not found"));
+        server.createContext("/api/embeddings", exchange -> respond(exchange, 503, "server busy"));
+        OllamaClient client = new OllamaClient(url(server));
+
+        assertThrows(IOException.class, () -> client.generateEmbedding("m", "a"));
+        // 逐条回退时同样抛出异常，而不是返回空向量
+        assertThrows(IOException.class, () -> client.generateEmbeddings("m", List.of("a", "b")));
+    }
+
+    @Test
+    void hedgeWinsWhenPrimaryIsSlow() throws Exception {
+        AtomicBoolean slow = new AtomicBoolean();
+        HttpServer a = startServer();
+        a.createContext("/api/embed", exchange -> {
+            if (slow.get()) {
+                sleep(1500);
+            }
+            respond(exchange, 200, "{\"embeddings\":[[1,0]]}");
+        });
+        HttpServer b = startServer();
+        b.createContext("/api/embed", exchange -> respond(exchange, 200, "{\"embeddings\":[[2,0]]}"));
+        OllamaClient client = hedgingClient(a, b);
+        SimpleMeterRegistry registry = new SimpleMeterRegistry();
+        client.bindTo(registry);
+        try {
+            warmUp(client);
+            assertTrue(registry.get("rag.ollama.hedge.sent").functionCounter().count() <= 3);
+
+            // 副本a变慢后，主请求落在a上时由对冲到b的请求返回，不必等满a的耗时
+            slow.set(true);
+            for (int i = 0; i < 4; i++) {
+                long start = System.nanoTime();
+                float[] vector = client.generateQueryEmbeddings("m", List.of("q")).get(0);
+                assertEquals(2, vector[0]);
+                assertTrue(System.nanoTime() - start < TimeUnit.SECONDS.toNanos(1));
+            }
+            assertTrue(registry.get("rag.ollama.hedge.wins").functionCounter().count() >= 1);
+            // 落后的请求被取消，名额随即归还
+            for (ConcurrencyLimiter limiter : embedLimiters) {
+                assertEquals(0, limiter.inFlight());
+            }
+        } finally {
+            client.close();
+        }
+    }
+
+    @Test
+    void overloadedResponseDoesNotWinHedge() throws Exception {
+        AtomicBoolean degraded = new AtomicBoolean();
+        HttpServer a = startServer();
+        a.createContext("/api/embed", exchange -> {
+            if (degraded.get()) {
+                respond(exchange, 503, "server busy");
+            } else {
+                respond(exchange, 200, "{\"embeddings\":[[1,0]]}");
+            }
+        });
+        HttpServer b = startServer();
+        b.createContext("/api/embed", exchange -> {
+            if (degraded.get()) {
+                sleep(300);
+            }
+            respond(exchange, 200, "{\"embeddings\":[[2,0]]}");
+        });
+        OllamaClient client = hedgingClient(a, b);
+        try {
+            warmUp(client);
+
+            // 副本a过载、立即返回503，b变慢：无论主请求落在哪个副本，都等b返回的结果
+            degraded.set(true);
+            for (int i = 0; i < 4; i++) {
+                assertEquals(2, client.generateQueryEmbeddings("m", List.of("q")).get(0)[0]);
+            }
+        } finally {
+            client.close();
+        }
+    }
+
+    // 收集流式回调的内容和错误
+    private static final class CollectingCallback implements OllamaClient.ResponseCallback {
+        final StringBuilder content = new StringBuilder();
+        final List<Exception> errors = new CopyOnWriteArrayList<>();
+        final AtomicInteger completions = new AtomicInteger();
+
+        @Override
+        public void onResponse(String chunk) {
+            content.append(chunk);
+        }
+
+        @Override
+        public void onComplete() {
+            completions.incrementAndGet();
+        }
+
+        @Override
+        public void onError(Exception e) {
+            errors.add(e);
+        }
+    }
+
+    @Test
+    void streamReleasesChatPermitOnceAfterCompletionOrError() throws Exception {
+        HttpServer server = startServer();
+        int[] status = {200};
+        server.createContext("/api/chat", exchange -> respond(exchange, status[0],
+                "{\"message\":{\"content\":\"你好\"}}\n{\"message\":{\"content\":\"！\"}}\n"));
+        ConcurrencyLimiter chatLimiter = new ConcurrencyLimiter(2, 4, 4, TimeUnit.SECONDS.toNanos(1), 2.0);
+        OllamaClient client = new OllamaClient(url(server),
+                new ConcurrencyLimiter(2, 4, 4, TimeUnit.SECONDS.toNanos(1), 2.0), chatLimiter);
+        List<Map<String, String>> messages = List.of(Map.of("role", "user", "content", "问题"));
+
+        CollectingCallback completed = new CollectingCallback();
+        client.generateChatCompletionStream("m", messages, completed).get(5, TimeUnit.SECONDS);
+        assertEquals("你好！", completed.content.toString());
+        assertEquals(1, completed.completions.get());
+        assertEquals(0, chatLimiter.inFlight());
+        // 成功的流只在处理完响应后释放一次名额，不计为过载，并发限制不减小
+        assertTrue(chatLimiter.limit() >= 2);
+
+        // 过载时回调收到错误，名额同样归还
+        status[0] = 503;
+        CollectingCallback failed = new CollectingCallback();
+        client.generateChatCompletionStream("m", messages, failed).get(5, TimeUnit.SECONDS);
+        assertEquals(1, failed.errors.size());
+        assertEquals(0, chatLimiter.inFlight());
+
+        // 连接失败时也只归还一次
+        server.stop(0);
+        CollectingCallback unreachable = new CollectingCallback();
+        client.generateChatCompletionStream("m", messages, unreachable).get(5, TimeUnit.SECONDS);
+        assertEquals(1, unreachable.errors.size());
+        assertEquals(0, chatLimiter.inFlight());
+    }
+
+    @Test
+    void unreachableEndpointIsEjectedAndTrafficMovesToHealthyOne() throws Exception {
+        HttpServer healthy = startServer();
+        AtomicInteger embeddings = new AtomicInteger();
+        healthy.createContext("/api/embeddings", exchange -> {
+            embeddings.incrementAndGet();
+            respond(exchange, 200, "{\"embedding\":[5,6]}");
+        });
+        healthy.createContext("/api/version", exchange -> respond(exchange, 200, "{\"version\":\"0.5.0\"}"));
+        healthy.createContext("/api/chat", exchange -> respond(exchange, 200, "{\"message\":{\"content\":\"你好\"}}\n"));
+        String unreachable;
+        try (ServerSocket socket = new ServerSocket(0)) {
+            unreachable = "http://localhost:" + socket.getLocalPort();
+        }
+        OllamaClient client = new OllamaClient(List.of(unreachable, url(healthy)),
+                () -> new ConcurrencyLimiter(2, 4, 4, TimeUnit.SECONDS.toNanos(1), 2.0),
+                () -> new ConcurrencyLimiter(2, 4, 4, TimeUnit.SECONDS.toNanos(1), 2.0),
+                2, TimeUnit.MILLISECONDS.toNanos(50), 0);
+        SimpleMeterRegistry registry = new SimpleMeterRegistry();
+        client.bindTo(registry);
+        try {
+            // 连续失败两次后摘除，之后的请求全部分给可用的副本
+            int failures = 0;
+            for (int i = 0; i < 10; i++) {
+                try {
+                    client.generateEmbedding("m", "文本");
+                } catch (IOException e) {
+                    failures++;
+                }
+            }
+            assertTrue(failures <= 2, "failures: " + failures);
+            assertEquals(10 - failures, embeddings.get());
+            assertEquals(0.0, registry.get("rag.ollama.endpoint.available").tag("endpoint", unreachable).gauge().value());
+            assertEquals(1.0, registry.get("rag.ollama.endpoint.ejections").tag("endpoint", unreachable).functionCounter().count());
+            // 已摘除副本的并发限制不计入嵌入调度可用的并发数
+            assertTrue(client.embedConcurrencyLimit() <= 2);
+
+            CollectingCallback callback = new CollectingCallback();
+            client.generateChatCompletionStream("m", List.of(), callback).get(5, TimeUnit.SECONDS);
+            assertEquals("你好", callback.content.toString());
+            assertEquals(0.0, registry.get("rag.ollama.endpoint.outstanding").tag("endpoint", url(healthy)).gauge().value());
+        } finally {
+            client.close();
+        }
+    }
+}
@@ -0,0 +1,88 @@
+package com.example.rag.client;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * 作者: liangyajie
+ * 联系方式: 695274107@qq.com
+ * 多副本路由测试：请求分给未完成请求最少的副本；连续失败的副本被摘除，健康检查通过后恢复；全部摘除时仍可选择
+ */
+
+class OllamaEndpointPoolTests {
+
+    private static OllamaEndpoint endpoint(String url) {
+        return new OllamaEndpoint(url, new ConcurrencyLimiter(4, 8, 16, 0, 2.0),
+                new ConcurrencyLimiter(2, 4, 16, 0, 2.0), 2);
+    }
+
+    @Test
+    void routesToLeastOutstandingEndpoint() {
+        OllamaEndpoint a = endpoint("http://a:11434/");
+        OllamaEndpoint b = endpoint("http://b:11434");
+        OllamaEndpointPool pool = new OllamaEndpointPool(List.of(a, b));
+        assertEquals("http://a:11434", a.baseUrl());
+
+        // 未完成请求相同时轮流分配，之后总是补到较少的一边
+        for (int i = 0; i < 6; i++) {
+            pool.acquire(null);
+        }
+        assertEquals(3, a.outstanding());
+        assertEquals(3, b.outstanding());
+        b.end();
+        b.end();
+        assertSame(b, pool.acquire(null));
+        assertSame(b, pool.acquire(null));
+        // 排除一个副本时选另一个，即使它的请求更多
+        assertSame(a, pool.acquire(b));
+        assertEquals(8, pool.embedConcurrencyLimit());
+    }
+
+    @Test
+    void ejectsFailingEndpointAndReadmitsAfterHealthCheck() {
+        OllamaEndpoint a = endpoint("http://a:11434");
+        OllamaEndpoint b = endpoint("http://b:11434");
+        OllamaEndpointPool pool = new OllamaEndpointPool(List.of(a, b));
+
+        // 一次失败不摘除，成功后失败计数清零
+        a.failed();
+        a.succeeded();
+        a.failed();
+        assertTrue(a.available());
+        a.failed();
+        assertFalse(a.available());
+        assertEquals(1, a.ejections());
+        for (int i = 0; i < 4; i++) {
+            assertSame(b, pool.acquire(null));
+        }
+        assertEquals(4, pool.embedConcurrencyLimit());
+
+        // 全部被摘除时仍在所有副本中选择
+        Set<OllamaEndpoint> down = ConcurrentHashMap.newKeySet();
+        down.add(a);
+        down.add(b);
+        pool.checkHealth(e -> !down.contains(e));
+        pool.checkHealth(e -> !down.contains(e));
+        assertFalse(b.available());
+        assertSame(a, pool.acquire(null));
+        assertEquals(8, pool.embedConcurrencyLimit());
+
+        // 探测成功即恢复
+        down.remove(a);
+        pool.checkHealth(e -> {
+            if (down.contains(e)) {
+                throw new IllegalStateException("unreachable");
+            }
+            return true;
+        });
+        assertTrue(a.available());
+        assertFalse(b.available());
+        assertEquals(1, a.ejections());
+        assertEquals(1, b.ejections());
+    }
+}
@@ -0,0 +1,43 @@
+package com.example.rag.service;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * 作者: liangyajie
+ * 联系方式: 695274107@qq.com
+ * 自适应批次大小测试：按单条耗时向目标耗时增长、受上限和翻倍限制，变慢或失败时缩小
+ */
+
+class AdaptiveBatchSizeTests {
+
+    private static final long MILLIS = TimeUnit.MILLISECONDS.toNanos(1);
+
+    @Test
+    void growsTowardTargetLatencyAndShrinksWhenSlower() {
+        AdaptiveBatchSize batchSize = new AdaptiveBatchSize(4, 64, 1000 * MILLIS);
+        // 每条10ms：目标耗时内可完成100条，每次最多翻倍，最终受上限限制
+        batchSize.record(4, 40 * MILLIS);
+        assertEquals(8, batchSize.size());
+        for (int i = 0; i < 5; i++) {
+            batchSize.record(batchSize.size(), batchSize.size() * 10 * MILLIS);
+        }
+        assertEquals(64, batchSize.size());
+
+        // 每条变为50ms后逐步收敛到目标耗时内能完成的20条
+        for (int i = 0; i < 20; i++) {
+            batchSize.record(batchSize.size(), batchSize.size() * 50 * MILLIS);
+        }
+        assertEquals(20, batchSize.size());
+
+        batchSize.failed();
+        assertEquals(10, batchSize.size());
+        AdaptiveBatchSize single = new AdaptiveBatchSize(8, 1, 1000 * MILLIS);
+        assertEquals(1, single.size());
+        single.failed();
+        assertEquals(1, single.size());
+    }
+}
@@ -0,0 +1,73 @@
+package com.example.rag.service;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.List;
+import java.util.stream.Stream;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * 作者: liangyajie
+ * 联系方式: 695274107@qq.com
+ * 文档块嵌入缓存测试：按模型和文本寻址、重启后仍可读取、残缺记录截断，以及按代切换时保留仍在使用的向量
+ */
+
+class EmbeddingCacheTests {
+
+    @TempDir
+    Path directory;
+
+    @Test
+    void persistsAcrossReopenAndTruncatesTornRecords() throws Exception {
+        EmbeddingCache.Key key = EmbeddingCache.Key.of("mxbai-embed-large", "第一段");
+        try (EmbeddingCache cache = EmbeddingCache.open(directory, 1 << 20)) {
+            assertNull(cache.get(key));
+            cache.put(key, new float[]{1f, 2f, 3f});
+            cache.put(EmbeddingCache.Key.of("mxbai-embed-large", "第二段"), new float[]{4f, 5f, 6f});
+            assertArrayEquals(new float[]{1f, 2f, 3f}, cache.get(key));
+            // 同一文本换了模型是另一个键
+            assertNull(cache.get(EmbeddingCache.Key.of("nomic-embed-text", "第一段")));
+        }
+        // 模拟写到一半时崩溃：最后一条记录只剩一部分
+        Path file = cacheFiles().get(0);
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.WRITE)) {
+            channel.truncate(channel.size() - 5);
+        }
+        try (EmbeddingCache cache = EmbeddingCache.open(directory, 1 << 20)) {
+            assertEquals(1, cache.size());
+            assertArrayEquals(new float[]{1f, 2f, 3f}, cache.get(key));
+            assertNull(cache.get(EmbeddingCache.Key.of("mxbai-embed-large", "第二段")));
+        }
+    }
+
+    @Test
+    void rotatesGenerationsAndKeepsVectorsStillInUse() throws Exception {
+        float[] vector = new float[64];
+        // 每条记录约300字节，上限4000字节时每代约6条
+        try (EmbeddingCache cache = EmbeddingCache.open(directory, 4000)) {
+            EmbeddingCache.Key hot = EmbeddingCache.Key.of("m", "常用的块");
+            cache.put(hot, vector);
+            for (int i = 0; i < 40; i++) {
+                cache.put(EmbeddingCache.Key.of("m", "块" + i), vector);
+                // 旧一代中命中的向量被复制到当前代，不会随旧一代删除
+                assertNotNull(cache.get(hot));
+            }
+            assertNull(cache.get(EmbeddingCache.Key.of("m", "块0")));
+            assertNotNull(cache.get(EmbeddingCache.Key.of("m", "块39")));
+            assertTrue(cache.size() <= 14);
+        }
+        assertTrue(cacheFiles().size() <= 2);
+    }
+
+    private List<Path> cacheFiles() throws Exception {
+        try (Stream<Path> files = Files.list(directory)) {
+            return files.sorted().toList();
+        }
+    }
+}
@@ -0,0 +1,119 @@
+package com.example.rag.service;
+
+import com.example.rag.client.OllamaClient;
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.*;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * 作者: liangyajie
+ * 联系方式: 695274107@qq.com
+ * 嵌入调度测试：窗口内并发到达的请求合成一批、各调用方拿到自己的向量，写入批次占满时查询仍能立即发出；
+ * 返回的向量数不对时整批失败，并发名额只归还一次
+ */
+
+class EmbeddingDispatcherTests {
+
+    private static final long MILLIS = TimeUnit.MILLISECONDS.toNanos(1);
+
+    // 记录每批文本，文本以"慢"开头的批次等待放行，以"短"开头的批次少返回一个向量；向量第一维为文本长度
+    private static final class RecordingClient extends OllamaClient {
+        final List<List<String>> batches = new CopyOnWriteArrayList<>();
+        final CountDownLatch release = new CountDownLatch(1);
+
+        @Override
+        public List<float[]> generateEmbeddings(String model, List<String> texts) throws InterruptedException {
+            batches.add(List.copyOf(texts));
+            if (texts.get(0).startsWith("慢")) {
+                release.await();
+            }
+            List<float[]> vectors = new ArrayList<>();
+            for (String text : texts) {
+                vectors.add(new float[]{text.length(), 1f});
+            }
+            return texts.get(0).startsWith("短") ? vectors.subList(0, vectors.size() - 1) : vectors;
+        }
+    }
+
+    private final ExecutorService executor = Executors.newCachedThreadPool();
+
+    @Test
+    void coalescesConcurrentRequestsWithinWindow() throws Exception {
+        RecordingClient client = new RecordingClient();
+        EmbeddingDispatcher dispatcher = new EmbeddingDispatcher(client, "m", executor, () -> 4, 64, 200 * MILLIS,
+                new AdaptiveBatchSize(8, 64, 1000 * MILLIS));
+        try {
+            List<CompletableFuture<float[]>> results = new ArrayList<>();
+            for (int i = 0; i < 5; i++) {
+                results.add(dispatcher.submit("问题" + "?".repeat(i), EmbeddingDispatcher.Priority.QUERY));
+            }
+            for (int i = 0; i < 5; i++) {
+                assertEquals(2 + i, results.get(i).get(5, TimeUnit.SECONDS)[0]);
+            }
+            assertEquals(1, client.batches.size());
+            assertEquals(5, client.batches.get(0).size());
+        } finally {
+            dispatcher.close();
+            executor.shutdownNow();
+        }
+    }
+
+    @Test
+    void queriesBypassQueuedIngestion() throws Exception {
+        RecordingClient client = new RecordingClient();
+        EmbeddingDispatcher dispatcher = new EmbeddingDispatcher(client, "m", executor, () -> 2, 64, 50 * MILLIS,
+                new AdaptiveBatchSize(4, 64, 1000 * MILLIS));
+        try {
+            List<CompletableFuture<float[]>> ingests = new ArrayList<>();
+            for (int i = 0; i < 10; i++) {
+                ingests.add(dispatcher.submit("慢文档块" + i, EmbeddingDispatcher.Priority.INGEST));
+            }
+            // 写入最多占用一个并发名额，第一批阻塞时其余写入排队，查询仍立即发出
+            while (client.batches.isEmpty()) {
+                Thread.sleep(1);
+            }
+            CompletableFuture<float[]> query = dispatcher.submit("问题", EmbeddingDispatcher.Priority.QUERY);
+            assertEquals(2, query.get(5, TimeUnit.SECONDS)[0]);
+            assertEquals(6, dispatcher.pending(EmbeddingDispatcher.Priority.INGEST));
+            assertTrue(client.batches.contains(List.of("问题")));
+
+            client.release.countDown();
+            for (CompletableFuture<float[]> ingest : ingests) {
+                assertEquals(5, ingest.get(5, TimeUnit.SECONDS)[0]);
+            }
+            // 第一批完成时批次大小已增长，剩余的写入合成一批
+            assertEquals(3, client.batches.size());
+        } finally {
+            dispatcher.close();
+            executor.shutdownNow();
+        }
+    }
+
+    @Test
+    void mismatchedResponseFailsBatchAndReleasesSlotOnce() throws Exception {
+        RecordingClient client = new RecordingClient();
+        EmbeddingDispatcher dispatcher = new EmbeddingDispatcher(client, "m", executor, () -> 1, 64, 50 * MILLIS,
+                new AdaptiveBatchSize(4, 64, 1000 * MILLIS));
+        try {
+            List<CompletableFuture<float[]>> results = List.of(
+                    dispatcher.submit("短问题", EmbeddingDispatcher.Priority.QUERY),
+                    dispatcher.submit("短问题?", EmbeddingDispatcher.Priority.QUERY));
+            for (CompletableFuture<float[]> result : results) {
+                ExecutionException e = assertThrows(ExecutionException.class, () -> result.get(5, TimeUnit.SECONDS));
+                assertInstanceOf(IOException.class, e.getCause());
+            }
+            // 调用方收到结果时名额已归还
+            assertEquals(0, dispatcher.inFlight());
+            assertEquals(2, dispatcher.submit("问题", EmbeddingDispatcher.Priority.QUERY).get(5, TimeUnit.SECONDS)[0]);
+            assertEquals(0, dispatcher.inFlight());
+        } finally {
+            dispatcher.close();
+            executor.shutdownNow();
+        }
+    }
+}
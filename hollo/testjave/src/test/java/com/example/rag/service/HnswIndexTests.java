@@ -0,0 +1,235 @@
+package com.example.rag.service;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+
+import java.util.*;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * 作者: liangyajie
+ * 联系方式: 695274107@qq.com
+ * HNSW索引测试：与暴力检索对比召回率，验证删除和整理（大量删除后整理的召回率）、按允许的行过滤，以及插入期间的无锁检索
+ */
+
+class HnswIndexTests {
+
+    private static final int DIMENSION = 32;
+    private final SimilarityKernel kernel = new ScalarSimilarityKernel();
+    private final List<EmbeddingMatrix> matrices = new ArrayList<>();
+
+    @AfterEach
+    void closeMatrices() {
+        matrices.forEach(EmbeddingMatrix::close);
+    }
+
+    @Test
+    void recallAgainstBruteForce() {
+        Random random = new Random(7);
+        EmbeddingMatrix matrix = newMatrix();
+        HnswIndex index = new HnswIndex(matrix, kernel, 16, 100, 64);
+        for (int i = 0; i < 2000; i++) {
+            index.add(matrix.append(randomVector(random)));
+        }
+
+        int hits = 0;
+        int total = 0;
+        for (int q = 0; q < 50; q++) {
+            float[] query = randomVector(random);
+            Set<Integer> expected = bruteForce(matrix, query, 10, Collections.emptySet());
+            for (VectorIndex.ScoredRow row : index.search(query, 10, 64, Integer.MAX_VALUE)) {
+                if (expected.contains(row.row())) {
+                    hits++;
+                }
+            }
+            total += expected.size();
+        }
+        assertTrue(hits >= total * 0.9, "recall@10 too low: " + hits + "/" + total);
+    }
+
+    @Test
+    void deletedRowsAreExcludedAndCompactionRemaps() {
+        Random random = new Random(11);
+        EmbeddingMatrix matrix = newMatrix();
+        HnswIndex index = new HnswIndex(matrix, kernel, 8, 64, 64);
+        for (int i = 0; i < 500; i++) {
+            index.add(matrix.append(randomVector(random)));
+        }
+        Set<Integer> removed = new HashSet<>();
+        for (int row = 0; row < 500; row += 2) {
+            index.remove(row);
+            removed.add(row);
+        }
+        float[] query = randomVector(random);
+        for (VectorIndex.ScoredRow row : index.search(query, 20, 64, Integer.MAX_VALUE)) {
+            assertFalse(removed.contains(row.row()));
+        }
+        assertEquals(250, index.size());
+
+        // 整理后只保留奇数行，行号重新编排
+        EmbeddingMatrix compactedMatrix = newMatrix();
+        int[] oldToNew = new int[500];
+        for (int row = 0; row < 500; row++) {
+            oldToNew[row] = removed.contains(row) ? -1 : compactedMatrix.appendFrom(matrix, row);
+        }
+        HnswIndex compacted = index.compact(compactedMatrix, oldToNew, compactedMatrix.size());
+        assertEquals(250, compacted.size());
+        Set<Integer> expected = bruteForce(compactedMatrix, query, 5, Collections.emptySet());
+        List<VectorIndex.ScoredRow> found = compacted.search(query, 5, 64, Integer.MAX_VALUE);
+        assertEquals(5, found.size());
+        assertTrue(expected.contains(found.get(0).row()));
+    }
+
+    @Test
+    void compactionRepairsLinksOfHeavilyDeletedGraph() {
+        Random random = new Random(19);
+        EmbeddingMatrix matrix = newMatrix();
+        HnswIndex index = new HnswIndex(matrix, kernel, 8, 64, 64);
+        for (int i = 0; i < 3000; i++) {
+            index.add(matrix.append(randomVector(random)));
+        }
+        // 删除85%的行：剩余节点的大部分连接都指向被删节点
+        EmbeddingMatrix compactedMatrix = newMatrix();
+        int[] oldToNew = new int[matrix.size()];
+        for (int row = 0; row < matrix.size(); row++) {
+            if (row % 20 < 17) {
+                index.remove(row);
+                oldToNew[row] = -1;
+            } else {
+                oldToNew[row] = compactedMatrix.appendFrom(matrix, row);
+            }
+        }
+        HnswIndex compacted = index.compact(compactedMatrix, oldToNew, compactedMatrix.size());
+        assertEquals(450, compacted.size());
+
+        int hits = 0;
+        int total = 0;
+        for (int q = 0; q < 50; q++) {
+            float[] query = randomVector(random);
+            Set<Integer> expected = bruteForce(compactedMatrix, query, 10, Collections.emptySet());
+            for (VectorIndex.ScoredRow row : compacted.search(query, 10, 64, Integer.MAX_VALUE)) {
+                if (expected.contains(row.row())) {
+                    hits++;
+                }
+            }
+            total += expected.size();
+        }
+        assertTrue(hits >= total * 0.9, "recall@10 after compaction too low: " + hits + "/" + total);
+    }
+
+    @Test
+    void filteredSearchReturnsOnlyAllowedFileRows() {
+        Random random = new Random(17);
+        EmbeddingMatrix matrix = newMatrix();
+        HnswIndex index = new HnswIndex(matrix, kernel, 16, 100, 64);
+        for (int i = 0; i < 1000; i++) {
+            index.add(matrix.append(randomVector(random)));
+        }
+        // 允许两个文件的行：[300, 400)和[500, 650)，其中第一行已删除
+        BitSet allowed = new BitSet();
+        RowBitmap.range(300, 400).or(RowBitmap.range(500, 650)).addTo(allowed, matrix.size());
+        index.remove(300);
+        Set<Integer> excluded = new HashSet<>();
+        for (int row = 0; row < matrix.size(); row++) {
+            if (!allowed.get(row) || row == 300) {
+                excluded.add(row);
+            }
+        }
+
+        int hits = 0;
+        int total = 0;
+        for (int q = 0; q < 20; q++) {
+            float[] query = randomVector(random);
+            Set<Integer> expected = bruteForce(matrix, query, 10, excluded);
+            List<VectorIndex.ScoredRow> found = index.search(query, 10, matrix.size(), allowed);
+            assertEquals(10, found.size());
+            for (VectorIndex.ScoredRow row : found) {
+                assertFalse(excluded.contains(row.row()));
+                if (expected.contains(row.row())) {
+                    hits++;
+                }
+            }
+            total += expected.size();
+        }
+        assertTrue(hits >= total * 0.9, "filtered recall@10 too low: " + hits + "/" + total);
+    }
+
+    @Test
+    void searchesOnlyPublishedRowsDuringInsertion() throws Exception {
+        Random random = new Random(13);
+        EmbeddingMatrix matrix = newMatrix();
+        HnswIndex index = new HnswIndex(matrix, kernel, 8, 64, 64);
+        for (int i = 0; i < 200; i++) {
+            index.add(matrix.append(randomVector(random)));
+        }
+        // 写线程继续插入并删除，每插入一行后才发布新的可见行数，检索线程只按已发布的行数检索
+        AtomicInteger published = new AtomicInteger(matrix.size());
+        AtomicBoolean writing = new AtomicBoolean(true);
+        ExecutorService executor = Executors.newFixedThreadPool(4);
+        try {
+            List<Future<Integer>> readers = new ArrayList<>();
+            for (int r = 0; r < 3; r++) {
+                long seed = r;
+                readers.add(executor.submit(() -> {
+                    Random queries = new Random(seed);
+                    int searches = 0;
+                    while (writing.get()) {
+                        int rowCount = published.get();
+                        for (VectorIndex.ScoredRow row : index.search(randomVector(queries), 10, 32, rowCount)) {
+                            assertTrue(row.row() < rowCount);
+                        }
+                        searches++;
+                    }
+                    return searches;
+                }));
+            }
+            for (int i = 0; i < 2000; i++) {
+                int row = matrix.append(randomVector(random));
+                index.add(row);
+                if (i % 7 == 0) {
+                    index.remove(row - 100);
+                }
+                published.set(matrix.size());
+            }
+            writing.set(false);
+            for (Future<Integer> reader : readers) {
+                assertTrue(reader.get() > 0);
+            }
+        } finally {
+            executor.shutdownNow();
+        }
+        assertEquals(10, index.search(randomVector(random), 10, 64, matrix.size()).size());
+    }
+
+    private EmbeddingMatrix newMatrix() {
+        EmbeddingMatrix matrix = new EmbeddingMatrix(DIMENSION, 64);
+        matrices.add(matrix);
+        return matrix;
+    }
+
+    private Set<Integer> bruteForce(EmbeddingMatrix matrix, float[] query, int k, Set<Integer> excluded) {
+        List<Integer> rows = new ArrayList<>();
+        for (int row = 0; row < matrix.size(); row++) {
+            if (!excluded.contains(row)) {
+                rows.add(row);
+            }
+        }
+        rows.sort(Comparator.comparingDouble(
+                (Integer row) -> kernel.dot(query, matrix.blockOf(row), matrix.offsetInBlock(row))).reversed());
+        return new HashSet<>(rows.subList(0, Math.min(k, rows.size())));
+    }
+
+    private static float[] randomVector(Random random) {
+        float[] vector = new float[DIMENSION];
+        for (int i = 0; i < DIMENSION; i++) {
+            vector[i] = (float) random.nextGaussian();
+        }
+        return SimilarityKernels.normalize(vector);
+    }
+}
@@ -0,0 +1,137 @@
+package com.example.rag.service;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+
+import java.util.*;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * 作者: liangyajie
+ * 联系方式: 695274107@qq.com
+ * int8量化测试：量化误差、SIMD与标量内核一致性、粗筛加精排的召回率以及过采样倍数调整
+ */
+
+class Int8MatrixTests {
+
+    private static final int DIMENSION = 67;
+    private final SimilarityKernel kernel = new ScalarSimilarityKernel();
+    private final List<OffHeapRows> matrices = new ArrayList<>();
+
+    @AfterEach
+    void closeMatrices() {
+        matrices.forEach(OffHeapRows::close);
+    }
+
+    @Test
+    void quantizedDotApproximatesFloatDot() {
+        Random random = new Random(3);
+        Int8Matrix quantized = track(new Int8Matrix(DIMENSION, 16));
+        float[] query = randomVector(random);
+        byte[] queryCodes = new byte[DIMENSION];
+        float queryScale = Int8Matrix.quantize(query, queryCodes);
+        for (int i = 0; i < 100; i++) {
+            float[] vector = randomVector(random);
+            int row = quantized.append(vector);
+            float approximate = kernel.dot(queryCodes, quantized.blockOf(row),
+                    quantized.offsetInBlock(row) + Int8Matrix.CODES_OFFSET) * queryScale * quantized.scale(row);
+            assertEquals(kernel.dot(query, vector), approximate, 0.02f);
+        }
+    }
+
+    @Test
+    void simdInt8DotMatchesScalar() {
+        assumeVectorModule();
+        SimilarityKernel simd = new SimdSimilarityKernel();
+        Random random = new Random(5);
+        Int8Matrix quantized = track(new Int8Matrix(DIMENSION));
+        byte[] queryCodes = new byte[DIMENSION];
+        Int8Matrix.quantize(randomVector(random), queryCodes);
+        for (int i = 0; i < 50; i++) {
+            int row = quantized.append(randomVector(random));
+            long offset = quantized.offsetInBlock(row) + Int8Matrix.CODES_OFFSET;
+            assertEquals(kernel.dot(queryCodes, quantized.blockOf(row), offset),
+                    simd.dot(queryCodes, quantized.blockOf(row), offset));
+        }
+    }
+
+    @Test
+    void oversampledScanWithRescoreKeepsRecall() {
+        Random random = new Random(9);
+        EmbeddingMatrix matrix = track(new EmbeddingMatrix(DIMENSION));
+        Int8Matrix quantized = track(new Int8Matrix(DIMENSION));
+        for (int i = 0; i < 3000; i++) {
+            float[] vector = randomVector(random);
+            matrix.append(vector);
+            quantized.append(vector);
+        }
+        int hits = 0;
+        int total = 0;
+        byte[] queryCodes = new byte[DIMENSION];
+        for (int q = 0; q < 30; q++) {
+            float[] query = randomVector(random);
+            Int8Matrix.quantize(query, queryCodes);
+            NodeHeap approximate = new NodeHeap(41, false);
+            NodeHeap exact = new NodeHeap(11, false);
+            for (int row = 0; row < matrix.size(); row++) {
+                approximate.push(row, kernel.dot(queryCodes, quantized.blockOf(row),
+                        quantized.offsetInBlock(row) + Int8Matrix.CODES_OFFSET) * quantized.scale(row));
+                if (approximate.size() > 40) {
+                    approximate.pop();
+                }
+                exact.push(row, kernel.dot(query, matrix.blockOf(row), matrix.offsetInBlock(row)));
+                if (exact.size() > 10) {
+                    exact.pop();
+                }
+            }
+            Set<Integer> candidates = new HashSet<>();
+            for (VectorIndex.ScoredRow row : approximate.drainDescending()) {
+                candidates.add(row.row());
+            }
+            for (VectorIndex.ScoredRow row : exact.drainDescending()) {
+                if (candidates.contains(row.row())) {
+                    hits++;
+                }
+                total++;
+            }
+        }
+        assertTrue(hits >= total * 0.98, "recall@10 too low: " + hits + "/" + total);
+    }
+
+    @Test
+    void recallMonitorAdjustsOversampling() {
+        RecallMonitor monitor = new RecallMonitor(0.95, 1.0, 4, 16);
+        for (int i = 0; i < 20; i++) {
+            monitor.record(0.8);
+        }
+        assertEquals(8, monitor.oversampling());
+        for (int i = 0; i < 40; i++) {
+            monitor.record(0.8);
+        }
+        assertEquals(16, monitor.oversampling());
+        for (int i = 0; i < 20; i++) {
+            monitor.record(1.0);
+        }
+        assertEquals(15, monitor.oversampling());
+        assertEquals(1.0, monitor.lastRecall());
+    }
+
+    private static void assumeVectorModule() {
+        org.junit.jupiter.api.Assumptions.assumeTrue(
+                ModuleLayer.boot().findModule("jdk.incubator.vector").isPresent(), "jdk.incubator.vector not loaded");
+    }
+
+    private <T extends OffHeapRows> T track(T matrix) {
+        matrices.add(matrix);
+        return matrix;
+    }
+
+    private static float[] randomVector(Random random) {
+        float[] vector = new float[DIMENSION];
+        for (int i = 0; i < DIMENSION; i++) {
+            vector[i] = (float) random.nextGaussian();
+        }
+        return SimilarityKernels.normalize(vector);
+    }
+}
@@ -0,0 +1,95 @@
+package com.example.rag.service;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+
+import java.util.*;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * 作者: liangyajie
+ * 联系方式: 695274107@qq.com
+ * IVF索引测试：训练阈值、召回率以及删除后的整理
+ */
+
+class IvfIndexTests {
+
+    private static final int DIMENSION = 32;
+    private final SimilarityKernel kernel = new ScalarSimilarityKernel();
+    private final List<EmbeddingMatrix> matrices = new ArrayList<>();
+
+    @AfterEach
+    void closeMatrices() {
+        matrices.forEach(EmbeddingMatrix::close);
+    }
+
+    @Test
+    void trainsAfterThresholdAndFindsNeighbours() {
+        Random random = new Random(3);
+        EmbeddingMatrix matrix = newMatrix();
+        // 同步执行器：达到阈值时在add()中直接完成训练
+        IvfIndex index = new IvfIndex(matrix, kernel, Runnable::run, 32, 8, 1000, 8, 2.0);
+        for (int i = 0; i < 999; i++) {
+            index.add(matrix.append(randomVector(random)));
+        }
+        assertFalse(index.ready());
+        for (int i = 0; i < 1001; i++) {
+            index.add(matrix.append(randomVector(random)));
+        }
+        assertTrue(index.ready());
+
+        int hits = 0;
+        for (int q = 0; q < 50; q++) {
+            // 以已有向量加噪声作为查询，最近邻应能在nprobe个列表中找到
+            int target = random.nextInt(matrix.size());
+            float[] query = matrix.readRow(target, new float[DIMENSION]);
+            for (int d = 0; d < DIMENSION; d++) {
+                query[d] += (float) random.nextGaussian() * 0.05f;
+            }
+            List<VectorIndex.ScoredRow> found = index.search(SimilarityKernels.normalize(query), 5);
+            if (!found.isEmpty() && found.get(0).row() == target) {
+                hits++;
+            }
+        }
+        assertTrue(hits >= 45, "top-1 hits too low: " + hits);
+    }
+
+    @Test
+    void deletedRowsAreSkippedAndCompactionKeepsTraining() {
+        Random random = new Random(5);
+        EmbeddingMatrix matrix = newMatrix();
+        IvfIndex index = new IvfIndex(matrix, kernel, Runnable::run, 16, 16, 500, 5, 2.0);
+        for (int i = 0; i < 600; i++) {
+            index.add(matrix.append(randomVector(random)));
+        }
+        float[] query = matrix.readRow(10, new float[DIMENSION]);
+        assertEquals(10, index.search(query, 1).get(0).row());
+        index.remove(10);
+        assertNotEquals(10, index.search(query, 1).get(0).row());
+
+        EmbeddingMatrix compactedMatrix = newMatrix();
+        int[] oldToNew = new int[matrix.size()];
+        for (int row = 0; row < matrix.size(); row++) {
+            oldToNew[row] = row == 10 ? -1 : compactedMatrix.appendFrom(matrix, row);
+        }
+        IvfIndex compacted = index.compact(compactedMatrix, oldToNew, compactedMatrix.size());
+        assertTrue(compacted.ready());
+        float[] other = matrix.readRow(20, new float[DIMENSION]);
+        assertEquals(oldToNew[20], compacted.search(other, 1).get(0).row());
+    }
+
+    private EmbeddingMatrix newMatrix() {
+        EmbeddingMatrix matrix = new EmbeddingMatrix(DIMENSION, 64);
+        matrices.add(matrix);
+        return matrix;
+    }
+
+    private static float[] randomVector(Random random) {
+        float[] vector = new float[DIMENSION];
+        for (int i = 0; i < DIMENSION; i++) {
+            vector[i] = (float) random.nextGaussian();
+        }
+        return SimilarityKernels.normalize(vector);
+    }
+}
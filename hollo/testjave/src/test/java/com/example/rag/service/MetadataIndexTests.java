@@ -0,0 +1,150 @@
+package com.example.rag.service;
+
+import org.junit.jupiter.api.Test;
+
+import java.time.LocalDate;
+import java.time.ZoneId;
+import java.util.*;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * 作者: liangyajie
+ * 联系方式: 695274107@qq.com
+ * 元数据位图索引测试：区间位图的集合运算，按文件ID、类型、上传日期的与/或过滤，删除文件和整理后的重映射
+ */
+
+class MetadataIndexTests {
+
+    private static final LocalDate DAY_ONE = LocalDate.of(2026, 3, 1);
+    private static final LocalDate DAY_TWO = LocalDate.of(2026, 3, 2);
+
+    @Test
+    void rowBitmapOperationsMatchBitSet() {
+        Random random = new Random(21);
+        for (int round = 0; round < 50; round++) {
+            BitSet left = randomRuns(random);
+            BitSet right = randomRuns(random);
+            RowBitmap a = bitmap(left);
+            RowBitmap b = bitmap(right);
+
+            BitSet expected = (BitSet) left.clone();
+            expected.or(right);
+            assertEquals(expected, toBitSet(a.or(b)));
+            expected = (BitSet) left.clone();
+            expected.and(right);
+            assertEquals(expected, toBitSet(a.and(b)));
+            expected = (BitSet) left.clone();
+            expected.andNot(right);
+            assertEquals(expected, toBitSet(a.andNot(b)));
+            assertEquals(left.cardinality(), a.cardinality());
+            for (int row = 0; row < 600; row++) {
+                assertEquals(left.get(row), a.contains(row));
+            }
+        }
+        // 连续追加的行只占一个区间
+        RowBitmap rows = RowBitmap.of(10);
+        for (int row = 11; row < 1000; row++) {
+            rows = rows.append(row);
+        }
+        assertEquals(1, rows.runCount());
+        assertEquals(990, rows.cardinality());
+    }
+
+    @Test
+    void selectsRowsByAndOfOrConditions() {
+        MetadataIndex.Editor editor = MetadataIndex.EMPTY.edit();
+        int row = 0;
+        row = addFile(editor, row, "file-a", "报告.pdf", null, DAY_ONE, 100);
+        row = addFile(editor, row, "file-b", "notes.TXT", null, DAY_ONE, 50);
+        row = addFile(editor, row, "file-c", "报告-附录.pdf", "PDF", DAY_TWO, 80);
+        addFile(editor, row, "file-d", "README", null, null, 20);
+        MetadataIndex index = editor.build();
+
+        assertNull(index.select(SearchFilter.NONE));
+        assertEquals(RowBitmap.range(0, 150), index.select(SearchFilter.of(List.of("file-a", "file-b"), null)));
+        assertEquals(RowBitmap.range(0, 100).or(RowBitmap.range(150, 230)),
+                index.select(SearchFilter.of(null, null, List.of(".pdf"), null, null)));
+        assertEquals(RowBitmap.range(100, 150), index.select(SearchFilter.of(null, null, List.of("txt"), null, null)));
+        // 类型为pdf且在第二天上传
+        assertEquals(RowBitmap.range(150, 230), index.select(SearchFilter.of(null, null, List.of("pdf"), DAY_TWO, null)));
+        // 文件名前缀与文件ID同时限制
+        assertEquals(RowBitmap.range(150, 230), index.select(SearchFilter.of(List.of("file-b", "file-c"), "报告", null, null, null)));
+        assertEquals(RowBitmap.range(0, 150), index.select(SearchFilter.of(null, null, null, null, DAY_ONE)));
+        assertTrue(index.select(SearchFilter.of(null, null, null, DAY_TWO, DAY_ONE)).isEmpty());
+        assertTrue(index.select(SearchFilter.of(List.of(" "), null)).isEmpty());
+        assertEquals("pdf", index.file("file-c").fileType());
+        assertNull(index.file("file-d").fileType());
+    }
+
+    @Test
+    void removesFilesAndRemapsAfterCompaction() {
+        MetadataIndex.Editor editor = MetadataIndex.EMPTY.edit();
+        int row = addFile(editor, 0, "file-a", "a.pdf", null, DAY_ONE, 100);
+        row = addFile(editor, row, "file-b", "b.pdf", null, DAY_ONE, 100);
+        // 文件a之后又追加了一段
+        addFile(editor, row, "file-a", "a.pdf", null, DAY_ONE, 10);
+        MetadataIndex before = editor.build();
+
+        MetadataIndex.Editor deleting = before.edit();
+        assertEquals(RowBitmap.range(100, 200), deleting.removeFile("file-b"));
+        assertNull(deleting.removeFile("file-b"));
+        MetadataIndex after = deleting.build();
+        // 修改不影响已发布的索引
+        assertEquals(RowBitmap.range(0, 210), before.select(SearchFilter.of(null, null, List.of("pdf"), null, null)));
+        assertEquals(RowBitmap.range(0, 100).or(RowBitmap.range(200, 210)),
+                after.select(SearchFilter.of(null, null, List.of("pdf"), DAY_ONE, DAY_ONE)));
+
+        int[] oldToNew = new int[210];
+        for (int old = 0, next = 0; old < oldToNew.length; old++) {
+            oldToNew[old] = old >= 100 && old < 200 ? -1 : next++;
+        }
+        MetadataIndex compacted = after.remap(oldToNew);
+        assertEquals(RowBitmap.range(0, 110), compacted.file("file-a").rows());
+        assertEquals(RowBitmap.range(0, 110), compacted.select(SearchFilter.of(null, "a", List.of("pdf"), null, null)));
+        assertNull(compacted.file("file-b"));
+    }
+
+    // 追加一个文件的count行，返回下一行的行号
+    private static int addFile(MetadataIndex.Editor editor, int from, String fileId, String fileName, String fileType,
+                               LocalDate uploadDay, int count) {
+        Map<String, Object> metadata = new HashMap<>();
+        metadata.put("fileId", fileId);
+        metadata.put("fileName", fileName);
+        if (fileType != null) {
+            metadata.put("fileType", fileType);
+        }
+        if (uploadDay != null) {
+            metadata.put("uploadedAt", uploadDay.atTime(12, 0).atZone(ZoneId.systemDefault()).toInstant().toEpochMilli());
+        }
+        for (int row = from; row < from + count; row++) {
+            editor.add(row, fileId, () -> metadata);
+        }
+        return from + count;
+    }
+
+    private static BitSet randomRuns(Random random) {
+        BitSet rows = new BitSet();
+        int row = random.nextInt(20);
+        while (row < 500) {
+            int length = 1 + random.nextInt(30);
+            rows.set(row, row + length);
+            row += length + 1 + random.nextInt(40);
+        }
+        return rows;
+    }
+
+    private static RowBitmap bitmap(BitSet rows) {
+        RowBitmap bitmap = RowBitmap.EMPTY;
+        for (int row = rows.nextSetBit(0); row >= 0; row = rows.nextSetBit(row + 1)) {
+            bitmap = bitmap.isEmpty() ? RowBitmap.of(row) : bitmap.append(row);
+        }
+        return bitmap;
+    }
+
+    private static BitSet toBitSet(RowBitmap bitmap) {
+        BitSet rows = new BitSet();
+        bitmap.addTo(rows, Integer.MAX_VALUE);
+        return rows;
+    }
+}
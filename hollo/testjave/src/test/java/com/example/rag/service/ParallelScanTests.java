@@ -0,0 +1,65 @@
+package com.example.rag.service;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+
+import java.util.*;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * 作者: liangyajie
+ * 联系方式: 695274107@qq.com
+ * 分区并行扫描测试：分片数随并发查询数调整，分片覆盖全部行且结果与单线程一致
+ */
+
+class ParallelScanTests {
+
+    private final ExecutorService executor = Executors.newFixedThreadPool(3);
+
+    @AfterEach
+    void shutdown() {
+        executor.shutdownNow();
+    }
+
+    @Test
+    void sliceCountAdaptsToLoadAndSize() {
+        ParallelScan scan = new ParallelScan(executor, 8, 1000);
+        assertEquals(8, scan.sliceCount(100_000, 1));
+        assertEquals(4, scan.sliceCount(100_000, 2));
+        assertEquals(1, scan.sliceCount(100_000, 16));
+        assertEquals(3, scan.sliceCount(2500, 1));
+        assertEquals(1, scan.sliceCount(0, 1));
+    }
+
+    @Test
+    void slicesCoverEveryRowOnce() throws Exception {
+        ParallelScan scan = new ParallelScan(executor, 4, 100);
+        Random random = new Random(37);
+        float[] scores = new float[1037];
+        for (int i = 0; i < scores.length; i++) {
+            scores[i] = random.nextFloat();
+        }
+        BitSet seen = new BitSet();
+        TopKCollector merged = scan.scan(scores.length, 20, 0.5f, (start, end, collector) -> {
+            synchronized (seen) {
+                for (int row = start; row < end; row++) {
+                    assertFalse(seen.get(row), "row scanned twice: " + row);
+                    seen.set(row);
+                }
+            }
+            for (int row = start; row < end; row++) {
+                collector.offer(row, scores[row]);
+            }
+        });
+        assertEquals(scores.length, seen.cardinality());
+
+        TopKCollector expected = new TopKCollector(20, 0.5f);
+        for (int row = 0; row < scores.length; row++) {
+            expected.offer(row, scores[row]);
+        }
+        assertEquals(expected.drainDescending(), merged.drainDescending());
+    }
+}
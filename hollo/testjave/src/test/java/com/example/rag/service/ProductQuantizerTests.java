@@ -0,0 +1,152 @@
+package com.example.rag.service;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.nio.file.Path;
+import java.util.*;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * 作者: liangyajie
+ * 联系方式: 695274107@qq.com
+ * 乘积量化测试：训练阈值、查找表打分的召回率、整理以及码本持久化
+ */
+
+class ProductQuantizerTests {
+
+    private static final int DIMENSION = 32;
+    private final List<OffHeapRows> matrices = new ArrayList<>();
+    private final List<ProductQuantizer> quantizers = new ArrayList<>();
+
+    @TempDir
+    Path dataDir;
+
+    @AfterEach
+    void close() {
+        quantizers.forEach(ProductQuantizer::close);
+        matrices.forEach(OffHeapRows::close);
+    }
+
+    @Test
+    void trainsAtThresholdAndRanksNeighbours() {
+        Random random = new Random(13);
+        EmbeddingMatrix matrix = newMatrix();
+        ProductQuantizer quantizer = newQuantizer(matrix, dataDir.resolve("codebook.bin"));
+        for (int i = 0; i < 2999; i++) {
+            add(matrix, quantizer, randomVector(random));
+        }
+        assertFalse(quantizer.ready());
+        add(matrix, quantizer, randomVector(random));
+        assertTrue(quantizer.ready());
+        // 训练后写入的行直接编码
+        add(matrix, quantizer, randomVector(random));
+
+        int hits = 0;
+        int total = 0;
+        for (int q = 0; q < 30; q++) {
+            float[] query = randomVector(random);
+            Set<Integer> candidates = top(quantizer.prepare(query), matrix.size(), 100);
+            for (int row : top(exactScorer(matrix, query), matrix.size(), 10)) {
+                if (candidates.contains(row)) {
+                    hits++;
+                }
+                total++;
+            }
+        }
+        assertTrue(hits >= total * 0.9, "recall@10 in top 100 too low: " + hits + "/" + total);
+    }
+
+    @Test
+    void compactionKeepsCodebookAndRemapsCodes() {
+        Random random = new Random(17);
+        EmbeddingMatrix matrix = newMatrix();
+        ProductQuantizer quantizer = newQuantizer(matrix, null);
+        for (int i = 0; i < 3000; i++) {
+            add(matrix, quantizer, randomVector(random));
+        }
+        float[] query = randomVector(random);
+        QuantizedVectors.RowScorer before = quantizer.prepare(query);
+
+        EmbeddingMatrix compacted = newMatrix();
+        int[] oldToNew = new int[matrix.size()];
+        for (int row = 0; row < matrix.size(); row++) {
+            oldToNew[row] = row % 3 == 0 ? -1 : compacted.appendFrom(matrix, row);
+        }
+        ProductQuantizer remapped = quantizer.compact(compacted, oldToNew, compacted.size());
+        quantizers.add(remapped);
+        assertTrue(remapped.ready());
+        QuantizedVectors.RowScorer after = remapped.prepare(query);
+        for (int row = 0; row < oldToNew.length; row++) {
+            if (oldToNew[row] >= 0) {
+                assertEquals(before.score(row), after.score(oldToNew[row]));
+            }
+        }
+    }
+
+    @Test
+    void persistedCodebookIsReusedWithoutTraining() {
+        Random random = new Random(19);
+        Path file = dataDir.resolve("codebook.bin");
+        EmbeddingMatrix matrix = newMatrix();
+        ProductQuantizer quantizer = newQuantizer(matrix, file);
+        for (int i = 0; i < 3000; i++) {
+            add(matrix, quantizer, randomVector(random));
+        }
+        assertTrue(file.toFile().isFile());
+
+        EmbeddingMatrix reopened = newMatrix();
+        ProductQuantizer restored = newQuantizer(reopened, file);
+        assertTrue(restored.ready());
+        float[] vector = randomVector(random);
+        add(reopened, restored, vector);
+        add(matrix, quantizer, vector);
+        assertEquals(quantizer.prepare(vector).score(matrix.size() - 1), restored.prepare(vector).score(0));
+    }
+
+    private ProductQuantizer newQuantizer(EmbeddingMatrix matrix, Path codebookFile) {
+        ProductQuantizer quantizer = new ProductQuantizer(matrix, Runnable::run, 8, 3000, 5, codebookFile);
+        quantizers.add(quantizer);
+        return quantizer;
+    }
+
+    private EmbeddingMatrix newMatrix() {
+        EmbeddingMatrix matrix = new EmbeddingMatrix(DIMENSION);
+        matrices.add(matrix);
+        return matrix;
+    }
+
+    private static void add(EmbeddingMatrix matrix, ProductQuantizer quantizer, float[] vector) {
+        quantizer.add(matrix.append(vector), vector);
+    }
+
+    private static QuantizedVectors.RowScorer exactScorer(EmbeddingMatrix matrix, float[] query) {
+        SimilarityKernel kernel = new ScalarSimilarityKernel();
+        return row -> kernel.dot(query, matrix.blockOf(row), matrix.offsetInBlock(row));
+    }
+
+    private static Set<Integer> top(QuantizedVectors.RowScorer scorer, int size, int k) {
+        NodeHeap heap = new NodeHeap(k + 1, false);
+        for (int row = 0; row < size; row++) {
+            heap.push(row, scorer.score(row));
+            if (heap.size() > k) {
+                heap.pop();
+            }
+        }
+        Set<Integer> rows = new HashSet<>();
+        for (VectorIndex.ScoredRow row : heap.drainDescending()) {
+            rows.add(row.row());
+        }
+        return rows;
+    }
+
+    private static float[] randomVector(Random random) {
+        float[] vector = new float[DIMENSION];
+        for (int i = 0; i < DIMENSION; i++) {
+            vector[i] = (float) random.nextGaussian();
+        }
+        return SimilarityKernels.normalize(vector);
+    }
+}
@@ -0,0 +1,114 @@
+package com.example.rag.service;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.*;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * 作者: liangyajie
+ * 联系方式: 695274107@qq.com
+ * 检索流水线测试：配置解析、二值签名的汉明打分以及二值粗筛的召回率
+ */
+
+class SearchPipelineTests {
+
+    private static final int DIMENSION = 200;
+
+    @Test
+    void parsesStagesAndDefaults() {
+        SearchPipeline pipeline = SearchPipeline.parse("binary:40, int8 ,exact");
+        assertEquals(List.of(new SearchPipeline.Stage(SearchPipeline.StageType.BINARY, 40),
+                new SearchPipeline.Stage(SearchPipeline.StageType.INT8, 4)), pipeline.prefilters());
+        assertEquals("binary:40,int8:4,exact", pipeline.toString());
+        assertTrue(pipeline.uses(SearchPipeline.StageType.INT8));
+        assertFalse(pipeline.uses(SearchPipeline.StageType.PQ));
+        assertTrue(SearchPipeline.parse("exact").prefilters().isEmpty());
+        assertTrue(SearchPipeline.parse("").prefilters().isEmpty());
+        assertEquals(1, SearchPipeline.parse("pq:8").prefilters().size());
+    }
+
+    @Test
+    void rejectsInvalidPipelines() {
+        assertThrows(IllegalArgumentException.class, () -> SearchPipeline.parse("int8:4,binary:32,exact"));
+        assertThrows(IllegalArgumentException.class, () -> SearchPipeline.parse("exact,int8"));
+        assertThrows(IllegalArgumentException.class, () -> SearchPipeline.parse("hamming,exact"));
+        assertThrows(IllegalArgumentException.class, () -> SearchPipeline.parse("int8:0,exact"));
+        assertThrows(IllegalArgumentException.class, () -> SearchPipeline.parse("int8:4,int8:2,exact"));
+    }
+
+    @Test
+    void binaryScoreCountsAgreeingSigns() {
+        try (BinarySignatures signatures = new BinarySignatures(DIMENSION)) {
+            Random random = new Random(23);
+            float[] vector = randomVector(random);
+            float[] flipped = vector.clone();
+            for (int i = 0; i < 30; i++) {
+                flipped[i * 5] = -flipped[i * 5];
+            }
+            signatures.add(0, vector);
+            signatures.add(1, flipped);
+            QuantizedVectors.RowScorer scorer = signatures.prepare(vector);
+            assertEquals(DIMENSION, scorer.score(0));
+            assertEquals(DIMENSION - 2 * 30, scorer.score(1));
+        }
+    }
+
+    @Test
+    void binaryPrefilterKeepsNearNeighbours() {
+        Random random = new Random(29);
+        SimilarityKernel kernel = new ScalarSimilarityKernel();
+        try (BinarySignatures signatures = new BinarySignatures(DIMENSION);
+             EmbeddingMatrix matrix = new EmbeddingMatrix(DIMENSION)) {
+            for (int i = 0; i < 3000; i++) {
+                float[] vector = randomVector(random);
+                signatures.add(matrix.append(vector), vector);
+            }
+            int hits = 0;
+            int total = 0;
+            for (int q = 0; q < 30; q++) {
+                // 查询为某一行加噪声，最近邻明确
+                float[] query = matrix.readRow(random.nextInt(matrix.size()), new float[DIMENSION]);
+                for (int d = 0; d < DIMENSION; d++) {
+                    query[d] += 0.05f * (float) random.nextGaussian();
+                }
+                query = SimilarityKernels.normalize(query);
+                float[] finalQuery = query;
+                Set<Integer> survivors = top(signatures.prepare(query), matrix.size(), 320);
+                Set<Integer> expected = top(row -> kernel.dot(finalQuery, matrix.blockOf(row), matrix.offsetInBlock(row)),
+                        matrix.size(), 10);
+                for (int row : expected) {
+                    if (survivors.contains(row)) {
+                        hits++;
+                    }
+                }
+                total += expected.size();
+            }
+            assertTrue(hits >= total * 0.7, "binary prefilter recall too low: " + hits + "/" + total);
+        }
+    }
+
+    private static Set<Integer> top(QuantizedVectors.RowScorer scorer, int size, int k) {
+        NodeHeap heap = new NodeHeap(k + 1, false);
+        for (int row = 0; row < size; row++) {
+            heap.push(row, scorer.score(row));
+            if (heap.size() > k) {
+                heap.pop();
+            }
+        }
+        Set<Integer> rows = new HashSet<>();
+        for (VectorIndex.ScoredRow row : heap.drainDescending()) {
+            rows.add(row.row());
+        }
+        return rows;
+    }
+
+    private static float[] randomVector(Random random) {
+        float[] vector = new float[DIMENSION];
+        for (int i = 0; i < DIMENSION; i++) {
+            vector[i] = (float) random.nextGaussian();
+        }
+        return SimilarityKernels.normalize(vector);
+    }
+}
@@ -0,0 +1,220 @@
+package com.example.rag.service;
+
+import com.example.rag.model.Document;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.*;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * 作者: liangyajie
+ * 联系方式: 695274107@qq.com
+ * 段文件测试：向量、文档块和元数据类型的往返，落盘后矩阵改为读取映射，整理时原样复制记录，以及段清单的删除标记
+ */
+
+class SegmentFileTests {
+
+    private static final int DIMENSION = 24;
+
+    @TempDir
+    Path dataDir;
+
+    @Test
+    void roundTripsVectorsDocumentsAndMetadataTypes() throws IOException {
+        Random random = new Random(5);
+        EmbeddingMatrix matrix = new EmbeddingMatrix(DIMENSION, 8);
+        DocumentTable documents = new DocumentTable();
+        List<float[]> vectors = new ArrayList<>();
+        for (int i = 0; i < 20; i++) {
+            float[] vector = SimilarityKernels.normalize(randomVector(random));
+            vectors.add(vector);
+            matrix.append(vector);
+            documents.add(document("第" + i + "块 chunk", i % 5 == 0 ? null : "file-" + (i % 3)));
+        }
+
+        SegmentFile segment = SegmentFile.write(dataDir.resolve("a.seg"), matrix, documents, range(0, 20));
+        assertEquals(20, segment.rowCount());
+        assertEquals(DIMENSION, segment.dimension());
+        SegmentFile reopened = SegmentFile.open(dataDir.resolve("a.seg"));
+        for (int row = 0; row < 20; row++) {
+            Document document = reopened.document(row);
+            assertEquals("第" + row + "块 chunk", document.getContent());
+            assertEquals(documents.fileIdOf(row), reopened.fileIdOf(row));
+            assertEquals(documents.get(row).getMetadata(), document.getMetadata());
+            assertEquals(documents.get(row).getMetadata(), reopened.metadata(row));
+        }
+        Map<String, Object> metadata = reopened.metadata(1);
+        assertEquals(1234L, metadata.get("fileSize"));
+        assertEquals(7, metadata.get("page"));
+        assertEquals(0.5, metadata.get("ratio"));
+        assertEquals(Boolean.TRUE, metadata.get("ocr"));
+        assertTrue(metadata.containsKey("empty"));
+        assertNull(metadata.get("empty"));
+
+        // 落盘后矩阵的尾部行改为读取映射，内容不变，之后的写入从新块开始；之前取得的快照不受影响
+        DocumentTable frozen = documents.snapshot();
+        matrix.replaceTail(0, reopened.vectors());
+        documents.seal(reopened);
+        float[] extra = SimilarityKernels.normalize(randomVector(random));
+        matrix.append(extra);
+        documents.add(document("extra", "file-9"));
+        assertEquals(20, frozen.size());
+        assertEquals("第19块 chunk", frozen.get(19).getContent());
+        assertThrows(IndexOutOfBoundsException.class, () -> frozen.get(20));
+        assertThrows(IllegalStateException.class, () -> frozen.add(document("late", null)));
+        for (int row = 0; row < 20; row++) {
+            assertArrayEquals(vectors.get(row), matrix.readRow(row, new float[DIMENSION]));
+        }
+        assertArrayEquals(extra, matrix.readRow(20, new float[DIMENSION]));
+        assertEquals(20, documents.sealedRows());
+        assertEquals("file-9", documents.fileIdOf(20));
+    }
+
+    @Test
+    void rewriteCopiesSegmentRecordsAndPendingRows() throws IOException {
+        Random random = new Random(6);
+        EmbeddingMatrix matrix = new EmbeddingMatrix(DIMENSION);
+        DocumentTable documents = new DocumentTable();
+        for (int i = 0; i < 10; i++) {
+            matrix.append(SimilarityKernels.normalize(randomVector(random)));
+            documents.add(document("chunk" + i, "file-" + (i % 2)));
+        }
+        SegmentFile first = SegmentFile.write(dataDir.resolve("a.seg"), matrix, documents, range(0, 10));
+        matrix.replaceTail(0, first.vectors());
+        documents.seal(first);
+        matrix.append(SimilarityKernels.normalize(randomVector(random)));
+        documents.add(document("chunk10", "file-2"));
+
+        int[] kept = {1, 3, 10};
+        SegmentFile merged = SegmentFile.write(dataDir.resolve("b.seg"), matrix, documents, kept);
+        for (int i = 0; i < kept.length; i++) {
+            assertEquals("chunk" + kept[i], merged.document(i).getContent());
+            assertEquals(documents.fileIdOf(kept[i]), merged.fileIdOf(i));
+        }
+        EmbeddingMatrix reloaded = new EmbeddingMatrix(DIMENSION);
+        reloaded.attach(merged.vectors(), merged.rowCount());
+        for (int i = 0; i < kept.length; i++) {
+            assertArrayEquals(matrix.readRow(kept[i], new float[DIMENSION]), reloaded.readRow(i, new float[DIMENSION]));
+        }
+    }
+
+    @Test
+    void rejectsTruncatedSegment() throws IOException {
+        EmbeddingMatrix matrix = new EmbeddingMatrix(DIMENSION);
+        DocumentTable documents = new DocumentTable();
+        matrix.append(SimilarityKernels.normalize(randomVector(new Random(7))));
+        documents.add(document("chunk", "file"));
+        Path file = dataDir.resolve("a.seg");
+        SegmentFile.write(file, matrix, documents, range(0, 1));
+        byte[] bytes = Files.readAllBytes(file);
+        Files.write(file, Arrays.copyOf(bytes, bytes.length - 8));
+        assertThrows(IOException.class, () -> SegmentFile.open(file));
+    }
+
+    @Test
+    void storeRestoresSegmentsAndTombstones() throws IOException {
+        Random random = new Random(8);
+        Path directory = dataDir.resolve("segments");
+        EmbeddingMatrix matrix = new EmbeddingMatrix(DIMENSION);
+        DocumentTable documents = new DocumentTable();
+        SegmentStore store = new SegmentStore(directory);
+        BitSet deleted = new BitSet();
+        for (int batch = 0; batch < 2; batch++) {
+            int from = matrix.size();
+            for (int i = 0; i < 5; i++) {
+                matrix.append(SimilarityKernels.normalize(randomVector(random)));
+                documents.add(document("chunk" + (from + i), "file-" + batch));
+            }
+            documents.seal(store.append(matrix, documents, from, matrix.size(), deleted, 0));
+        }
+        deleted.set(2);
+        deleted.set(7);
+        store.checkpoint(deleted, 0);
+        Files.writeString(directory.resolve(SegmentManifest.fileName(99)), "orphan");
+
+        BitSet restored = new BitSet();
+        List<SegmentFile> segments = new SegmentStore(directory).open(restored);
+        assertEquals(2, segments.size());
+        assertEquals(deleted, restored);
+        assertEquals("chunk7", segments.get(1).document(2).getContent());
+        assertFalse(Files.exists(directory.resolve(SegmentManifest.fileName(99))));
+    }
+
+    @Test
+    void storeReplacesAdjacentSegmentsWithMergedSegment() throws IOException {
+        Random random = new Random(9);
+        Path directory = dataDir.resolve("segments");
+        EmbeddingMatrix matrix = new EmbeddingMatrix(DIMENSION);
+        DocumentTable documents = new DocumentTable();
+        SegmentStore store = new SegmentStore(directory);
+        for (int batch = 0; batch < 3; batch++) {
+            int from = matrix.size();
+            for (int i = 0; i < 4; i++) {
+                matrix.append(SimilarityKernels.normalize(randomVector(random)));
+                documents.add(document("chunk" + (from + i), "file-" + batch));
+            }
+            documents.seal(store.append(matrix, documents, from, matrix.size(), new BitSet(), 0));
+        }
+
+        // 合并第二、三段中的存活行，新段在锁外写入，再替换清单中的两个旧段
+        EmbeddingMatrix view = new EmbeddingMatrix(DIMENSION);
+        DocumentTable viewDocuments = new DocumentTable();
+        for (SegmentFile segment : documents.segments().subList(1, 3)) {
+            view.attach(segment.vectors(), segment.rowCount());
+            viewDocuments.attach(segment);
+        }
+        long id = store.reserveId();
+        SegmentFile merged = store.writeSegment(id, view, viewDocuments, new int[]{0, 2, 5, 6, 7});
+        BitSet deleted = new BitSet();
+        deleted.set(1);
+        deleted.set(5);
+        store.replace(1, 2, merged, id, deleted);
+        assertEquals(9, store.rowCount());
+        assertFalse(Files.exists(directory.resolve(SegmentManifest.fileName(2))));
+        assertFalse(Files.exists(directory.resolve(SegmentManifest.fileName(3))));
+
+        // 放弃的整理结果在清单之外，启动时会被清理
+        store.discard(store.reserveId());
+        BitSet restored = new BitSet();
+        List<SegmentFile> segments = new SegmentStore(directory).open(restored);
+        assertEquals(2, segments.size());
+        assertEquals(List.of("chunk4", "chunk6", "chunk9", "chunk10", "chunk11"),
+                List.of(0, 1, 2, 3, 4).stream().map(row -> segments.get(1).document(row).getContent()).toList());
+        assertEquals(deleted, restored);
+    }
+
+    private static Document document(String content, String fileId) {
+        Map<String, Object> metadata = new HashMap<>();
+        if (fileId != null) {
+            metadata.put("fileId", fileId);
+            metadata.put("fileName", fileId + ".pdf");
+        }
+        metadata.put("fileSize", 1234L);
+        metadata.put("page", 7);
+        metadata.put("ratio", 0.5);
+        metadata.put("ocr", true);
+        metadata.put("empty", null);
+        return new Document(content, metadata);
+    }
+
+    private static int[] range(int from, int to) {
+        int[] rows = new int[to - from];
+        for (int i = 0; i < rows.length; i++) {
+            rows[i] = from + i;
+        }
+        return rows;
+    }
+
+    private static float[] randomVector(Random random) {
+        float[] vector = new float[DIMENSION];
+        for (int i = 0; i < DIMENSION; i++) {
+            vector[i] = (float) random.nextGaussian();
+        }
+        return vector;
+    }
+}
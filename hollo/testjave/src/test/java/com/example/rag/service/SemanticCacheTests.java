@@ -0,0 +1,136 @@
+package com.example.rag.service;
+
+import com.example.rag.model.Document;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.jupiter.api.Test;
+
+import java.util.*;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * 作者: liangyajie
+ * 联系方式: 695274107@qq.com
+ * 语义查询缓存测试：相近查询向量命中、topK和过滤条件区分、过期与淘汰、数据变化期间的写入丢弃、就地更新，以及命中率指标
+ */
+
+class SemanticCacheTests {
+
+    private static final int DIMENSION = 32;
+    private final AtomicLong clock = new AtomicLong();
+    private final SemanticCache cache = new SemanticCache(new ScalarSimilarityKernel(), 3, 0.05,
+            TimeUnit.SECONDS.toNanos(60), clock::get);
+
+    @Test
+    void reusesResultsForNearbyQueryVectors() {
+        Random random = new Random(31);
+        float[] query = randomVector(random);
+        List<Document> documents = List.of(new Document("chunk", Map.of("fileId", "file-1")));
+        SemanticCache.Entry entry = cache.put(query, SearchFilter.NONE, 10, List.of(), documents, cache.generation());
+        cache.putAnswer(entry, "回答");
+
+        // 轻微扰动的查询向量（改写后的问题）命中，余弦距离较大的查询不命中
+        SemanticCache.Entry hit = cache.lookup(perturb(query, 0.05f, random), SearchFilter.NONE, 5);
+        assertNotNull(hit);
+        assertEquals(documents, hit.documents());
+        assertEquals("回答", hit.answer());
+        assertNull(cache.lookup(perturb(query, 1.0f, random), SearchFilter.NONE, 5));
+        // 缓存的topK小于请求的topK、或过滤条件不同，都不能复用
+        assertNull(cache.lookup(query, SearchFilter.NONE, 20));
+        assertNull(cache.lookup(query, SearchFilter.of(List.of("file-1"), null), 10));
+        assertNotNull(cache.lookup(query, SearchFilter.of(null, " "), 10));
+
+        SimpleMeterRegistry registry = new SimpleMeterRegistry();
+        cache.bindTo(registry);
+        assertEquals(2.0, registry.get("rag.semantic.cache.requests").tag("result", "hit").functionCounter().count());
+        assertEquals(3.0, registry.get("rag.semantic.cache.requests").tag("result", "miss").functionCounter().count());
+        assertEquals(2.0, registry.get("rag.semantic.cache.answer.hits").functionCounter().count());
+        assertEquals(0.4, registry.get("rag.semantic.cache.hit.ratio").gauge().value(), 1e-9);
+        assertEquals(1.0, registry.get("rag.semantic.cache.size").gauge().value());
+    }
+
+    @Test
+    void expiresEvictsAndDropsWritesAcrossInvalidation() {
+        Random random = new Random(32);
+        float[][] queries = new float[5][];
+        for (int i = 0; i < queries.length; i++) {
+            queries[i] = randomVector(random);
+        }
+        for (int i = 0; i < 3; i++) {
+            clock.addAndGet(1);
+            cache.put(queries[i], SearchFilter.NONE, 10, List.of(), List.of(), cache.generation());
+        }
+        // 访问第一条后写入第四条，淘汰最久未使用的第二条
+        clock.addAndGet(1);
+        assertNotNull(cache.lookup(queries[0], SearchFilter.NONE, 10));
+        cache.put(queries[3], SearchFilter.NONE, 10, List.of(), List.of(), cache.generation());
+        assertEquals(3, cache.size());
+        assertNull(cache.lookup(queries[1], SearchFilter.NONE, 10));
+        assertNotNull(cache.lookup(queries[0], SearchFilter.NONE, 10));
+
+        clock.addAndGet(TimeUnit.SECONDS.toNanos(61));
+        assertNull(cache.lookup(queries[3], SearchFilter.NONE, 10));
+
+        // 检索期间数据变化：开始前取得的代号已过期，结果和回答都不写入
+        long started = cache.generation();
+        SemanticCache.Entry entry = cache.put(queries[4], SearchFilter.NONE, 10, List.of(), List.of(), started);
+        cache.invalidateAll();
+        assertEquals(0, cache.size());
+        assertNull(cache.put(queries[4], SearchFilter.NONE, 10, List.of(), List.of(), started));
+        cache.putAnswer(entry, "过期的回答");
+        assertNull(entry.answer());
+    }
+
+    @Test
+    void updatesEntriesInPlaceAndKeepsUnaffectedAnswers() {
+        Random random = new Random(33);
+        float[] first = randomVector(random);
+        float[] second = randomVector(random);
+        Document old = new Document("旧", Map.of("fileId", "file-1"));
+        Document added = new Document("新", Map.of("fileId", "file-2"));
+        SemanticCache.Entry kept = cache.put(first, SearchFilter.NONE, 10,
+                List.of(new SimpleVectorStore.DocumentWithScore(old, 0.9)), List.of(old), cache.generation());
+        SemanticCache.Entry changed = cache.put(second, SearchFilter.NONE, 10,
+                List.of(new SimpleVectorStore.DocumentWithScore(old, 0.8)), List.of(old), cache.generation());
+        cache.putAnswer(kept, "保留的回答");
+        cache.putAnswer(changed, "旧的回答");
+
+        // 更新期间开始的检索不再写入；只有结果变化的条目被替换，其回答随之失效
+        long started = cache.generation();
+        cache.update(entry -> entry != changed ? entry : entry.withResults(
+                List.of(new SimpleVectorStore.DocumentWithScore(added, 0.95), new SimpleVectorStore.DocumentWithScore(old, 0.8)),
+                List.of(added, old)));
+        assertNull(cache.put(randomVector(random), SearchFilter.NONE, 10, List.of(), List.of(), started));
+        assertEquals(2, cache.size());
+        assertSame(kept, cache.lookup(first, SearchFilter.NONE, 10));
+        assertEquals("保留的回答", kept.answer());
+        SemanticCache.Entry updated = cache.lookup(second, SearchFilter.NONE, 10);
+        assertEquals(List.of(added, old), updated.documents());
+        assertNull(updated.answer());
+        cache.putAnswer(changed, "过期的回答");
+        assertNull(cache.lookup(second, SearchFilter.NONE, 10).answer());
+
+        // 返回null的条目被移除
+        cache.update(entry -> entry.documents().contains(added) ? null : entry);
+        assertEquals(1, cache.size());
+        assertNull(cache.lookup(second, SearchFilter.NONE, 10));
+    }
+
+    private static float[] perturb(float[] vector, float amount, Random random) {
+        float[] noisy = new float[vector.length];
+        for (int i = 0; i < vector.length; i++) {
+            noisy[i] = vector[i] + amount * (float) random.nextGaussian() / (float) Math.sqrt(DIMENSION);
+        }
+        return SimilarityKernels.normalize(noisy);
+    }
+
+    private static float[] randomVector(Random random) {
+        float[] vector = new float[DIMENSION];
+        for (int i = 0; i < DIMENSION; i++) {
+            vector[i] = (float) random.nextGaussian();
+        }
+        return SimilarityKernels.normalize(vector);
+    }
+}
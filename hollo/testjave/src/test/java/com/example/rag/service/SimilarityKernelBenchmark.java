@@ -0,0 +1,171 @@
+package com.example.rag.service;
+
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.infra.Blackhole;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+import java.lang.foreign.MemorySegment;
+import java.lang.foreign.ValueLayout;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 作者: liangyajie
+ * 联系方式: 695274107@qq.com
+ * 相似度内核JMH基准测试：对比原有余弦实现、归一化后的标量/SIMD点积内核以及int8量化点积
+ *
+ * 运行方式（在 hollo/testjave 目录下）：
+ *   mvn test-compile dependency:build-classpath -Dmdep.outputFile=target/cp.txt
+ *   java --enable-preview --add-modules jdk.incubator.vector \
+ *        -cp target/classes:target/test-classes:$(cat target/cp.txt) \
+ *        com.example.rag.service.SimilarityKernelBenchmark
+ */
+
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(value = 1, jvmArgsAppend = {"--enable-preview", "--add-modules", "jdk.incubator.vector"})
+@State(Scope.Benchmark)
+public class SimilarityKernelBenchmark {
+
+    private static final int ROWS = 4096;
+
+    @Param({"384", "1024"})
+    private int dimension;
+
+    private List<List<Double>> boxedRows;
+    private EmbeddingMatrix rawMatrix;
+    private EmbeddingMatrix normalizedMatrix;
+    private Int8Matrix quantizedMatrix;
+    private List<Double> boxedQuery;
+    private float[] rawQuery;
+    private float[] normalizedQuery;
+    private byte[] queryCodes;
+    private SimilarityKernel scalarKernel;
+    private SimilarityKernel simdKernel;
+
+    @Setup
+    public void setup() {
+        Random random = new Random(42);
+        boxedRows = new ArrayList<>(ROWS);
+        rawMatrix = new EmbeddingMatrix(dimension);
+        normalizedMatrix = new EmbeddingMatrix(dimension);
+        quantizedMatrix = new Int8Matrix(dimension);
+        for (int r = 0; r < ROWS; r++) {
+            float[] vector = randomVector(random);
+            List<Double> boxed = new ArrayList<>(dimension);
+            for (float value : vector) {
+                boxed.add((double) value);
+            }
+            boxedRows.add(boxed);
+            rawMatrix.append(vector);
+            normalizedMatrix.append(SimilarityKernels.normalize(vector));
+            quantizedMatrix.append(SimilarityKernels.normalize(vector));
+        }
+        rawQuery = randomVector(random);
+        boxedQuery = new ArrayList<>(dimension);
+        for (float value : rawQuery) {
+            boxedQuery.add((double) value);
+        }
+        normalizedQuery = SimilarityKernels.normalize(rawQuery);
+        queryCodes = new byte[dimension];
+        Int8Matrix.quantize(normalizedQuery, queryCodes);
+        scalarKernel = new ScalarSimilarityKernel();
+        simdKernel = new SimdSimilarityKernel();
+    }
+
+    @TearDown
+    public void tearDown() {
+        rawMatrix.close();
+        normalizedMatrix.close();
+        quantizedMatrix.close();
+    }
+
+    // 最初的实现：List<Double>逐个拆箱，每次重新计算两个范数
+    @Benchmark
+    public void boxedListCosine(Blackhole blackhole) {
+        for (List<Double> row : boxedRows) {
+            blackhole.consume(boxedCosine(boxedQuery, row));
+        }
+    }
+
+    // 当前实现：堆外矩阵上的标量余弦，每次重新计算两个范数
+    @Benchmark
+    public void segmentCosine(Blackhole blackhole) {
+        for (int row = 0; row < ROWS; row++) {
+            blackhole.consume(segmentCosine(rawQuery, rawMatrix.blockOf(row), rawMatrix.offsetInBlock(row)));
+        }
+    }
+
+    // 预归一化后的标量点积
+    @Benchmark
+    public void scalarDot(Blackhole blackhole) {
+        for (int row = 0; row < ROWS; row++) {
+            blackhole.consume(scalarKernel.dot(normalizedQuery, normalizedMatrix.blockOf(row), normalizedMatrix.offsetInBlock(row)));
+        }
+    }
+
+    // 预归一化后的SIMD点积
+    @Benchmark
+    public void simdDot(Blackhole blackhole) {
+        for (int row = 0; row < ROWS; row++) {
+            blackhole.consume(simdKernel.dot(normalizedQuery, normalizedMatrix.blockOf(row), normalizedMatrix.offsetInBlock(row)));
+        }
+    }
+
+    // int8量化向量的SIMD点积，扫描的数据量为float的四分之一
+    @Benchmark
+    public void simdInt8Dot(Blackhole blackhole) {
+        for (int row = 0; row < ROWS; row++) {
+            long offset = quantizedMatrix.offsetInBlock(row) + Int8Matrix.CODES_OFFSET;
+            blackhole.consume(simdKernel.dot(queryCodes, quantizedMatrix.blockOf(row), offset) * quantizedMatrix.scale(row));
+        }
+    }
+
+    private float[] randomVector(Random random) {
+        float[] vector = new float[dimension];
+        for (int i = 0; i < dimension; i++) {
+            vector[i] = (float) random.nextGaussian();
+        }
+        return vector;
+    }
+
+    private static double boxedCosine(List<Double> vec1, List<Double> vec2) {
+        double dotProduct = 0.0;
+        double norm1 = 0.0;
+        double norm2 = 0.0;
+        for (int i = 0; i < vec1.size(); i++) {
+            final double val1 = vec1.get(i);
+            final double val2 = vec2.get(i);
+            dotProduct += val1 * val2;
+            norm1 += val1 * val1;
+            norm2 += val2 * val2;
+        }
+        return dotProduct / (Math.sqrt(norm1) * Math.sqrt(norm2));
+    }
+
+    private static double segmentCosine(float[] vec1, MemorySegment block, long rowOffset) {
+        double dotProduct = 0.0;
+        double norm1 = 0.0;
+        double norm2 = 0.0;
+        for (int i = 0; i < vec1.length; i++) {
+            final double val1 = vec1[i];
+            final double val2 = block.getAtIndex(ValueLayout.JAVA_FLOAT, (rowOffset >> 2) + i);
+            dotProduct += val1 * val2;
+            norm1 += val1 * val1;
+            norm2 += val2 * val2;
+        }
+        return dotProduct / (Math.sqrt(norm1) * Math.sqrt(norm2));
+    }
+
+    public static void main(String[] args) throws RunnerException {
+        new Runner(new OptionsBuilder()
+                .include(SimilarityKernelBenchmark.class.getSimpleName())
+                .build()).run();
+    }
+}
@@ -0,0 +1,413 @@
+package com.example.rag.service;
+
+import com.example.rag.client.OllamaClient;
+import com.example.rag.config.VectorStoreProperties;
+import com.example.rag.model.Document;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.*;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * 作者: liangyajie
+ * 联系方式: 695274107@qq.com
+ * 向量存储测试：写入、检索和删除在重启后保留；未写检查点的日志在崩溃后重放；后台整理不改变结果和删除标记；
+ * 段文件损坏或缺失时本次运行不写盘，其余段的数据不丢失；重新上传的块在重启后仍命中嵌入缓存；
+ * 各检索方式（暴力、HNSW、IVF、量化流水线）下按文件过滤都只返回允许的文件；写入、删除、检查点和整理进行时并发检索的结果始终正确；
+ * 查询嵌入缓存在写入和删除后仍然有效；语义缓存随写入和删除增量更新，结果与不缓存时一致
+ */
+
+class SimpleVectorStoreTests {
+
+    private static final int DIMENSION = 32;
+
+    @TempDir
+    Path dataDir;
+
+    // 嵌入由文本决定；"q:X"与"X"相近，用作检索X的查询
+    private static final class HashEmbeddingClient extends OllamaClient {
+        // 为文档块（非查询）和查询生成嵌入的次数
+        final AtomicInteger chunksEmbedded = new AtomicInteger();
+        final AtomicInteger queriesEmbedded = new AtomicInteger();
+
+        @Override
+        public float[] generateEmbedding(String model, String text) {
+            (text.startsWith("q:") ? queriesEmbedded : chunksEmbedded).incrementAndGet();
+            float[] vector = randomVector(text.startsWith("q:") ? text.substring(2) : text);
+            if (text.startsWith("q:")) {
+                float[] noise = randomVector(text);
+                for (int i = 0; i < DIMENSION; i++) {
+                    vector[i] += 0.1f * noise[i];
+                }
+            }
+            return vector;
+        }
+
+        @Override
+        public List<float[]> generateEmbeddings(String model, List<String> texts) {
+            List<float[]> vectors = new ArrayList<>();
+            for (String text : texts) {
+                vectors.add(generateEmbedding(model, text));
+            }
+            return vectors;
+        }
+
+        private static float[] randomVector(String seed) {
+            Random random = new Random(seed.hashCode());
+            float[] vector = new float[DIMENSION];
+            for (int i = 0; i < DIMENSION; i++) {
+                vector[i] = (float) random.nextGaussian();
+            }
+            return vector;
+        }
+    }
+
+    private VectorStoreProperties properties(int checkpointRows) {
+        VectorStoreProperties properties = new VectorStoreProperties();
+        properties.setDataDir(dataDir.toString());
+        properties.getPersistence().setCheckpointRows(checkpointRows);
+        properties.getEmbeddingCache().setMaxBytes(0);
+        return properties;
+    }
+
+    // 各检索方式共用的配置，数据目录按名称区分
+    private VectorStoreProperties searchProperties(String name) {
+        VectorStoreProperties properties = properties(10000);
+        properties.setDataDir(dataDir.resolve(name).toString());
+        return properties;
+    }
+
+    private static SimpleVectorStore open(VectorStoreProperties properties) {
+        return open(properties, new HashEmbeddingClient());
+    }
+
+    private static SimpleVectorStore open(VectorStoreProperties properties, HashEmbeddingClient client) {
+        return new SimpleVectorStore(client, "test-model", properties);
+    }
+
+    private static Document document(String content, String fileId) {
+        Map<String, Object> metadata = new HashMap<>();
+        metadata.put("fileId", fileId);
+        metadata.put("fileName", fileId + ".txt");
+        return new Document(content, metadata);
+    }
+
+    private static List<Document> documents(String fileId, int count) {
+        List<Document> documents = new ArrayList<>();
+        for (int i = 0; i < count; i++) {
+            documents.add(document(fileId + "-块" + i, fileId));
+        }
+        return documents;
+    }
+
+    // 断言查询content时排在第一位的正是它
+    private static void assertFound(SimpleVectorStore store, String content) {
+        List<Document> results = store.similaritySearch("q:" + content, 3);
+        assertFalse(results.isEmpty(), content);
+        assertEquals(content, results.get(0).getContent());
+    }
+
+    private static void assertAbsent(SimpleVectorStore store, String content) {
+        for (Document document : store.similaritySearch("q:" + content, 10)) {
+            assertNotEquals(content, document.getContent());
+        }
+    }
+
+    private Path segmentsDir() {
+        return dataDir.resolve("segments");
+    }
+
+    @Test
+    void addSearchAndDeleteSurviveRestart() {
+        VectorStoreProperties properties = properties(4);
+        SimpleVectorStore store = open(properties);
+        store.add(documents("f1", 4));
+        store.add(documents("f2", 4));
+        store.add(documents("f3", 3));
+        assertTrue(store.deleteByFileId("f2"));
+        assertFound(store, "f1-块2");
+        store.cleanup();
+
+        SimpleVectorStore reopened = open(properties);
+        assertEquals(Set.of("f1", "f3"), reopened.getAllFileMappings().keySet());
+        assertFound(reopened, "f1-块2");
+        assertFound(reopened, "f3-块0");
+        assertAbsent(reopened, "f2-块1");
+        reopened.deleteAll();
+        // 之前的检索结果已进入语义缓存，清空后不再命中
+        assertTrue(reopened.similaritySearch("q:f1-块2", 3).isEmpty());
+        reopened.cleanup();
+
+        SimpleVectorStore cleared = open(properties);
+        assertTrue(cleared.getAllFileMappings().isEmpty());
+        assertTrue(cleared.similaritySearch("q:f1-块2", 3).isEmpty());
+        cleared.cleanup();
+    }
+
+    @Test
+    void replaysUncheckpointedLogAfterCrash() {
+        VectorStoreProperties properties = properties(10000);
+        SimpleVectorStore crashed = open(properties);
+        crashed.add(documents("f1", 3));
+        crashed.add(documents("f2", 3));
+        assertTrue(crashed.deleteByFileId("f1"));
+        // 不调用cleanup，模拟进程崩溃：数据只在预写日志中
+
+        SimpleVectorStore recovered = open(properties);
+        assertEquals(Set.of("f2"), recovered.getAllFileMappings().keySet());
+        assertFound(recovered, "f2-块2");
+        assertAbsent(recovered, "f1-块0");
+        recovered.cleanup();
+    }
+
+    @Test
+    void backgroundCompactionKeepsResultsAndTombstones() throws Exception {
+        VectorStoreProperties properties = properties(1);
+        SimpleVectorStore store = open(properties);
+        // 第一段一半属于f1，删除后超过整理阈值；第二段只删除一行，低于阈值，删除标记保留在清单中
+        List<Document> mixed = new ArrayList<>(documents("f1", 4));
+        mixed.addAll(documents("f2", 4));
+        store.add(mixed);
+        List<Document> second = new ArrayList<>(documents("f3", 1));
+        second.addAll(documents("f4", 5));
+        store.add(second);
+        Path firstSegment = segmentsDir().resolve(SegmentManifest.fileName(1));
+        assertTrue(Files.exists(firstSegment));
+
+        assertTrue(store.deleteByFileId("f1"));
+        assertTrue(store.deleteByFileId("f3"));
+        long deadline = System.nanoTime() + 10_000_000_000L;
+        while (Files.exists(firstSegment)) {
+            assertTrue(System.nanoTime() < deadline, "后台整理未完成");
+            Thread.sleep(10);
+        }
+        assertFound(store, "f2-块3");
+        assertFound(store, "f4-块4");
+        assertAbsent(store, "f1-块1");
+        assertAbsent(store, "f3-块0");
+        // 整理后的行号重映射，之后的删除仍命中正确的行
+        assertTrue(store.deleteByFileId("f4"));
+        assertAbsent(store, "f4-块4");
+        assertFound(store, "f2-块0");
+        store.cleanup();
+
+        SimpleVectorStore reopened = open(properties);
+        assertEquals(Set.of("f2"), reopened.getAllFileMappings().keySet());
+        for (int i = 0; i < 4; i++) {
+            assertFound(reopened, "f2-块" + i);
+        }
+        assertAbsent(reopened, "f3-块0");
+        assertAbsent(reopened, "f4-块2");
+        reopened.cleanup();
+    }
+
+    @Test
+    void unreadableSegmentDoesNotLoseOtherData() throws Exception {
+        VectorStoreProperties properties = properties(1);
+        SimpleVectorStore store = open(properties);
+        store.add(documents("f1", 3));
+        store.add(documents("f2", 3));
+        store.cleanup();
+        Path first = segmentsDir().resolve(SegmentManifest.fileName(1));
+        Path second = segmentsDir().resolve(SegmentManifest.fileName(2));
+        byte[] original = Files.readAllBytes(first);
+        byte[] manifest = Files.readAllBytes(segmentsDir().resolve("MANIFEST"));
+
+        // 段文件被截断：本次运行不挂载任何段，写入和关闭都不写盘
+        Files.write(first, Arrays.copyOf(original, original.length / 2));
+        SimpleVectorStore damaged = open(properties);
+        assertTrue(damaged.getAllFileMappings().isEmpty());
+        damaged.add(documents("f3", 2));
+        damaged.deleteAll();
+        damaged.cleanup();
+        assertArrayEquals(manifest, Files.readAllBytes(segmentsDir().resolve("MANIFEST")));
+        assertTrue(Files.exists(second));
+
+        // 段文件缺失时同样不写盘，之后的启动也不会把其余段当作残留删除
+        Files.delete(first);
+        SimpleVectorStore missing = open(properties);
+        assertTrue(missing.getAllFileMappings().isEmpty());
+        missing.cleanup();
+        SimpleVectorStore again = open(properties);
+        again.cleanup();
+        assertTrue(Files.exists(second));
+
+        // 恢复段文件后全部数据可用
+        Files.write(first, original);
+        SimpleVectorStore restored = open(properties);
+        assertEquals(Set.of("f1", "f2"), restored.getAllFileMappings().keySet());
+        assertFound(restored, "f1-块1");
+        assertFound(restored, "f2-块2");
+        restored.cleanup();
+    }
+
+    @Test
+    void reuploadedChunksAreNotEmbeddedAgain() {
+        VectorStoreProperties properties = properties(4);
+        properties.getEmbeddingCache().setMaxBytes(1024 * 1024);
+        HashEmbeddingClient client = new HashEmbeddingClient();
+        SimpleVectorStore store = open(properties, client);
+        List<Document> first = documents("f1", 3);
+        // 同一批中重复的块只生成一次
+        first.add(document("f1-块0", "f1"));
+        store.add(first);
+        assertEquals(3, client.chunksEmbedded.get());
+        store.cleanup();
+
+        // 缓存在重启后仍然有效：新版本的文件只多出一个块
+        SimpleVectorStore reopened = open(properties, client);
+        List<Document> second = new ArrayList<>();
+        for (int i = 0; i < 3; i++) {
+            second.add(document("f1-块" + i, "f2"));
+        }
+        second.add(document("f2-新块", "f2"));
+        reopened.add(second);
+        assertEquals(4, client.chunksEmbedded.get());
+        assertEquals(Set.of("f1", "f2"), reopened.getAllFileMappings().keySet());
+        assertFound(reopened, "f2-新块");
+        reopened.cleanup();
+    }
+
+    @Test
+    void filtersApplyInEverySearchMode() {
+        Map<String, VectorStoreProperties> modes = new LinkedHashMap<>();
+        modes.put("flat", searchProperties("flat"));
+        VectorStoreProperties hnsw = searchProperties("hnsw");
+        hnsw.setSearchMode(VectorStoreProperties.SearchMode.HNSW);
+        modes.put("hnsw", hnsw);
+        VectorStoreProperties ivf = searchProperties("ivf");
+        ivf.setSearchMode(VectorStoreProperties.SearchMode.IVF);
+        ivf.getIvf().setTrainThreshold(500);
+        modes.put("ivf", ivf);
+        VectorStoreProperties pipeline = searchProperties("pipeline");
+        pipeline.setSearchPipeline("binary:32,int8:4,exact");
+        modes.put("pipeline", pipeline);
+
+        for (Map.Entry<String, VectorStoreProperties> mode : modes.entrySet()) {
+            SimpleVectorStore store = open(mode.getValue());
+            for (int f = 0; f < 4; f++) {
+                store.add(documents("g" + f, 150));
+            }
+            String name = mode.getKey();
+            assertFound(store, "g1-块7");
+            // 过滤到其他文件时，即使最相似的块属于g1也不会返回
+            for (Document document : store.similaritySearch("q:g1-块7", 5, SearchFilter.of(List.of("g2"), null))) {
+                assertEquals("g2", document.getMetadata().get("fileId"), name);
+            }
+            assertEquals("g2-块9", store.similaritySearch("q:g2-块9", 3, SearchFilter.of(List.of("g2", "g3"), null))
+                    .get(0).getContent(), name);
+            assertEquals("g3-块11", store.similaritySearch("q:g3-块11", 3, SearchFilter.of(null, "g3"))
+                    .get(0).getContent(), name);
+            assertTrue(store.similaritySearch("q:g0-块3", 3, SearchFilter.of(List.of("none"), null)).isEmpty(), name);
+            assertTrue(store.deleteByFileId("g0"));
+            assertTrue(store.similaritySearch("q:g0-块3", 3, SearchFilter.of(List.of("g0"), null)).isEmpty(), name);
+            store.cleanup();
+        }
+    }
+
+    @Test
+    void concurrentSearchesSeeConsistentSnapshots() throws Exception {
+        for (VectorStoreProperties.SearchMode mode : List.of(VectorStoreProperties.SearchMode.FLAT,
+                VectorStoreProperties.SearchMode.HNSW)) {
+            VectorStoreProperties properties = searchProperties(mode.name());
+            properties.setSearchMode(mode);
+            properties.getPersistence().setCheckpointRows(300);
+            // 关闭语义缓存，每次检索都读取快照
+            properties.getQueryCache().setMaxEntries(0);
+            SimpleVectorStore store = open(properties);
+            store.add(documents("base", 300));
+
+            // 写线程持续写入、删除，期间会写检查点并在后台整理；检索线程始终应找到base中对应的块
+            AtomicBoolean writing = new AtomicBoolean(true);
+            ExecutorService executor = Executors.newFixedThreadPool(3);
+            try {
+                List<Future<Integer>> readers = new ArrayList<>();
+                for (int r = 0; r < 3; r++) {
+                    int offset = r;
+                    readers.add(executor.submit(() -> {
+                        int searches = 0;
+                        for (int q = offset; writing.get() || searches == 0; q += 3) {
+                            String content = "base-块" + (q % 300);
+                            List<Document> results = store.similaritySearch("q:" + content, 3);
+                            assertFalse(results.isEmpty(), mode + " " + content);
+                            assertEquals(content, results.get(0).getContent(), mode.name());
+                            searches++;
+                        }
+                        return searches;
+                    }));
+                }
+                for (int b = 0; b < 15; b++) {
+                    store.add(documents("w" + b, 60));
+                    if (b >= 2) {
+                        assertTrue(store.deleteByFileId("w" + (b - 2)));
+                    }
+                }
+                writing.set(false);
+                for (Future<Integer> reader : readers) {
+                    assertTrue(reader.get() > 0);
+                }
+            } finally {
+                writing.set(false);
+                executor.shutdownNow();
+            }
+            assertEquals(Set.of("base", "w13", "w14"), store.getAllFileMappings().keySet());
+            assertFound(store, "w14-块5");
+            store.cleanup();
+        }
+    }
+
+    @Test
+    void queryEmbeddingsAreReusedAcrossWrites() {
+        HashEmbeddingClient client = new HashEmbeddingClient();
+        SimpleVectorStore store = open(properties(10000), client);
+        store.add(documents("f1", 2));
+        assertFound(store, "f1-块0");
+        assertEquals(1, client.queriesEmbedded.get());
+
+        // 写入和删除会改变检索结果，但不改变查询文本的嵌入，重复的查询不再调用Ollama
+        store.add(documents("f2", 2));
+        assertFound(store, "f1-块0");
+        assertTrue(store.deleteByFileId("f2"));
+        assertFound(store, "f1-块0");
+        assertEquals(1, client.queriesEmbedded.get());
+        store.cleanup();
+    }
+
+    @Test
+    void semanticCacheFollowsWritesWithoutDroppingEntries() {
+        SimpleVectorStore store = open(properties(10000));
+        SimpleMeterRegistry registry = new SimpleMeterRegistry();
+        store.bindTo(registry);
+        store.add(documents("f1", 2));
+        assertFound(store, "f1-块1");
+        assertAbsent(store, "f2-块0");
+
+        // 新写入的块合并进已缓存的结果，后续查询命中缓存且能看到它
+        store.add(documents("f2", 2));
+        assertFound(store, "f2-块0");
+        assertFound(store, "f1-块1");
+        assertEquals(2.0, hits(registry));
+
+        // 删除只移除缓存结果中被删的块，其余缓存项继续命中
+        assertTrue(store.deleteByFileId("f2"));
+        assertAbsent(store, "f2-块0");
+        double before = hits(registry);
+        assertFound(store, "f1-块1");
+        assertEquals(before + 1, hits(registry), "删除f2后f1的缓存项应保留");
+        store.cleanup();
+    }
+
+    private static double hits(SimpleMeterRegistry registry) {
+        return registry.get("rag.semantic.cache.requests").tag("result", "hit").functionCounter().count();
+    }
+}
@@ -0,0 +1,56 @@
+package com.example.rag.service;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.*;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * 作者: liangyajie
+ * 联系方式: 695274107@qq.com
+ * Top-K收集器测试：与全量排序结果对比，验证分数下限和多个收集器合并
+ */
+
+class TopKCollectorTests {
+
+    @Test
+    void mergedCollectorsMatchFullSort() {
+        Random random = new Random(31);
+        float[] scores = new float[5000];
+        List<TopKCollector> workers = new ArrayList<>();
+        for (int w = 0; w < 4; w++) {
+            workers.add(new TopKCollector(25, 0.5f));
+        }
+        for (int row = 0; row < scores.length; row++) {
+            scores[row] = random.nextFloat();
+            workers.get(row % workers.size()).offer(row, scores[row]);
+        }
+        TopKCollector merged = new TopKCollector(25);
+        workers.forEach(merged::addAll);
+        List<VectorIndex.ScoredRow> top = merged.drainDescending();
+
+        Integer[] order = new Integer[scores.length];
+        for (int i = 0; i < order.length; i++) {
+            order[i] = i;
+        }
+        Arrays.sort(order, (a, b) -> Float.compare(scores[b], scores[a]));
+        assertEquals(25, top.size());
+        for (int i = 0; i < top.size(); i++) {
+            assertEquals(order[i], top.get(i).row());
+            assertEquals(scores[order[i]], top.get(i).score());
+        }
+    }
+
+    @Test
+    void scoresAtOrBelowMinimumAreDropped() {
+        TopKCollector collector = new TopKCollector(10, 0.5f);
+        collector.offer(1, 0.2f);
+        collector.offer(2, 0.5f);
+        collector.offer(3, 0.9f);
+        collector.offer(4, 0.6f);
+        List<VectorIndex.ScoredRow> top = collector.drainDescending();
+        assertEquals(List.of(new VectorIndex.ScoredRow(3, 0.9f), new VectorIndex.ScoredRow(4, 0.6f)), top);
+        assertEquals(0, collector.size());
+    }
+}
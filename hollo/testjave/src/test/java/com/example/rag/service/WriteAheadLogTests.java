@@ -0,0 +1,148 @@
+package com.example.rag.service;
+
+import com.example.rag.model.Document;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.*;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * 作者: liangyajie
+ * 联系方式: 695274107@qq.com
+ * 预写日志测试：记录往返与按代重放，残缺尾部截断，以及并发写入的组提交
+ */
+
+class WriteAheadLogTests {
+
+    private static final int DIMENSION = 16;
+
+    @TempDir
+    Path directory;
+
+    @Test
+    void replaysRecordsInOrderAcrossGenerations() throws IOException {
+        Random random = new Random(11);
+        List<Document> batch = List.of(document("第一块", "file-1", random), document("chunk2", "file-2", random));
+        try (WriteAheadLog log = WriteAheadLog.open(directory, 0)) {
+            log.sync(log.append(WriteAheadLog.ADD, WriteAheadLog.addRecord(batch)));
+            long generation = log.rotate();
+            assertEquals(1, generation);
+            log.append(WriteAheadLog.DELETE_FILE, WriteAheadLog.deleteFileRecord("file-1"));
+            log.sync(log.append(WriteAheadLog.DELETE_ALL, ByteBuffer.allocate(0)));
+        }
+
+        List<WriteAheadLog.Entry> entries = new ArrayList<>();
+        assertEquals(3, WriteAheadLog.replay(directory, 0, entries::add));
+        assertEquals(WriteAheadLog.ADD, entries.get(0).type());
+        List<Document> documents = entries.get(0).documents();
+        assertEquals(2, documents.size());
+        for (int i = 0; i < batch.size(); i++) {
+            assertEquals(batch.get(i).getContent(), documents.get(i).getContent());
+            assertEquals(batch.get(i).getMetadata(), documents.get(i).getMetadata());
+            assertArrayEquals(batch.get(i).getEmbeddingVector(), documents.get(i).getEmbeddingVector());
+        }
+        assertEquals(WriteAheadLog.DELETE_FILE, entries.get(1).type());
+        assertEquals("file-1", entries.get(1).fileId());
+        assertEquals(WriteAheadLog.DELETE_ALL, entries.get(2).type());
+
+        // 检查点之后只重放新一代，旧日志可以删除
+        try (WriteAheadLog log = WriteAheadLog.open(directory, 1)) {
+            assertEquals(1, log.generation());
+            log.deleteBefore(1);
+        }
+        entries.clear();
+        assertEquals(2, WriteAheadLog.replay(directory, 0, entries::add));
+        assertEquals(WriteAheadLog.DELETE_FILE, entries.get(0).type());
+    }
+
+    @Test
+    void truncatesTornTail() throws IOException {
+        Random random = new Random(12);
+        try (WriteAheadLog log = WriteAheadLog.open(directory, 0)) {
+            log.append(WriteAheadLog.ADD, WriteAheadLog.addRecord(List.of(document("kept", "file-1", random))));
+            log.sync(log.append(WriteAheadLog.ADD, WriteAheadLog.addRecord(List.of(document("torn", "file-2", random)))));
+        }
+        Path file = onlyLogFile();
+        long size = Files.size(file);
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.WRITE)) {
+            channel.truncate(size - 5);
+        }
+
+        List<WriteAheadLog.Entry> entries = new ArrayList<>();
+        assertEquals(1, WriteAheadLog.replay(directory, 0, entries::add));
+        assertEquals("kept", entries.get(0).documents().get(0).getContent());
+        long truncated = Files.size(file);
+        assertTrue(truncated < size - 5);
+
+        // 截断后继续追加的记录可以正常重放
+        try (WriteAheadLog log = WriteAheadLog.open(directory, 0)) {
+            log.sync(log.append(WriteAheadLog.DELETE_FILE, WriteAheadLog.deleteFileRecord("file-1")));
+        }
+        entries.clear();
+        assertEquals(2, WriteAheadLog.replay(directory, 0, entries::add));
+        assertEquals("file-1", entries.get(1).fileId());
+    }
+
+    @Test
+    void concurrentWritersShareSyncs() throws Exception {
+        int writers = 8;
+        int perWriter = 50;
+        ExecutorService executor = Executors.newFixedThreadPool(writers);
+        try (WriteAheadLog log = WriteAheadLog.open(directory, 0)) {
+            List<Future<?>> futures = new ArrayList<>();
+            for (int w = 0; w < writers; w++) {
+                int writer = w;
+                futures.add(executor.submit(() -> {
+                    for (int i = 0; i < perWriter; i++) {
+                        long position = log.append(WriteAheadLog.DELETE_FILE,
+                                WriteAheadLog.deleteFileRecord("file-" + writer + "-" + i));
+                        log.sync(position);
+                    }
+                    return null;
+                }));
+            }
+            for (Future<?> future : futures) {
+                future.get();
+            }
+        } finally {
+            executor.shutdown();
+        }
+
+        Set<String> fileIds = new HashSet<>();
+        assertEquals(writers * perWriter, WriteAheadLog.replay(directory, 0, entry -> fileIds.add(entry.fileId())));
+        assertEquals(writers * perWriter, fileIds.size());
+    }
+
+    private Path onlyLogFile() throws IOException {
+        try (var files = Files.list(directory)) {
+            List<Path> logs = files.toList();
+            assertEquals(1, logs.size());
+            return logs.get(0);
+        }
+    }
+
+    private static Document document(String content, String fileId, Random random) {
+        Map<String, Object> metadata = new HashMap<>();
+        metadata.put("fileId", fileId);
+        metadata.put("fileName", fileId + ".pdf");
+        metadata.put("fileSize", 42L);
+        Document document = new Document(content, metadata);
+        float[] vector = new float[DIMENSION];
+        for (int i = 0; i < DIMENSION; i++) {
+            vector[i] = (float) random.nextGaussian();
+        }
+        document.setEmbeddingVector(SimilarityKernels.normalize(vector));
+        return document;
+    }
+}